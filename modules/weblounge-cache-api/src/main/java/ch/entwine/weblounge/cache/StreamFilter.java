@@ -20,17 +20,26 @@
 
 package ch.entwine.weblounge.cache;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * An interface used to filter character streams. The method
  * <code>filter()</code> will get called multiple times for successive parts of
- * the input stream.<br>
+ * the input stream, each time with a slice of a character array that is owned
+ * by the caller and must not be retained once the method returns.<br>
+ * 
+ * Filtered output is written to the <code>out</code> sink that is passed in
+ * along with the input. Implementations are expected to write runs of
+ * unmodified characters directly from the input array rather than copying the
+ * input into intermediate buffers.<br>
  * 
  * The <code>StreamFilter</code> may keep an internal cache and/or state
- * information about its filtering process and is free to return as much or as
+ * information about its filtering process and is free to write as much or as
  * few of the filtered stream for each invocation of the <code>filter()</code>
  * method as it likes.<br>
  * 
- * The <code>StreamFilter</code> must return all remaining/cached parts of the
+ * The <code>StreamFilter</code> must write all remaining/cached parts of the
  * filtered stream upon a call to the <code>flush()</code> method.<br>
  * 
  * The <code>StreamFilter</code> must discard all its internal state information
@@ -40,26 +49,36 @@ package ch.entwine.weblounge.cache;
 public interface StreamFilter {
 
   /**
-   * Filters the next part of the character stream.
+   * Filters the next part of the character stream, which consists of
+   * <code>len</code> characters of <code>buf</code>, starting at
+   * <code>off</code>.
    * 
-   * @param buffer
+   * @param buf
    *          the next portion of the input stream
+   * @param off
+   *          offset of the first character
+   * @param len
+   *          number of characters
    * @param contentType
    *          the stream's content type
-   * @return the filtered character stream or <code>null</code> if no filtered
-   *         output should be generated
-   * 
+   * @param out
+   *          the sink for the filtered character stream
+   * @throws IOException
+   *           if writing to <code>out</code> fails
    */
-  StringBuffer filter(StringBuffer buffer, String contentType);
+  void filter(char[] buf, int off, int len, String contentType, Writer out)
+      throws IOException;
 
   /**
    * Indicates that the stream must be flushed. The <code>StreamFilter</code>
-   * must return all remaining output.
+   * must write all remaining output to <code>out</code>.
    * 
-   * @return the remaining output of the filtered stream or <code>null</code> if
-   *         no further output remains
+   * @param out
+   *          the sink for the filtered character stream
+   * @throws IOException
+   *           if writing to <code>out</code> fails
    */
-  StringBuffer flush();
+  void flush(Writer out) throws IOException;
 
   /**
    * Indicates the end of the input stream and. The <code>StreamFilter</code>
@@ -23,16 +23,27 @@ package ch.entwine.weblounge.cache.impl;
 import ch.entwine.weblounge.common.request.CacheHandle;
 import ch.entwine.weblounge.common.request.CacheTag;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class implements an entry into the cache.
@@ -48,9 +59,27 @@ public final class CacheEntry implements Serializable {
   /** The key for this cache entry */
   private String key = null;
 
-  /** The content buffer */
+  /** Responses smaller than this number of bytes are not compressed */
+  static final int MIN_COMPRESSION_SIZE = 256;
+
+  /** Suffix of the etag of the compressed content */
+  private static final String GZIP_ETAG_SUFFIX = "-gz";
+
+  /** Size of the chunks used to write off-heap content */
+  private static final int CHUNK_SIZE = 8192;
+
+  /** The content buffer, which may be larger than the content it holds */
   private byte[] content;
 
+  /** The content buffer, if the content has been moved off the heap */
+  private transient ByteBuffer offHeapContent = null;
+
+  /** True if the content buffer holds the gzip compressed content */
+  private boolean compressed = false;
+
+  /** Length of the uncompressed content */
+  private int contentLength = 0;
+
   /** The content encoding */
   private String encoding = null;
 
@@ -66,6 +95,9 @@ public final class CacheEntry implements Serializable {
   /** Time in ms for the client to revalidate */
   private long clientRevalidationTime = 0L;
 
+  /** Date when the entry expires */
+  private long expirationDate = 0L;
+
   /** The etag */
   private String eTag = null;
 
@@ -88,18 +120,50 @@ public final class CacheEntry implements Serializable {
    */
   protected CacheEntry(CacheHandle handle, byte[] content, String encoding,
       CacheableHttpServletResponseHeaders headers) {
+    this(handle, content, content != null ? content.length : 0, encoding, headers);
+  }
+
+  /**
+   * Creates a new cache entry for the given handle, content and metadata,
+   * where only the first <code>length</code> bytes of <code>content</code> are
+   * part of the response.
+   * <p>
+   * The content buffer is taken over as is rather than being copied, so it must
+   * not be modified afterwards. Call {@link #trimToSize()} once the entry is
+   * complete to release the unused part of the buffer.
+   * 
+   * @param handle
+   *          the cache handle
+   * @param content
+   *          the content buffer
+   * @param length
+   *          the content length
+   * @param encoding
+   *          the content encoding
+   * @param headers
+   *          the metadata
+   * @throws IllegalArgumentException
+   *           if the content or the headers collection is <code>null</code> or
+   *           if <code>length</code> exceeds the content buffer
+   */
+  protected CacheEntry(CacheHandle handle, byte[] content, int length,
+      String encoding, CacheableHttpServletResponseHeaders headers) {
     if (handle == null)
       throw new IllegalArgumentException("Handle cannot be null");
     if (content == null)
       throw new IllegalArgumentException("Content cannot be null");
+    if (length < 0 || length > content.length)
+      throw new IllegalArgumentException("Content length " + length + " is out of bounds");
     if (headers == null)
       throw new IllegalArgumentException("Headers cannot be null");
     this.key = handle.getKey();
     this.encoding = encoding;
     this.content = content;
+    this.contentLength = length;
     this.creationDate = handle.getCreationDate();
     this.modificationDate = getTimeWithoutMilliseconds(handle.getModificationDate());
     this.clientRevalidationTime = handle.getClientRevalidationTime();
+    this.expirationDate = creationDate + handle.getCacheExpirationTime();
     this.eTag = createETag(modificationDate);
     setHeaders(headers);
   }
@@ -131,6 +195,24 @@ public final class CacheEntry implements Serializable {
     return eTag;
   }
 
+  /**
+   * Returns the etag of either the compressed or the uncompressed content. The
+   * two are different representations and therefore must not share a strong
+   * validator, so the etag of the compressed content carries an additional
+   * suffix.
+   * 
+   * @param gzip
+   *          <code>true</code> to get the etag of the compressed content
+   * @return the etag
+   */
+  public String getETag(boolean gzip) {
+    if (!gzip)
+      return eTag;
+    if (eTag.endsWith("\""))
+      return eTag.substring(0, eTag.length() - 1) + GZIP_ETAG_SUFFIX + "\"";
+    return eTag + GZIP_ETAG_SUFFIX;
+  }
+
   /**
    * Returns the date when this entry was created.
    * 
@@ -158,6 +240,27 @@ public final class CacheEntry implements Serializable {
     return clientRevalidationTime;
   }
 
+  /**
+   * Returns the date when this entry expires. Past that date, the entry may
+   * only be served while a replacement is being rendered.
+   * 
+   * @return the expiration date
+   */
+  public long getExpirationDate() {
+    return expirationDate;
+  }
+
+  /**
+   * Returns <code>true</code> if the entry has expired at the given time.
+   * 
+   * @param time
+   *          the time in milliseconds
+   * @return <code>true</code> if the entry is expired
+   */
+  public boolean isExpired(long time) {
+    return time >= expirationDate;
+  }
+
   /**
    * Returns <code>true</code> if the entry is tagged with <code>tag</code>.
    * 
@@ -211,12 +314,229 @@ public final class CacheEntry implements Serializable {
   }
 
   /**
-   * Returns the cached content.
+   * Returns the cached content. If the content is stored in compressed form,
+   * it is decompressed first.
    * 
    * @return the content
    */
   public byte[] getContent() {
-    return content;
+    if (!compressed)
+      return getStoredContent();
+    InputStream is = null;
+    try {
+      is = new GZIPInputStream(new ByteArrayInputStream(getStoredContent()));
+      ByteArrayOutputStream os = new ByteArrayOutputStream(contentLength);
+      IOUtils.copy(is, os);
+      return os.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Error decompressing cached content of " + key, e);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Returns the gzip compressed content or <code>null</code> if the content
+   * has not been compressed.
+   * 
+   * @return the compressed content
+   */
+  public byte[] getCompressedContent() {
+    return compressed ? getStoredContent() : null;
+  }
+
+  /**
+   * Writes the content to the output stream. If <code>compressed</code> is
+   * <code>true</code>, the gzip compressed content is written, which requires
+   * the content to be stored in compressed form.
+   * 
+   * @param os
+   *          the output stream
+   * @param compressed
+   *          <code>true</code> to write the compressed content
+   * @throws IOException
+   *           if writing to the output stream fails
+   */
+  public void writeContent(OutputStream os, boolean compressed)
+      throws IOException {
+    if (compressed && !this.compressed)
+      throw new IllegalStateException("Content of " + key + " is not compressed");
+    if (!compressed && this.compressed) {
+      InputStream is = new GZIPInputStream(new ByteArrayInputStream(getStoredContent()));
+      try {
+        IOUtils.copy(is, os);
+      } finally {
+        IOUtils.closeQuietly(is);
+      }
+      return;
+    }
+    ByteBuffer buffer = offHeapContent;
+    if (buffer == null) {
+      os.write(content, 0, getStoredContentLength());
+      return;
+    }
+    buffer = buffer.duplicate();
+    byte[] chunk = new byte[Math.min(CHUNK_SIZE, buffer.remaining())];
+    while (buffer.hasRemaining()) {
+      int length = Math.min(chunk.length, buffer.remaining());
+      buffer.get(chunk, 0, length);
+      os.write(chunk, 0, length);
+    }
+  }
+
+  /**
+   * Returns the number of bytes that are used to store the content, which is
+   * the length of the compressed content if the content is compressed.
+   * 
+   * @return the stored content size
+   */
+  public int getStoredContentLength() {
+    ByteBuffer buffer = offHeapContent;
+    if (buffer != null)
+      return buffer.capacity();
+    return compressed ? content.length : contentLength;
+  }
+
+  /**
+   * Returns <code>true</code> if the content is stored outside of the java
+   * heap.
+   * 
+   * @return <code>true</code> if the content is stored off-heap
+   */
+  public boolean isOffHeap() {
+    return offHeapContent != null;
+  }
+
+  /**
+   * Moves the content into a direct buffer outside of the java heap, so that
+   * the size of the cache does not add to the garbage collector's work.
+   */
+  void moveOffHeap() {
+    if (offHeapContent != null)
+      return;
+    int length = getStoredContentLength();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+    buffer.put(content, 0, length);
+    buffer.flip();
+    offHeapContent = buffer.asReadOnlyBuffer();
+    content = null;
+  }
+
+  /**
+   * Returns the content as it is stored, which may be compressed.
+   * 
+   * @return the stored content
+   */
+  private byte[] getStoredContent() {
+    ByteBuffer buffer = offHeapContent;
+    if (buffer == null) {
+      int length = getStoredContentLength();
+      return length == content.length ? content : Arrays.copyOf(content, length);
+    }
+    byte[] bytes = new byte[buffer.capacity()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes the entry to the object stream, including off-heap content which
+   * is converted back into its byte array form.
+   * 
+   * @param out
+   *          the object output stream
+   * @throws IOException
+   *           if writing the object fails
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    if (offHeapContent != null) {
+      content = getStoredContent();
+      try {
+        out.defaultWriteObject();
+      } finally {
+        content = null;
+      }
+    } else {
+      trimToSize();
+      out.defaultWriteObject();
+    }
+  }
+
+  /**
+   * Releases the part of the content buffer that is not used by the content.
+   */
+  void trimToSize() {
+    if (offHeapContent != null)
+      return;
+    int length = getStoredContentLength();
+    if (length < content.length)
+      content = Arrays.copyOf(content, length);
+  }
+
+  /**
+   * Returns <code>true</code> if the content is stored in gzip compressed
+   * form.
+   * 
+   * @return <code>true</code> if the content is compressed
+   */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  /**
+   * Returns the length of the uncompressed content in bytes.
+   * 
+   * @return the content length
+   */
+  public int getContentLength() {
+    return contentLength;
+  }
+
+  /**
+   * Replaces the content with its gzip compressed form, provided the content
+   * is textual, has not already been encoded by the response and actually
+   * becomes smaller.
+   * 
+   * @return <code>true</code> if the content has been compressed
+   */
+  boolean compress() {
+    if (compressed || offHeapContent != null || contentLength < MIN_COMPRESSION_SIZE)
+      return compressed;
+    if (headers.containsHeader("Content-Encoding") || !isCompressible(getContentType()))
+      return false;
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream(contentLength / 4);
+    GZIPOutputStream gzos = null;
+    try {
+      gzos = new GZIPOutputStream(os);
+      gzos.write(content, 0, contentLength);
+      gzos.finish();
+    } catch (IOException e) {
+      logger.warn("Error compressing cached content of {}: {}", key, e.getMessage());
+      return false;
+    } finally {
+      IOUtils.closeQuietly(gzos);
+    }
+
+    if (os.size() >= contentLength)
+      return false;
+    content = os.toByteArray();
+    compressed = true;
+    return true;
+  }
+
+  /**
+   * Returns <code>true</code> if content of the given type benefits from
+   * compression.
+   * 
+   * @param contentType
+   *          the content type
+   * @return <code>true</code> if the content type is compressible
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null)
+      return false;
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("xml") || type.contains("json") || type.contains("javascript");
   }
 
   /**
@@ -254,7 +574,22 @@ public final class CacheEntry implements Serializable {
    * @return <code>true</code> if the etag is either empty or matches
    */
   public boolean matches(String eTag) {
-    return StringUtils.isNotBlank(eTag) && this.eTag.equals(eTag);
+    return matches(eTag, false);
+  }
+
+  /**
+   * Returns <code>true</code> if <code>eTag</code> matches the etag of either
+   * the compressed or the uncompressed content of this entry.
+   * 
+   * @param eTag
+   *          the etag
+   * @param gzip
+   *          <code>true</code> to match the etag of the compressed content
+   * @return <code>true</code> if the etag matches
+   * @see #getETag(boolean)
+   */
+  public boolean matches(String eTag, boolean gzip) {
+    return StringUtils.isNotBlank(eTag) && getETag(gzip).equals(eTag);
   }
 
   /**
@@ -20,10 +20,14 @@
 
 package ch.entwine.weblounge.cache.impl;
 
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
 import ch.entwine.weblounge.common.request.CacheHandle;
 import ch.entwine.weblounge.common.request.CacheTag;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class represents a key in the weblounge site cache. It offers access to
@@ -32,13 +36,16 @@ import java.io.Serializable;
 public class CacheEntryKey implements Serializable {
 
   /** Serial version uid */
-  private static final long serialVersionUID = -2864438259828883116L;
+  private static final long serialVersionUID = 4526493203446730427L;
 
   /** The primary key */
   protected String primaryKey = null;
 
   /** The full tag set */
-  protected String tags = null;
+  protected String[] tags = null;
+
+  /** The tags that were used to create the primary key */
+  protected String[] primaryTags = null;
 
   /**
    * Creates a new cache entry key object.
@@ -58,7 +65,11 @@ public class CacheEntryKey implements Serializable {
    */
   public CacheEntryKey(CacheHandle hdl) {
     primaryKey = hdl.getKey();
-    tags = createKey(hdl.getTags());
+    tags = createTagSet(hdl.getTags());
+    if (hdl instanceof TaggedCacheHandle)
+      primaryTags = createTagSet(((TaggedCacheHandle) hdl).getPrimaryTags());
+    else
+      primaryTags = tags;
   }
 
   /**
@@ -71,39 +82,81 @@ public class CacheEntryKey implements Serializable {
   }
 
   /**
-   * Returns the full tag set (in a serialized form).
+   * Returns the full tag set, with every tag in its serialized form as returned
+   * by {@link #serialize(CacheTag)}.
+   * 
+   * @return the tags
+   */
+  String[] getTags() {
+    return tags != null ? tags : new String[] {};
+  }
+
+  /**
+   * Returns the full tag set as cache tags.
    * 
    * @return the tags
    */
-  String getTags() {
-    return tags;
+  CacheTag[] getCacheTags() {
+    String[] serializedTags = getTags();
+    CacheTag[] cacheTags = new CacheTag[serializedTags.length];
+    for (int i = 0; i < serializedTags.length; i++) {
+      String tag = serializedTags[i];
+      int separator = tag.indexOf('=');
+      cacheTags[i] = new CacheTagImpl(tag.substring(0, separator), tag.substring(separator + 1));
+    }
+    return cacheTags;
+  }
+
+  /**
+   * Returns <code>true</code> if <code>tag</code>, in its serialized form, was
+   * part of the tags that were used to create the primary key.
+   * 
+   * @param tag
+   *          the serialized tag
+   * @return <code>true</code> if the tag is part of the primary key
+   */
+  boolean isPrimaryTag(String tag) {
+    if (primaryTags == null)
+      return false;
+    for (String t : primaryTags) {
+      if (t.equals(tag))
+        return true;
+    }
+    return false;
   }
 
   /**
-   * Creates the key out of the set of tags. Note that the <code>site</code> tag
-   * is skipped since this cache implementation uses a separate cache per site
+   * Creates the serialized tag set. Note that the <code>site</code> tag is
+   * skipped since this cache implementation uses a separate cache per site
    * anyway.
    * 
    * @param tags
    *          the tags
-   * @return the key
+   * @return the serialized tags
    */
-  protected String createKey(CacheTag[] tags) {
+  protected String[] createTagSet(CacheTag[] tags) {
     if (tags == null || tags.length == 0)
       throw new IllegalArgumentException("Tags must not be null or empty");
 
-    StringBuffer key = new StringBuffer();
-
-    // Build the key
+    List<String> tagSet = new ArrayList<String>(tags.length);
     for (CacheTag tag : tags) {
       if (CacheTag.Site.equals(tag.getName()))
         continue;
-      if (key.length() > 0)
-        key.append("; ");
-      key.append(tag.getName()).append("=").append(tag.getValue());
+      tagSet.add(serialize(tag));
     }
 
-    return key.toString();
+    return tagSet.toArray(new String[tagSet.size()]);
+  }
+
+  /**
+   * Returns the serialized form of the tag, which is <code>name=value</code>.
+   * 
+   * @param tag
+   *          the tag
+   * @return the serialized tag
+   */
+  static String serialize(CacheTag tag) {
+    return tag.getName() + "=" + tag.getValue();
   }
 
   /**
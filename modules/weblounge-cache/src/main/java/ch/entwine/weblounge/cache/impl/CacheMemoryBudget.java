@@ -0,0 +1,508 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the number of bytes that are held by the elements of a cache
+ * and evicts elements once the configured budget is exceeded.
+ * <p>
+ * Elements are considered for eviction in the order in which they were added
+ * to the cache. Elements that have been accessed since they were last looked
+ * at get a second chance, and among the remaining candidates, the largest
+ * element is evicted first.
+ */
+final class CacheMemoryBudget implements CacheEventListener {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(CacheMemoryBudget.class);
+
+  /** Number of elements that are compared when looking for the next victim */
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
+  /** Estimated number of bytes used by an element besides its content */
+  static final int ELEMENT_OVERHEAD = 512;
+
+  /** The maximum number of bytes */
+  private volatile long maxBytes = 0;
+
+  /** The number of bytes currently in use */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /** The tracked elements by primary key */
+  private final ConcurrentMap<String, TrackedElement> elements = new ConcurrentHashMap<String, TrackedElement>();
+
+  /** The tracked elements in eviction order */
+  private final ConcurrentLinkedDeque<TrackedElement> evictionQueue = new ConcurrentLinkedDeque<TrackedElement>();
+
+  /** Number of entries in the eviction queue, including stale ones */
+  private final AtomicInteger queueLength = new AtomicInteger();
+
+  /**
+   * Creates a new memory budget of <code>maxBytes</code>. A budget of
+   * <code>0</code> means that the number of bytes is tracked but not limited.
+   * 
+   * @param maxBytes
+   *          the maximum number of bytes
+   */
+  CacheMemoryBudget(long maxBytes) {
+    setMaxBytes(maxBytes);
+  }
+
+  /**
+   * Sets the maximum number of bytes.
+   * 
+   * @param maxBytes
+   *          the maximum number of bytes
+   */
+  synchronized void setMaxBytes(long maxBytes) {
+    boolean wasLimited = this.maxBytes > 0;
+    this.maxBytes = Math.max(0, maxBytes);
+
+    // The eviction queue is only maintained while there is a limit
+    if (!wasLimited && this.maxBytes > 0) {
+      evictionQueue.addAll(elements.values());
+      queueLength.set(evictionQueue.size());
+    } else if (wasLimited && this.maxBytes == 0) {
+      evictionQueue.clear();
+      queueLength.set(0);
+    }
+  }
+
+  /**
+   * Returns the maximum number of bytes or <code>0</code> if the budget is
+   * unlimited.
+   * 
+   * @return the maximum number of bytes
+   */
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the number of bytes that are currently held by the cache.
+   * 
+   * @return the number of bytes
+   */
+  long getBytes() {
+    return bytes.get();
+  }
+
+  /**
+   * Returns the number of entries in the eviction queue, including the ones of
+   * elements that have been removed or replaced in the meantime.
+   * 
+   * @return the length of the eviction queue
+   */
+  int getQueueLength() {
+    return queueLength.get();
+  }
+
+  /**
+   * Returns <code>true</code> if the number of bytes exceeds the budget.
+   * 
+   * @return <code>true</code> if the budget is exceeded
+   */
+  boolean isExceeded() {
+    return maxBytes > 0 && bytes.get() > maxBytes;
+  }
+
+  /**
+   * Returns the weight of the element in bytes.
+   * 
+   * @param element
+   *          the element
+   * @return the weight
+   */
+  static long getWeight(Element element) {
+    Object value = element.getObjectValue();
+    if (!(value instanceof CacheEntry))
+      return ELEMENT_OVERHEAD;
+    return ELEMENT_OVERHEAD + ((CacheEntry) value).getStoredContentLength();
+  }
+
+  /**
+   * Starts tracking the element.
+   * 
+   * @param element
+   *          the element
+   */
+  void add(Element element) {
+    Object key = element.getObjectKey();
+    if (key == null)
+      return;
+    TrackedElement tracked = new TrackedElement(key, getWeight(element));
+    TrackedElement previous = elements.put(key.toString(), tracked);
+    if (previous != null)
+      bytes.addAndGet(-previous.weight);
+    bytes.addAndGet(tracked.weight);
+    if (maxBytes > 0) {
+      evictionQueue.offerLast(tracked);
+      queueLength.incrementAndGet();
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Stops tracking the element with the given key.
+   * 
+   * @param key
+   *          the element key
+   */
+  void remove(Object key) {
+    if (key == null)
+      return;
+    TrackedElement tracked = elements.remove(key.toString());
+    if (tracked != null) {
+      bytes.addAndGet(-tracked.weight);
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Records a cache hit on the element with the given key.
+   * 
+   * @param key
+   *          the element key
+   */
+  void hit(Object key) {
+    if (key == null)
+      return;
+    TrackedElement tracked = elements.get(key.toString());
+    if (tracked != null)
+      tracked.hits.incrementAndGet();
+  }
+
+  /**
+   * Returns the keys of up to <code>maxKeys</code> elements that have been hit
+   * the most since they were added, hottest first. The tracked elements are
+   * walked once while the hottest ones are kept in a heap whose head is the
+   * coldest one.
+   * 
+   * @param maxKeys
+   *          the maximum number of keys
+   * @return the keys
+   */
+  List<Object> getHottestKeys(int maxKeys) {
+    if (maxKeys <= 0)
+      return Collections.emptyList();
+
+    PriorityQueue<HitCount> hottest = new PriorityQueue<HitCount>(maxKeys);
+    for (TrackedElement tracked : elements.values()) {
+      long hits = tracked.hits.get();
+      if (hottest.size() < maxKeys) {
+        hottest.add(new HitCount(tracked.key, hits));
+      } else if (hits > hottest.peek().hits) {
+        hottest.poll();
+        hottest.add(new HitCount(tracked.key, hits));
+      }
+    }
+
+    List<HitCount> hitCounts = new ArrayList<HitCount>(hottest);
+    Collections.sort(hitCounts, Collections.reverseOrder());
+    List<Object> keys = new ArrayList<Object>(hitCounts.size());
+    for (HitCount hitCount : hitCounts) {
+      keys.add(hitCount.key);
+    }
+    return keys;
+  }
+
+  /**
+   * Stops tracking all elements.
+   */
+  void clear() {
+    elements.clear();
+    evictionQueue.clear();
+    queueLength.set(0);
+    bytes.set(0);
+  }
+
+  /**
+   * Removes the entries of elements that have been removed or replaced from
+   * the eviction queue once they outnumber the live ones. Eviction skips them
+   * anyway, but it only runs while the budget is exceeded, so without this the
+   * queue would grow with every put and removal below the budget.
+   */
+  private void compactIfNeeded() {
+    if (queueLength.get() <= 2 * elements.size() + EVICTION_SAMPLE_SIZE)
+      return;
+    synchronized (evictionQueue) {
+      if (queueLength.get() <= 2 * elements.size() + EVICTION_SAMPLE_SIZE)
+        return;
+      int removed = 0;
+      for (Iterator<TrackedElement> i = evictionQueue.iterator(); i.hasNext();) {
+        TrackedElement tracked = i.next();
+        if (elements.get(tracked.key.toString()) != tracked) {
+          i.remove();
+          removed++;
+        }
+      }
+      queueLength.addAndGet(-removed);
+    }
+  }
+
+  /**
+   * Removes elements from the cache until the number of bytes is back within
+   * the budget.
+   * 
+   * @param cache
+   *          the cache
+   * @return the number of evicted elements
+   */
+  int evict(Ehcache cache) {
+    int evicted = 0;
+    while (isExceeded()) {
+      TrackedElement victim = selectVictim(cache);
+      if (victim == null)
+        break;
+      if (cache.remove(victim.key))
+        evicted++;
+      else
+        remove(victim.key);
+    }
+    if (evicted > 0)
+      logger.debug("Evicted {} elements from cache '{}' to stay within {} bytes", new Object[] {
+          evicted,
+          cache.getName(),
+          maxBytes });
+    return evicted;
+  }
+
+  /**
+   * Returns the next element to be evicted from the cache.
+   * 
+   * @param cache
+   *          the cache
+   * @return the element or <code>null</code> if there are no more elements
+   */
+  TrackedElement selectVictim(Ehcache cache) {
+    List<TrackedElement> candidates = new ArrayList<TrackedElement>(EVICTION_SAMPLE_SIZE);
+    int secondChances = 0;
+    while (candidates.size() < EVICTION_SAMPLE_SIZE) {
+      TrackedElement tracked = evictionQueue.pollFirst();
+      if (tracked == null)
+        break;
+      queueLength.decrementAndGet();
+
+      // Skip elements that have been removed or replaced in the meantime
+      if (elements.get(tracked.key.toString()) != tracked)
+        continue;
+
+      // Give elements that have been accessed recently a second chance
+      Element element = cache.getQuiet(tracked.key);
+      if (element == null) {
+        remove(tracked.key);
+        continue;
+      }
+      long lastAccess = element.getLastAccessTime();
+      if (lastAccess > tracked.lastSeen && secondChances++ < elements.size()) {
+        tracked.lastSeen = lastAccess;
+        evictionQueue.offerLast(tracked);
+        queueLength.incrementAndGet();
+        continue;
+      }
+
+      candidates.add(tracked);
+    }
+
+    // Evict the largest candidate and put back the others
+    TrackedElement victim = null;
+    for (TrackedElement candidate : candidates) {
+      if (victim == null || candidate.weight > victim.weight)
+        victim = candidate;
+    }
+    for (int i = candidates.size() - 1; i >= 0; i--) {
+      if (candidates.get(i) != victim) {
+        evictionQueue.offerFirst(candidates.get(i));
+        queueLength.incrementAndGet();
+      }
+    }
+    return victim;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element)
+      throws CacheException {
+    add(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element)
+      throws CacheException {
+    add(element);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element)
+      throws CacheException {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("Memory budget is bound to a single cache");
+  }
+
+  /**
+   * An element that is being tracked by the budget.
+   */
+  private static final class TrackedElement {
+
+    /** The element key */
+    private final Object key;
+
+    /** The element's weight in bytes */
+    private final long weight;
+
+    /** The last access time of the element when it was last looked at */
+    private long lastSeen;
+
+    /** Number of cache hits on the element */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Creates a new tracked element.
+     * 
+     * @param key
+     *          the element key
+     * @param weight
+     *          the weight in bytes
+     */
+    TrackedElement(Object key, long weight) {
+      this.key = key;
+      this.weight = weight;
+      this.lastSeen = System.currentTimeMillis();
+    }
+
+  }
+
+  /**
+   * The number of hits of an element at the time it was looked at.
+   */
+  private static final class HitCount implements Comparable<HitCount> {
+
+    /** The element key */
+    private final Object key;
+
+    /** The number of hits */
+    private final long hits;
+
+    /**
+     * Creates a new hit count.
+     * 
+     * @param key
+     *          the element key
+     * @param hits
+     *          the number of hits
+     */
+    HitCount(Object key, long hits) {
+      this.key = key;
+      this.hits = hits;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    public int compareTo(HitCount other) {
+      return hits < other.hits ? -1 : (hits > other.hits ? 1 : 0);
+    }
+
+  }
+
+}
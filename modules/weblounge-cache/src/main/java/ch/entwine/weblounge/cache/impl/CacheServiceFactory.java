@@ -21,8 +21,12 @@
 package ch.entwine.weblounge.cache.impl;
 
 import ch.entwine.weblounge.cache.CacheService;
+import ch.entwine.weblounge.common.site.Site;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
@@ -61,6 +65,9 @@ public class CacheServiceFactory implements ManagedServiceFactory {
   /** The factory's service pid */
   static final String SERVICE_PID = "ch.entwine.weblounge.cache.factory";
 
+  /** Service property of sites holding the site identifier */
+  private static final String SITE_IDENTIFIER = "site.identifier";
+
   /** Service registrations per configuration pid */
   private Map<String, ServiceRegistration> services = new HashMap<String, ServiceRegistration>();
 
@@ -114,6 +121,7 @@ public class CacheServiceFactory implements ManagedServiceFactory {
 
       try {
         CacheServiceImpl cache = new CacheServiceImpl(id, name, diskStorePath);
+        cache.setDeployment(getDeployment(id));
         cache.updated(properties);
 
         // Register the service
@@ -126,6 +134,39 @@ public class CacheServiceFactory implements ManagedServiceFactory {
     }
   }
 
+  /**
+   * Returns a string that identifies the versions of the site's bundle and of
+   * the cache bundle, or <code>null</code> if the site's bundle cannot be
+   * found. Since the modification date of the bundles is included, bundles
+   * that are updated with the same version number are detected as well.
+   * 
+   * @param site
+   *          the site identifier
+   * @return the deployment
+   */
+  private String getDeployment(String site) {
+    ServiceReference[] references = null;
+    try {
+      references = bundleCtx.getServiceReferences(Site.class.getName(), "(" + SITE_IDENTIFIER + "=" + site + ")");
+    } catch (InvalidSyntaxException e) {
+      logger.warn("Unable to look up site '{}': {}", site, e.getMessage());
+      return null;
+    }
+    if (references == null || references.length == 0 || references[0].getBundle() == null) {
+      logger.info("Bundle of site '{}' not found, cache snapshots are disabled", site);
+      return null;
+    }
+    Bundle siteBundle = references[0].getBundle();
+    Bundle cacheBundle = bundleCtx.getBundle();
+    StringBuilder deployment = new StringBuilder();
+    deployment.append(siteBundle.getSymbolicName()).append(';');
+    deployment.append(siteBundle.getVersion()).append(';');
+    deployment.append(siteBundle.getLastModified()).append(';');
+    deployment.append(cacheBundle.getVersion()).append(';');
+    deployment.append(cacheBundle.getLastModified());
+    return deployment.toString();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -20,9 +20,11 @@
 
 package ch.entwine.weblounge.cache.impl;
 
+import static ch.entwine.weblounge.common.impl.request.Http11Constants.HEADER_ACCEPT_ENCODING;
+import static ch.entwine.weblounge.common.impl.request.Http11Constants.HEADER_CONTENT_ENCODING;
 import static ch.entwine.weblounge.common.impl.request.Http11Constants.HEADER_IF_MODIFIED_SINCE;
 import static ch.entwine.weblounge.common.impl.request.Http11Constants.HEADER_IF_NONE_MATCH;
-import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+import static ch.entwine.weblounge.common.impl.request.Http11Constants.HEADER_VARY;
 
 import ch.entwine.weblounge.cache.CacheListener;
 import ch.entwine.weblounge.cache.CacheService;
@@ -54,12 +56,22 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Dictionary;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletResponse;
 import javax.servlet.ServletResponseWrapper;
@@ -140,6 +152,18 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   /** The default value for "max elements in memory" configuration property */
   private static final int DEFAULT_MAX_ELEMENTS_IN_MEMORY = 1000;
 
+  /** Configuration key for the maximum number of bytes in memory */
+  public static final String OPT_MAX_BYTES_IN_MEMORY = OPT_PREFIX + ".maxBytesInMemory";
+
+  /** The default value for "max bytes in memory" configuration property */
+  private static final long DEFAULT_MAX_BYTES_IN_MEMORY = 0;
+
+  /** Configuration key for storing the content outside of the java heap */
+  public static final String OPT_OFF_HEAP = OPT_PREFIX + ".offHeap";
+
+  /** The default value for "off heap" configuration property */
+  private static final boolean DEFAULT_OFF_HEAP = false;
+
   /** Configuration key for the maximum number of elements on disk */
   public static final String OPT_MAX_ELEMENTS_ON_DISK = OPT_PREFIX + ".maxElementsOnDisk";
 
@@ -158,6 +182,69 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   /** The default value for "seconds to live" configuration property */
   private static final int DEFAULT_TIME_TO_LIVE = (int) (Times.MS_PER_DAY / 1000);
 
+  /** Configuration key for the time to wait for a concurrent transaction */
+  public static final String OPT_TRANSACTION_TIMEOUT = OPT_PREFIX + ".transactionTimeout";
+
+  /** The default value for "transaction timeout" configuration property */
+  private static final long DEFAULT_TRANSACTION_TIMEOUT = Times.MS_PER_SECOND;
+
+  /** Configuration key for the time to serve expired entries while revalidating */
+  public static final String OPT_STALE_WHILE_REVALIDATE = OPT_PREFIX + ".staleWhileRevalidate";
+
+  /** The default value for "stale while revalidate" configuration property */
+  private static final int DEFAULT_STALE_WHILE_REVALIDATE = 0;
+
+  /** Configuration key for the time to serve expired entries on errors */
+  public static final String OPT_STALE_IF_ERROR = OPT_PREFIX + ".staleIfError";
+
+  /** The default value for "stale if error" configuration property */
+  private static final int DEFAULT_STALE_IF_ERROR = 0;
+
+  /** Configuration key for the time to wait before revalidating after errors */
+  public static final String OPT_REVALIDATION_BACKOFF = OPT_PREFIX + ".revalidationBackoff";
+
+  /** The default value for "revalidation backoff" configuration property */
+  private static final int DEFAULT_REVALIDATION_BACKOFF = 10;
+
+  /** Configuration key for the compression of cached content */
+  public static final String OPT_COMPRESS = OPT_PREFIX + ".compress";
+
+  /** The default value for "compress" configuration property */
+  private static final boolean DEFAULT_COMPRESS = true;
+
+  /** Name of the gzip content encoding */
+  private static final String GZIP_ENCODING = "gzip";
+
+  /** Configuration key for the number of elements kept in the snapshot */
+  public static final String OPT_SNAPSHOT_SIZE = OPT_PREFIX + ".snapshotSize";
+
+  /** Default value for the number of elements kept in the snapshot */
+  private static final int DEFAULT_SNAPSHOT_SIZE = 0;
+
+  /** Configuration key for the number of seconds between two snapshots */
+  public static final String OPT_SNAPSHOT_INTERVAL = OPT_PREFIX + ".snapshotInterval";
+
+  /** Default value for the number of seconds between two snapshots */
+  private static final int DEFAULT_SNAPSHOT_INTERVAL = (int) (10 * Times.MS_PER_MIN / 1000);
+
+  /** Configuration key for the number of elements restored per second */
+  public static final String OPT_SNAPSHOT_RESTORE_RATE = OPT_PREFIX + ".snapshotRestoreRate";
+
+  /** Default value for the number of elements restored per second */
+  private static final int DEFAULT_SNAPSHOT_RESTORE_RATE = 20;
+
+  /** File name extension of the snapshot file */
+  private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+  /** Encoding that is used to store fragments */
+  private static final String FRAGMENT_ENCODING = "utf-8";
+
+  /** Name of the warning header that is added to stale responses */
+  private static final String STALE_WARNING_HEADER = "Warning";
+
+  /** Value of the warning header that is added to stale responses */
+  private static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
   /** Make the cache persistent between reboots? */
   protected boolean diskPersistent = DEFAULT_DISK_PERSISTENT;
 
@@ -167,6 +254,12 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   /** Maximum number of elements in memory */
   protected int maxElementsInMemory = DEFAULT_MAX_ELEMENTS_IN_MEMORY;
 
+  /** Maximum number of bytes held by the cache elements */
+  protected long maxBytesInMemory = DEFAULT_MAX_BYTES_IN_MEMORY;
+
+  /** Whether to store the content outside of the java heap */
+  protected boolean offHeap = DEFAULT_OFF_HEAP;
+
   /** Maximum number of elements in memory */
   protected int maxElementsOnDisk = DEFAULT_MAX_ELEMENTS_ON_DISK;
 
@@ -179,8 +272,32 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   /** Whether cache statistics are enabled */
   protected boolean statisticsEnabled = DEFAULT_STATISTICS_ENABLED;
 
+  /** Whether cached content is stored in compressed form */
+  protected boolean compress = DEFAULT_COMPRESS;
+
+  /** Seconds to serve an expired element while it is being revalidated */
+  protected int staleWhileRevalidate = DEFAULT_STALE_WHILE_REVALIDATE;
+
+  /** Seconds to serve an expired element if revalidating it failed */
+  protected int staleIfError = DEFAULT_STALE_IF_ERROR;
+
+  /** Seconds to wait before revalidating an element again after an error */
+  protected int revalidationBackoff = DEFAULT_REVALIDATION_BACKOFF;
+
+  /** Number of milliseconds to wait for a transaction on the same key */
+  protected long transactionTimeout = DEFAULT_TRANSACTION_TIMEOUT;
+
+  /** Number of elements kept in the snapshot */
+  protected int snapshotSize = DEFAULT_SNAPSHOT_SIZE;
+
+  /** Number of seconds between two snapshots */
+  protected int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+  /** Number of elements restored from the snapshot per second */
+  protected int snapshotRestoreRate = DEFAULT_SNAPSHOT_RESTORE_RATE;
+
   /** Identifier for the default cache */
-  private static final String DEFAULT_CACHE = "site";
+  static final String DEFAULT_CACHE = "site";
 
   /** The ehache cache manager */
   protected CacheManager cacheManager = null;
@@ -208,12 +325,39 @@ public class CacheServiceImpl implements CacheService, ManagedService {
    */
   protected boolean diskStoreEnabled = true;
 
+  /** Index from cache tags to the keys of the cached elements */
+  protected CacheTagIndex tagIndex = null;
+
+  /** Number of bytes held by the cached elements */
+  protected CacheMemoryBudget memoryBudget = null;
+
   /** Transactions that are currently being processed */
-  protected Map<String, CacheTransaction> transactions = null;
+  protected ConcurrentMap<String, CacheTransaction> transactions = null;
+
+  /** Times of the last failed revalidation of expired elements by key */
+  protected ConcurrentMap<String, Long> revalidationFailures = null;
 
   /** List of registered cache listeners */
   protected List<CacheListener> cacheListeners = null;
 
+  /** Snapshot of the most frequently hit elements */
+  protected CacheSnapshot snapshot = null;
+
+  /** Executor for writing and restoring the snapshot */
+  private ScheduledExecutorService snapshotExecutor = null;
+
+  /** The periodic snapshot task */
+  private ScheduledFuture<?> snapshotTask = null;
+
+  /** True if the snapshot has been restored */
+  private boolean snapshotRestored = false;
+
+  /** Identifies the deployment that renders the cached responses */
+  private volatile String deployment = null;
+
+  /** Counter that is increased every time cached elements are invalidated */
+  private final AtomicLong invalidations = new AtomicLong();
+
   /**
    * Creates a new cache with the given identifier and name.
    * 
@@ -232,8 +376,11 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     this.id = id;
     this.name = name;
     this.diskStorePath = diskStorePath;
-    this.transactions = new HashMap<String, CacheTransaction>();
+    this.transactions = new ConcurrentHashMap<String, CacheTransaction>();
+    this.revalidationFailures = new ConcurrentHashMap<String, Long>();
     this.cacheListeners = new ArrayList<CacheListener>();
+    this.tagIndex = new CacheTagIndex();
+    this.memoryBudget = new CacheMemoryBudget(maxBytesInMemory);
     init(id, name, diskStorePath);
   }
 
@@ -270,7 +417,7 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   private void init(String id, String name, String diskStorePath) {
     InputStream configInputStream = null;
     try {
-      configInputStream = getClass().getClassLoader().getResourceAsStream(CACHE_MANAGER_CONFIG);
+      configInputStream = CacheServiceImpl.class.getResourceAsStream(CACHE_MANAGER_CONFIG);
       Configuration cacheManagerConfig = ConfigurationFactory.parseConfiguration(configInputStream);
       cacheManagerConfig.getDiskStoreConfiguration().setPath(diskStorePath);
       cacheManager = new CacheManager(cacheManagerConfig);
@@ -316,6 +463,22 @@ public class CacheServiceImpl implements CacheService, ManagedService {
 
     Cache cache = new Cache(cacheConfig);
     cacheManager.addCache(cache);
+
+    // Keep the tag index and the memory budget in sync with the cache and add
+    // what has been restored from the disk store
+    cache.getCacheEventNotificationService().registerListener(tagIndex);
+    cache.getCacheEventNotificationService().registerListener(memoryBudget);
+    for (Object key : cache.getKeys()) {
+      tagIndex.add(key);
+      Element element = cache.getQuiet(key);
+      if (element != null)
+        memoryBudget.add(element);
+    }
+
+    // Keep the hottest elements around for the next restart
+    if (diskStoreEnabled)
+      snapshot = new CacheSnapshot(new File(diskStorePath, DEFAULT_CACHE + SNAPSHOT_EXTENSION));
+
     if (overflowToDisk)
       logger.info("Cache extension for site '{}' created at {}", id, cacheManager.getDiskStorePath());
     else
@@ -331,6 +494,16 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   public void shutdown() {
     if (cacheManager == null)
       return;
+
+    // Stop the snapshot tasks and take a last snapshot
+    synchronized (this) {
+      if (snapshotExecutor != null) {
+        snapshotExecutor.shutdownNow();
+        snapshotExecutor = null;
+        if (snapshotSize > 0)
+          writeSnapshot();
+      }
+    }
     for (String cacheName : cacheManager.getCacheNames()) {
       Cache cache = cacheManager.getCache(cacheName);
       cache.dispose();
@@ -382,6 +555,10 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     statisticsEnabled = ConfigurationUtils.isTrue((String) properties.get(OPT_ENABLE_STATISTICS), DEFAULT_STATISTICS_ENABLED);
     logger.debug("Cache statistics are {}", statisticsEnabled ? "enabled" : "disabled");
 
+    // Compression
+    compress = ConfigurationUtils.isTrue((String) properties.get(OPT_COMPRESS), DEFAULT_COMPRESS);
+    logger.debug("Cache compression is {}", compress ? "enabled" : "disabled");
+
     // Max elements in memory
     try {
       maxElementsInMemory = ConfigurationUtils.getValue((String) properties.get(OPT_MAX_ELEMENTS_IN_MEMORY), DEFAULT_MAX_ELEMENTS_IN_MEMORY);
@@ -392,6 +569,21 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       maxElementsInMemory = DEFAULT_MAX_ELEMENTS_IN_MEMORY;
     }
 
+    // Max bytes in memory
+    try {
+      maxBytesInMemory = ConfigurationUtils.getValue((String) properties.get(OPT_MAX_BYTES_IN_MEMORY), DEFAULT_MAX_BYTES_IN_MEMORY);
+      logger.debug("Cache will keep {} bytes in memory", maxBytesInMemory > 0 ? "up to " + maxBytesInMemory : "any number of");
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_MAX_BYTES_IN_MEMORY + "' is malformed: " + (String) properties.get(OPT_MAX_BYTES_IN_MEMORY));
+      logger.warn("Cache setting '" + OPT_MAX_BYTES_IN_MEMORY + "' set to default value of " + DEFAULT_MAX_BYTES_IN_MEMORY);
+      maxBytesInMemory = DEFAULT_MAX_BYTES_IN_MEMORY;
+    }
+    memoryBudget.setMaxBytes(maxBytesInMemory);
+
+    // Off-heap storage
+    offHeap = ConfigurationUtils.isTrue((String) properties.get(OPT_OFF_HEAP), DEFAULT_OFF_HEAP);
+    logger.debug("Cache content is stored {} the java heap", offHeap ? "outside of" : "on");
+
     // Max elements on disk
     try {
       maxElementsOnDisk = ConfigurationUtils.getValue((String) properties.get(OPT_MAX_ELEMENTS_ON_DISK), DEFAULT_MAX_ELEMENTS_ON_DISK);
@@ -425,6 +617,78 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       timeToLive = DEFAULT_TIME_TO_LIVE;
     }
 
+    // Stale while revalidate
+    try {
+      staleWhileRevalidate = ConfigurationUtils.getValue((String) properties.get(OPT_STALE_WHILE_REVALIDATE), DEFAULT_STALE_WHILE_REVALIDATE);
+      logger.debug("Cache will serve expired elements for {}s while revalidating", staleWhileRevalidate);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_STALE_WHILE_REVALIDATE + "' is malformed: " + (String) properties.get(OPT_STALE_WHILE_REVALIDATE));
+      logger.warn("Cache setting '" + OPT_STALE_WHILE_REVALIDATE + "' set to default value of " + DEFAULT_STALE_WHILE_REVALIDATE);
+      staleWhileRevalidate = DEFAULT_STALE_WHILE_REVALIDATE;
+    }
+
+    // Stale if error
+    try {
+      staleIfError = ConfigurationUtils.getValue((String) properties.get(OPT_STALE_IF_ERROR), DEFAULT_STALE_IF_ERROR);
+      logger.debug("Cache will serve expired elements for {}s if revalidation fails", staleIfError);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_STALE_IF_ERROR + "' is malformed: " + (String) properties.get(OPT_STALE_IF_ERROR));
+      logger.warn("Cache setting '" + OPT_STALE_IF_ERROR + "' set to default value of " + DEFAULT_STALE_IF_ERROR);
+      staleIfError = DEFAULT_STALE_IF_ERROR;
+    }
+
+    // Revalidation backoff
+    try {
+      revalidationBackoff = ConfigurationUtils.getValue((String) properties.get(OPT_REVALIDATION_BACKOFF), DEFAULT_REVALIDATION_BACKOFF);
+      logger.debug("Cache will wait {}s before revalidating expired elements after errors", revalidationBackoff);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_REVALIDATION_BACKOFF + "' is malformed: " + (String) properties.get(OPT_REVALIDATION_BACKOFF));
+      logger.warn("Cache setting '" + OPT_REVALIDATION_BACKOFF + "' set to default value of " + DEFAULT_REVALIDATION_BACKOFF);
+      revalidationBackoff = DEFAULT_REVALIDATION_BACKOFF;
+    }
+
+    // Transaction timeout
+    try {
+      transactionTimeout = ConfigurationUtils.getValue((String) properties.get(OPT_TRANSACTION_TIMEOUT), DEFAULT_TRANSACTION_TIMEOUT);
+      logger.debug("Cache will wait up to {} ms for concurrent transactions", transactionTimeout);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_TRANSACTION_TIMEOUT + "' is malformed: " + (String) properties.get(OPT_TRANSACTION_TIMEOUT));
+      logger.warn("Cache setting '" + OPT_TRANSACTION_TIMEOUT + "' set to default value of " + DEFAULT_TRANSACTION_TIMEOUT);
+      transactionTimeout = DEFAULT_TRANSACTION_TIMEOUT;
+    }
+
+    // Snapshot size
+    try {
+      snapshotSize = ConfigurationUtils.getValue((String) properties.get(OPT_SNAPSHOT_SIZE), DEFAULT_SNAPSHOT_SIZE);
+      logger.debug("Cache snapshot will keep {} elements", snapshotSize);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_SNAPSHOT_SIZE + "' is malformed: " + (String) properties.get(OPT_SNAPSHOT_SIZE));
+      logger.warn("Cache setting '" + OPT_SNAPSHOT_SIZE + "' set to default value of " + DEFAULT_SNAPSHOT_SIZE);
+      snapshotSize = DEFAULT_SNAPSHOT_SIZE;
+    }
+
+    // Snapshot interval
+    try {
+      snapshotInterval = ConfigurationUtils.getValue((String) properties.get(OPT_SNAPSHOT_INTERVAL), DEFAULT_SNAPSHOT_INTERVAL);
+      if (snapshotInterval <= 0)
+        throw new NumberFormatException();
+      logger.debug("Cache snapshot will be taken every {}s", snapshotInterval);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_SNAPSHOT_INTERVAL + "' is malformed: " + (String) properties.get(OPT_SNAPSHOT_INTERVAL));
+      logger.warn("Cache setting '" + OPT_SNAPSHOT_INTERVAL + "' set to default value of " + DEFAULT_SNAPSHOT_INTERVAL);
+      snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    }
+
+    // Snapshot restore rate
+    try {
+      snapshotRestoreRate = ConfigurationUtils.getValue((String) properties.get(OPT_SNAPSHOT_RESTORE_RATE), DEFAULT_SNAPSHOT_RESTORE_RATE);
+      logger.debug("Cache snapshot will be restored at {} elements per second", snapshotRestoreRate > 0 ? snapshotRestoreRate : "any number of");
+    } catch (NumberFormatException e) {
+      logger.warn("Value for cache setting '" + OPT_SNAPSHOT_RESTORE_RATE + "' is malformed: " + (String) properties.get(OPT_SNAPSHOT_RESTORE_RATE));
+      logger.warn("Cache setting '" + OPT_SNAPSHOT_RESTORE_RATE + "' set to default value of " + DEFAULT_SNAPSHOT_RESTORE_RATE);
+      snapshotRestoreRate = DEFAULT_SNAPSHOT_RESTORE_RATE;
+    }
+
     for (String cacheId : cacheManager.getCacheNames()) {
       Cache cache = cacheManager.getCache(cacheId);
       if (cache == null)
@@ -440,6 +704,175 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       config.setTimeToIdleSeconds(timeToIdle);
       config.setTimeToLiveSeconds(timeToLive);
     }
+
+    // Make room if the budget has been lowered
+    Cache cache = cacheManager.getCache(DEFAULT_CACHE);
+    if (cache != null && memoryBudget.isExceeded())
+      memoryBudget.evict(cache);
+
+    scheduleSnapshots();
+  }
+
+  /**
+   * Sets the string that identifies the deployment of the site, i. e. the
+   * versions of the site and of the code that render the cached responses.
+   * Snapshots are stamped with the deployment and are only restored by the
+   * same deployment. If there is no deployment, no snapshots are taken.
+   * <p>
+   * If the deployment changes while the cache is running, the cache is
+   * cleared, since the cached responses have been rendered by the previous
+   * deployment.
+   * 
+   * @param deployment
+   *          the deployment
+   */
+  public void setDeployment(String deployment) {
+    String previous = this.deployment;
+    this.deployment = deployment;
+    if (previous != null && !previous.equals(deployment)) {
+      logger.info("Clearing cache '{}' of a previous deployment", id);
+      clear();
+    }
+  }
+
+  /**
+   * Restores the snapshot once the cache has been configured for the first
+   * time and schedules taking periodic snapshots according to the current
+   * configuration.
+   */
+  private synchronized void scheduleSnapshots() {
+    if (snapshotTask != null) {
+      snapshotTask.cancel(false);
+      snapshotTask = null;
+    }
+
+    if (snapshot == null || snapshotSize <= 0) {
+      if (snapshotExecutor != null) {
+        snapshotExecutor.shutdownNow();
+        snapshotExecutor = null;
+      }
+      return;
+    }
+
+    if (snapshotExecutor == null) {
+      snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Cache snapshot '" + id + "'");
+          t.setDaemon(true);
+          t.setPriority(Thread.MIN_PRIORITY);
+          return t;
+        }
+      });
+    }
+
+    // Warm up the cache in the background while traffic is being served
+    if (!snapshotRestored) {
+      snapshotRestored = true;
+      snapshotExecutor.execute(new Runnable() {
+        public void run() {
+          restoreSnapshot();
+        }
+      });
+    }
+
+    snapshotTask = snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        writeSnapshot();
+      }
+    }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Writes the most frequently hit elements to the snapshot.
+   */
+  private void writeSnapshot() {
+    if (deployment == null || cacheManager.getStatus() != Status.STATUS_ALIVE)
+      return;
+    Cache cache = cacheManager.getCache(DEFAULT_CACHE);
+    if (cache == null)
+      return;
+    try {
+      long invalidationCount = invalidations.get();
+      int written = snapshot.write(CacheSnapshot.select(cache, memoryBudget, snapshotSize), deployment);
+
+      // Elements may have been invalidated while the snapshot was written
+      if (invalidations.get() != invalidationCount) {
+        snapshot.discard();
+        return;
+      }
+
+      logger.debug("Wrote {} elements of cache '{}' to snapshot {}", new Object[] {
+          written,
+          id,
+          snapshot.getFile() });
+    } catch (IOException e) {
+      logger.warn("Error writing snapshot of cache '{}': {}", id, e.getMessage());
+      snapshot.discard();
+    } catch (Throwable t) {
+      logger.error("Error writing snapshot of cache '{}': {}", id, t.getMessage());
+      snapshot.discard();
+    }
+  }
+
+  /**
+   * Puts the elements from the snapshot back into the cache at the configured
+   * rate, provided the snapshot was taken by the current deployment. Elements
+   * that have expired in the meantime or that have already been rendered again
+   * are skipped. Restoring is stopped as soon as elements are
+   * invalidated, since the snapshot may contain those elements.
+   */
+  private void restoreSnapshot() {
+    if (deployment == null || !snapshot.exists())
+      return;
+    final Cache cache = cacheManager.getCache(DEFAULT_CACHE);
+    if (cache == null)
+      return;
+
+    logger.info("Warming up cache '{}' from snapshot {}", id, snapshot.getFile());
+    final long invalidationCount = invalidations.get();
+    final long delay = snapshotRestoreRate > 0 ? Times.MS_PER_SECOND / snapshotRestoreRate : 0;
+    final int[] restored = new int[] { 0 };
+
+    try {
+      snapshot.read(deployment, new CacheSnapshot.ElementHandler() {
+        public boolean handle(CacheEntryKey key, CacheEntry entry) {
+          if (invalidations.get() != invalidationCount || !enabled)
+            return false;
+          if (cacheManager.getStatus() != Status.STATUS_ALIVE)
+            return false;
+
+          long now = System.currentTimeMillis();
+          if (entry.isExpired(now) || cache.getQuiet(key) != null)
+            return true;
+
+          if (offHeap)
+            entry.moveOffHeap();
+          Element element = new Element(key, entry);
+          element.setTimeToLive(toTimeToLive(entry.getExpirationDate() - now) + Math.max(staleWhileRevalidate, staleIfError));
+          cache.put(element);
+          restored[0]++;
+
+          // Make room if the cache has grown beyond its budget
+          if (memoryBudget.isExceeded())
+            memoryBudget.evict(cache);
+
+          // Throttle restoring to not compete with live traffic
+          if (delay > 0) {
+            try {
+              Thread.sleep(delay);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return false;
+            }
+          }
+          return true;
+        }
+      });
+      logger.info("Restored {} elements of cache '{}' from snapshot", restored[0], id);
+    } catch (IOException e) {
+      logger.warn("Error restoring cache '{}' from snapshot: {}", id, e.getMessage());
+      snapshot.discard();
+    }
   }
 
   /**
@@ -461,7 +894,9 @@ public class CacheServiceImpl implements CacheService, ManagedService {
    * @see ch.entwine.weblounge.common.request.ResponseCache#clear()
    */
   public void clear() {
+    discardSnapshot();
     cacheManager.clearAll();
+    revalidationFailures.clear();
     logger.info("Cache '{}' cleared", id);
     for (CacheListener listener : cacheListeners) {
       listener.cacheCleared();
@@ -480,45 +915,13 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     Cache cache = cacheManager.getCache(DEFAULT_CACHE);
 
     // Get the matching keys and load the elements into the cache
-    Collection<Object> keys = getKeysForPrimaryTags(cache, tags);
+    Collection<CacheEntryKey> keys = tagIndex.getKeysForPrimaryTags(tags);
     for (Object key : keys) {
       cache.load(key);
     }
     logger.info("Loaded first {} elements of cache '{}' into memory", keys.size(), id);
   }
 
-  /**
-   * Returns those keys from the given cache that contain at least all the tags
-   * as defined in the <code>tags</code> array.
-   * 
-   * @param cache
-   *          the cache
-   * @param tags
-   *          the set of tags
-   * @return the collection of matching keys
-   */
-  private Collection<Object> getKeysForPrimaryTags(Cache cache, CacheTag[] tags) {
-    // Create the parts of the key to look for
-    List<String> keyParts = new ArrayList<String>(tags.length);
-    for (CacheTag tag : tags) {
-      StringBuffer b = new StringBuffer(tag.getName()).append("=").append(tag.getValue());
-      keyParts.add(b.toString());
-    }
-
-    // Collect those keys that contain all relevant parts
-    Collection<Object> keys = new ArrayList<Object>();
-    key: for (Object k : cache.getKeys()) {
-      String key = k.toString();
-      for (String keyPart : keyParts) {
-        if (!key.contains(keyPart))
-          continue key;
-      }
-      keys.add(k);
-    }
-
-    return keys;
-  }
-
   /**
    * {@inheritDoc}
    * 
@@ -580,12 +983,46 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     // Try to load the content from the cache
     Element element = cache.get(new CacheEntryKey(handle.getKey()));
 
-    // Is the element already beyond its lifetime?
-    if (element != null) {
-      long expirationTime = element.getExpirationTime();
-      if (expirationTime < System.currentTimeMillis()) {
-        logger.debug("Cache element {} of cache {} has expired", request, id);
-        cache.remove(handle.getKey());
+    // Is the element already beyond its lifetime? If so, it is kept while
+    // one request is rendering its replacement and may be served to others in
+    // the meantime. If rendering the replacement failed, it is served until
+    // staleIfError runs out, and the next attempt to render it is only made
+    // once the backoff has passed.
+    if (element != null && element.getValue() != null) {
+      CacheEntry entry = (CacheEntry) element.getValue();
+      long now = System.currentTimeMillis();
+      if (entry.isExpired(now)) {
+        long staleAge = now - entry.getExpirationDate();
+        Long failureTime = revalidationFailures.get(handle.getKey());
+        long maxStaleTime = Math.max(staleWhileRevalidate, staleIfError) * 1000L;
+        long staleTime = failureTime != null ? maxStaleTime : staleWhileRevalidate * 1000L;
+        if (staleAge < maxStaleTime) {
+          if (failureTime == null || now - failureTime >= revalidationBackoff * 1000L) {
+            CacheTransaction tx = new CacheTransaction(handle, filter);
+            tx.setStaleEntry(entry);
+            if (transactions.putIfAbsent(handle.getKey(), tx) == null) {
+              logger.debug("Revalidating expired cache element {} of cache {}", request, id);
+              cacheableResponse.startTransaction(tx);
+              return handle;
+            }
+          }
+          if (staleAge < staleTime) {
+            try {
+              logger.debug("Answering {} from cache '{}' while it is being revalidated", request, id);
+              response.setHeader(STALE_WARNING_HEADER, STALE_WARNING);
+              writeCacheEntry(element, handle, request, response);
+              return null;
+            } catch (IOException e) {
+              logger.debug("Error writing cached response to client");
+              return null;
+            }
+          }
+          logger.debug("Cache element {} of cache {} is being revalidated", request, id);
+        } else {
+          logger.debug("Cache element {} of cache {} has expired", request, id);
+          cache.remove(handle.getKey());
+          revalidationFailures.remove(handle.getKey());
+        }
         element = null;
       }
     }
@@ -604,26 +1041,18 @@ public class CacheServiceImpl implements CacheService, ManagedService {
 
     // Make sure that there are no two transactions producing the same content.
     // If there is a transaction already working on specific content, have
-    // this transaction simply wait for the outcome.
-    synchronized (transactions) {
-      CacheTransaction tx = transactions.get(handle.getKey());
-      if (tx != null) {
-        try {
-          logger.debug("Waiting for cache transaction {} to be finished", request);
-          while (transactions.containsKey(handle.getKey())) {
-            transactions.wait(1000);
-
-            // Was this a notify or a timeout?
-            if (transactions.get(handle.getKey()) != null) {
-              logger.debug("After waiting 1s, cache entry {} is still being worked on", handle.getKey());
-              response.setStatus(SC_SERVICE_UNAVAILABLE);
-              return null;
-            }
-
-          }
-        } catch (InterruptedException e) {
-          // Done sleeping!
-        }
+    // this transaction wait for the outcome, but no longer than the configured
+    // timeout. Transactions on different keys never contend.
+    CacheTransaction tx = new CacheTransaction(handle, filter);
+    CacheTransaction activeTx = transactions.putIfAbsent(handle.getKey(), tx);
+    if (activeTx != null) {
+      try {
+        logger.debug("Waiting for cache transaction {} to be finished", request);
+        if (!activeTx.await(transactionTimeout))
+          logger.debug("After waiting {} ms, cache entry {} is still being worked on", transactionTimeout, handle.getKey());
+      } catch (InterruptedException e) {
+        logger.debug("Interrupted while waiting for cache entry {}", handle.getKey());
+        Thread.currentThread().interrupt();
       }
 
       // The cache might have been shut down in the meantime
@@ -633,25 +1062,30 @@ public class CacheServiceImpl implements CacheService, ManagedService {
         logger.debug("Cache '{}' changed status to '{}'", request.getSite().getIdentifier(), cacheManager.getStatus());
       }
 
-      if (element == null) {
-        tx = cacheableResponse.startTransaction(handle, filter);
-        transactions.put(handle.getKey(), tx);
-        logger.debug("Starting work on cached version of {}", request);
+      // If we were waiting for an active cache transaction, let's try again
+      if (element != null && element.getValue() != null) {
+        try {
+          logger.debug("Answering {} from cache '{}'", request, id);
+          writeCacheEntry(element, handle, request, response);
+          return null;
+        } catch (IOException e) {
+          logger.warn("Error writing cached response to client");
+          return null;
+        }
       }
-    }
 
-    // If we were waiting for an active cache transaction, let's try again
-    if (element != null && element.getValue() != null) {
-      try {
-        logger.debug("Answering {} from cache '{}'", request, id);
-        writeCacheEntry(element, handle, request, response);
-        return null;
-      } catch (IOException e) {
-        logger.warn("Error writing cached response to client");
-        return null;
-      }
+      // Render the response independently and take over the key if the
+      // other transaction is gone by now
+      if (transactions.putIfAbsent(handle.getKey(), tx) == null)
+        logger.debug("Taking over work on cached version of {}", request);
+      else
+        logger.debug("Rendering {} independently of active cache transaction", request);
+    } else {
+      logger.debug("Starting work on cached version of {}", request);
     }
 
+    cacheableResponse.startTransaction(tx);
+
     // Apparently, we need to get it done ourselves
     return handle;
   }
@@ -674,6 +1108,7 @@ public class CacheServiceImpl implements CacheService, ManagedService {
   private void writeCacheEntry(Element element, CacheHandle handle,
       WebloungeRequest request, WebloungeResponse response) throws IOException {
     CacheEntry entry = (CacheEntry) element.getValue();
+    memoryBudget.hit(element.getObjectKey());
 
     // Check what the client has available locally
     String eTag = request.getHeader(HEADER_IF_NONE_MATCH);
@@ -684,16 +1119,23 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       logger.debug("The client provided a malformed '{}' date header: '{}'", HEADER_IF_MODIFIED_SINCE, request.getHeader(HEADER_IF_MODIFIED_SINCE));
     }
 
+    // Send the compressed content if the client is able to handle it
+    boolean gzip = entry.isCompressed() && acceptsGzip(request);
+
     // Do we have a more recent version?
-    boolean isModified = !entry.notModified(clientCacheDate) && !entry.matches(eTag);
+    boolean isModified = !entry.notModified(clientCacheDate) && !entry.matches(eTag, gzip);
 
     // Write the response headers
     if (isModified) {
       entry.getHeaders().apply(response);
-      writeContentHeaders(response, entry);
+      writeContentHeaders(response, entry, gzip);
     }
 
-    writeCacheHeaders(response, entry, isModified);
+    writeCacheHeaders(response, entry, isModified, gzip);
+
+    // Let intermediaries know that the content depends on the encoding
+    if (entry.isCompressed())
+      response.addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
 
     // Add the X-Cache-Key header
     if (debug || request.getHeader(CACHE_DEBUG_HEADER) != null) {
@@ -703,9 +1145,14 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     }
 
     // Check the headers first. Maybe we don't need to send anything but
-    // a not-modified back
+    // a not-modified back. The content is complete, so it is written past any
+    // response buffers straight to the client.
     if (isModified) {
-      response.getOutputStream().write(entry.getContent());
+      CacheableHttpServletResponse cacheableResponse = unwrapResponse(response);
+      if (cacheableResponse != null)
+        entry.writeContent(cacheableResponse.getUnbufferedOutputStream(), gzip);
+      else
+        entry.writeContent(response.getOutputStream(), gzip);
     } else {
       response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
     }
@@ -713,6 +1160,52 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     response.flushBuffer();
   }
 
+  /**
+   * Returns <code>true</code> if the client accepts gzip encoded responses as
+   * indicated by the <code>Accept-Encoding</code> request header, either by
+   * naming gzip or by accepting any encoding using <code>*</code>.
+   * 
+   * @param request
+   *          the request
+   * @return <code>true</code> if gzip encoding is accepted
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader(HEADER_ACCEPT_ENCODING);
+    if (acceptEncoding == null)
+      return false;
+    float gzipQuality = -1;
+    float anyQuality = -1;
+    for (String coding : StringUtils.split(acceptEncoding, ',')) {
+      String[] parts = StringUtils.split(coding, ';');
+      if (parts.length == 0)
+        continue;
+      String name = parts[0].trim();
+      boolean gzip = GZIP_ENCODING.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name);
+      if (!gzip && !"*".equals(name))
+        continue;
+      float quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Float.parseFloat(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (gzip)
+        gzipQuality = Math.max(gzipQuality, quality);
+      else
+        anyQuality = Math.max(anyQuality, quality);
+    }
+
+    // An explicit gzip entry takes precedence over the wildcard
+    if (gzipQuality >= 0)
+      return gzipQuality > 0;
+    return anyQuality > 0;
+  }
+
   /**
    * Writes the headers that are relevant for proper content handling based on
    * the cache entry.
@@ -721,11 +1214,19 @@ public class CacheServiceImpl implements CacheService, ManagedService {
    *          the response
    * @param entry
    *          the cache entry
+   * @param gzip
+   *          <code>true</code> if the compressed content is being sent
    */
-  private void writeContentHeaders(WebloungeResponse response, CacheEntry entry) {
+  private void writeContentHeaders(WebloungeResponse response,
+      CacheEntry entry, boolean gzip) {
     response.setContentType(entry.getContentType());
     response.setCharacterEncoding(entry.getEncoding());
-    response.setContentLength(entry.getContent().length);
+    if (gzip) {
+      response.setHeader(HEADER_CONTENT_ENCODING, GZIP_ENCODING);
+      response.setContentLength(entry.getStoredContentLength());
+    } else {
+      response.setContentLength(entry.getContentLength());
+    }
   }
 
   /**
@@ -739,16 +1240,18 @@ public class CacheServiceImpl implements CacheService, ManagedService {
    * @param isModified
    *          <code>true</code> if the client asked for the content only if the
    *          content is more recent that what was cached locally
+   * @param gzip
+   *          <code>true</code> if the compressed content is being sent
    */
   private void writeCacheHeaders(WebloungeResponse response, CacheEntry entry,
-      boolean isModified) {
+      boolean isModified, boolean gzip) {
     long expirationDate = System.currentTimeMillis() + entry.getClientRevalidationTime();
     long revalidationTimeInSeconds = entry.getClientRevalidationTime() / 1000;
 
     // Send Cache directives, ETag and Last-Modified
     if (isModified) {
       response.setHeader("Cache-Control", "private, max-age=" + revalidationTimeInSeconds + ", must-revalidate");
-      response.setHeader("ETag", entry.getETag());
+      response.setHeader("ETag", entry.getETag(gzip));
       response.setDateHeader("Last-Modified", entry.getModificationDate());
     }
 
@@ -770,6 +1273,16 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     if (cacheableResponse == null)
       return false;
 
+    // The content will be served compressed to some clients once it is in the
+    // cache, so intermediaries need to know about that before the response is
+    // committed. The header is not recorded with the cached headers, since hits
+    // add it on their own.
+    if (enabled && compress && cacheableResponse.getTransaction() != null && CacheEntry.isCompressible(cacheableResponse.getContentType()))
+      ((HttpServletResponse) cacheableResponse.getResponse()).addHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+
+    // Finish writing the element and send it back to the client
+    CacheTransaction tx = cacheableResponse.endOutput();
+
     // Discard any cached content while disabled
     if (!enabled)
       return true;
@@ -787,9 +1300,6 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       return false;
     }
 
-    // Finish writing the element
-    CacheTransaction tx = cacheableResponse.endOutput();
-
     // Is the response ready to be cached?
     if (tx == null) {
       logger.debug("Response to {} was not associated with a transaction", response);
@@ -806,13 +1316,23 @@ public class CacheServiceImpl implements CacheService, ManagedService {
         CacheHandle cacheHdl = tx.getHandle();
         String encoding = cacheableResponse.getCharacterEncoding();
         CacheEntry entry = new CacheEntry(cacheHdl, tx.getContent(), encoding, tx.getHeaders());
+        if (compress)
+          entry.compress();
+        if (offHeap)
+          entry.moveOffHeap();
+        entry.trimToSize();
         Element element = new Element(new CacheEntryKey(cacheHdl), entry);
-        element.setTimeToLive((int) (cacheHdl.getCacheExpirationTime() / 1000));
+        element.setTimeToLive(toTimeToLive(cacheHdl.getCacheExpirationTime()) + Math.max(staleWhileRevalidate, staleIfError));
         cache.put(element);
+        revalidationFailures.remove(cacheHdl.getKey());
+
+        // Make room if the cache has grown beyond its budget
+        if (memoryBudget.isExceeded())
+          memoryBudget.evict(cache);
 
         // Write cache and content relevant headers
-        writeCacheHeaders(response, entry, true);
-        writeContentHeaders(response, entry);
+        writeCacheHeaders(response, entry, true, false);
+        writeContentHeaders(response, entry, false);
 
         // Inform listeners
         for (CacheListener listener : cacheListeners) {
@@ -821,6 +1341,10 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       } else if (tx.isValid() && response.isValid()) {
         logger.trace("Skip caching of response for {}: {}", response, response.getStatus());
         response.setDateHeader("Expires", System.currentTimeMillis() + tx.getHandle().getCacheExpirationTime());
+        if (tx.getStaleEntry() != null && staleIfError > 0 && response.getStatus() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+          logger.debug("Revalidation of {} failed, keeping expired element", response);
+          revalidationFailed(tx.getHandle().getKey());
+        }
       } else {
         logger.debug("Response to {} was invalid and is not being cached", response);
       }
@@ -831,11 +1355,9 @@ public class CacheServiceImpl implements CacheService, ManagedService {
 
       // Mark the current transaction as finished and notify anybody who was
       // waiting for it to be finished
-      synchronized (transactions) {
-        transactions.remove(tx.getHandle().getKey());
-        logger.debug("Caching of {} finished", response);
-        transactions.notifyAll();
-      }
+      transactions.remove(tx.getHandle().getKey(), tx);
+      tx.finish();
+      logger.debug("Caching of {} finished", response);
 
       try {
         if (!response.isCommitted())
@@ -845,9 +1367,115 @@ public class CacheServiceImpl implements CacheService, ManagedService {
         // This is debug, as the client may have closed the connection
         logger.debug("Error flushing response: {}", message);
       }
+
+      // The response has been sent, so the buffer can be reused
+      tx.getOutputStream().release();
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.ResponseCache#getFragment(ch.entwine.weblounge.common.request.CacheTag[],
+   *      ch.entwine.weblounge.common.request.WebloungeResponse)
+   */
+  public String getFragment(CacheTag[] uniqueTags, WebloungeResponse response) {
+    if (!enabled || cacheManager.getStatus() != Status.STATUS_ALIVE)
+      return null;
+    Cache cache = cacheManager.getCache(DEFAULT_CACHE);
+    if (cache == null)
+      return null;
+
+    String key = new TaggedCacheHandle(uniqueTags, 0, 0).getKey();
+    Element element = cache.get(new CacheEntryKey(key));
+    if (element == null)
+      return null;
+
+    // Expired fragments are rendered again
+    CacheEntry entry = (CacheEntry) element.getObjectValue();
+    long now = System.currentTimeMillis();
+    if (entry.isExpired(now))
+      return null;
+
+    memoryBudget.hit(element.getObjectKey());
+
+    // Have the enclosing response depend on the fragment
+    if (element.getObjectKey() instanceof CacheEntryKey) {
+      for (CacheTag tag : ((CacheEntryKey) element.getObjectKey()).getCacheTags()) {
+        response.addTag(tag);
+      }
+    }
+    response.setCacheExpirationTime(entry.getExpirationDate() - now);
+    response.setClientRevalidationTime(entry.getClientRevalidationTime());
+    response.setModificationDate(new Date(entry.getModificationDate()));
+
+    try {
+      logger.trace("Serving fragment {} from cache", key);
+      return new String(entry.getContent(), entry.getEncoding());
+    } catch (UnsupportedEncodingException e) {
+      logger.warn("Cached fragment {} has unsupported encoding {}", key, entry.getEncoding());
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.ResponseCache#putFragment(ch.entwine.weblounge.common.request.CacheTag[],
+   *      ch.entwine.weblounge.common.request.CacheTag[], java.lang.String,
+   *      long, long)
+   */
+  public void putFragment(CacheTag[] uniqueTags, CacheTag[] tags,
+      String content, long validTime, long recheckTime) {
+    if (!enabled || cacheManager.getStatus() != Status.STATUS_ALIVE)
+      return;
+    Cache cache = cacheManager.getCache(DEFAULT_CACHE);
+    if (cache == null)
+      return;
+
+    TaggedCacheHandle cacheHdl = new TaggedCacheHandle(uniqueTags, validTime, recheckTime);
+    if (tags != null)
+      cacheHdl.addTags(Arrays.asList(tags));
+
+    CacheEntry entry = null;
+    try {
+      byte[] bytes = content.getBytes(FRAGMENT_ENCODING);
+      entry = new CacheEntry(cacheHdl, bytes, FRAGMENT_ENCODING, new CacheableHttpServletResponseHeaders());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("Platform does not support " + FRAGMENT_ENCODING);
+    }
+    if (offHeap)
+      entry.moveOffHeap();
+
+    logger.trace("Writing fragment {} to the cache", cacheHdl.getKey());
+    Element element = new Element(new CacheEntryKey(cacheHdl), entry);
+    element.setTimeToLive(toTimeToLive(validTime));
+    cache.put(element);
+
+    // Make room if the cache has grown beyond its budget
+    if (memoryBudget.isExceeded())
+      memoryBudget.evict(cache);
+
+    // Inform listeners
+    for (CacheListener listener : cacheListeners) {
+      listener.cacheEntryAdded(cacheHdl);
+    }
+  }
+
+  /**
+   * Returns the number of seconds that an element with the given validity
+   * should be kept in the cache. The value is rounded up and is at least one
+   * second, since a time to live of <code>0</code> would make the element
+   * eternal. Elements are checked for expiration when they are served.
+   * 
+   * @param validTime
+   *          the validity in milliseconds
+   * @return the time to live in seconds
+   */
+  static int toTimeToLive(long validTime) {
+    return (int) Math.max(1, (validTime + 999) / 1000);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -859,6 +1487,17 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       return;
     cacheableResponse.invalidate();
     CacheTransaction tx = cacheableResponse.getTransaction();
+
+    // If the response was meant to replace an expired element, keep that
+    // element around so it can be served instead
+    if (tx.getStaleEntry() != null && staleIfError > 0) {
+      revalidationFailed(tx.getHandle().getKey());
+      transactions.remove(tx.getHandle().getKey(), tx);
+      tx.finish();
+      logger.debug("Revalidation of {} failed, keeping expired element in cache '{}'", response, id);
+      return;
+    }
+
     invalidate(tx.getHandle());
     logger.debug("Removed {} from cache '{}'", response, id);
   }
@@ -876,6 +1515,9 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     // Load the cache
     Cache cache = cacheManager.getCache(DEFAULT_CACHE);
 
+    // The snapshot may contain invalidated elements
+    discardSnapshot();
+
     // Inform listeners
     for (CacheListener listener : cacheListeners) {
       listener.cacheSetInvalidated(tags);
@@ -883,7 +1525,8 @@ public class CacheServiceImpl implements CacheService, ManagedService {
 
     // Remove the objects matched by the tags
     long removed = 0;
-    for (Object key : getKeysForTags(cache, tags, partialMatches)) {
+    for (CacheEntryKey key : tagIndex.getKeys(tags, partialMatches)) {
+      revalidationFailures.remove(key.getKey());
       if (cache.remove(key))
         removed++;
     }
@@ -891,45 +1534,6 @@ public class CacheServiceImpl implements CacheService, ManagedService {
     logger.debug("Removed {} elements from cache '{}'", removed, id);
   }
 
-  /**
-   * Returns those keys from the given cache that contain all or any of the tags
-   * as defined in the <code>tags</code> array.
-   * 
-   * @param cache
-   *          the cache
-   * @param tags
-   *          the set of tags
-   * @param partialMatches
-   *          <code>true</code> to include partial matches, where only one of
-   *          the tag matches instead of all
-   * @return the collection of matching keys
-   */
-  private Collection<Object> getKeysForTags(Cache cache, CacheTag[] tags,
-      boolean partialMatches) {
-    // Create the parts of the key to look for
-    List<String> keyParts = new ArrayList<String>(tags.length);
-    for (CacheTag tag : tags) {
-      StringBuffer b = new StringBuffer(tag.getName()).append("=").append(tag.getValue());
-      keyParts.add(b.toString());
-    }
-
-    // Collect those keys that contain all relevant parts
-    Collection<Object> cacheKeys = new ArrayList<Object>();
-    key: for (Object k : cache.getKeys()) {
-      String key = ((CacheEntryKey) k).tags;
-      for (String keyPart : keyParts) {
-        if (!key.contains(keyPart) && !partialMatches) {
-          continue key;
-        } else if (key.contains(keyPart)) {
-          cacheKeys.add(k);
-          continue key;
-        }
-      }
-    }
-
-    return cacheKeys;
-  }
-
   /**
    * {@inheritDoc}
    * 
@@ -952,14 +1556,18 @@ public class CacheServiceImpl implements CacheService, ManagedService {
       return;
     }
 
+    // The snapshot may contain the invalidated element
+    discardSnapshot();
+
     cache.remove(handle.getKey());
+    revalidationFailures.remove(handle.getKey());
 
-    // Mark the current transaction as finished and notify anybody that was
-    // waiting for it to be finished
-    synchronized (transactions) {
-      transactions.remove(handle.getKey());
-      transactions.notifyAll();
-    }
+    // Mark the transaction that was started with this handle as finished and
+    // notify anybody that was waiting for it to be finished. Transactions of
+    // other requests on the same key are left alone.
+    CacheTransaction tx = transactions.get(handle.getKey());
+    if (tx != null && tx.getHandle() == handle && transactions.remove(handle.getKey(), tx))
+      tx.finish();
 
     logger.debug("Removed {} from cache '{}'", handle.getKey(), id);
 
@@ -970,6 +1578,35 @@ public class CacheServiceImpl implements CacheService, ManagedService {
 
   }
 
+  /**
+   * Records that rendering the replacement for the expired element with the
+   * given key failed. Records that are older than the time that expired
+   * elements are served after errors are dropped along the way, since they
+   * belong to elements that are gone.
+   * 
+   * @param key
+   *          the element key
+   */
+  private void revalidationFailed(String key) {
+    long now = System.currentTimeMillis();
+    long maxAge = (Math.max(staleWhileRevalidate, staleIfError) + revalidationBackoff) * 1000L;
+    for (Map.Entry<String, Long> failure : revalidationFailures.entrySet()) {
+      if (now - failure.getValue() > maxAge)
+        revalidationFailures.remove(failure.getKey(), failure.getValue());
+    }
+    revalidationFailures.put(key, now);
+  }
+
+  /**
+   * Makes sure that elements which are being invalidated are not restored from
+   * the snapshot. The snapshot will be taken again with the next periodic run.
+   */
+  private void discardSnapshot() {
+    invalidations.incrementAndGet();
+    if (snapshot != null)
+      snapshot.discard();
+  }
+
   /**
    * Extracts the <code>CacheableServletResponse</code> from its wrapper(s).
    * 
@@ -0,0 +1,252 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the most frequently hit elements of a cache, stored in a file
+ * so that the cache can be warmed up again after a restart.
+ * <p>
+ * The snapshot contains the keys, including their tags, together with the
+ * cached content, so restoring an element does not require it to be rendered
+ * again. Elements are written in the order of their hit counts, with the
+ * hottest element first.
+ * <p>
+ * Since the content was rendered by a specific version of the site, the
+ * snapshot is stamped with a string identifying the deployment and is only
+ * restored by the same deployment.
+ */
+final class CacheSnapshot {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(CacheSnapshot.class);
+
+  /** Version of the snapshot file format */
+  private static final int FORMAT_VERSION = 2;
+
+  /** The snapshot file */
+  private final File file;
+
+  /**
+   * Creates a snapshot that is stored in <code>file</code>.
+   * 
+   * @param file
+   *          the snapshot file
+   */
+  CacheSnapshot(File file) {
+    if (file == null)
+      throw new IllegalArgumentException("Snapshot file must not be null");
+    this.file = file;
+  }
+
+  /**
+   * Returns the snapshot file.
+   * 
+   * @return the file
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns <code>true</code> if the snapshot file exists.
+   * 
+   * @return <code>true</code> if there is a snapshot
+   */
+  boolean exists() {
+    return file.isFile();
+  }
+
+  /**
+   * Removes the snapshot file, e. g. because elements have been invalidated
+   * and must not be restored.
+   */
+  void discard() {
+    if (file.isFile() && !file.delete())
+      logger.warn("Unable to remove cache snapshot {}", file);
+  }
+
+  /**
+   * Returns up to <code>maxElements</code> elements of the cache that have
+   * been hit the most, hottest first. Expired elements are not considered.
+   * <p>
+   * The hit counts are taken from the memory budget, so that only the selected
+   * elements need to be looked up in the cache rather than every element.
+   * 
+   * @param cache
+   *          the cache
+   * @param budget
+   *          the memory budget tracking the cache's elements
+   * @param maxElements
+   *          the maximum number of elements
+   * @return the elements
+   */
+  static List<Element> select(Ehcache cache, CacheMemoryBudget budget,
+      int maxElements) {
+    if (maxElements <= 0)
+      return Collections.emptyList();
+
+    List<Element> elements = new ArrayList<Element>(maxElements);
+    long now = System.currentTimeMillis();
+    for (Object key : budget.getHottestKeys(maxElements)) {
+      Element element = cache.getQuiet(key);
+      if (element == null || !(element.getObjectValue() instanceof CacheEntry))
+        continue;
+      CacheEntry entry = (CacheEntry) element.getObjectValue();
+      if (entry.isExpired(now))
+        continue;
+      elements.add(element);
+    }
+    return elements;
+  }
+
+  /**
+   * Writes the given elements to the snapshot file, replacing any existing
+   * snapshot.
+   * 
+   * @param elements
+   *          the elements
+   * @param deployment
+   *          the deployment that rendered the elements
+   * @return the number of elements written
+   * @throws IOException
+   *           if writing the snapshot fails
+   */
+  int write(List<Element> elements, String deployment) throws IOException {
+    File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    FileUtils.forceMkdir(file.getParentFile());
+    ObjectOutputStream os = null;
+    int written = 0;
+    try {
+      os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+      os.writeInt(FORMAT_VERSION);
+      os.writeUTF(deployment);
+      for (Element element : elements) {
+        os.writeBoolean(true);
+        os.writeObject(element.getObjectKey());
+        os.writeObject(element.getObjectValue());
+        written++;
+      }
+      os.writeBoolean(false);
+    } finally {
+      IOUtils.closeQuietly(os);
+    }
+
+    // Replace the previous snapshot
+    if (file.exists() && !file.delete())
+      throw new IOException("Unable to replace cache snapshot " + file);
+    if (!tmpFile.renameTo(file))
+      throw new IOException("Unable to move cache snapshot to " + file);
+    return written;
+  }
+
+  /**
+   * Reads the snapshot and hands every element to <code>handler</code>, hottest
+   * first, until either all elements have been read or the handler asks to
+   * stop. A snapshot that was taken by a different deployment is discarded
+   * without being read.
+   * 
+   * @param deployment
+   *          the current deployment
+   * @param handler
+   *          the element handler
+   * @return the number of elements read
+   * @throws IOException
+   *           if reading the snapshot fails
+   */
+  int read(String deployment, ElementHandler handler) throws IOException {
+    if (!file.isFile())
+      return 0;
+    ObjectInputStream is = null;
+    int read = 0;
+    boolean outdated = false;
+    try {
+      is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+      int version = is.readInt();
+      if (version != FORMAT_VERSION) {
+        logger.info("Ignoring cache snapshot {} of unknown version {}", file, version);
+        return 0;
+      }
+      if (!is.readUTF().equals(deployment)) {
+        logger.info("Discarding cache snapshot {} of a different deployment", file);
+        outdated = true;
+        return 0;
+      }
+      while (is.readBoolean()) {
+        CacheEntryKey key = (CacheEntryKey) is.readObject();
+        CacheEntry entry = (CacheEntry) is.readObject();
+        read++;
+        if (!handler.handle(key, entry))
+          break;
+      }
+    } catch (EOFException e) {
+      logger.warn("Cache snapshot {} is truncated", file);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Cache snapshot " + file + " is incompatible", e);
+    } catch (ClassCastException e) {
+      throw new IOException("Cache snapshot " + file + " is incompatible", e);
+    } finally {
+      IOUtils.closeQuietly(is);
+      if (outdated)
+        discard();
+    }
+    return read;
+  }
+
+  /**
+   * Callback for elements that are read from a snapshot.
+   */
+  interface ElementHandler {
+
+    /**
+     * Handles an element that has been read from the snapshot.
+     * 
+     * @param key
+     *          the element key
+     * @param entry
+     *          the cache entry
+     * @return <code>true</code> to continue reading
+     */
+    boolean handle(CacheEntryKey key, CacheEntry entry);
+
+  }
+
+}
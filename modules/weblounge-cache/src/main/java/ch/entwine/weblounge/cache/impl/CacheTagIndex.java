@@ -0,0 +1,293 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import ch.entwine.weblounge.common.request.CacheTag;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Inverted index from cache tags to the keys of the cache entries that carry
+ * them. The index is kept in sync with the cache by registering it as a
+ * {@link CacheEventListener}, so that tag based lookups only cost as much as
+ * the number of matching entries rather than the size of the cache.
+ */
+final class CacheTagIndex implements CacheEventListener {
+
+  /** The cache keys by serialized tag */
+  private final ConcurrentMap<String, Set<CacheEntryKey>> keysByTag = new ConcurrentHashMap<String, Set<CacheEntryKey>>();
+
+  /** The indexed cache keys by primary key */
+  private final ConcurrentMap<String, CacheEntryKey> keys = new ConcurrentHashMap<String, CacheEntryKey>();
+
+  /**
+   * Adds the key to the index. If a key with the same primary key has been
+   * indexed before, it is replaced.
+   * <p>
+   * Modifications are serialized so that tag sets that become empty can safely
+   * be dropped, while lookups work on the concurrent sets without locking.
+   * 
+   * @param key
+   *          the cache key
+   */
+  synchronized void add(Object key) {
+    if (!(key instanceof CacheEntryKey))
+      return;
+    CacheEntryKey entryKey = (CacheEntryKey) key;
+    CacheEntryKey previous = keys.put(entryKey.getKey(), entryKey);
+    if (previous != null)
+      unindex(previous);
+    for (String tag : entryKey.getTags()) {
+      Set<CacheEntryKey> tagKeys = keysByTag.get(tag);
+      if (tagKeys == null) {
+        tagKeys = Collections.newSetFromMap(new ConcurrentHashMap<CacheEntryKey, Boolean>());
+        keysByTag.put(tag, tagKeys);
+      }
+      tagKeys.add(entryKey);
+    }
+  }
+
+  /**
+   * Removes the key from the index.
+   * 
+   * @param key
+   *          the cache key
+   */
+  synchronized void remove(Object key) {
+    if (key == null)
+      return;
+    CacheEntryKey entryKey = keys.remove(key.toString());
+    if (entryKey != null)
+      unindex(entryKey);
+  }
+
+  /**
+   * Removes the key from the sets of all of its tags and drops those sets that
+   * become empty.
+   * 
+   * @param key
+   *          the cache key
+   */
+  private void unindex(CacheEntryKey key) {
+    for (String tag : key.getTags()) {
+      Set<CacheEntryKey> tagKeys = keysByTag.get(tag);
+      if (tagKeys == null)
+        continue;
+      tagKeys.remove(key);
+      if (tagKeys.isEmpty())
+        keysByTag.remove(tag);
+    }
+  }
+
+  /**
+   * Removes all keys from the index.
+   */
+  synchronized void clear() {
+    keys.clear();
+    keysByTag.clear();
+  }
+
+  /**
+   * Returns the number of keys in the index.
+   * 
+   * @return the number of keys
+   */
+  int size() {
+    return keys.size();
+  }
+
+  /**
+   * Returns those keys that carry all or any of the tags as defined in the
+   * <code>tags</code> array.
+   * 
+   * @param tags
+   *          the set of tags
+   * @param partialMatches
+   *          <code>true</code> to include partial matches, where only one of
+   *          the tag matches instead of all
+   * @return the collection of matching keys
+   */
+  Collection<CacheEntryKey> getKeys(CacheTag[] tags, boolean partialMatches) {
+    if (!partialMatches)
+      return getMatchingKeys(tags, false);
+
+    Set<CacheEntryKey> result = new LinkedHashSet<CacheEntryKey>();
+    for (CacheTag tag : tags) {
+      Set<CacheEntryKey> tagKeys = keysByTag.get(CacheEntryKey.serialize(tag));
+      if (tagKeys != null)
+        result.addAll(tagKeys);
+    }
+    return result;
+  }
+
+  /**
+   * Returns those keys whose primary key was created from at least all the tags
+   * as defined in the <code>tags</code> array.
+   * 
+   * @param tags
+   *          the set of tags
+   * @return the collection of matching keys
+   */
+  Collection<CacheEntryKey> getKeysForPrimaryTags(CacheTag[] tags) {
+    return getMatchingKeys(tags, true);
+  }
+
+  /**
+   * Returns the keys that carry all of the given tags by walking the smallest
+   * of the tag sets and checking for membership in the others.
+   * 
+   * @param tags
+   *          the tags
+   * @param primaryOnly
+   *          <code>true</code> to only consider tags that are part of the
+   *          primary key
+   * @return the matching keys
+   */
+  private Collection<CacheEntryKey> getMatchingKeys(CacheTag[] tags,
+      boolean primaryOnly) {
+    List<String> serializedTags = new ArrayList<String>(tags.length);
+    List<Set<CacheEntryKey>> sets = new ArrayList<Set<CacheEntryKey>>(tags.length);
+    Set<CacheEntryKey> smallest = null;
+    for (CacheTag tag : tags) {
+      String serializedTag = CacheEntryKey.serialize(tag);
+      Set<CacheEntryKey> tagKeys = keysByTag.get(serializedTag);
+      if (tagKeys == null)
+        return Collections.emptyList();
+      serializedTags.add(serializedTag);
+      sets.add(tagKeys);
+      if (smallest == null || tagKeys.size() < smallest.size())
+        smallest = tagKeys;
+    }
+
+    List<CacheEntryKey> result = new ArrayList<CacheEntryKey>();
+    if (smallest == null)
+      return result;
+
+    key: for (CacheEntryKey key : smallest) {
+      for (Set<CacheEntryKey> tagKeys : sets) {
+        if (tagKeys != smallest && !tagKeys.contains(key))
+          continue key;
+      }
+      if (primaryOnly) {
+        for (String serializedTag : serializedTags) {
+          if (!key.isPrimaryTag(serializedTag))
+            continue key;
+        }
+      }
+      result.add(key);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementPut(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementPut(Ehcache cache, Element element)
+      throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementUpdated(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementUpdated(Ehcache cache, Element element)
+      throws CacheException {
+    add(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementRemoved(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementRemoved(Ehcache cache, Element element)
+      throws CacheException {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementExpired(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyElementEvicted(net.sf.ehcache.Ehcache,
+   *      net.sf.ehcache.Element)
+   */
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    remove(element.getObjectKey());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#notifyRemoveAll(net.sf.ehcache.Ehcache)
+   */
+  public void notifyRemoveAll(Ehcache cache) {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see net.sf.ehcache.event.CacheEventListener#dispose()
+   */
+  public void dispose() {
+    clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("Tag index is bound to a single cache");
+  }
+
+}
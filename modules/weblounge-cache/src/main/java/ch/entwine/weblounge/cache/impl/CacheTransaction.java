@@ -25,6 +25,8 @@ import ch.entwine.weblounge.common.impl.request.CachedOutputStream;
 import ch.entwine.weblounge.common.request.CacheHandle;
 import ch.entwine.weblounge.common.request.CacheTag;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a transaction in the response cache. A transaction keeps track of
@@ -48,6 +50,12 @@ final class CacheTransaction {
   /** True if the transaction has been invalidated */
   private boolean valid = true;
 
+  /** The expired cache entry that this transaction is replacing */
+  private CacheEntry staleEntry = null;
+
+  /** Released once the transaction is finished */
+  private final CountDownLatch finished = new CountDownLatch(1);
+
   /**
    * Creates a new transaction for the given handle, request and response. Any
    * output that is written to the response will be processed by the filter
@@ -119,6 +127,27 @@ final class CacheTransaction {
     return filter;
   }
 
+  /**
+   * Marks this transaction as a revalidation of the given expired entry, which
+   * may still be served to other clients while the transaction is active.
+   * 
+   * @param entry
+   *          the stale cache entry
+   */
+  void setStaleEntry(CacheEntry entry) {
+    this.staleEntry = entry;
+  }
+
+  /**
+   * Returns the expired cache entry that this transaction is replacing or
+   * <code>null</code> if the transaction is not a revalidation.
+   * 
+   * @return the stale entry
+   */
+  CacheEntry getStaleEntry() {
+    return staleEntry;
+  }
+
   /**
    * Marks this transaction as invalidated, which means that it's content will
    * not be stored in the cache.
@@ -136,7 +165,30 @@ final class CacheTransaction {
   boolean isValid() {
     return valid;
   }
-  
+
+  /**
+   * Marks this transaction as finished and releases everybody who has been
+   * waiting for it using {@link #await(long)}.
+   */
+  void finish() {
+    finished.countDown();
+  }
+
+  /**
+   * Waits for this transaction to be finished for at most <code>timeout</code>
+   * milliseconds.
+   * 
+   * @param timeout
+   *          the maximum number of milliseconds to wait
+   * @return <code>true</code> if the transaction was finished,
+   *         <code>false</code> if the timeout elapsed
+   * @throws InterruptedException
+   *           if the current thread was interrupted while waiting
+   */
+  boolean await(long timeout) throws InterruptedException {
+    return finished.await(timeout, TimeUnit.MILLISECONDS);
+  }
+
   /**
    * {@inheritDoc}
    *
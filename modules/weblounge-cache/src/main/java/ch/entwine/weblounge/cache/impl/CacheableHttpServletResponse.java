@@ -22,29 +22,25 @@ package ch.entwine.weblounge.cache.impl;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 import ch.entwine.weblounge.cache.impl.filter.FilterWriter;
-import ch.entwine.weblounge.common.impl.request.CachedOutputStream;
+import ch.entwine.weblounge.common.impl.request.BufferedResponse;
+import ch.entwine.weblounge.common.impl.request.DelegatingServletOutputStream;
 import ch.entwine.weblounge.common.impl.request.RequestUtils;
+import ch.entwine.weblounge.common.impl.util.HttpDateFormat;
 import ch.entwine.weblounge.common.request.CacheHandle;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
@@ -53,7 +49,8 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * response caching by installing a custom version of an output stream which
  * works like the <code>tee</code> command in un*x systems. Like this, the
  * output can be written to the response cache <i>and</i> to the client at the
- * same time.
+ * same time, and the buffer capturing the output is handed to the cache once
+ * the response is finished.
  */
 class CacheableHttpServletResponse extends HttpServletResponseWrapper {
 
@@ -66,12 +63,12 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
    */
   private PrintWriter out = null;
 
+  /** The tee output stream that is writing to the network and to the cache */
+  private ServletOutputStream os = null;
+
   /** The cache transaction for this response */
   private CacheTransaction tx = null;
 
-  /** The format used for date headers */
-  private DateFormat format = null;
-
   /** The content type */
   private String contentType = null;
 
@@ -104,7 +101,18 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
    */
   public CacheTransaction startTransaction(CacheHandle handle,
       StreamFilter filter) {
-    tx = new CacheTransaction(handle, filter);
+    return startTransaction(new CacheTransaction(handle, filter));
+  }
+
+  /**
+   * Associates the response with the given cache transaction.
+   * 
+   * @param tx
+   *          the transaction
+   * @return the transaction
+   */
+  CacheTransaction startTransaction(CacheTransaction tx) {
+    this.tx = tx;
     return tx;
   }
 
@@ -138,10 +146,12 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
     // Allocate a new writer. If there is a transaction, the output is written
     // to both the original response and the cache output stream.
     try {
-      if (tx == null || tx.getFilter() == null)
+      if (tx == null)
         out = new PrintWriter(new OutputStreamWriter(super.getOutputStream(), encoding));
+      else if (tx.getFilter() == null)
+        out = new PrintWriter(new OutputStreamWriter(getTeeOutputStream(), encoding));
       else
-        out = new PrintWriter(new BufferedWriter(new FilterWriter(new OutputStreamWriter(new TeeOutputStream(super.getOutputStream(), tx.getOutputStream()), encoding), tx.getFilter(), contentType)));
+        out = new PrintWriter(new BufferedWriter(new FilterWriter(new OutputStreamWriter(getTeeOutputStream(), encoding), tx.getFilter(), contentType)));
     } catch (UnsupportedEncodingException e) {
       throw new IOException(e.getMessage());
     }
@@ -162,7 +172,43 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
     if (out != null)
       throw new IllegalStateException("A writer has already been allocated");
     osCalled = true;
-    return tx != null ? tx.getOutputStream() : super.getOutputStream();
+    return tx != null ? getTeeOutputStream() : super.getOutputStream();
+  }
+
+  /**
+   * Returns the output stream that is writing to both the original response
+   * and the cache output stream.
+   * 
+   * @return the tee output stream
+   * @throws IOException
+   *           if the output stream could not be allocated
+   */
+  private ServletOutputStream getTeeOutputStream() throws IOException {
+    if (os == null)
+      os = new DelegatingServletOutputStream(new TeeOutputStream(super.getOutputStream(), tx.getOutputStream()));
+    return os;
+  }
+
+  /**
+   * Returns the output stream of the underlying response. If one of the
+   * wrapped responses is buffering its content, the buffer is bypassed, so
+   * callers need to set the content length before writing the complete
+   * response body.
+   * 
+   * @return the output stream
+   * @throws IOException
+   *           if the output stream could not be allocated
+   */
+  ServletOutputStream getUnbufferedOutputStream() throws IOException {
+    ServletResponse response = getResponse();
+    while (response instanceof ServletResponseWrapper) {
+      if (response instanceof BufferedResponse)
+        return ((BufferedResponse) response).getUnbufferedOutputStream();
+      response = ((ServletResponseWrapper) response).getResponse();
+    }
+    if (response instanceof BufferedResponse)
+      return ((BufferedResponse) response).getUnbufferedOutputStream();
+    return super.getOutputStream();
   }
 
   /**
@@ -187,15 +233,9 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
         out.flush();
         out.close();
         out = null;
-      } else if (tx != null) {
-        tx.getOutputStream().flush();
-        tx.getOutputStream().close();
-        CachedOutputStream cacheOs = tx.getOutputStream();
-        OutputStream clientOs = super.getOutputStream();
-        ByteArrayInputStream cacheIs = new ByteArrayInputStream(cacheOs.getContent());
-        IOUtils.copy(cacheIs, clientOs);
-        clientOs.flush();
-        clientOs.close();
+      } else if (os != null) {
+        os.flush();
+        os.close();
       } else {
         super.getOutputStream().flush();
         super.getOutputStream().close();
@@ -297,7 +337,7 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
   public void addDateHeader(String name, long date) {
     super.addDateHeader(name, date);
     if (tx != null)
-      tx.getHeaders().addHeader(name, formatDate(date));
+      tx.getHeaders().addHeader(name, HttpDateFormat.format(date));
   }
 
   /**
@@ -318,7 +358,7 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
   public void setDateHeader(String name, long date) {
     super.setDateHeader(name, date);
     if (tx != null)
-      tx.getHeaders().setHeader(name, formatDate(date));
+      tx.getHeaders().setHeader(name, HttpDateFormat.format(date));
   }
 
   /**
@@ -332,24 +372,4 @@ class CacheableHttpServletResponse extends HttpServletResponseWrapper {
       tx.getHeaders().setHeader(name, Integer.toString(value));
   }
 
-  /**
-   * Format the date for an HTTP header. The resulting date will match the
-   * following example:
-   * 
-   * <pre>
-   * EEE, dd MMM yyyy HH:mm:ss 'GMT'
-   * </pre>
-   * 
-   * @param date
-   *          the date to format
-   * @return the formatted date
-   */
-  private String formatDate(long date) {
-    if (format == null) {
-      format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-      format.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-    return format.format(new Date(date));
-  }
-
 }
@@ -22,85 +22,108 @@ package ch.entwine.weblounge.cache.impl.filter;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Removes HTML comments from the response stream.
  */
 public class CommentRemover implements StreamFilter {
 
-  /** Temporary buffer for comment processing */
-	private StringBuffer tmp = new StringBuffer();
-	
-	/** Current parser state */
-	private int state = 0;
-	
-	/** True while in a comment */
-	private boolean inComment = false;
+  /** Comment start sequence */
+  private static final char[] COMMENT_START = { '<', '!', '-', '-' };
+
+  /** Dash that is part of the comment end sequence */
+  private static final char COMMENT_DASH = '-';
+
+  /** Last character of the comment end sequence */
+  private static final char COMMENT_END = '>';
+
+  /** The current comment, which is only written if it is not terminated */
+  private final FilterBuffer comment = new FilterBuffer(256);
+
+  /** Current parser state */
+  private int state = 0;
+
+  /** True while in a comment */
+  private boolean inComment = false;
 
-	/** Comment start sequence */
-	private static char[] commentStart = {'<', '!', '-', '-'};
-	
-	/** Comment end sequence */
-	private static char[] commentEnd = {'-', '-', '>'};
-	
-	/**
-	 * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer, java.lang.String)
-	 */
-	public StringBuffer filter(StringBuffer buffer, String contentType) {
-		StringBuffer b = new StringBuffer(buffer.length());
-		for (int i = 0; i < buffer.length(); i++) {
-			char c = buffer.charAt(i);
-			if (!inComment) {
-				if (commentStart[state] == c) {
-					state++;
-					tmp.append(c);
-				} else {
-					if (state > 0) {
-						state = 0;
-						b.append(tmp);
-						tmp.setLength(0);
-					}
-					b.append(c);
-				}
-				
-				if (state == commentStart.length) {
-					inComment = true;
-					state = 0;
-				}
-			} else {
-				tmp.append(c);
-				if (commentEnd[state] == c)
-					state++;
-				else
-					state = 0;
+  /**
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
+   */
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    int end = off + len;
+    int start = off;
+    for (int i = off; i < end; i++) {
+      char c = buf[i];
+      if (!inComment) {
+        if (COMMENT_START[state] == c) {
+          if (i > start)
+            out.write(buf, start, i - start);
+          start = i + 1;
+          if (++state == COMMENT_START.length) {
+            comment.write(COMMENT_START, 0, COMMENT_START.length);
+            inComment = true;
+            state = 0;
+          }
+        } else if (state > 0) {
+          out.write(COMMENT_START, 0, state);
+          start = i;
+          state = 0;
+          if (COMMENT_START[0] == c) {
+            start = i + 1;
+            state = 1;
+          }
+        }
+      } else {
+        if (c == COMMENT_DASH) {
+          state = Math.min(state + 1, 2);
+        } else if (c == COMMENT_END && state == 2) {
+          comment.reset();
+          inComment = false;
+          start = i + 1;
+          state = 0;
+        } else {
+          state = 0;
+        }
+      }
+    }
 
-				if (state == commentEnd.length) {
-					tmp.setLength(0);
-					inComment = false;
-					state = 0;
-				}
-			}
-		}
-		return b;
-	}
+    // Write or keep what's left
+    if (end > start) {
+      if (inComment)
+        comment.write(buf, start, end - start);
+      else
+        out.write(buf, start, end - start);
+    }
+  }
 
-	/**
-	 * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
-	 */
-	public StringBuffer flush() {
-		StringBuffer b = new StringBuffer().append(tmp);
-		inComment = false;
-		state = 0;
-		tmp.setLength(0);
-		return b;
-	}
+  /**
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
+   */
+  public void flush(Writer out) throws IOException {
+    if (inComment)
+      out.write(comment.array(), 0, comment.size());
+    else if (state > 0)
+      out.write(COMMENT_START, 0, state);
+    close();
+  }
 
-	/**
-	 * @see ch.entwine.weblounge.api.request.StreamFilter#close()
-	 */
-	public void close() {
-		inComment = false;
-		state = 0;
-		tmp.setLength(0);
-	}
+  /**
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
+   */
+  public void close() {
+    inComment = false;
+    state = 0;
+    comment.reset();
+  }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,165 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl.filter;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Growable character sink that is used to pass filtered output from one
+ * {@link ch.entwine.weblounge.cache.StreamFilter} to the next. Unlike
+ * {@link java.io.CharArrayWriter}, the buffer is not synchronized and exposes
+ * its backing array, so that the next filter is able to read the content in
+ * place. The buffer is meant to be reset and reused rather than reallocated.
+ */
+final class FilterBuffer extends Writer {
+
+  /** Initial number of characters */
+  static final int DEFAULT_CAPACITY = 8192;
+
+  /** The characters */
+  private char[] buf = null;
+
+  /** Number of characters in the buffer */
+  private int count = 0;
+
+  /**
+   * Creates a new buffer with an initial capacity of
+   * {@link #DEFAULT_CAPACITY} characters.
+   */
+  FilterBuffer() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new buffer with the given initial capacity.
+   *
+   * @param capacity
+   *          the initial capacity
+   */
+  FilterBuffer(int capacity) {
+    buf = new char[Math.max(16, capacity)];
+  }
+
+  /**
+   * Makes sure that <code>extra</code> more characters fit into the buffer.
+   *
+   * @param extra
+   *          the number of additional characters
+   */
+  private void ensureCapacity(int extra) {
+    int required = count + extra;
+    if (required > buf.length)
+      buf = Arrays.copyOf(buf, Math.max(required, buf.length << 1));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#write(int)
+   */
+  @Override
+  public void write(int c) {
+    ensureCapacity(1);
+    buf[count++] = (char) c;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#write(char[], int, int)
+   */
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    ensureCapacity(len);
+    System.arraycopy(cbuf, off, buf, count, len);
+    count += len;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#write(java.lang.String, int, int)
+   */
+  @Override
+  public void write(String str, int off, int len) {
+    ensureCapacity(len);
+    str.getChars(off, off + len, buf, count);
+    count += len;
+  }
+
+  /**
+   * Returns the backing array. Only the first {@link #size()} characters are
+   * valid, and the array may be replaced once more characters are written.
+   *
+   * @return the characters
+   */
+  char[] array() {
+    return buf;
+  }
+
+  /**
+   * Returns the number of characters in the buffer.
+   *
+   * @return the number of characters
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Discards the content of the buffer while keeping the backing array.
+   */
+  void reset() {
+    count = 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return new String(buf, 0, count);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#flush()
+   */
+  @Override
+  public void flush() {
+    // Nothing to do
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.io.Writer#close()
+   */
+  @Override
+  public void close() {
+    // Nothing to do
+  }
+
+}
@@ -22,19 +22,32 @@ package ch.entwine.weblounge.cache.impl.filter;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * <code>FilterChain</code> wraps a chain of {@link StreamFilter} objects. It is
  * itself a <code>StreamFilter</code> that filters the input stream by passing
  * it to each of the wrapped filters in turn.
+ * <p>
+ * The output of every filter but the last is collected in a buffer that is
+ * owned by the chain and reused for subsequent calls, while the last filter
+ * writes directly to the sink that was passed in.
  */
 public class FilterChain implements StreamFilter {
 
   /** the wrapped filters */
   private StreamFilter[] filters = null;
 
+  /** the buffers between the filters */
+  private FilterBuffer[] buffers = null;
+
+  /** the content type of the stream */
+  private String contentType = null;
+
   /**
    * Creates a new <code>FilterChain</code>.
-   * 
+   *
    * @param filters
    *          the wrapped filters.
    */
@@ -42,41 +55,95 @@ public class FilterChain implements StreamFilter {
     if (filters == null)
       throw new NullPointerException("filters must not be null");
     this.filters = filters;
+    this.buffers = new FilterBuffer[Math.max(0, filters.length - 1)];
+    for (int i = 0; i < buffers.length; i++)
+      buffers[i] = new FilterBuffer();
   }
 
   /**
    * {@inheritDoc}
    *
-   * @see ch.entwine.weblounge.cache.StreamFilter#filter(java.lang.StringBuffer, java.lang.String)
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
+   */
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    this.contentType = contentType;
+    if (filters.length == 0) {
+      out.write(buf, off, len);
+      return;
+    }
+    filter(0, buf, off, len, contentType, out);
+  }
+
+  /**
+   * Passes the input through the filters starting at <code>first</code>.
+   *
+   * @param first
+   *          index of the first filter
+   * @param buf
+   *          the input
+   * @param off
+   *          offset of the first character
+   * @param len
+   *          number of characters
+   * @param contentType
+   *          the stream's content type
+   * @param out
+   *          the sink for the output of the last filter
+   * @throws IOException
+   *           if writing to <code>out</code> fails
    */
-  public StringBuffer filter(StringBuffer b, String contentType) {
-    for (int i = 0; i < filters.length && b != null; i++)
-      b = filters[i].filter(b, contentType);
-    return b;
+  private void filter(int first, char[] buf, int off, int len,
+      String contentType, Writer out) throws IOException {
+    for (int i = first; i < filters.length; i++) {
+      if (i == filters.length - 1) {
+        filters[i].filter(buf, off, len, contentType, out);
+        return;
+      }
+      FilterBuffer next = buffers[i];
+      next.reset();
+      filters[i].filter(buf, off, len, contentType, next);
+      if (next.size() == 0)
+        return;
+      buf = next.array();
+      off = 0;
+      len = next.size();
+    }
   }
 
   /**
    * {@inheritDoc}
    *
-   * @see ch.entwine.weblounge.cache.StreamFilter#flush()
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    StringBuffer b = new StringBuffer();
-    StringBuffer tmp = null;
+  public void flush(Writer out) throws IOException {
     for (int i = 0; i < filters.length; i++) {
-      tmp = filters[i].flush();
-      if (tmp != null)
-        b.append(tmp);
+      if (i == filters.length - 1) {
+        filters[i].flush(out);
+        return;
+      }
+
+      // Whatever remains in this filter needs to pass the filters downstream
+      FilterBuffer next = buffers[i];
+      next.reset();
+      filters[i].flush(next);
+      if (next.size() > 0)
+        filter(i + 1, next.array(), 0, next.size(), contentType, out);
     }
-    return b;
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
     for (int i = 0; i < filters.length; i++)
       filters[i].close();
+    for (int i = 0; i < buffers.length; i++)
+      buffers[i].reset();
+    contentType = null;
   }
 
-}
\ No newline at end of file
+}
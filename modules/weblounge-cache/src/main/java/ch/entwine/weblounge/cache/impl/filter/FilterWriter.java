@@ -26,18 +26,31 @@ import java.io.IOException;
 import java.io.Writer;
 
 /**
- * TODO Comment FilterWriter
+ * Writer that passes everything that is written to it through a
+ * {@link StreamFilter} before handing it on to the underlying writer. The
+ * characters are passed to the filter in place, so wrapping this writer in a
+ * {@link java.io.BufferedWriter} keeps the number of filter invocations low.
  */
 public class FilterWriter extends Writer {
 
+  /** The underlying writer */
   private Writer out;
+
+  /** The filter */
   private StreamFilter filter;
+
+  /** The content type */
   private String contentType;
 
   /**
    * Creates a new <code>FilterWriter</code>.
-   * 
+   *
    * @param out
+   *          the underlying writer
+   * @param filter
+   *          the filter
+   * @param contentType
+   *          the content type
    */
   public FilterWriter(Writer out, StreamFilter filter, String contentType) {
     if (filter == null || out == null)
@@ -48,30 +61,33 @@ public class FilterWriter extends Writer {
   }
 
   /**
+   * {@inheritDoc}
+   *
    * @see java.io.Writer#close()
    */
   public void close() throws IOException {
+    filter.flush(out);
     filter.close();
     out.close();
   }
 
   /**
+   * {@inheritDoc}
+   *
    * @see java.io.Writer#flush()
    */
   public void flush() throws IOException {
-    StringBuffer b = filter.flush();
-    if (b != null)
-      out.write(b.toString());
+    filter.flush(out);
     out.flush();
   }
 
   /**
+   * {@inheritDoc}
+   *
    * @see java.io.Writer#write(char[], int, int)
    */
   public void write(char[] cbuf, int off, int len) throws IOException {
-    StringBuffer b = filter.filter(new StringBuffer().append(cbuf, off, len), contentType);
-    if (b != null)
-      out.write(b.toString());
+    filter.filter(cbuf, off, len, contentType, out);
   }
 
-}
\ No newline at end of file
+}
@@ -22,6 +22,9 @@ package ch.entwine.weblounge.cache.impl.filter;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * This {@link StreamFilter} just passes the original stream on without any
  * modification.
@@ -29,24 +32,30 @@ import ch.entwine.weblounge.cache.StreamFilter;
 public class NullFilter implements StreamFilter {
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer,
-   *      java.lang.String)
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
    */
-  public StringBuffer filter(StringBuffer buffer, String contentType) {
-    return buffer;
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    out.write(buf, off, len);
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    return null;
+  public void flush(Writer out) {
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
   }
 
-}
\ No newline at end of file
+}
@@ -28,54 +28,71 @@ import org.w3c.tidy.Tidy;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Writer;
 
 /**
  * Pretty printer for html output. This class uses the implementation of the w3c
  * library <code>JTidy</code>.
+ * <p>
+ * Since <code>JTidy</code> needs to see the whole document, html content is
+ * collected and only pretty printed when the filter is flushed.
  */
 public class PrettyPrinter implements StreamFilter {
 
   /** the logger */
-  protected static Logger log = LoggerFactory.getLogger(TidyReport.class.getName());
+  protected static Logger log = LoggerFactory.getLogger(PrettyPrinter.class.getName());
+
+  /** The html content that has not been pretty printed yet */
+  private final FilterBuffer html = new FilterBuffer();
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer,
-   *      java.lang.String)
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
    */
-  public StringBuffer filter(StringBuffer buffer, String contentType) {
-    if ("text/html".equals(contentType)) {
-      Tidy tidy = new Tidy();
-      StringBuffer outBuffer = new StringBuffer(buffer.length());
-      InputStream is = new ByteArrayInputStream(buffer.toString().getBytes());
-      ByteArrayOutputStream os = new ByteArrayOutputStream();
-      // PENDING Read from filter options
-      tidy.setTidyMark(false);
-      tidy.setFixBackslash(true);
-      tidy.setFixComments(true);
-      tidy.setIndentContent(true);
-      tidy.setMakeClean(true);
-      tidy.setSmartIndent(true);
-      tidy.setUpperCaseAttrs(false);
-      tidy.setUpperCaseTags(false);
-      tidy.pprint(tidy.parseDOM(is, null), os);
-      outBuffer.append(os.toString());
-      return outBuffer;
-    }
-    return buffer;
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    if ("text/html".equals(contentType))
+      html.write(buf, off, len);
+    else
+      out.write(buf, off, len);
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    return null;
+  public void flush(Writer out) throws IOException {
+    if (html.size() == 0)
+      return;
+    Tidy tidy = new Tidy();
+    InputStream is = new ByteArrayInputStream(html.toString().getBytes());
+    ByteArrayOutputStream os = new ByteArrayOutputStream(html.size());
+    html.reset();
+    // PENDING Read from filter options
+    tidy.setTidyMark(false);
+    tidy.setFixBackslash(true);
+    tidy.setFixComments(true);
+    tidy.setIndentContent(true);
+    tidy.setMakeClean(true);
+    tidy.setSmartIndent(true);
+    tidy.setUpperCaseAttrs(false);
+    tidy.setUpperCaseTags(false);
+    tidy.pprint(tidy.parseDOM(is, null), os);
+    out.write(os.toString());
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
+    html.reset();
   }
 
-}
\ No newline at end of file
+}
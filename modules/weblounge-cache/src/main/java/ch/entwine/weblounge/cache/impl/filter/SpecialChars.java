@@ -22,35 +22,85 @@ package ch.entwine.weblounge.cache.impl.filter;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 
-import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.text.translate.EntityArrays;
+
+import java.io.IOException;
+import java.io.Writer;
 
 /**
  * This {@link StreamFilter} removes special characters from the output stream
  * and replaces them with their proper HTML representation.
+ * <p>
+ * The replacements are the ones that are applied by
+ * {@link org.apache.commons.lang3.StringEscapeUtils#escapeHtml4(String)}.
  */
 public class SpecialChars implements StreamFilter {
 
+  /** The html entities, indexed by character */
+  private static final char[][] ENTITIES;
+
+  static {
+    String[][][] tables = new String[][][] {
+        EntityArrays.BASIC_ESCAPE(),
+        EntityArrays.ISO8859_1_ESCAPE(),
+        EntityArrays.HTML40_EXTENDED_ESCAPE() };
+    int max = 0;
+    for (String[][] table : tables) {
+      for (String[] mapping : table)
+        max = Math.max(max, mapping[0].charAt(0));
+    }
+    ENTITIES = new char[max + 1][];
+    for (String[][] table : tables) {
+      for (String[] mapping : table) {
+        char c = mapping[0].charAt(0);
+        if (ENTITIES[c] == null)
+          ENTITIES[c] = mapping[1].toCharArray();
+      }
+    }
+  }
+
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer,
-   *      java.lang.String)
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
    */
-  public StringBuffer filter(StringBuffer buffer, String contentType) {
-    if ("text/html".equals(contentType))
-      return new StringBuffer(StringEscapeUtils.escapeHtml4(buffer.toString()));
-    return buffer;
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    if (!"text/html".equals(contentType)) {
+      out.write(buf, off, len);
+      return;
+    }
+    int end = off + len;
+    int start = off;
+    for (int i = off; i < end; i++) {
+      char c = buf[i];
+      char[] entity = c < ENTITIES.length ? ENTITIES[c] : null;
+      if (entity == null)
+        continue;
+      if (i > start)
+        out.write(buf, start, i - start);
+      out.write(entity, 0, entity.length);
+      start = i + 1;
+    }
+    if (end > start)
+      out.write(buf, start, end - start);
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    return null;
+  public void flush(Writer out) {
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
   }
 
-}
\ No newline at end of file
+}
@@ -28,9 +28,11 @@ import org.w3c.tidy.Tidy;
 
 import java.io.CharArrayWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.io.PrintWriter;
+import java.io.Writer;
 
 /**
  * This stream writer will analyze the output stream and report problems
@@ -48,36 +50,42 @@ public class TidyReport implements StreamFilter {
   private String name = null;
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer,
-   *      java.lang.String)
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
    */
-  public StringBuffer filter(StringBuffer buffer, String contentType) {
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
     if (tt == null)
       tt = new TidyThread(name);
     try {
-      tt.los.write(buffer.toString().getBytes());
+      tt.lwr.write(buf, off, len);
     } catch (IOException e) {
       log.error(e.getMessage(), e);
     }
-    return buffer;
+    out.write(buf, off, len);
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    return null;
+  public void flush(Writer out) {
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
     if (tt == null)
       return;
     try {
-      tt.los.flush();
-      tt.los.close();
+      tt.lwr.flush();
+      tt.lwr.close();
     } catch (IOException e) {
       log.error(e.getMessage(), e);
     }
@@ -103,6 +111,7 @@ public class TidyReport implements StreamFilter {
   private static class TidyThread extends Thread {
 
     protected PipedOutputStream los;
+    protected Writer lwr;
     private PipedInputStream tis;
     private Tidy tidy;
     protected CharArrayWriter wr;
@@ -121,6 +130,7 @@ public class TidyReport implements StreamFilter {
       try {
         tis = new PipedInputStream();
         los = new PipedOutputStream(tis);
+        lwr = new OutputStreamWriter(los);
       } catch (IOException e) {
         log.error(e.getMessage(), e);
       }
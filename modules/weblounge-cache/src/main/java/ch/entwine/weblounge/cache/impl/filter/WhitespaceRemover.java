@@ -22,6 +22,9 @@ package ch.entwine.weblounge.cache.impl.filter;
 
 import ch.entwine.weblounge.cache.StreamFilter;
 
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * This filter removes whitespace from html output. Using this filter will
  * significantly reduce the amount of characters in the output, but will also
@@ -34,37 +37,47 @@ public class WhitespaceRemover implements StreamFilter {
   private boolean lastWhite = true;
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#filter(java.lang.StringBuffer,
-   *      java.lang.String)
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#filter(char[], int, int,
+   *      java.lang.String, java.io.Writer)
    */
-  public StringBuffer filter(StringBuffer buffer, String contentType) {
-    StringBuffer b = new StringBuffer(buffer.length());
-    for (int i = 0; i < buffer.length(); i++) {
-      char c = buffer.charAt(i);
+  public void filter(char[] buf, int off, int len, String contentType,
+      Writer out) throws IOException {
+    int end = off + len;
+    int start = off;
+    for (int i = off; i < end; i++) {
+      char c = buf[i];
       if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+        if (i > start)
+          out.write(buf, start, i - start);
         if (!lastWhite)
-          b.append(' ');
+          out.write(' ');
         lastWhite = true;
+        start = i + 1;
       } else {
-        b.append(c);
         lastWhite = false;
       }
     }
-    return b;
+    if (end > start)
+      out.write(buf, start, end - start);
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#flush()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#flush(java.io.Writer)
    */
-  public StringBuffer flush() {
-    return null;
+  public void flush(Writer out) {
   }
 
   /**
-   * @see ch.entwine.weblounge.api.request.StreamFilter#close()
+   * {@inheritDoc}
+   *
+   * @see ch.entwine.weblounge.cache.StreamFilter#close()
    */
   public void close() {
     lastWhite = true;
   }
 
-}
\ No newline at end of file
+}
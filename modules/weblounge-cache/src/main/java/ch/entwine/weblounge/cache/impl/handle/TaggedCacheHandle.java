@@ -27,8 +27,6 @@ import ch.entwine.weblounge.common.request.CacheTag;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * This is an implementation of a {@link import
@@ -47,6 +45,9 @@ public class TaggedCacheHandle extends CacheHandleImpl {
   /** The default recheck time for a page */
   protected static final long DEFAULT_RECHECK = Times.MS_PER_HOUR;
 
+  /** The comparator used to sort the primary tags */
+  private static final TagComparator TAG_COMPARATOR = new TagComparator();
+
   /** The unique tag set of this cache handle */
   private CacheTag[] primaryTags;
 
@@ -63,9 +64,8 @@ public class TaggedCacheHandle extends CacheHandleImpl {
    */
   public TaggedCacheHandle(CacheTag[] primary, long expirationTime, long revalidationTime) {
     super(expirationTime, revalidationTime);
-    setKey(createKey(primary));
-    Set<Tag> s = new TreeSet<Tag>(new TagComparator());
-    for (CacheTag t : primary) {
+    for (int i = 0; i < primary.length; i++) {
+      CacheTag t = primary[i];
       if (t == null)
         throw new NullPointerException("Tag must no be null");
       if (t.getName() == null)
@@ -74,10 +74,14 @@ public class TaggedCacheHandle extends CacheHandleImpl {
         throw new IllegalArgumentException("No valueless unique tags allowed");
       if (t.getValue() == CacheTag.ANY)
         throw new IllegalArgumentException("No wildcard tags allowed as primary tag");
-      if (!s.add(t))
-        throw new IllegalArgumentException("No duplicate unique tags allowed");
-      addTag(t);
+      for (int j = 0; j < i; j++) {
+        if (TAG_COMPARATOR.compare(primary[j], t) == 0)
+          throw new IllegalArgumentException("No duplicate unique tags allowed");
+      }
     }
+    setKey(createKey(primary));
+    for (CacheTag t : primary)
+      addTag(t);
     primaryTags = primary;
   }
 
@@ -104,17 +108,23 @@ public class TaggedCacheHandle extends CacheHandleImpl {
     if (tags == null || tags.length == 0)
       throw new IllegalArgumentException("Tags must not be null or empty");
 
-    StringBuffer key = new StringBuffer();
+    // Sort the tags, which are usually just a handful, without the overhead of
+    // a sorted set
+    CacheTag[] sortedTags = tags.clone();
+    Arrays.sort(sortedTags, TAG_COMPARATOR);
 
-    // Build the key
-    Set<CacheTag> s = new TreeSet<CacheTag>(new TagComparator());
-    s.addAll(Arrays.asList(tags));
-    for (CacheTag tag : s) {
+    // Build the key, skipping duplicates which are next to each other by now
+    StringBuilder key = new StringBuilder(sortedTags.length * 32);
+    CacheTag previous = null;
+    for (CacheTag tag : sortedTags) {
+      if (previous != null && TAG_COMPARATOR.compare(previous, tag) == 0)
+        continue;
+      previous = tag;
       if (CacheTag.Site.equals(tag.getName()))
         continue;
       if (key.length() > 0)
         key.append("; ");
-      key.append(tag.getName()).append("=").append(tag.getValue());
+      key.append(tag.getName()).append('=').append(tag.getValue());
     }
 
     return key.toString();
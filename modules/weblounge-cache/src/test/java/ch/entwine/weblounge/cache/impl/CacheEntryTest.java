@@ -35,6 +35,7 @@ import ch.entwine.weblounge.common.request.CacheTag;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -191,6 +192,59 @@ public class CacheEntryTest {
     assertEquals(content, new String(entry.getContent(), "utf-8"));
   }
 
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#compress()}.
+   */
+  @Test
+  public void testCompress() throws Exception {
+    assertFalse(entry.compress());
+    assertFalse(entry.isCompressed());
+
+    StringBuffer largeContent = new StringBuffer();
+    while (largeContent.length() < CacheEntry.MIN_COMPRESSION_SIZE * 4)
+      largeContent.append(content);
+    byte[] bytes = largeContent.toString().getBytes("utf-8");
+    CacheEntry largeEntry = new CacheEntry(handle, bytes, encoding, headers);
+    assertTrue(largeEntry.compress());
+    assertTrue(largeEntry.isCompressed());
+    assertTrue(largeEntry.getCompressedContent().length < bytes.length);
+    assertEquals(bytes.length, largeEntry.getContentLength());
+    assertEquals(largeContent.toString(), new String(largeEntry.getContent(), "utf-8"));
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#moveOffHeap()}.
+   */
+  @Test
+  public void testMoveOffHeap() throws Exception {
+    assertFalse(entry.isOffHeap());
+    entry.moveOffHeap();
+    assertTrue(entry.isOffHeap());
+    assertEquals(content.getBytes().length, entry.getStoredContentLength());
+    assertEquals(content, new String(entry.getContent(), "utf-8"));
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    entry.writeContent(os, false);
+    assertEquals(content, new String(os.toByteArray(), "utf-8"));
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#trimToSize()}.
+   */
+  @Test
+  public void testTrimToSize() throws Exception {
+    byte[] bytes = content.getBytes("utf-8");
+    byte[] buffer = new byte[bytes.length * 2];
+    System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+    CacheEntry bufferedEntry = new CacheEntry(handle, buffer, bytes.length, encoding, headers);
+    assertEquals(bytes.length, bufferedEntry.getStoredContentLength());
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    bufferedEntry.writeContent(os, false);
+    assertEquals(content, new String(os.toByteArray(), "utf-8"));
+    bufferedEntry.trimToSize();
+    assertEquals(bytes.length, bufferedEntry.getStoredContentLength());
+    assertEquals(content, new String(bufferedEntry.getContent(), "utf-8"));
+  }
+
   /**
    * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#getContentType()}.
    */
@@ -210,6 +264,16 @@ public class CacheEntryTest {
     assertFalse(entry.notModified(System.currentTimeMillis() - Times.MS_PER_HOUR));
   }
 
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#isExpired(long)}.
+   */
+  @Test
+  public void testIsExpired() {
+    assertEquals(entry.getCreationDate() + expirationTime, entry.getExpirationDate());
+    assertFalse(entry.isExpired(entry.getCreationDate()));
+    assertTrue(entry.isExpired(entry.getExpirationDate()));
+  }
+
   /**
    * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#matches(java.lang.String)}.
    */
@@ -217,6 +281,19 @@ public class CacheEntryTest {
   public void testMatches() {
     String eTag = entry.getETag();
     assertTrue(entry.matches(eTag));
+    assertFalse(entry.matches(eTag, true));
+    assertTrue(entry.matches(entry.getETag(true), true));
+    assertFalse(entry.matches(entry.getETag(true)));
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheEntry#getETag(boolean)}.
+   */
+  @Test
+  public void testGetETagGzip() {
+    String eTag = entry.getETag();
+    assertEquals(eTag, entry.getETag(false));
+    assertEquals(eTag.substring(0, eTag.length() - 1) + "-gz\"", entry.getETag(true));
   }
 
 }
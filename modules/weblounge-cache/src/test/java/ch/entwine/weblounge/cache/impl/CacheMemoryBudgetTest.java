@@ -0,0 +1,314 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.request.CacheHandle;
+import ch.entwine.weblounge.common.request.CacheTag;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.ConfigurationFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Test case for the implementation at {@link CacheMemoryBudget}.
+ */
+public class CacheMemoryBudgetTest {
+
+  /** The budget under test */
+  protected CacheMemoryBudget budget = null;
+
+  /** The first element */
+  protected Element element = null;
+
+  /** The second element */
+  protected Element otherElement = null;
+
+  /** Size of the element content */
+  protected int contentSize = 1024;
+
+  /** The cache manager */
+  protected CacheManager cacheManager = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    budget = new CacheMemoryBudget(0);
+    element = createElement("/a");
+    otherElement = createElement("/b");
+  }
+
+  /**
+   * Creates a cache element with <code>contentSize</code> bytes of content.
+   * 
+   * @param url
+   *          the url
+   * @return the element
+   */
+  private Element createElement(String url) {
+    return createElement(url, contentSize);
+  }
+
+  /**
+   * Creates a cache element with <code>size</code> bytes of content.
+   * 
+   * @param url
+   *          the url
+   * @param size
+   *          the content size
+   * @return the element
+   */
+  private Element createElement(String url, int size) {
+    CacheTag[] tags = new CacheTag[] { new CacheTagImpl(CacheTag.Url, url) };
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    CacheEntry entry = new CacheEntry(handle, new byte[size], "utf-8", new CacheableHttpServletResponseHeaders());
+    return new Element(new CacheEntryKey(handle), entry);
+  }
+
+  /**
+   * Creates a cache that reports its changes to the budget.
+   * 
+   * @return the cache
+   */
+  private Cache createCache() {
+    InputStream is = CacheServiceImpl.class.getResourceAsStream("/ehcache/config.xml");
+    try {
+      Configuration config = ConfigurationFactory.parseConfiguration(is);
+      config.getDiskStoreConfiguration().setPath(new File(FileUtils.getTempDirectory(), "cachememorybudgettest").getAbsolutePath());
+      cacheManager = new CacheManager(config);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    CacheConfiguration cacheConfig = new CacheConfiguration();
+    cacheConfig.setName("budget");
+    cacheConfig.setMaxElementsInMemory(1000);
+    cacheConfig.setEternal(true);
+    Cache cache = new Cache(cacheConfig);
+    cacheManager.addCache(cache);
+    cache.getCacheEventNotificationService().registerListener(budget);
+    return cache;
+  }
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    if (cacheManager != null)
+      cacheManager.shutdown();
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#add(Element)}.
+   */
+  @Test
+  public void testAdd() {
+    long weight = CacheMemoryBudget.getWeight(element);
+    assertEquals(CacheMemoryBudget.ELEMENT_OVERHEAD + contentSize, weight);
+    budget.add(element);
+    assertEquals(weight, budget.getBytes());
+    budget.add(element);
+    assertEquals(weight, budget.getBytes());
+    budget.add(otherElement);
+    assertEquals(2 * weight, budget.getBytes());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#remove(Object)}.
+   */
+  @Test
+  public void testRemove() {
+    budget.add(element);
+    budget.add(otherElement);
+    budget.notifyElementEvicted(null, element);
+    assertEquals(CacheMemoryBudget.getWeight(otherElement), budget.getBytes());
+    budget.notifyRemoveAll(null);
+    assertEquals(0, budget.getBytes());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#isExceeded()}.
+   */
+  @Test
+  public void testIsExceeded() {
+    budget.add(element);
+    budget.add(otherElement);
+    assertFalse(budget.isExceeded());
+    budget.setMaxBytes(CacheMemoryBudget.getWeight(element));
+    assertTrue(budget.isExceeded());
+    budget.remove(element.getObjectKey());
+    assertFalse(budget.isExceeded());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#evict(net.sf.ehcache.Ehcache)}
+   * .
+   */
+  @Test
+  public void testEvictLargest() {
+    Cache cache = createCache();
+    Element small = createElement("/a", 1024);
+    Element large = createElement("/b", 4096);
+    Element other = createElement("/c", 1024);
+    cache.put(small);
+    cache.put(large);
+    cache.put(other);
+    long weight = CacheMemoryBudget.getWeight(small) + CacheMemoryBudget.getWeight(other);
+    assertEquals(weight + CacheMemoryBudget.getWeight(large), budget.getBytes());
+
+    // The largest element is evicted first
+    budget.setMaxBytes(weight + 1);
+    assertTrue(budget.isExceeded());
+    assertEquals(1, budget.evict(cache));
+    assertFalse(budget.isExceeded());
+    assertEquals(weight, budget.getBytes());
+    assertNull(cache.getQuiet(large.getObjectKey()));
+    assertNotNull(cache.getQuiet(small.getObjectKey()));
+    assertNotNull(cache.getQuiet(other.getObjectKey()));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#selectVictim(net.sf.ehcache.Ehcache)}
+   * .
+   */
+  @Test
+  public void testEvictionOrder() throws Exception {
+    Cache cache = createCache();
+    budget.setMaxBytes(Long.MAX_VALUE);
+    Element first = createElement("/a");
+    Element second = createElement("/b");
+    Element third = createElement("/c");
+    cache.put(first);
+    cache.put(second);
+    cache.put(third);
+
+    // Among elements of equal size, the oldest one goes first, unless it has
+    // been accessed in the meantime
+    Thread.sleep(10);
+    cache.get(first.getObjectKey());
+    budget.setMaxBytes(2 * CacheMemoryBudget.getWeight(first));
+    assertEquals(1, budget.evict(cache));
+    assertNotNull(cache.getQuiet(first.getObjectKey()));
+    assertNull(cache.getQuiet(second.getObjectKey()));
+    assertNotNull(cache.getQuiet(third.getObjectKey()));
+
+    budget.setMaxBytes(CacheMemoryBudget.getWeight(first));
+    assertEquals(1, budget.evict(cache));
+    assertNotNull(cache.getQuiet(first.getObjectKey()));
+    assertNull(cache.getQuiet(third.getObjectKey()));
+    assertEquals(CacheMemoryBudget.getWeight(first), budget.getBytes());
+  }
+
+  /**
+   * Test that the eviction queue does not grow with puts and removals while
+   * the budget is not exceeded.
+   */
+  @Test
+  public void testQueueCompaction() {
+    budget.setMaxBytes(Long.MAX_VALUE);
+    for (int i = 0; i < 1000; i++) {
+      budget.add(element);
+      budget.add(otherElement);
+      budget.remove(otherElement.getObjectKey());
+    }
+    assertFalse(budget.isExceeded());
+    assertEquals(CacheMemoryBudget.getWeight(element), budget.getBytes());
+    assertTrue(budget.getQueueLength() <= 100);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheMemoryBudget#getHottestKeys(int)}
+   * .
+   */
+  @Test
+  public void testHottestKeys() {
+    Element third = createElement("/c");
+    budget.add(element);
+    budget.add(otherElement);
+    budget.add(third);
+    budget.hit(otherElement.getObjectKey());
+    budget.hit(otherElement.getObjectKey());
+    budget.hit(third.getObjectKey());
+
+    assertEquals(0, budget.getHottestKeys(0).size());
+    List<Object> keys = budget.getHottestKeys(2);
+    assertEquals(2, keys.size());
+    assertEquals(otherElement.getObjectKey(), keys.get(0));
+    assertEquals(third.getObjectKey(), keys.get(1));
+    assertEquals(3, budget.getHottestKeys(10).size());
+
+    // Replacing an element starts counting its hits over
+    budget.add(otherElement);
+    assertEquals(third.getObjectKey(), budget.getHottestKeys(1).get(0));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheSnapshot#select(net.sf.ehcache.Ehcache, CacheMemoryBudget, int)}
+   * .
+   */
+  @Test
+  public void testSnapshotSelection() {
+    Cache cache = createCache();
+    cache.put(element);
+    cache.put(otherElement);
+    budget.hit(otherElement.getObjectKey());
+
+    List<Element> elements = CacheSnapshot.select(cache, budget, 1);
+    assertEquals(1, elements.size());
+    assertEquals(otherElement.getObjectKey(), elements.get(0).getObjectKey());
+
+    // Elements that have been removed from the cache are skipped
+    cache.remove(otherElement.getObjectKey());
+    elements = CacheSnapshot.select(cache, budget, 2);
+    assertEquals(1, elements.size());
+    assertEquals(element.getObjectKey(), elements.get(0).getObjectKey());
+  }
+
+}
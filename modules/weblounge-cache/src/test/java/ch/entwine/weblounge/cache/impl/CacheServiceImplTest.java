@@ -0,0 +1,453 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeResponseImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletResponse;
+import ch.entwine.weblounge.common.request.CacheHandle;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.site.Environment;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Test case for the implementation at {@link CacheServiceImpl}.
+ */
+public class CacheServiceImplTest {
+
+  /** The cache under test */
+  protected CacheServiceImpl cache = null;
+
+  /** The cache's disk store */
+  protected File diskStore = null;
+
+  /** The cache configuration */
+  protected Dictionary<String, String> properties = null;
+
+  /** Milliseconds to wait for a concurrent transaction */
+  protected long transactionTimeout = 200;
+
+  /** The cache tags */
+  protected CacheTag[] tags = new CacheTag[] { new CacheTagImpl("url", "/a") };
+
+  /** The response body */
+  protected String content = "Hello World!";
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    diskStore = new File(FileUtils.getTempDirectory(), "cacheserviceimpltest");
+    cache = new CacheServiceImpl("test", "Test", diskStore.getAbsolutePath());
+    properties = new Hashtable<String, String>();
+    properties.put(CacheServiceImpl.OPT_DEBUG, "false");
+    properties.put(CacheServiceImpl.OPT_TRANSACTION_TIMEOUT, Long.toString(transactionTimeout));
+    cache.updated(properties);
+  }
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    cache.shutdown();
+    FileUtils.deleteQuietly(diskStore);
+  }
+
+  /**
+   * Test that a request waits for a concurrent transaction on the same key no
+   * longer than the transaction timeout and then renders the response itself.
+   */
+  @Test
+  public void testTransactionTimeout() throws Exception {
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    WebloungeResponseImpl response = createResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), response));
+    CacheTransaction tx = cache.transactions.get(handle.getKey());
+    assertNotNull(tx);
+
+    // A second request gives up waiting after the timeout
+    CacheHandle otherHandle = new TaggedCacheHandle(tags, 1000, 1000);
+    long start = System.currentTimeMillis();
+    assertSame(otherHandle, cache.startResponse(otherHandle, createRequest(), createResponse()));
+    assertTrue(System.currentTimeMillis() - start >= transactionTimeout);
+
+    // The first transaction still owns the key
+    assertSame(tx, cache.transactions.get(handle.getKey()));
+    assertFalse(tx.await(0));
+  }
+
+  /**
+   * Test that invalidating a key only finishes the caller's own transaction.
+   */
+  @Test
+  public void testInvalidateForeignTransaction() throws Exception {
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    cache.startResponse(handle, createRequest(), createResponse());
+    CacheTransaction tx = cache.transactions.get(handle.getKey());
+    assertNotNull(tx);
+
+    // Invalidating the key through a different handle leaves it running
+    cache.invalidate(new TaggedCacheHandle(tags, 1000, 1000));
+    assertSame(tx, cache.transactions.get(handle.getKey()));
+    assertFalse(tx.await(0));
+
+    // Invalidating through the transaction's handle finishes it
+    cache.invalidate(handle);
+    assertNull(cache.transactions.get(handle.getKey()));
+    assertTrue(tx.await(0));
+  }
+
+  /**
+   * Test that a rendered response is served from the cache.
+   */
+  @Test
+  public void testHit() throws Exception {
+    render(new TaggedCacheHandle(tags, 1000, 1000), content);
+
+    MockHttpServletResponse clientResponse = new MockHttpServletResponse();
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    assertNull(cache.startResponse(handle, createRequest(), createResponse(clientResponse)));
+    assertEquals(content, clientResponse.getContentAsString());
+  }
+
+  /**
+   * Test that fragments that are valid for less than a second are not kept
+   * forever.
+   */
+  @Test
+  public void testFragmentTimeToLive() throws Exception {
+    cache.putFragment(tags, null, content, 500, 500);
+    Cache ehcache = cache.cacheManager.getCache(CacheServiceImpl.DEFAULT_CACHE);
+    String key = new TaggedCacheHandle(tags, 0, 0).getKey();
+    Element element = ehcache.getQuiet(new CacheEntryKey(key));
+    assertNotNull(element);
+    assertFalse(element.isEternal());
+    assertEquals(1, element.getTimeToLive());
+
+    assertEquals(1, CacheServiceImpl.toTimeToLive(0));
+    assertEquals(1, CacheServiceImpl.toTimeToLive(1000));
+    assertEquals(2, CacheServiceImpl.toTimeToLive(1001));
+  }
+
+  /**
+   * Test that invalidating a single element discards the snapshot that may
+   * contain it.
+   */
+  @Test
+  public void testInvalidateDiscardsSnapshot() throws Exception {
+    CacheHandle handle = render(new TaggedCacheHandle(tags, 1000, 1000), content);
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse()));
+    assertEquals(handle.getKey(), cache.memoryBudget.getHottestKeys(1).get(0).toString());
+
+    Cache ehcache = cache.cacheManager.getCache(CacheServiceImpl.DEFAULT_CACHE);
+    assertEquals(1, cache.snapshot.write(CacheSnapshot.select(ehcache, cache.memoryBudget, 10), "test"));
+    assertTrue(cache.snapshot.exists());
+    cache.invalidate(handle);
+    assertFalse(cache.snapshot.exists());
+  }
+
+  /**
+   * Test that an expired element is served to concurrent requests while one
+   * request is rendering its replacement.
+   */
+  @Test
+  public void testStaleWhileRevalidate() throws Exception {
+    properties.put(CacheServiceImpl.OPT_STALE_WHILE_REVALIDATE, "60");
+    cache.updated(properties);
+    render(new TaggedCacheHandle(tags, 100, 100), content);
+    Thread.sleep(200);
+
+    // The first request revalidates the element
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    WebloungeResponseImpl response = createResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), response));
+
+    // Concurrent requests are served the expired element
+    MockHttpServletResponse clientResponse = new MockHttpServletResponse();
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse(clientResponse)));
+    assertEquals(content, clientResponse.getContentAsString());
+    assertNotNull(clientResponse.getHeader("Warning"));
+
+    // Once revalidated, the new element is served
+    String newContent = "Hello Weblounge!";
+    response.getOutputStream().write(newContent.getBytes("utf-8"));
+    cache.endResponse(response);
+    clientResponse = new MockHttpServletResponse();
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse(clientResponse)));
+    assertEquals(newContent, clientResponse.getContentAsString());
+    assertNull(clientResponse.getHeader("Warning"));
+  }
+
+  /**
+   * Test that an expired element is served after its revalidation failed and
+   * that it is revalidated again once the backoff has passed.
+   */
+  @Test
+  public void testStaleIfError() throws Exception {
+    properties.put(CacheServiceImpl.OPT_STALE_IF_ERROR, "60");
+    properties.put(CacheServiceImpl.OPT_REVALIDATION_BACKOFF, "60");
+    cache.updated(properties);
+    render(new TaggedCacheHandle(tags, 100, 100), content);
+    Thread.sleep(200);
+
+    // Have revalidation fail
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    WebloungeResponseImpl response = createResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), response));
+    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    cache.endResponse(response);
+    assertNotNull(cache.revalidationFailures.get(handle.getKey()));
+
+    // Subsequent requests are served the expired element during the backoff
+    for (int i = 0; i < 2; i++) {
+      MockHttpServletResponse clientResponse = new MockHttpServletResponse();
+      assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse(clientResponse)));
+      assertEquals(content, clientResponse.getContentAsString());
+      assertNotNull(clientResponse.getHeader("Warning"));
+      assertTrue(cache.transactions.isEmpty());
+    }
+
+    // After the backoff, the element is revalidated again
+    properties.put(CacheServiceImpl.OPT_REVALIDATION_BACKOFF, "0");
+    cache.updated(properties);
+    handle = new TaggedCacheHandle(tags, 1000, 1000);
+    response = createResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), response));
+    response.getOutputStream().write(content.getBytes("utf-8"));
+    cache.endResponse(response);
+    assertNull(cache.revalidationFailures.get(handle.getKey()));
+  }
+
+  /**
+   * Test that an expired element is no longer served once the time to serve
+   * it after errors has passed.
+   */
+  @Test
+  public void testStaleIfErrorExpiry() throws Exception {
+    properties.put(CacheServiceImpl.OPT_STALE_IF_ERROR, "1");
+    cache.updated(properties);
+    render(new TaggedCacheHandle(tags, 100, 100), content);
+    Thread.sleep(200);
+
+    // Have revalidation fail
+    CacheHandle handle = new TaggedCacheHandle(tags, 1000, 1000);
+    WebloungeResponseImpl response = createResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), response));
+    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    cache.endResponse(response);
+
+    MockHttpServletResponse clientResponse = new MockHttpServletResponse();
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse(clientResponse)));
+    assertEquals(content, clientResponse.getContentAsString());
+
+    // Once the grace period is over, the element has to be rendered again
+    Thread.sleep(1000);
+    handle = new TaggedCacheHandle(tags, 1000, 1000);
+    clientResponse = new MockHttpServletResponse();
+    assertSame(handle, cache.startResponse(handle, createRequest(), createResponse(clientResponse)));
+    assertEquals("", clientResponse.getContentAsString());
+  }
+
+  /**
+   * Test that elements are evicted when the memory budget is lowered.
+   */
+  @Test
+  public void testLowerMemoryBudget() throws Exception {
+    render(new TaggedCacheHandle(tags, 1000, 1000), content);
+    CacheTag[] otherTags = new CacheTag[] { new CacheTagImpl("url", "/b") };
+    render(new TaggedCacheHandle(otherTags, 1000, 1000), content);
+    long bytes = cache.memoryBudget.getBytes();
+    assertTrue(bytes > 0);
+
+    properties.put(CacheServiceImpl.OPT_MAX_BYTES_IN_MEMORY, Long.toString(bytes - 1));
+    cache.updated(properties);
+    assertFalse(cache.memoryBudget.isExceeded());
+    assertTrue(cache.memoryBudget.getBytes() < bytes);
+  }
+
+  /**
+   * Test that compressed content is served to clients accepting gzip with an
+   * etag that differs from the one of the uncompressed content.
+   */
+  @Test
+  public void testCompressedHit() throws Exception {
+    StringBuffer body = new StringBuffer();
+    while (body.length() < 2 * CacheEntry.MIN_COMPRESSION_SIZE)
+      body.append(content);
+
+    // The miss already announces that the content varies by encoding
+    MockHttpServletResponse clientResponse = new MockHttpServletResponse();
+    render(new TaggedCacheHandle(tags, 1000, 1000), body.toString(), "text/html", clientResponse);
+    assertEquals("Accept-Encoding", clientResponse.getHeader("Vary"));
+    String eTag = clientResponse.getHeader("ETag");
+    assertNotNull(eTag);
+
+    // Clients that accept gzip get the compressed content
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/a");
+    request.addHeader("Accept-Encoding", "gzip");
+    clientResponse = new MockHttpServletResponse();
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), new WebloungeRequestImpl(request, Environment.Production), createResponse(clientResponse)));
+    assertEquals("gzip", clientResponse.getHeader("Content-Encoding"));
+    assertEquals("Accept-Encoding", clientResponse.getHeader("Vary"));
+    String gzipETag = clientResponse.getHeader("ETag");
+    assertNotNull(gzipETag);
+    assertFalse(eTag.equals(gzipETag));
+
+    // Others get the uncompressed content with the original etag
+    clientResponse = new MockHttpServletResponse();
+    assertNull(cache.startResponse(new TaggedCacheHandle(tags, 1000, 1000), createRequest(), createResponse(clientResponse)));
+    assertNull(clientResponse.getHeader("Content-Encoding"));
+    assertEquals(eTag, clientResponse.getHeader("ETag"));
+    assertEquals(body.toString(), clientResponse.getContentAsString());
+  }
+
+  /**
+   * Test method for
+   * {@link CacheServiceImpl#acceptsGzip(javax.servlet.http.HttpServletRequest)}
+   * .
+   */
+  @Test
+  public void testAcceptsGzip() {
+    assertFalse(CacheServiceImpl.acceptsGzip(createRequest("")));
+    assertTrue(CacheServiceImpl.acceptsGzip(createRequest("gzip, deflate")));
+    assertTrue(CacheServiceImpl.acceptsGzip(createRequest("x-gzip")));
+    assertFalse(CacheServiceImpl.acceptsGzip(createRequest("gzip;q=0")));
+    assertFalse(CacheServiceImpl.acceptsGzip(createRequest("deflate")));
+    assertTrue(CacheServiceImpl.acceptsGzip(createRequest("*")));
+    assertFalse(CacheServiceImpl.acceptsGzip(createRequest("*;q=0")));
+    assertFalse(CacheServiceImpl.acceptsGzip(createRequest("gzip;q=0, *")));
+  }
+
+  /**
+   * Returns a request with the given <code>Accept-Encoding</code> header.
+   *
+   * @param acceptEncoding
+   *          the accepted encodings
+   * @return the request
+   */
+  protected MockHttpServletRequest createRequest(String acceptEncoding) {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/a");
+    request.addHeader("Accept-Encoding", acceptEncoding);
+    return request;
+  }
+
+  /**
+   * Renders a response to the cache using <code>handle</code>.
+   *
+   * @param handle
+   *          the cache handle
+   * @param body
+   *          the response body
+   * @return the cache handle returned by the cache
+   * @throws Exception
+   *           if rendering fails
+   */
+  protected CacheHandle render(CacheHandle handle, String body)
+      throws Exception {
+    return render(handle, body, null, new MockHttpServletResponse());
+  }
+
+  /**
+   * Renders a response of the given content type to the cache using
+   * <code>handle</code>.
+   *
+   * @param handle
+   *          the cache handle
+   * @param body
+   *          the response body
+   * @param contentType
+   *          the content type
+   * @param clientResponse
+   *          the response sent to the client
+   * @return the cache handle returned by the cache
+   * @throws Exception
+   *           if rendering fails
+   */
+  protected CacheHandle render(CacheHandle handle, String body,
+      String contentType, MockHttpServletResponse clientResponse)
+      throws Exception {
+    WebloungeResponseImpl response = createResponse(clientResponse);
+    CacheHandle hdl = cache.startResponse(handle, createRequest(), response);
+    assertNotNull(hdl);
+    if (contentType != null)
+      response.setContentType(contentType);
+    response.getResponse().getOutputStream().write(body.getBytes("utf-8"));
+    cache.endResponse(response);
+    return hdl;
+  }
+
+  /**
+   * Returns a new request.
+   *
+   * @return the request
+   */
+  protected WebloungeRequestImpl createRequest() {
+    return new WebloungeRequestImpl(new MockHttpServletRequest("GET", "/a"), Environment.Production);
+  }
+
+  /**
+   * Returns a new response that is prepared for caching.
+   *
+   * @return the response
+   */
+  protected WebloungeResponseImpl createResponse() {
+    return createResponse(new MockHttpServletResponse());
+  }
+
+  /**
+   * Returns a new response that is prepared for caching and writes to
+   * <code>clientResponse</code>.
+   *
+   * @param clientResponse
+   *          the response sent to the client
+   * @return the response
+   */
+  protected WebloungeResponseImpl createResponse(
+      MockHttpServletResponse clientResponse) {
+    return new WebloungeResponseImpl(cache.createCacheableResponse(null, clientResponse));
+  }
+
+}
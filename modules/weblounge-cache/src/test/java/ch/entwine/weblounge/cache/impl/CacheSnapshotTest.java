@@ -0,0 +1,181 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.request.CacheHandle;
+import ch.entwine.weblounge.common.request.CacheTag;
+
+import net.sf.ehcache.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for the implementation at {@link CacheSnapshot}.
+ */
+public class CacheSnapshotTest {
+
+  /** The snapshot under test */
+  protected CacheSnapshot snapshot = null;
+
+  /** The directory holding the snapshot */
+  protected File snapshotDir = null;
+
+  /** The first element */
+  protected Element element = null;
+
+  /** The second element */
+  protected Element otherElement = null;
+
+  /** The deployment that takes the snapshot */
+  protected String deployment = "site;1.0.0;0;3.2.0;0";
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    snapshotDir = new File(FileUtils.getTempDirectory(), "cachesnapshottest");
+    snapshot = new CacheSnapshot(new File(snapshotDir, "site.snapshot"));
+    element = createElement("/a", "Hello World!");
+    otherElement = createElement("/b", "Hello Weblounge!");
+  }
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(snapshotDir);
+  }
+
+  /**
+   * Creates a cache element.
+   * 
+   * @param url
+   *          the url
+   * @param content
+   *          the content
+   * @return the element
+   */
+  private Element createElement(String url, String content) throws Exception {
+    CacheTag[] tags = new CacheTag[] { new CacheTagImpl(CacheTag.Url, url) };
+    CacheHandle handle = new TaggedCacheHandle(tags, 60000, 1000);
+    handle.addTag(CacheTag.Resource, "4bb19980-8f98-4873-a813-000000000001");
+    CacheEntry entry = new CacheEntry(handle, content.getBytes("utf-8"), "utf-8", new CacheableHttpServletResponseHeaders());
+    return new Element(new CacheEntryKey(handle), entry);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheSnapshot#write(List, String)} and
+   * {@link ch.entwine.weblounge.cache.impl.CacheSnapshot#read(String, CacheSnapshot.ElementHandler)}
+   * .
+   */
+  @Test
+  public void testWriteAndRead() throws Exception {
+    assertFalse(snapshot.exists());
+    assertEquals(2, snapshot.write(Arrays.asList(element, otherElement), deployment));
+    assertTrue(snapshot.exists());
+
+    final List<CacheEntryKey> keys = new ArrayList<CacheEntryKey>();
+    final List<String> contents = new ArrayList<String>();
+    int read = snapshot.read(deployment, new CacheSnapshot.ElementHandler() {
+      public boolean handle(CacheEntryKey key, CacheEntry entry) {
+        keys.add(key);
+        try {
+          contents.add(new String(entry.getContent(), entry.getEncoding()));
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+        return true;
+      }
+    });
+
+    assertEquals(2, read);
+    assertEquals(element.getObjectKey(), keys.get(0));
+    assertEquals(otherElement.getObjectKey(), keys.get(1));
+    assertEquals(2, keys.get(0).getTags().length);
+    assertEquals("Hello World!", contents.get(0));
+    assertEquals("Hello Weblounge!", contents.get(1));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheSnapshot#read(String, CacheSnapshot.ElementHandler)}
+   * with a handler that stops reading.
+   */
+  @Test
+  public void testReadStopped() throws Exception {
+    snapshot.write(Arrays.asList(element, otherElement), deployment);
+    int read = snapshot.read(deployment, new CacheSnapshot.ElementHandler() {
+      public boolean handle(CacheEntryKey key, CacheEntry entry) {
+        return false;
+      }
+    });
+    assertEquals(1, read);
+  }
+
+  /**
+   * Test that a snapshot taken by a different deployment is discarded rather
+   * than read.
+   */
+  @Test
+  public void testReadOtherDeployment() throws Exception {
+    snapshot.write(Arrays.asList(element, otherElement), deployment);
+    assertEquals(0, snapshot.read("site;1.1.0;0;3.2.0;0", new CacheSnapshot.ElementHandler() {
+      public boolean handle(CacheEntryKey key, CacheEntry entry) {
+        return true;
+      }
+    }));
+    assertFalse(snapshot.exists());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheSnapshot#discard()}.
+   */
+  @Test
+  public void testDiscard() throws Exception {
+    snapshot.write(Arrays.asList(element), deployment);
+    snapshot.discard();
+    assertFalse(snapshot.exists());
+    assertEquals(0, snapshot.read(deployment, new CacheSnapshot.ElementHandler() {
+      public boolean handle(CacheEntryKey key, CacheEntry entry) {
+        return true;
+      }
+    }));
+  }
+
+}
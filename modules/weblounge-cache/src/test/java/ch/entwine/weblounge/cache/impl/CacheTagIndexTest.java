@@ -0,0 +1,157 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.request.CacheTag;
+
+import net.sf.ehcache.Element;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+
+/**
+ * Test case for the implementation at {@link CacheTagIndex}.
+ */
+public class CacheTagIndexTest {
+
+  /** The index under test */
+  protected CacheTagIndex index = null;
+
+  /** Tag for url /a */
+  protected CacheTag urlA = new CacheTagImpl(CacheTag.Url, "/a");
+
+  /** Tag for url /ab */
+  protected CacheTag urlAB = new CacheTagImpl(CacheTag.Url, "/ab");
+
+  /** Language tag */
+  protected CacheTag language = new CacheTagImpl(CacheTag.Language, "de");
+
+  /** Resource tag */
+  protected CacheTag resource = new CacheTagImpl(CacheTag.Resource, "4bb19980-8f98-4873-a813-000000000001");
+
+  /** Key for /a */
+  protected CacheEntryKey keyA = null;
+
+  /** Key for /ab */
+  protected CacheEntryKey keyAB = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    index = new CacheTagIndex();
+
+    TaggedCacheHandle handleA = new TaggedCacheHandle(new CacheTag[] { urlA, language }, 1000, 1000);
+    handleA.addTag(resource);
+    keyA = new CacheEntryKey(handleA);
+
+    TaggedCacheHandle handleAB = new TaggedCacheHandle(new CacheTag[] { urlAB, language }, 1000, 1000);
+    keyAB = new CacheEntryKey(handleAB);
+
+    index.add(keyA);
+    index.add(keyAB);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheTagIndex#getKeys(CacheTag[], boolean)}
+   * .
+   */
+  @Test
+  public void testGetKeys() {
+    Collection<CacheEntryKey> keys = index.getKeys(new CacheTag[] { urlA }, false);
+    assertEquals(1, keys.size());
+    assertTrue(keys.contains(keyA));
+
+    keys = index.getKeys(new CacheTag[] { urlA, language }, false);
+    assertEquals(1, keys.size());
+
+    keys = index.getKeys(new CacheTag[] { language }, false);
+    assertEquals(2, keys.size());
+
+    keys = index.getKeys(new CacheTag[] { urlA, urlAB }, false);
+    assertEquals(0, keys.size());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheTagIndex#getKeys(CacheTag[], boolean)}
+   * with partial matches enabled.
+   */
+  @Test
+  public void testGetKeysPartial() {
+    Collection<CacheEntryKey> keys = index.getKeys(new CacheTag[] { urlA, urlAB }, true);
+    assertEquals(2, keys.size());
+
+    keys = index.getKeys(new CacheTag[] { resource, language }, true);
+    assertEquals(2, keys.size());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheTagIndex#getKeysForPrimaryTags(CacheTag[])}
+   * .
+   */
+  @Test
+  public void testGetKeysForPrimaryTags() {
+    assertEquals(2, index.getKeysForPrimaryTags(new CacheTag[] { language }).size());
+    assertEquals(1, index.getKeysForPrimaryTags(new CacheTag[] { urlAB }).size());
+    assertEquals(0, index.getKeysForPrimaryTags(new CacheTag[] { resource }).size());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.CacheTagIndex#remove(Object)}.
+   */
+  @Test
+  public void testRemove() {
+    index.remove(keyA.getKey());
+    assertEquals(1, index.size());
+    assertEquals(0, index.getKeys(new CacheTag[] { urlA }, true).size());
+    assertEquals(0, index.getKeys(new CacheTag[] { resource }, true).size());
+    assertEquals(1, index.getKeys(new CacheTag[] { language }, true).size());
+  }
+
+  /**
+   * Test method for the cache event callbacks of {@link CacheTagIndex}.
+   */
+  @Test
+  public void testCacheEvents() {
+    index.notifyElementEvicted(null, new Element(keyAB, null));
+    assertEquals(1, index.size());
+    index.notifyElementExpired(null, new Element(keyA, null));
+    assertEquals(0, index.size());
+    index.notifyElementPut(null, new Element(keyA, null));
+    assertEquals(1, index.getKeys(new CacheTag[] { resource }, false).size());
+    index.notifyRemoveAll(null);
+    assertEquals(0, index.size());
+    assertEquals(0, index.getKeys(new CacheTag[] { language }, true).size());
+  }
+
+}
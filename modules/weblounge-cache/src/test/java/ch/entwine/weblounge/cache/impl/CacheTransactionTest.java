@@ -178,4 +178,14 @@ public class CacheTransactionTest {
     assertTrue(transaction.isValid());
   }
 
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.CacheTransaction#await(long)}.
+   */
+  @Test
+  public void testAwait() throws Exception {
+    assertFalse(transaction.await(10));
+    transaction.finish();
+    assertTrue(transaction.await(10));
+  }
+
 }
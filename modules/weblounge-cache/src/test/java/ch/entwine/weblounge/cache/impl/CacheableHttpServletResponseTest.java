@@ -34,6 +34,7 @@ import ch.entwine.weblounge.common.request.CacheHandle;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -50,7 +51,10 @@ public class CacheableHttpServletResponseTest {
 
   /** The response under test */
   protected CacheableHttpServletResponse response = null;
-  
+
+  /** The wrapped response */
+  protected MockHttpServletResponse clientResponse = null;
+
   /** The current time */
   protected long time = System.currentTimeMillis();
 
@@ -68,7 +72,8 @@ public class CacheableHttpServletResponseTest {
    */
   @Before
   public void setUp() throws Exception {
-    response = new CacheableHttpServletResponse(new MockHttpServletResponse());
+    clientResponse = new MockHttpServletResponse();
+    response = new CacheableHttpServletResponse(clientResponse);
   }
 
   /**
@@ -141,6 +146,23 @@ public class CacheableHttpServletResponseTest {
     assertEquals(tx, txEnd);
   }
 
+  /**
+   * Test that the output of a response that is being cached reaches the client
+   * as it is flushed rather than only once the output is finished.
+   */
+  @Test
+  public void testTeeOutput() throws Exception {
+    CacheTransaction tx = response.startTransaction(handle, null);
+    PrintWriter writer = response.getWriter();
+    writer.print("Tee");
+    response.flushBuffer();
+    assertEquals("Tee", clientResponse.getContentAsString());
+    writer.print(" test");
+    response.endOutput();
+    assertEquals("Tee test", clientResponse.getContentAsString());
+    assertEquals("Tee test", tx.getOutputStream().getContent("utf-8"));
+  }
+
   /**
    * Test method for
    * {@link ch.entwine.weblounge.cache.impl.CacheableHttpServletResponse#invalidate()}
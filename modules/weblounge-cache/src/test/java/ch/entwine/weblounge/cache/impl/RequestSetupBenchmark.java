@@ -0,0 +1,210 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import ch.entwine.weblounge.cache.impl.handle.TaggedCacheHandle;
+import ch.entwine.weblounge.common.impl.language.LanguageImpl;
+import ch.entwine.weblounge.common.impl.request.CacheTagSet;
+import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
+import ch.entwine.weblounge.common.impl.util.HttpDateFormat;
+import ch.entwine.weblounge.common.language.Language;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.site.Environment;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmark for the work that is done to set up a request for a page that is
+ * then served from the response cache: wrapping the servlet request, resolving
+ * url and language, setting the date header and creating the cache key from
+ * the primary cache tags.
+ * <p>
+ * The time and, if supported by the virtual machine, the number of bytes
+ * allocated per request are logged.
+ * <p>
+ * Benchmarks are not part of the regular test run and need to be run
+ * explicitly, e.g. using <code>mvn test -Dtest=RequestSetupBenchmark</code>.
+ */
+public class RequestSetupBenchmark {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(RequestSetupBenchmark.class);
+
+  /** Number of requests per run */
+  private static final int REQUESTS = 10000;
+
+  /** Number of runs before measuring */
+  private static final int WARMUP_RUNS = 5;
+
+  /** Number of measured runs */
+  private static final int MEASURED_RUNS = 10;
+
+  /** The requested path */
+  private static final String PATH = "/a/page/";
+
+  /** The site */
+  private static SiteImpl site = null;
+
+  /** The site's languages */
+  private static Language english = new LanguageImpl(new Locale("en"));
+
+  /** German */
+  private static Language german = new LanguageImpl(new Locale("de"));
+
+  /** The cached responses by cache key */
+  private static Map<String, String> cache = new HashMap<String, String>();
+
+  /**
+   * Creates the site and puts the page into the cache.
+   */
+  @BeforeClass
+  public static void setUpClass() {
+    site = new SiteImpl();
+    site.setIdentifier("benchmark");
+    site.addLanguage(english);
+    site.addLanguage(german);
+    site.setDefaultLanguage(english);
+    String key = setUp(createRequest()).getKey();
+    cache.put(key, "<html/>");
+  }
+
+  /**
+   * Measures the setup of cache-hit page requests.
+   */
+  @Test
+  public void testRequestSetup() throws Exception {
+    for (int i = 0; i < WARMUP_RUNS; i++)
+      run(createRequests());
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    boolean allocations = getAllocatedBytes(threads) >= 0;
+    long nanos = 0;
+    long bytes = 0;
+    for (int i = 0; i < MEASURED_RUNS; i++) {
+      MockHttpServletRequest[] requests = createRequests();
+      long allocated = getAllocatedBytes(threads);
+      long start = System.nanoTime();
+      run(requests);
+      nanos += System.nanoTime() - start;
+      bytes += getAllocatedBytes(threads) - allocated;
+    }
+
+    long requests = (long) REQUESTS * MEASURED_RUNS;
+    logger.info("Request setup: {} ns per request, {} bytes allocated per request", new Object[] {
+        String.format("%.1f", nanos / (double) requests),
+        allocations ? Long.toString(bytes / requests) : "n/a" });
+  }
+
+  /**
+   * Sets up the requests and looks up their responses in the cache.
+   * 
+   * @param requests
+   *          the requests
+   */
+  private void run(MockHttpServletRequest[] requests) {
+    for (MockHttpServletRequest request : requests) {
+      TaggedCacheHandle handle = setUp(request);
+      assertNotNull(cache.get(handle.getKey()));
+    }
+  }
+
+  /**
+   * Does what the dispatcher and the page request handler do until the
+   * response is found in the cache.
+   * 
+   * @param request
+   *          the servlet request
+   * @return the cache handle
+   */
+  private static TaggedCacheHandle setUp(MockHttpServletRequest request) {
+    WebloungeRequestImpl webloungeRequest = new WebloungeRequestImpl(request, Environment.Production);
+    webloungeRequest.init(site);
+    assertNotNull(HttpDateFormat.format(System.currentTimeMillis()));
+    assertEquals(german, webloungeRequest.getLanguage());
+
+    CacheTagSet cacheTags = new CacheTagSet();
+    cacheTags.add(CacheTag.Url, webloungeRequest.getUrl().getPath());
+    cacheTags.add(CacheTag.Url, webloungeRequest.getRequestedUrl().getPath());
+    cacheTags.add(CacheTag.Language, webloungeRequest.getLanguage().getIdentifier());
+    cacheTags.add(CacheTag.Parameters, "0");
+    return new TaggedCacheHandle(cacheTags.getTags(), 0, 0);
+  }
+
+  /**
+   * Creates the servlet requests for one run.
+   * 
+   * @return the requests
+   */
+  private static MockHttpServletRequest[] createRequests() {
+    MockHttpServletRequest[] requests = new MockHttpServletRequest[REQUESTS];
+    for (int i = 0; i < requests.length; i++)
+      requests[i] = createRequest();
+    return requests;
+  }
+
+  /**
+   * Creates a servlet request for the page as sent by a browser with german
+   * language preferences.
+   * 
+   * @return the request
+   */
+  private static MockHttpServletRequest createRequest() {
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", PATH);
+    request.setServerName("www.example.com");
+    request.addHeader("Accept-Language", "de-CH,de;q=0.8,en;q=0.6");
+    request.addPreferredLocale(Locale.GERMAN);
+    request.addPreferredLocale(new Locale("de", "CH"));
+    return request;
+  }
+
+  /**
+   * Returns the number of bytes that have been allocated by the current
+   * thread or <code>-1</code> if the virtual machine does not support
+   * measuring it.
+   * 
+   * @param threads
+   *          the thread management bean
+   * @return the number of allocated bytes
+   */
+  private static long getAllocatedBytes(ThreadMXBean threads) {
+    if (!(threads instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+    if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+      return -1;
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import ch.entwine.weblounge.cache.StreamFilter;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * Test case for the stream filters in
+ * <code>ch.entwine.weblounge.cache.impl.filter</code> and for
+ * {@link FilterChain} in particular.
+ */
+public class FilterChainTest {
+
+  /** The html input */
+  protected String html = "<p>  Hello <<!-- a comment --->  World\r\n\t<!- no comment -->\u00e4 & <!-- open";
+
+  /** Content type */
+  protected String contentType = "text/html";
+
+  /**
+   * Passes <code>input</code> through <code>filter</code> in chunks of
+   * <code>chunkSize</code> characters.
+   *
+   * @param filter
+   *          the filter
+   * @param input
+   *          the input
+   * @param chunkSize
+   *          the chunk size
+   * @return the filtered output
+   */
+  static String filter(StreamFilter filter, String input, int chunkSize)
+      throws Exception {
+    StringWriter out = new StringWriter();
+    FilterWriter writer = new FilterWriter(out, filter, "text/html");
+    char[] chars = input.toCharArray();
+    for (int i = 0; i < chars.length; i += chunkSize)
+      writer.write(chars, i, Math.min(chunkSize, chars.length - i));
+    writer.close();
+    return out.toString();
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.filter.CommentRemover}.
+   */
+  @Test
+  public void testCommentRemover() throws Exception {
+    String expected = "<p>  Hello <  World\r\n\t<!- no comment -->\u00e4 & <!-- open";
+    for (int chunkSize = 1; chunkSize <= html.length(); chunkSize++)
+      assertEquals(expected, filter(new CommentRemover(), html, chunkSize));
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.filter.WhitespaceRemover}.
+   */
+  @Test
+  public void testWhitespaceRemover() throws Exception {
+    String expected = "<p> Hello <<!-- a comment ---> World <!- no comment -->\u00e4 & <!-- open";
+    for (int chunkSize = 1; chunkSize <= html.length(); chunkSize++)
+      assertEquals(expected, filter(new WhitespaceRemover(), html, chunkSize));
+  }
+
+  /**
+   * Test method for {@link ch.entwine.weblounge.cache.impl.filter.SpecialChars}.
+   */
+  @Test
+  public void testSpecialChars() throws Exception {
+    String input = "\u00e4 & \u20ac";
+    assertEquals("&auml; &amp; &euro;", filter(new SpecialChars(), input, 2));
+    StringWriter out = new StringWriter();
+    new SpecialChars().filter(input.toCharArray(), 0, input.length(), "text/plain", out);
+    assertEquals(input, out.toString());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.filter.FilterChain#filter(char[], int, int, String, java.io.Writer)}
+   * .
+   */
+  @Test
+  public void testFilter() throws Exception {
+    StreamFilter[] filters = new StreamFilter[] {
+        new CommentRemover(),
+        new WhitespaceRemover(),
+        new SpecialChars() };
+    String expected = "&lt;p&gt; Hello &lt; World &lt;!- no comment --&gt;&auml; &amp; &lt;!-- open";
+    for (int chunkSize = 1; chunkSize <= html.length(); chunkSize++)
+      assertEquals(expected, filter(new FilterChain(filters), html, chunkSize));
+  }
+
+  /**
+   * Test that the output of the chain does not depend on how the input is
+   * chunked by a buffered writer in front of the filter.
+   */
+  @Test
+  public void testBufferedFilter() throws Exception {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 50; i++)
+      input.append(html).append("\n");
+    String expected = filter(createChain(), input.toString(), 97);
+    for (int bufferSize = 1; bufferSize <= 64; bufferSize++) {
+      StringWriter out = new StringWriter();
+      Writer writer = new BufferedWriter(new FilterWriter(out, createChain(), contentType), bufferSize);
+      writer.write(input.toString());
+      writer.close();
+      assertEquals(expected, out.toString());
+    }
+  }
+
+  /**
+   * Returns a chain of the comment remover, the whitespace remover and the
+   * special characters filter.
+   *
+   * @return the filter chain
+   */
+  private FilterChain createChain() {
+    return new FilterChain(new StreamFilter[] {
+        new CommentRemover(),
+        new WhitespaceRemover(),
+        new SpecialChars() });
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.cache.impl.filter.FilterChain#flush(java.io.Writer)}
+   * .
+   */
+  @Test
+  public void testFlush() throws Exception {
+    FilterChain chain = new FilterChain(new StreamFilter[] {
+        new CommentRemover(),
+        new SpecialChars() });
+    StringWriter out = new StringWriter();
+    String input = "a <!";
+    chain.filter(input.toCharArray(), 0, input.length(), contentType, out);
+    assertEquals("a ", out.toString());
+    chain.flush(out);
+    assertEquals("a &lt;!", out.toString());
+  }
+
+  /**
+   * Test method for an empty {@link ch.entwine.weblounge.cache.impl.filter.FilterChain}.
+   */
+  @Test
+  public void testEmptyChain() throws Exception {
+    assertEquals(html, filter(new FilterChain(new StreamFilter[] {}), html, 7));
+    assertEquals(html, filter(new NullFilter(), html, 7));
+  }
+
+}
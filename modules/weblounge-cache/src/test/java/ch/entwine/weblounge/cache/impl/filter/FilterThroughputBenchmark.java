@@ -0,0 +1,220 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.cache.impl.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.StreamFilter;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+
+/**
+ * Benchmark for the stream filters, which measures their throughput in
+ * megabytes of html per second. The numbers are logged.
+ * <p>
+ * Benchmarks are not part of the regular test run and need to be run
+ * explicitly, e.g. using <code>mvn test -Dtest=FilterThroughputBenchmark</code>.
+ */
+public class FilterThroughputBenchmark {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(FilterThroughputBenchmark.class);
+
+  /** Size of the html document in characters */
+  private static final int DOCUMENT_SIZE = 1024 * 1024;
+
+  /** Number of runs before measuring */
+  private static final int WARMUP_RUNS = 5;
+
+  /** Number of measured runs */
+  private static final int MEASURED_RUNS = 10;
+
+  /** Size of the chunks that are handed to the filters by the writer */
+  private static final int CHUNK_SIZE = 8192;
+
+  /** The html document */
+  private static char[] document = null;
+
+  /**
+   * Creates a text-heavy html document of roughly one megabyte.
+   */
+  @BeforeClass
+  public static void setUpClass() {
+    StringBuilder html = new StringBuilder(DOCUMENT_SIZE + 1024);
+    html.append("<!DOCTYPE html>\n<html>\n  <head>\n    <title>Benchmark</title>\n  </head>\n  <body>\n");
+    for (int i = 0; html.length() < DOCUMENT_SIZE; i++) {
+      html.append("    <!-- paragraph ").append(i).append(" -->\n");
+      html.append("    <div class=\"text\">\n");
+      html.append("      <p>Lorem ipsum dolor sit amet, consectetur adipiscing elit &amp; sed do\n");
+      html.append("        eiusmod tempor incididunt ut labore et dolore magna aliqua. \u00dcber\n");
+      html.append("        alles in der Welt,   avec des caract\u00e8res sp\u00e9ciaux \u00e0 volont\u00e9.</p>\n");
+      html.append("    </div>\n");
+    }
+    html.append("  </body>\n</html>\n");
+    document = html.toString().toCharArray();
+  }
+
+  /**
+   * Measures the {@link WhitespaceRemover}.
+   */
+  @Test
+  public void testWhitespaceRemover() throws Exception {
+    measure("WhitespaceRemover", new WhitespaceRemover());
+  }
+
+  /**
+   * Measures the {@link CommentRemover}.
+   */
+  @Test
+  public void testCommentRemover() throws Exception {
+    measure("CommentRemover", new CommentRemover());
+  }
+
+  /**
+   * Measures the {@link SpecialChars} filter.
+   */
+  @Test
+  public void testSpecialChars() throws Exception {
+    measure("SpecialChars", new SpecialChars());
+  }
+
+  /**
+   * Measures a {@link FilterChain} of all of the above.
+   */
+  @Test
+  public void testFilterChain() throws Exception {
+    measure("FilterChain", new FilterChain(new StreamFilter[] {
+        new CommentRemover(),
+        new WhitespaceRemover(),
+        new SpecialChars() }));
+  }
+
+  /**
+   * Passes the document through the filter repeatedly and logs the
+   * throughput.
+   *
+   * @param name
+   *          name of the filter
+   * @param filter
+   *          the filter
+   */
+  private void measure(String name, StreamFilter filter) throws Exception {
+    CountingWriter reference = new CountingWriter();
+    run(filter, reference, 97, false);
+    assertTrue(reference.count > 0);
+
+    for (int i = 0; i < WARMUP_RUNS; i++)
+      run(filter, new CountingWriter(), CHUNK_SIZE, true);
+
+    long characters = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < MEASURED_RUNS; i++) {
+      CountingWriter out = new CountingWriter();
+      run(filter, out, CHUNK_SIZE, true);
+      assertEquals(reference.count, out.count);
+      assertEquals(reference.hash, out.hash);
+      characters += document.length;
+    }
+    long nanos = Math.max(1, System.nanoTime() - start);
+
+    double megabytes = characters / (1024d * 1024d);
+    double seconds = nanos / 1000000000d;
+    logger.info("{}: {} MB/s ({} ms per MB of html)", new Object[] {
+        name,
+        String.format("%.1f", megabytes / seconds),
+        String.format("%.2f", seconds * 1000d / megabytes) });
+  }
+
+  /**
+   * Writes the document to a {@link FilterWriter}, optionally wrapped in a
+   * buffered writer the way it is set up by the cacheable response.
+   *
+   * @param filter
+   *          the filter
+   * @param out
+   *          the sink
+   * @param writeSize
+   *          number of characters per write operation
+   * @param buffered
+   *          <code>true</code> to buffer the output
+   */
+  private void run(StreamFilter filter, Writer out, int writeSize,
+      boolean buffered) throws Exception {
+    Writer writer = new FilterWriter(out, filter, "text/html");
+    if (buffered)
+      writer = new BufferedWriter(writer, CHUNK_SIZE);
+    for (int i = 0; i < document.length; i += writeSize)
+      writer.write(document, i, Math.min(writeSize, document.length - i));
+    writer.close();
+  }
+
+  /**
+   * Writer that only keeps track of the number of characters and a hash of
+   * the content.
+   */
+  private static final class CountingWriter extends Writer {
+
+    /** The number of characters */
+    long count = 0;
+
+    /** The hash of the characters */
+    int hash = 0;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.Writer#write(char[], int, int)
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      for (int i = off; i < off + len; i++)
+        hash = 31 * hash + cbuf[i];
+      count += len;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.Writer#flush()
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.io.Writer#close()
+     */
+    @Override
+    public void close() {
+    }
+
+  }
+
+}
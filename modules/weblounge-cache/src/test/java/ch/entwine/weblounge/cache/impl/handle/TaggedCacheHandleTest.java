@@ -20,6 +20,8 @@
 
 package ch.entwine.weblounge.cache.impl.handle;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -91,4 +93,16 @@ public class TaggedCacheHandleTest {
     }
   }
 
+  /**
+   * Test that the key does not depend on the order of the primary tags but on
+   * their values.
+   */
+  @Test
+  public void testCreateKeyOrder() {
+    CacheTag[] reversedTags = { otherTag, tag };
+    assertEquals(handle.getKey(), new TaggedCacheHandle(reversedTags, 0, 0).getKey());
+    CacheTag[] otherTags = { tag, new CacheTagImpl("b", "other-value") };
+    assertFalse(handle.getKey().equals(new TaggedCacheHandle(otherTags, 0, 0).getKey()));
+  }
+
 }
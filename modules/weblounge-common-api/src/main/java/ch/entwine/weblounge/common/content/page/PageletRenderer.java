@@ -34,6 +34,15 @@ import java.net.URL;
  */
 public interface PageletRenderer extends Renderer {
 
+  /** Vary dimension for fragments that depend on the current user */
+  String VARY_USER = "user";
+
+  /** Prefix of vary dimensions for fragments that depend on a parameter */
+  String VARY_PARAMETER = "parameter:";
+
+  /** Prefix of vary dimensions for fragments that depend on a header */
+  String VARY_HEADER = "header:";
+
   /**
    * Sets the module that defined this renderer.
    * 
@@ -81,6 +90,47 @@ public interface PageletRenderer extends Renderer {
    */
   URL getEditor();
 
+  /**
+   * Enables caching of the rendered output as a fragment that is reused
+   * across pages and requests until it expires or is invalidated.
+   * <p>
+   * Fragments are identified by the pagelet's location, the renderer and the
+   * language. Renderers whose output depends on anything else need to declare
+   * so using {@link #addVaryDimension(String)}.
+   * 
+   * @param cacheable
+   *          <code>true</code> to cache the rendered output
+   */
+  void setFragmentCacheable(boolean cacheable);
+
+  /**
+   * Returns <code>true</code> if the rendered output may be cached as a
+   * fragment.
+   * 
+   * @return <code>true</code> if the output is cacheable
+   */
+  boolean isFragmentCacheable();
+
+  /**
+   * Adds a dimension that the rendered output depends on, which is either
+   * {@link #VARY_USER} or the name of a request parameter or header prefixed
+   * with {@link #VARY_PARAMETER} or {@link #VARY_HEADER}, respectively.
+   * 
+   * @param dimension
+   *          the vary dimension
+   * @throws IllegalArgumentException
+   *           if the dimension is not supported
+   */
+  void addVaryDimension(String dimension) throws IllegalArgumentException;
+
+  /**
+   * Returns the dimensions that the rendered output depends on in addition to
+   * the pagelet, renderer and language.
+   * 
+   * @return the vary dimensions
+   */
+  String[] getVaryDimensions();
+
   /**
    * Performs the actual rendering by showing the editor.
    * 
@@ -35,6 +35,7 @@ public interface CacheTag extends Tag {
   String Url = "url";
   String Language = "language";
   String User = "user";
+  String Roles = "roles";
   String Module = "module";
   String Action = "action";
   String Site = "site"; // TODO: Remove, cache is per site anyway
@@ -134,6 +134,44 @@ public interface ResponseCache {
    */
   void invalidate(WebloungeResponse response);
 
+  /**
+   * Returns the cached content of the response fragment identified by
+   * <code>uniqueTags</code> or <code>null</code> if the fragment is not in the
+   * cache or has expired.
+   * <p>
+   * If the fragment is found, its tags, expiration and revalidation times are
+   * added to <code>response</code>.
+   * 
+   * @param uniqueTags
+   *          the tags identifying the fragment
+   * @param response
+   *          the enclosing response
+   * @return the fragment content or <code>null</code>
+   */
+  String getFragment(CacheTag[] uniqueTags, WebloungeResponse response);
+
+  /**
+   * Puts the rendered content of the response fragment identified by
+   * <code>uniqueTags</code> into the cache.
+   * <p>
+   * Fragments are invalidated like any other cache entry, i. e. by calling
+   * {@link #invalidate(CacheTag[], boolean)} with a tag that is contained in
+   * either <code>uniqueTags</code> or <code>tags</code>.
+   * 
+   * @param uniqueTags
+   *          the tags identifying the fragment
+   * @param tags
+   *          additional tags that the fragment depends on
+   * @param content
+   *          the rendered content
+   * @param validTime
+   *          the valid time in milliseconds
+   * @param recheckTime
+   *          the recheck time in milliseconds
+   */
+  void putFragment(CacheTag[] uniqueTags, CacheTag[] tags, String content,
+      long validTime, long recheckTime);
+
   /**
    * Tells the cache of the given site to throw away the data identified by the
    * given set of tags.
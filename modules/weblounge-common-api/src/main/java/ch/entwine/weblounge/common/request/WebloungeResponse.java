@@ -76,6 +76,40 @@ public interface WebloungeResponse extends HttpServletResponse, Taggable<CacheTa
    */
   void endResponse() throws IllegalStateException;
 
+  /**
+   * Returns the cached content of the response fragment identified by
+   * <code>uniqueTags</code> or <code>null</code> if the fragment is not in the
+   * cache.
+   * <p>
+   * If the fragment is found, the tags as well as the expiration and
+   * revalidation times that were recorded with the fragment are added to this
+   * response, so that the enclosing response is invalidated together with the
+   * fragment.
+   * 
+   * @param uniqueTags
+   *          the tags identifying the fragment
+   * @return the fragment content or <code>null</code>
+   */
+  String getFragment(CacheTag[] uniqueTags);
+
+  /**
+   * Puts the rendered content of the response fragment identified by
+   * <code>uniqueTags</code> into the cache.
+   * 
+   * @param uniqueTags
+   *          the tags identifying the fragment
+   * @param tags
+   *          additional tags that the fragment depends on
+   * @param content
+   *          the rendered content
+   * @param validTime
+   *          the valid time in milliseconds
+   * @param recheckTime
+   *          the recheck time in milliseconds
+   */
+  void putFragment(CacheTag[] uniqueTags, CacheTag[] tags, String content,
+      long validTime, long recheckTime);
+
   /**
    * Sets the recheck time on the current response or response part.
    * <p>
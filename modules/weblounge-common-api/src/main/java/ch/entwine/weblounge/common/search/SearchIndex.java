@@ -8,6 +8,7 @@ import ch.entwine.weblounge.common.repository.ContentRepositoryException;
 import ch.entwine.weblounge.common.site.Site;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 public interface SearchIndex {
@@ -56,6 +57,37 @@ public interface SearchIndex {
    */
   boolean update(Resource<?> resource) throws ContentRepositoryException;
 
+  /**
+   * Posts the resources to the search index in bulk, replacing resources that
+   * are already part of the index. All versions of a resource need to be
+   * passed along in the same call, since the information on alternate versions
+   * is taken from the resources rather than from the index.
+   * <p>
+   * Resources that cannot be turned into an index document are logged and
+   * skipped, while the other resources are posted. The resources are not
+   * guaranteed to be searchable until {@link #refresh(Site)} has been called
+   * for their site.
+   * 
+   * @param resources
+   *          the resources to add to the index
+   * @return the resources that have been posted
+   * @throws ContentRepositoryException
+   *           if posting the resources fails
+   */
+  List<Resource<?>> addAll(Collection<? extends Resource<?>> resources)
+      throws ContentRepositoryException;
+
+  /**
+   * Makes all changes to the site's search index that have been posted so far
+   * searchable.
+   * 
+   * @param site
+   *          the site
+   * @throws ContentRepositoryException
+   *           if refreshing the index fails
+   */
+  void refresh(Site site) throws ContentRepositoryException;
+
   /**
    * Move the resource identified by <code>uri</code> to the new location.
    * 
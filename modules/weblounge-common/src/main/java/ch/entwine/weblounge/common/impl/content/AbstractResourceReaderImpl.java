@@ -22,11 +22,11 @@ package ch.entwine.weblounge.common.impl.content;
 
 import ch.entwine.weblounge.common.content.Resource;
 import ch.entwine.weblounge.common.content.ResourceContent;
-import ch.entwine.weblounge.common.content.ResourceReader;
 import ch.entwine.weblounge.common.content.ResourceUtils;
 import ch.entwine.weblounge.common.impl.language.LanguageUtils;
 import ch.entwine.weblounge.common.impl.security.AllowAccessRule;
 import ch.entwine.weblounge.common.impl.security.DenyAccessRule;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.security.Action;
 import ch.entwine.weblounge.common.security.Authority;
@@ -53,7 +53,7 @@ import javax.xml.parsers.SAXParserFactory;
 /**
  * Utility class used to parse page data.
  */
-public abstract class AbstractResourceReaderImpl<S extends ResourceContent, T extends Resource<S>> extends WebloungeContentReader implements ResourceReader<S, T> {
+public abstract class AbstractResourceReaderImpl<S extends ResourceContent, T extends Resource<S>> extends WebloungeContentReader implements ReplayableResourceReader<S, T> {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(AbstractResourceReaderImpl.class);
@@ -129,6 +129,21 @@ public abstract class AbstractResourceReaderImpl<S extends ResourceContent, T ex
     return resource;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.impl.content.ReplayableResourceReader#read(ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer,
+   *      ch.entwine.weblounge.common.site.Site)
+   */
+  public T read(SAXEventBuffer events, Site site) throws SAXException {
+    reset();
+    resource = createResource(site);
+    readHeader = true;
+    readBody = true;
+    events.replay(this);
+    return resource;
+  }
+
   /**
    * Creates an empty instance of the resource to read.
    * 
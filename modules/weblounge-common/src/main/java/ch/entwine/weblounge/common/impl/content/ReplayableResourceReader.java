@@ -0,0 +1,52 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.content;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.ResourceContent;
+import ch.entwine.weblounge.common.content.ResourceReader;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
+import ch.entwine.weblounge.common.site.Site;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A <code>ReplayableResourceReader</code> is a {@link ResourceReader} that is
+ * also able to create resources from previously recorded parser events rather
+ * than from the serialized xml, which saves the cost of parsing the xml again
+ * when the same resource is needed over and over.
+ */
+public interface ReplayableResourceReader<C extends ResourceContent, R extends Resource<C>> extends ResourceReader<C, R> {
+
+  /**
+   * Creates a new resource from the recorded parser events.
+   * 
+   * @param events
+   *          the events recorded while parsing the resource's xml
+   * @param site
+   *          the resource's site
+   * @return the resource
+   * @throws SAXException
+   *           if processing the events fails
+   */
+  R read(SAXEventBuffer events, Site site) throws SAXException;
+
+}
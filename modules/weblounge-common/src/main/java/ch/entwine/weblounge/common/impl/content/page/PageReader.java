@@ -21,14 +21,15 @@
 package ch.entwine.weblounge.common.impl.content.page;
 
 import ch.entwine.weblounge.common.content.ResourceContent;
-import ch.entwine.weblounge.common.content.ResourceReader;
 import ch.entwine.weblounge.common.content.ResourceUtils;
 import ch.entwine.weblounge.common.content.page.Page;
 import ch.entwine.weblounge.common.content.page.PageletURI;
+import ch.entwine.weblounge.common.impl.content.ReplayableResourceReader;
 import ch.entwine.weblounge.common.impl.content.WebloungeContentReader;
 import ch.entwine.weblounge.common.impl.language.LanguageUtils;
 import ch.entwine.weblounge.common.impl.security.AllowAccessRule;
 import ch.entwine.weblounge.common.impl.security.DenyAccessRule;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.security.Action;
 import ch.entwine.weblounge.common.security.Authority;
@@ -55,7 +56,7 @@ import javax.xml.parsers.SAXParserFactory;
 /**
  * Utility class used to parse page data.
  */
-public class PageReader extends WebloungeContentReader implements ResourceReader<ResourceContent, Page> {
+public class PageReader extends WebloungeContentReader implements ReplayableResourceReader<ResourceContent, Page> {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(PageReader.class);
@@ -131,6 +132,21 @@ public class PageReader extends WebloungeContentReader implements ResourceReader
     return page;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.impl.content.ReplayableResourceReader#read(ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer,
+   *      ch.entwine.weblounge.common.site.Site)
+   */
+  public PageImpl read(SAXEventBuffer events, Site site) throws SAXException {
+    reset();
+    page = new PageImpl(new PageURIImpl(site, "/"));
+    readHeader = true;
+    readBody = true;
+    events.replay(this);
+    return page;
+  }
+
   /**
    * This method is called when a <code>Page</code> object is instantiated.
    * 
@@ -46,6 +46,8 @@ import org.w3c.dom.NodeList;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.xpath.XPath;
@@ -72,6 +74,12 @@ public class PageletRendererImpl extends AbstractRenderer implements PageletRend
   /** The preview mode */
   protected PagePreviewMode previewMode = PagePreviewMode.None;
 
+  /** True if the rendered output may be cached as a fragment */
+  protected boolean fragmentCacheable = false;
+
+  /** The dimensions that the rendered output depends on */
+  protected List<String> varyDimensions = new ArrayList<String>();
+
   /**
    * Creates a new page template.
    */
@@ -286,6 +294,51 @@ public class PageletRendererImpl extends AbstractRenderer implements PageletRend
     return editor;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.page.PageletRenderer#setFragmentCacheable(boolean)
+   */
+  public void setFragmentCacheable(boolean cacheable) {
+    this.fragmentCacheable = cacheable;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.page.PageletRenderer#isFragmentCacheable()
+   */
+  public boolean isFragmentCacheable() {
+    return fragmentCacheable;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.page.PageletRenderer#addVaryDimension(java.lang.String)
+   */
+  public void addVaryDimension(String dimension)
+      throws IllegalArgumentException {
+    if (dimension == null)
+      throw new IllegalArgumentException("Vary dimension must not be null");
+    dimension = dimension.trim();
+    boolean isParameter = dimension.startsWith(VARY_PARAMETER) && dimension.length() > VARY_PARAMETER.length();
+    boolean isHeader = dimension.startsWith(VARY_HEADER) && dimension.length() > VARY_HEADER.length();
+    if (!VARY_USER.equals(dimension) && !isParameter && !isHeader)
+      throw new IllegalArgumentException("Vary dimension '" + dimension + "' is not supported");
+    if (!varyDimensions.contains(dimension))
+      varyDimensions.add(dimension);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.page.PageletRenderer#getVaryDimensions()
+   */
+  public String[] getVaryDimensions() {
+    return varyDimensions.toArray(new String[varyDimensions.size()]);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -435,6 +488,20 @@ public class PageletRendererImpl extends AbstractRenderer implements PageletRend
     if (previewMode != null)
       renderer.setPreviewMode(PagePreviewMode.parse(previewMode));
 
+    // Fragment caching
+    if (XPathHelper.select(node, "m:fragment", xpath) != null) {
+      renderer.setFragmentCacheable(true);
+      NodeList varyNodes = XPathHelper.selectList(node, "m:fragment/m:vary", xpath);
+      for (int i = 0; i < varyNodes.getLength(); i++) {
+        String dimension = varyNodes.item(i).getTextContent();
+        try {
+          renderer.addVaryDimension(dimension);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalStateException("The pagelet renderer vary dimension is malformed: '" + dimension + "'", e);
+        }
+      }
+    }
+
     // Editor url
     String editorUrlNode = XPathHelper.valueOf(node, "m:editor", xpath);
     try {
@@ -546,6 +613,15 @@ public class PageletRendererImpl extends AbstractRenderer implements PageletRend
       buf.append("</preview>");
     }
 
+    // Fragment caching
+    if (fragmentCacheable) {
+      buf.append("<fragment>");
+      for (String dimension : varyDimensions) {
+        buf.append("<vary>").append(dimension).append("</vary>");
+      }
+      buf.append("</fragment>");
+    }
+
     // Includes
     if (getHTMLHeaders().length > 0) {
       buf.append("<includes>");
@@ -33,12 +33,16 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,6 +65,15 @@ public final class LanguageUtils {
   /** Globally available languages */
   private static final Map<String, Language> systemLanguages = new HashMap<String, Language>();
 
+  /** Maximum number of Accept-Language headers that are memoized per site */
+  static final int ACCEPTED_LANGUAGES_CACHE_SIZE = 256;
+
+  /** Marker for Accept-Language headers that match none of a site's languages */
+  private static final Object NO_LANGUAGE = new Object();
+
+  /** Memoized Accept-Language headers by site identifier */
+  private static final ConcurrentMap<String, AcceptedLanguages> acceptedLanguages = new ConcurrentHashMap<String, AcceptedLanguages>();
+
   /**
    * This class is not meant to be instantiated.
    */
@@ -564,21 +577,86 @@ public final class LanguageUtils {
 
     // Accept-Language header
     if (request.getHeader("Accept-Language") != null) {
-      Enumeration<?> locales = request.getLocales();
-      while (locales.hasMoreElements()) {
-        try {
-          Language l = getLanguage((Locale) locales.nextElement());
-          if (site.supportsLanguage(l))
-            return l;
-        } catch (UnknownLanguageException e) {
-          // never mind, some clients will send stuff like "*" as the locale
-        }
-      }
+      Language l = getAcceptedLanguage(request, site);
+      if (l != null)
+        return l;
     }
 
     return site.getDefaultLanguage();
   }
 
+  /**
+   * Returns the first of the languages that are accepted by the client as
+   * found in the request's <code>Accept-Language</code> header that is also
+   * supported by the site or <code>null</code> if the site supports none of
+   * them.
+   * <p>
+   * Since browsers tend to send the same few headers over and over again, the
+   * result is memoized per site and header value. The memoized results are
+   * discarded as soon as the site's languages change.
+   * 
+   * @param request
+   *          the http request
+   * @param site
+   *          the site
+   * @return the accepted language or <code>null</code>
+   */
+  public static Language getAcceptedLanguage(HttpServletRequest request,
+      Site site) {
+    String header = request.getHeader("Accept-Language");
+    if (header == null)
+      return getAcceptedLanguage(request.getLocales(), site);
+
+    // Make sure the memoized languages were collected for the site's
+    // current set of languages
+    Language[] siteLanguages = site.getLanguages();
+    AcceptedLanguages languages = acceptedLanguages.get(site.getIdentifier());
+    if (languages == null || !languages.isValid(siteLanguages)) {
+      languages = new AcceptedLanguages(siteLanguages);
+      acceptedLanguages.put(site.getIdentifier(), languages);
+    }
+
+    Object cached = languages.languages.get(header);
+    if (cached == NO_LANGUAGE)
+      return null;
+    else if (cached != null)
+      return (Language) cached;
+
+    // Once the cache is full, it is discarded and populated again
+    Language language = getAcceptedLanguage(request.getLocales(), site);
+    if (languages.languages.size() >= ACCEPTED_LANGUAGES_CACHE_SIZE)
+      languages.languages.clear();
+    languages.languages.put(header, language != null ? language : NO_LANGUAGE);
+    return language;
+  }
+
+  /**
+   * Returns the first of the <code>locales</code> that is supported by the
+   * site or <code>null</code> if the site supports none of them.
+   * 
+   * @param locales
+   *          the locales
+   * @param site
+   *          the site
+   * @return the first supported language or <code>null</code>
+   */
+  private static Language getAcceptedLanguage(Enumeration<?> locales, Site site) {
+    while (locales.hasMoreElements()) {
+      Locale locale = (Locale) locales.nextElement();
+      Language l = site.getLanguage(locale.getLanguage());
+      if (l != null)
+        return l;
+      try {
+        l = getLanguage(locale);
+        if (site.supportsLanguage(l))
+          return l;
+      } catch (UnknownLanguageException e) {
+        // never mind, some clients will send stuff like "*" as the locale
+      }
+    }
+    return null;
+  }
+
   /**
    * Returns the first language out of <code>choices</code> that is supported by
    * the <code>localizable</code>. If there is no such language,
@@ -631,4 +709,46 @@ public final class LanguageUtils {
     return null;
   }
 
-}
\ No newline at end of file
+  /**
+   * The Accept-Language headers that have been resolved for a site.
+   */
+  private static final class AcceptedLanguages {
+
+    /** The site's languages at the time the headers were resolved */
+    private final Set<Language> siteLanguages;
+
+    /** The languages or {@link LanguageUtils#NO_LANGUAGE} by header value */
+    private final ConcurrentMap<String, Object> languages = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Creates an empty set of resolved headers for a site supporting the given
+     * languages.
+     * 
+     * @param siteLanguages
+     *          the site's languages
+     */
+    AcceptedLanguages(Language[] siteLanguages) {
+      this.siteLanguages = new HashSet<Language>(Arrays.asList(siteLanguages));
+    }
+
+    /**
+     * Returns <code>true</code> if the headers have been resolved for the given
+     * set of site languages.
+     * 
+     * @param siteLanguages
+     *          the site's current languages
+     * @return <code>true</code> if the resolved headers are still valid
+     */
+    boolean isValid(Language[] siteLanguages) {
+      if (siteLanguages.length != this.siteLanguages.size())
+        return false;
+      for (Language language : siteLanguages) {
+        if (!this.siteLanguages.contains(language))
+          return false;
+      }
+      return true;
+    }
+
+  }
+
+}
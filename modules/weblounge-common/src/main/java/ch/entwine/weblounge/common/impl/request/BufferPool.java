@@ -0,0 +1,133 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of byte arrays of equal size that are used as the segments of the
+ * response buffers. Buffers take their segments from the pool while the
+ * response is being written and hand them back once the response has been
+ * sent, so that the memory is reused by the following requests rather than
+ * being reallocated for every one of them.
+ * <p>
+ * The pool is safe to use from multiple threads and never blocks. It keeps at
+ * most a fixed number of segments, and segments that are released into a full
+ * pool are left to the garbage collector.
+ */
+public final class BufferPool {
+
+  /** Default size of a segment in bytes */
+  public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024;
+
+  /** Default maximum number of pooled segments */
+  public static final int DEFAULT_MAX_SEGMENTS = 2048;
+
+  /** The pool that is shared by the response buffers */
+  private static final BufferPool SHARED = new BufferPool(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+
+  /** Size of a segment in bytes */
+  private final int segmentSize;
+
+  /** Maximum number of pooled segments */
+  private final int maxSegments;
+
+  /** The pooled segments */
+  private final ConcurrentLinkedQueue<byte[]> segments = new ConcurrentLinkedQueue<byte[]>();
+
+  /** Number of pooled segments */
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  /**
+   * Creates a new pool.
+   * 
+   * @param segmentSize
+   *          size of a segment in bytes
+   * @param maxSegments
+   *          maximum number of pooled segments
+   */
+  public BufferPool(int segmentSize, int maxSegments) {
+    if (segmentSize <= 0)
+      throw new IllegalArgumentException("Segment size must be positive");
+    this.segmentSize = segmentSize;
+    this.maxSegments = Math.max(0, maxSegments);
+  }
+
+  /**
+   * Returns the pool that is shared by the response buffers.
+   * 
+   * @return the shared pool
+   */
+  public static BufferPool getSharedPool() {
+    return SHARED;
+  }
+
+  /**
+   * Returns a segment from the pool or a new one if the pool is empty. Note
+   * that the segment's content is undefined.
+   * 
+   * @return the segment
+   */
+  public byte[] acquire() {
+    byte[] segment = segments.poll();
+    if (segment == null)
+      return new byte[segmentSize];
+    pooled.decrementAndGet();
+    return segment;
+  }
+
+  /**
+   * Hands the segment back to the pool. The caller must not use the segment
+   * afterwards.
+   * 
+   * @param segment
+   *          the segment
+   */
+  public void release(byte[] segment) {
+    if (segment == null || segment.length != segmentSize)
+      return;
+    if (pooled.incrementAndGet() > maxSegments) {
+      pooled.decrementAndGet();
+      return;
+    }
+    segments.offer(segment);
+  }
+
+  /**
+   * Returns the size of the segments in bytes.
+   * 
+   * @return the segment size
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Returns the number of segments that are currently pooled.
+   * 
+   * @return the number of pooled segments
+   */
+  public int getPooledSegments() {
+    return pooled.get();
+  }
+
+}
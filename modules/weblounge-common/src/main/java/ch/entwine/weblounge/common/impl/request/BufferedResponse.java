@@ -0,0 +1,48 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A response that buffers its content in order to send it back to the client
+ * in one chunk once the response is finished. Callers that already hold the
+ * complete response body, such as the response cache, can skip the buffer and
+ * write the body to the underlying response directly.
+ */
+public interface BufferedResponse extends HttpServletResponse {
+
+  /**
+   * Returns the output stream of the underlying response, bypassing the
+   * buffer. Content that has been buffered up to this point is discarded, and
+   * the caller is responsible for setting the content length before writing
+   * the complete response body.
+   * 
+   * @return the unbuffered output stream
+   * @throws IOException
+   *           if the output stream could not be allocated
+   */
+  ServletOutputStream getUnbufferedOutputStream() throws IOException;
+
+}
@@ -0,0 +1,250 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A byte range as requested by a client using the <code>Range</code> header,
+ * with both <code>start</code> and <code>end</code> being inclusive.
+ * 
+ * @see Http11ProtocolHandler#analyzeRange(javax.servlet.http.HttpServletRequest,
+ *      String, long, long)
+ */
+public final class ByteRange {
+
+  /** The only range unit that is supported */
+  public static final String UNIT = "bytes";
+
+  /** Maximum number of ranges that will be served in a single response */
+  public static final int MAX_RANGES = 16;
+
+  /** Orders ranges by their first byte */
+  private static final Comparator<ByteRange> ORDER = new Comparator<ByteRange>() {
+    public int compare(ByteRange r1, ByteRange r2) {
+      return r1.start < r2.start ? -1 : (r1.start == r2.start ? 0 : 1);
+    }
+  };
+
+  /** The first byte */
+  private final long start;
+
+  /** The last byte */
+  private final long end;
+
+  /**
+   * Creates a new byte range.
+   * 
+   * @param start
+   *          the first byte
+   * @param end
+   *          the last byte
+   * @throws IllegalArgumentException
+   *           if <code>start</code> is negative or past <code>end</code>
+   */
+  public ByteRange(long start, long end) {
+    if (start < 0 || end < start)
+      throw new IllegalArgumentException("Invalid byte range " + start + "-" + end);
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Returns the position of the first byte in the range.
+   * 
+   * @return the first byte
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * Returns the position of the last byte in the range.
+   * 
+   * @return the last byte
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * Returns the number of bytes in the range.
+   * 
+   * @return the length
+   */
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * Returns the value of the <code>Content-Range</code> header for this range
+   * of a body of <code>size</code> bytes.
+   * 
+   * @param size
+   *          the size of the complete body
+   * @return the header value
+   */
+  public String toContentRange(long size) {
+    return UNIT + " " + start + "-" + end + "/" + size;
+  }
+
+  /**
+   * Parses the value of a <code>Range</code> header with respect to a body of
+   * <code>size</code> bytes.
+   * <p>
+   * Ranges that start beyond the end of the body are dropped, and ranges that
+   * reach beyond it are truncated. The remaining ranges are returned ordered
+   * by their first byte, with overlapping and adjacent ranges merged.
+   * <p>
+   * If the header is malformed, uses a unit other than {@link #UNIT} or asks
+   * for more than {@link #MAX_RANGES} ranges, <code>null</code> is returned,
+   * which means that the header should be ignored and the complete body be
+   * served. An empty list indicates that none of the ranges can be satisfied.
+   * 
+   * @param header
+   *          the header value
+   * @param size
+   *          the size of the body
+   * @return the ranges
+   */
+  public static List<ByteRange> parse(String header, long size) {
+    if (header == null || size < 0)
+      return null;
+    String value = header.trim();
+    int separator = value.indexOf('=');
+    if (separator < 0 || !UNIT.equalsIgnoreCase(value.substring(0, separator).trim()))
+      return null;
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>(2);
+    int specs = 0;
+    for (String spec : value.substring(separator + 1).split(",")) {
+      spec = spec.trim();
+      if (spec.length() == 0)
+        continue;
+      if (++specs > MAX_RANGES)
+        return null;
+      int dash = spec.indexOf('-');
+      if (dash < 0)
+        return null;
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+
+      // Suffix range, e. g. "-500" for the last 500 bytes
+      if (first.length() == 0) {
+        long suffix = parseNumber(last);
+        if (suffix < 0)
+          return null;
+        if (suffix > 0 && size > 0)
+          ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+        continue;
+      }
+
+      long start = parseNumber(first);
+      long end = last.length() == 0 ? Long.MAX_VALUE : parseNumber(last);
+      if (start < 0 || end < start)
+        return null;
+      if (start < size)
+        ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+    }
+
+    if (specs == 0)
+      return null;
+    if (ranges.size() < 2)
+      return ranges;
+
+    // Merge overlapping and adjacent ranges
+    Collections.sort(ranges, ORDER);
+    List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.start <= current.end + 1) {
+        current = new ByteRange(current.start, Math.max(current.end, next.end));
+      } else {
+        merged.add(current);
+        current = next;
+      }
+    }
+    merged.add(current);
+    return merged;
+  }
+
+  /**
+   * Parses a non-negative decimal number. Numbers that are too large to be
+   * represented are capped at {@link Long#MAX_VALUE}.
+   * 
+   * @param number
+   *          the number
+   * @return the number or <code>-1</code> if it is malformed
+   */
+  private static long parseNumber(String number) {
+    if (number.length() == 0)
+      return -1;
+    long value = 0;
+    for (int i = 0; i < number.length(); i++) {
+      char c = number.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      if (value > (Long.MAX_VALUE - 9) / 10)
+        value = Long.MAX_VALUE;
+      else
+        value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#hashCode()
+   */
+  @Override
+  public int hashCode() {
+    return (int) (start ^ (start >>> 32)) * 31 + (int) (end ^ (end >>> 32));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#equals(java.lang.Object)
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ByteRange))
+      return false;
+    ByteRange range = (ByteRange) obj;
+    return start == range.start && end == range.end;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return start + "-" + end;
+  }
+
+}
@@ -20,6 +20,10 @@
 
 package ch.entwine.weblounge.common.impl.request;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 
@@ -27,58 +31,86 @@ import javax.servlet.WriteListener;
  * Extension to the <code>ServletOutputStream</code> that allows to copy the
  * output that has been written to a <code>HttpServletResponse</code> to the
  * response cache as well as to the client.
+ * <p>
+ * The output is kept in a {@link SegmentedBuffer}, which should be released
+ * by calling {@link #release()} once the content has been consumed.
  */
 public final class CachedOutputStream extends ServletOutputStream {
 
-  /** Default buffer size for the response */
-  private static final int BUFFER_SIZE = 20 * 1024;
-
   /** Output buffer */
-  private byte[] buf = new byte[BUFFER_SIZE];
-
-  /** Write position in the output buffer */
-  private int pos = 0;
+  private final SegmentedBuffer buf = new SegmentedBuffer();
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.io.OutputStream#write(int)
+   */
   @Override
-  public synchronized void write(int b) {
-    int newpos = pos + 1;
-    if (newpos > buf.length)
-      extendBuffer(newpos);
-    buf[pos] = (byte) b;
-    pos = newpos;
+  public void write(int b) {
+    buf.write(b);
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.io.OutputStream#write(byte[], int, int)
+   */
   @Override
-  public synchronized void write(byte[] b, int off, int len) {
-    int newpos = pos + len;
-    if (newpos > buf.length)
-      extendBuffer(newpos);
-    System.arraycopy(b, off, buf, pos, len);
-    pos = newpos;
+  public void write(byte[] b, int off, int len) {
+    buf.write(b, off, len);
   }
 
   /**
-   * Extend the buffer to at least <code>size</code> bytes.
+   * Returns the content of this stream as a byte array.
    * 
-   * @param size
-   *          the minimum length of the new buffer
+   * @return the content
    */
-  private void extendBuffer(int size) {
-    int goal = buf.length << 1;
-    byte[] newbuf = new byte[goal > size ? goal : size];
-    System.arraycopy(buf, 0, newbuf, 0, pos);
-    buf = newbuf;
+  public byte[] getContent() {
+    return buf.toByteArray();
   }
 
   /**
-   * Returns the content of this stream as a byte array.
+   * Returns the content of this stream decoded using the given character
+   * encoding.
    * 
+   * @param encoding
+   *          the character encoding
    * @return the content
+   * @throws UnsupportedEncodingException
+   *           if the encoding is not supported
    */
-  public byte[] getContent() {
-    byte[] newbuf = new byte[pos];
-    System.arraycopy(buf, 0, newbuf, 0, pos);
-    return newbuf;
+  public String getContent(String encoding)
+      throws UnsupportedEncodingException {
+    return buf.toString(encoding);
+  }
+
+  /**
+   * Returns the number of bytes that have been written to this stream.
+   * 
+   * @return the number of bytes
+   */
+  public int size() {
+    return buf.size();
+  }
+
+  /**
+   * Writes the content of this stream to <code>os</code>.
+   * 
+   * @param os
+   *          the output stream
+   * @throws IOException
+   *           if writing to the output stream fails
+   */
+  public void writeTo(OutputStream os) throws IOException {
+    buf.writeTo(os);
+  }
+
+  /**
+   * Discards the content of this stream and returns its buffer to the buffer
+   * pool.
+   */
+  public void release() {
+    buf.release();
   }
 
   @Override
@@ -91,4 +123,4 @@ public final class CachedOutputStream extends ServletOutputStream {
     throw new UnsupportedOperationException("NIO not supported yet.");
   }
 
-}
\ No newline at end of file
+}
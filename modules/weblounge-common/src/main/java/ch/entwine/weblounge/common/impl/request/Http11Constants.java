@@ -52,13 +52,19 @@ public interface Http11Constants {
   String HEADER_ETAG = "ETag";
   String HEADER_LAST_MODIFIED = "Last-Modified";
   String HEADER_CONTENT_RANGE = "Content-Range";
+  String HEADER_ACCEPT_RANGES = "Accept-Ranges";
   String HEADER_CACHE_CONTROL = "Cache-Control";
   String HEADER_PRAGMA = "Pragma";
+  String HEADER_CONTENT_ENCODING = "Content-Encoding";
+  String HEADER_VARY = "Vary";
 
   /* some basic request headers */
   String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
   String HEADER_IF_NONE_MATCH = "If-None-Match";
   String HEADER_IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
   String HEADER_IF_MATCH = "If-Match";
+  String HEADER_RANGE = "Range";
+  String HEADER_IF_RANGE = "If-Range";
+  String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
 
 }
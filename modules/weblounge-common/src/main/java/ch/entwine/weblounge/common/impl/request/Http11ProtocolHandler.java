@@ -32,6 +32,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketException;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import javax.servlet.http.HttpServletRequest;
@@ -45,7 +46,7 @@ import javax.servlet.http.HttpServletResponse;
  * <li>external cache control using Last-Modified, ETag and Expires headers
  * <li>support for conditional requests using If-Modified-Since, If-None-Match
  * If-Unmodified-Since and If-Match headers
- * <li>support for partial requests using Rage and If-Range headers
+ * <li>support for partial requests using Range and If-Range headers
  * <li>generates the following replies based on the request headers:
  * <ul>
  * <li>200 OK replies
@@ -244,8 +245,18 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
     }
 
     /* decode the range headers */
-    if (size >= 0) {
-      // PENDING: handle ranges
+    if (size >= 0 && reqGetHead) {
+      List<ByteRange> ranges = analyzeRange(req, eTag, modified, size);
+      if (ranges != null && ranges.isEmpty()) {
+        type.type = RESPONSE_REQUESTED_RANGE_NOT_SATISFIABLE;
+        return type;
+      } else if (ranges != null && ranges.size() == 1 && ranges.get(0).getEnd() < Integer.MAX_VALUE) {
+        // Multiple ranges are answered with the complete body
+        type.from = (int) ranges.get(0).getStart();
+        type.to = (int) ranges.get(0).getEnd();
+        type.type = RESPONSE_PARTIAL_CONTENT;
+        return type;
+      }
     }
 
     /* return the result */
@@ -253,6 +264,55 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
     return type;
   }
 
+  /**
+   * Returns the byte ranges that were requested using the <code>Range</code>
+   * header for a body of <code>size</code> bytes.
+   * <p>
+   * If the request does not ask for ranges, or if the ranges are conditional
+   * on an <code>If-Range</code> header that does not match either
+   * <code>eTag</code> or <code>modified</code>, <code>null</code> is returned
+   * to indicate that the complete body needs to be sent. An empty list means
+   * that none of the ranges can be satisfied.
+   * 
+   * @param req
+   *          the request
+   * @param eTag
+   *          the current entity tag
+   * @param modified
+   *          the modification time
+   * @param size
+   *          the size of the body
+   * @return the requested ranges
+   * @see ByteRange#parse(String, long)
+   */
+  public static List<ByteRange> analyzeRange(HttpServletRequest req,
+      String eTag, long modified, long size) {
+    String range = req.getHeader(HEADER_RANGE);
+    if (range == null || size < 0)
+      return null;
+
+    /* the ranges are only valid for the current version of the body */
+    String ifRange = req.getHeader(HEADER_IF_RANGE);
+    if (ifRange != null) {
+      ifRange = ifRange.trim();
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+        if (!ifRange.equals(eTag))
+          return null;
+      } else {
+        long ifRangeDate = -1;
+        try {
+          ifRangeDate = req.getDateHeader(HEADER_IF_RANGE);
+        } catch (IllegalArgumentException e) {
+          log.debug("Client provided malformed '{}' header: {}", HEADER_IF_RANGE, ifRange);
+        }
+        if (ifRangeDate < 0 || modified / MS_PER_SECOND != ifRangeDate / MS_PER_SECOND)
+          return null;
+      }
+    }
+
+    return ByteRange.parse(range, size);
+  }
+
   /**
    * Method matchETag.
    * 
@@ -331,13 +391,13 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
           break;
 
         case RESPONSE_PARTIAL_CONTENT:
-          if (type.from < 0 || type.to < 0 || type.from > type.to || type.to > type.size) {
+          if (type.from < 0 || type.to < 0 || type.from > type.to || type.to >= type.size) {
             resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Invalid partial content parameters");
             log.warn("Invalid partial content parameters");
           } else if (!type.isHeaderOnly() && is != null) {
             resp.setBufferSize(BUFFER_SIZE);
             OutputStream os = resp.getOutputStream();
-            if (is.skip(type.from) != type.from) {
+            if (IOUtils.skip(is, type.from) != type.from) {
               resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Premature end of input stream");
               log.warn("Premature end of input stream");
               break;
@@ -351,7 +411,7 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
                 buffer.set(tmp);
               }
 
-              int read = type.to - type.from;
+              int read = type.to - type.from + 1;
               int copy = read;
               int write = 0;
 
@@ -459,12 +519,13 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
           resp.setHeader(HEADER_ETAG, Http11Utils.calcETag(type.modified));
           resp.setDateHeader(HEADER_LAST_MODIFIED, type.modified);
         }
-        if (type.size < 0 || type.from < 0 || type.to < 0 || type.from > type.to || type.to > type.size) {
+        if (type.size < 0 || type.from < 0 || type.to < 0 || type.from > type.to || type.to >= type.size) {
           resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
           break;
         }
-        resp.setContentLength((int) type.size);
-        resp.setHeader(HEADER_CONTENT_RANGE, "bytes " + type.from + "-" + type.to + "/" + type.size);
+        resp.setHeader(HEADER_ACCEPT_RANGES, ByteRange.UNIT);
+        resp.setContentLength(type.to - type.from + 1);
+        resp.setHeader(HEADER_CONTENT_RANGE, new ByteRange(type.from, type.to).toContentRange(type.size));
         resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
         break;
 
@@ -480,8 +541,10 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
           resp.setHeader(HEADER_ETAG, Http11Utils.calcETag(type.modified));
           resp.setDateHeader(HEADER_LAST_MODIFIED, type.modified);
         }
-        if (type.size >= 0)
+        if (type.size >= 0) {
+          resp.setHeader(HEADER_ACCEPT_RANGES, ByteRange.UNIT);
           resp.setContentLength((int) type.size);
+        }
         resp.setStatus(HttpServletResponse.SC_OK);
         break;
 
@@ -516,7 +579,7 @@ public final class Http11ProtocolHandler implements Times, Http11Constants {
           resp.setDateHeader(HEADER_LAST_MODIFIED, type.modified);
         }
         if (type.size >= 0)
-          resp.setHeader(HEADER_CONTENT_RANGE, "*/" + type.size);
+          resp.setHeader(HEADER_CONTENT_RANGE, ByteRange.UNIT + " */" + type.size);
         break;
 
       case RESPONSE_INTERNAL_SERVER_ERROR:
@@ -0,0 +1,201 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Byte buffer that grows by appending segments taken from a
+ * {@link BufferPool} rather than by reallocating and copying its content.
+ * <p>
+ * The buffer is meant to be written by one thread at a time and is not
+ * synchronized. Once its content has been consumed, {@link #release()} hands
+ * the segments back to the pool.
+ */
+public final class SegmentedBuffer {
+
+  /** The pool that provides the segments */
+  private final BufferPool pool;
+
+  /** The segments */
+  private byte[][] segments = new byte[4][];
+
+  /** Number of segments in use */
+  private int count = 0;
+
+  /** The segment that is currently being written */
+  private byte[] current = null;
+
+  /** Write position in the current segment */
+  private int pos = 0;
+
+  /** Number of bytes in the buffer */
+  private int size = 0;
+
+  /**
+   * Creates a buffer that takes its segments from the shared pool.
+   */
+  public SegmentedBuffer() {
+    this(BufferPool.getSharedPool());
+  }
+
+  /**
+   * Creates a buffer that takes its segments from <code>pool</code>.
+   * 
+   * @param pool
+   *          the buffer pool
+   */
+  public SegmentedBuffer(BufferPool pool) {
+    if (pool == null)
+      throw new IllegalArgumentException("Buffer pool must not be null");
+    this.pool = pool;
+  }
+
+  /**
+   * Appends a byte to the buffer.
+   * 
+   * @param b
+   *          the byte
+   */
+  public void write(int b) {
+    if (current == null || pos == current.length)
+      nextSegment();
+    current[pos++] = (byte) b;
+    size++;
+  }
+
+  /**
+   * Appends <code>len</code> bytes from <code>b</code>, starting at offset
+   * <code>off</code>.
+   * 
+   * @param b
+   *          the bytes
+   * @param off
+   *          the offset
+   * @param len
+   *          the number of bytes
+   */
+  public void write(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || off + len > b.length)
+      throw new IndexOutOfBoundsException();
+    while (len > 0) {
+      if (current == null || pos == current.length)
+        nextSegment();
+      int n = Math.min(len, current.length - pos);
+      System.arraycopy(b, off, current, pos, n);
+      pos += n;
+      off += n;
+      len -= n;
+      size += n;
+    }
+  }
+
+  /**
+   * Takes the next segment from the pool.
+   */
+  private void nextSegment() {
+    if (count == segments.length) {
+      byte[][] newSegments = new byte[segments.length << 1][];
+      System.arraycopy(segments, 0, newSegments, 0, count);
+      segments = newSegments;
+    }
+    current = pool.acquire();
+    segments[count++] = current;
+    pos = 0;
+  }
+
+  /**
+   * Returns the number of bytes in the buffer.
+   * 
+   * @return the number of bytes
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Writes the content of the buffer to <code>os</code>, one write per
+   * segment.
+   * 
+   * @param os
+   *          the output stream
+   * @throws IOException
+   *           if writing to the output stream fails
+   */
+  public void writeTo(OutputStream os) throws IOException {
+    int remaining = size;
+    for (int i = 0; i < count && remaining > 0; i++) {
+      int n = Math.min(remaining, segments[i].length);
+      os.write(segments[i], 0, n);
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Returns a copy of the content of the buffer.
+   * 
+   * @return the content
+   */
+  public byte[] toByteArray() {
+    byte[] content = new byte[size];
+    int offset = 0;
+    for (int i = 0; i < count && offset < size; i++) {
+      int n = Math.min(size - offset, segments[i].length);
+      System.arraycopy(segments[i], 0, content, offset, n);
+      offset += n;
+    }
+    return content;
+  }
+
+  /**
+   * Returns the content of the buffer decoded using the given character
+   * encoding.
+   * 
+   * @param encoding
+   *          the character encoding
+   * @return the content
+   * @throws UnsupportedEncodingException
+   *           if the encoding is not supported
+   */
+  public String toString(String encoding) throws UnsupportedEncodingException {
+    if (count == 1)
+      return new String(segments[0], 0, size, encoding);
+    return new String(toByteArray(), encoding);
+  }
+
+  /**
+   * Discards the content of the buffer and hands its segments back to the
+   * pool. The buffer may be written to again afterwards.
+   */
+  public void release() {
+    for (int i = 0; i < count; i++) {
+      pool.release(segments[i]);
+      segments[i] = null;
+    }
+    count = 0;
+    current = null;
+    pos = 0;
+    size = 0;
+  }
+
+}
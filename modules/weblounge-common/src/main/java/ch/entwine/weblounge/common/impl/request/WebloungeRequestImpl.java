@@ -37,7 +37,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Enumeration;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -168,7 +167,7 @@ public class WebloungeRequestImpl extends HttpServletRequestWrapper implements W
         String languageCandidate = m.group(1);
         try {
           language = LanguageUtils.getLanguage(languageCandidate);
-          logger.trace("Selected language " + language + " from request uri");
+          logger.trace("Selected language {} from request uri", language);
         } catch (UnknownLanguageException e) {
           logger.trace("'{}' does not represent a langauge", languageCandidate);
         }
@@ -188,27 +187,21 @@ public class WebloungeRequestImpl extends HttpServletRequestWrapper implements W
     // that the site doesn't support, let's go for the user's browser
     // preferences
     if (language == null) {
-      Enumeration<?> localeEnum = getLocales();
-      while (localeEnum.hasMoreElements()) {
-        String languageId = ((Locale) localeEnum.nextElement()).getLanguage();
-        language = site.getLanguage(languageId);
-        if (language != null) {
-          logger.trace("Selected language " + languageId + " from browser preferences");
-          break;
-        }
-      }
+      language = LanguageUtils.getAcceptedLanguage(this, site);
+      if (language != null)
+        logger.trace("Selected language {} from browser preferences", language);
     }
 
     // Still no valid language? Let's go with the site default.
     if (language == null) {
       language = site.getDefaultLanguage();
-      logger.trace("Selected default site language " + language);
+      logger.trace("Selected default site language {}", language);
     }
 
     // This really looks like a configuration disaster!
     if (language == null) {
       language = new LanguageImpl(Locale.getDefault());
-      logger.trace("Selected default system language " + language);
+      logger.trace("Selected default system language {}", language);
     }
 
     // Store the current selection in the session
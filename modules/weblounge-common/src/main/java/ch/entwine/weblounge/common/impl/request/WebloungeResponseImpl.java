@@ -28,8 +28,6 @@ import ch.entwine.weblounge.common.request.ResponseCache;
 import ch.entwine.weblounge.common.request.WebloungeRequest;
 import ch.entwine.weblounge.common.request.WebloungeResponse;
 
-import org.apache.commons.io.IOUtils;
-
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -60,6 +58,9 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
   /** Flag to indicate whether the buffered response has been submitted */
   private boolean submitted = false;
 
+  /** True if the response has been served from the response cache */
+  private boolean servedFromCache = false;
+
   /** Response status */
   private int responseStatus = SC_OK;
 
@@ -113,7 +114,8 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
 
     String contentType = getContentType();
     if (contentType != null && contentType.startsWith("text")) {
-      os = new CachedOutputStream();
+      if (os == null)
+        os = new CachedOutputStream();
       return os;
     } else {
       return super.getOutputStream();
@@ -443,8 +445,10 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
 
     // Is the response in the cache?
     CacheHandle hdl = cache.startResponse(tags, request.get(), this, expirationTime, revalidationTime);
-    if (hdl == null)
+    if (hdl == null) {
+      servedFromCache = true;
       return true;
+    }
 
     // It's not, meaning we need to do the processing ourselves
     cacheHandle = new WeakReference<CacheHandle>(hdl);
@@ -487,6 +491,37 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getFragment(ch.entwine.weblounge.common.request.CacheTag[])
+   */
+  public String getFragment(CacheTag[] uniqueTags) {
+    if (!isValid || cache == null)
+      return null;
+    ResponseCache cache = this.cache.get();
+    if (cache == null)
+      return null;
+    return cache.getFragment(uniqueTags, this);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#putFragment(ch.entwine.weblounge.common.request.CacheTag[],
+   *      ch.entwine.weblounge.common.request.CacheTag[], java.lang.String,
+   *      long, long)
+   */
+  public void putFragment(CacheTag[] uniqueTags, CacheTag[] tags,
+      String content, long validTime, long recheckTime) {
+    if (!isValid || cache == null)
+      return;
+    ResponseCache cache = this.cache.get();
+    if (cache == null)
+      return;
+    cache.putFragment(uniqueTags, tags, content, validTime, recheckTime);
+  }
+
   /**
    * Submits the buffered response to the wrapped response's output stream. This
    * method returns gracefully if the response has already been submitted.
@@ -510,7 +545,9 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
       return;
 
     // Check if there are HTML header includes
-    String response = new String(os.getContent(), DEFAULT_ENCODING);
+    String response = os.getContent(DEFAULT_ENCODING);
+    os.release();
+    os = null;
     StringBuffer headersHTML = new StringBuffer();
     if (htmlHeaders != null) {
       for (HTMLHeadElement e : htmlHeaders) {
@@ -528,11 +565,11 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
       response = updatedResponse.toString();
     }
 
-    setContentLength(response.getBytes().length);
-    IOUtils.write(response, clientOS, DEFAULT_ENCODING);
+    byte[] content = response.getBytes(DEFAULT_ENCODING);
+    setContentLength(content.length);
+    clientOS.write(content);
     clientOS.flush();
 
-    os = null;
     submitted = true;
   }
 
@@ -623,6 +660,16 @@ public class WebloungeResponseImpl extends HttpServletResponseWrapper implements
     return cache != null && cache.get() != null;
   }
 
+  /**
+   * Returns <code>true</code> if the response has been served from the
+   * response cache rather than being rendered.
+   * 
+   * @return <code>true</code> if the response came from the cache
+   */
+  public boolean isServedFromCache() {
+    return servedFromCache;
+  }
+
   /**
    * {@inheritDoc}
    * 
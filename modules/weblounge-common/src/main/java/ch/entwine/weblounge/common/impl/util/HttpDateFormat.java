@@ -0,0 +1,131 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.util;
+
+import java.lang.ref.SoftReference;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats dates for use in http headers as defined in RFC 1123, e. g.
+ * <code>Sun, 06 Nov 1994 08:49:37 GMT</code>. This formatter is thread safe.
+ * <p>
+ * Since the header values are precise to the second only, the most recently
+ * formatted value is kept and handed out again for every date that falls into
+ * the same second, which is the case for the <code>Date</code> header of most
+ * requests that are served at the same time.
+ */
+public final class HttpDateFormat {
+
+  /** the date format */
+  private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss 'GMT'";
+
+  /** the date formatter */
+  private static final ThreadLocal<SoftReference<DateFormat>> ldf = new ThreadLocal<SoftReference<DateFormat>>();
+
+  /** The most recently formatted date */
+  private static volatile FormattedDate lastDate = new FormattedDate(Long.MIN_VALUE, null);
+
+  /**
+   * This class is not meant to be instantiated.
+   */
+  private HttpDateFormat() {
+    // Nothing to be done here
+  }
+
+  /**
+   * Formats a time for use in an http header.
+   * 
+   * @param milliseconds
+   *          the time to format
+   * @return the formatted date string
+   */
+  public static String format(long milliseconds) {
+    long second = milliseconds / 1000L;
+    if (milliseconds < 0 && milliseconds % 1000L != 0)
+      second--;
+
+    FormattedDate date = lastDate;
+    if (date.second == second)
+      return date.value;
+
+    String value = getDateFormat().format(new Date(milliseconds));
+    lastDate = new FormattedDate(second, value);
+    return value;
+  }
+
+  /**
+   * Formats a date for use in an http header.
+   * 
+   * @param date
+   *          the date to format
+   * @return the formatted date string
+   */
+  public static String format(Date date) {
+    return format(date.getTime());
+  }
+
+  /**
+   * Gets the <code>DateFormat</code> for the current thread.
+   * 
+   * @return the date formatter for the current thread
+   */
+  private static DateFormat getDateFormat() {
+    SoftReference<DateFormat> sr = ldf.get();
+    DateFormat df = (sr != null) ? sr.get() : null;
+    if (sr == null || df == null) {
+      df = new SimpleDateFormat(DATE_FORMAT, Locale.US);
+      df.setTimeZone(TimeZone.getTimeZone("GMT"));
+      ldf.set(new SoftReference<DateFormat>(df));
+    }
+    return df;
+  }
+
+  /**
+   * A date along with its formatted value.
+   */
+  private static final class FormattedDate {
+
+    /** The date in seconds since the epoch */
+    private final long second;
+
+    /** The formatted date */
+    private final String value;
+
+    /**
+     * Creates a new formatted date.
+     * 
+     * @param second
+     *          the date in seconds since the epoch
+     * @param value
+     *          the formatted date
+     */
+    FormattedDate(long second, String value) {
+      this.second = second;
+      this.value = value;
+    }
+
+  }
+
+}
@@ -0,0 +1,390 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.util.xml;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Recording of the events that a SAX parser fires while parsing an xml
+ * document. Once recorded, the events can be replayed to any number of
+ * content handlers, which is considerably cheaper than parsing the document
+ * again.
+ * <p>
+ * The buffer is filled by passing it to a parser as the content handler and
+ * must not be modified after that. Replaying is thread safe. Note that
+ * content handlers are passed the buffer's character array, which they must
+ * not modify.
+ */
+public final class SAXEventBuffer extends DefaultHandler {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(SAXEventBuffer.class);
+
+  /** The parser factory, configured like the one used by the content readers */
+  private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+  /** Event types */
+  private static final byte START_DOCUMENT = 0;
+  private static final byte END_DOCUMENT = 1;
+  private static final byte START_PREFIX_MAPPING = 2;
+  private static final byte END_PREFIX_MAPPING = 3;
+  private static final byte START_ELEMENT = 4;
+  private static final byte END_ELEMENT = 5;
+  private static final byte CHARACTERS = 6;
+  private static final byte IGNORABLE_WHITESPACE = 7;
+  private static final byte PROCESSING_INSTRUCTION = 8;
+  private static final byte SKIPPED_ENTITY = 9;
+
+  /** The event types */
+  private byte[] types = new byte[64];
+
+  /** The names, attributes and other values of the events */
+  private Object[] values = new Object[128];
+
+  /** Offsets and lengths of the characters of the events */
+  private int[] ranges = new int[128];
+
+  /** The number of events */
+  private int events = 0;
+
+  /** The characters */
+  private char[] chars = new char[1024];
+
+  /** The number of characters */
+  private int length = 0;
+
+  /**
+   * Parses the xml document from <code>is</code> and returns the recorded
+   * events.
+   * 
+   * @param is
+   *          the xml document
+   * @return the recorded events
+   * @throws SAXException
+   *           if parsing the document fails
+   * @throws IOException
+   *           if reading from the input stream fails
+   * @throws ParserConfigurationException
+   *           if the parser setup fails
+   */
+  public static SAXEventBuffer record(InputStream is) throws SAXException,
+      IOException, ParserConfigurationException {
+    SAXEventBuffer buffer = new SAXEventBuffer();
+    parserFactory.newSAXParser().parse(is, buffer);
+    buffer.trim();
+    return buffer;
+  }
+
+  /**
+   * Fires the recorded events at <code>handler</code>.
+   * 
+   * @param handler
+   *          the content handler
+   * @throws SAXException
+   *           if the handler fails to process an event
+   */
+  public void replay(ContentHandler handler) throws SAXException {
+    for (int i = 0; i < events; i++) {
+      Object value = values[2 * i];
+      Object otherValue = values[2 * i + 1];
+      switch (types[i]) {
+        case START_DOCUMENT:
+          handler.startDocument();
+          break;
+        case END_DOCUMENT:
+          handler.endDocument();
+          break;
+        case START_PREFIX_MAPPING:
+          handler.startPrefixMapping((String) value, (String) otherValue);
+          break;
+        case END_PREFIX_MAPPING:
+          handler.endPrefixMapping((String) value);
+          break;
+        case START_ELEMENT:
+          Element element = (Element) value;
+          handler.startElement(element.uri, element.localName, element.qName, (Attributes) otherValue);
+          break;
+        case END_ELEMENT:
+          element = (Element) value;
+          handler.endElement(element.uri, element.localName, element.qName);
+          break;
+        case CHARACTERS:
+          handler.characters(chars, ranges[2 * i], ranges[2 * i + 1]);
+          break;
+        case IGNORABLE_WHITESPACE:
+          handler.ignorableWhitespace(chars, ranges[2 * i], ranges[2 * i + 1]);
+          break;
+        case PROCESSING_INSTRUCTION:
+          handler.processingInstruction((String) value, (String) otherValue);
+          break;
+        case SKIPPED_ENTITY:
+          handler.skippedEntity((String) value);
+          break;
+        default:
+          throw new IllegalStateException("Unknown event type " + types[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the approximate number of bytes that are occupied by the
+   * recorded events.
+   * 
+   * @return the size in bytes
+   */
+  public long getSize() {
+    return 2L * chars.length + 17L * types.length;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#startDocument()
+   */
+  @Override
+  public void startDocument() {
+    add(START_DOCUMENT, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#endDocument()
+   */
+  @Override
+  public void endDocument() {
+    add(END_DOCUMENT, null, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#startPrefixMapping(java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  public void startPrefixMapping(String prefix, String uri) {
+    add(START_PREFIX_MAPPING, prefix, uri);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#endPrefixMapping(java.lang.String)
+   */
+  @Override
+  public void endPrefixMapping(String prefix) {
+    add(END_PREFIX_MAPPING, prefix, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String,
+   *      java.lang.String, java.lang.String, org.xml.sax.Attributes)
+   */
+  @Override
+  public void startElement(String uri, String localName, String qName,
+      Attributes attributes) {
+    Element element = new Element(uri, localName, qName);
+    add(START_ELEMENT, element, new AttributesImpl(attributes));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String,
+   *      java.lang.String, java.lang.String)
+   */
+  @Override
+  public void endElement(String uri, String localName, String qName) {
+    add(END_ELEMENT, new Element(uri, localName, qName), null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+   */
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    addCharacters(CHARACTERS, ch, start, length);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#ignorableWhitespace(char[], int,
+   *      int)
+   */
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) {
+    addCharacters(IGNORABLE_WHITESPACE, ch, start, length);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#processingInstruction(java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  public void processingInstruction(String target, String data) {
+    add(PROCESSING_INSTRUCTION, target, data);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#skippedEntity(java.lang.String)
+   */
+  @Override
+  public void skippedEntity(String name) {
+    add(SKIPPED_ENTITY, name, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#warning(org.xml.sax.SAXParseException)
+   */
+  @Override
+  public void warning(SAXParseException e) {
+    logger.warn("Warning while recording xml: {}", e.getMessage());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.xml.sax.helpers.DefaultHandler#error(org.xml.sax.SAXParseException)
+   */
+  @Override
+  public void error(SAXParseException e) {
+    logger.warn("Error while recording xml: {}", e.getMessage());
+  }
+
+  /**
+   * Adds an event.
+   * 
+   * @param type
+   *          the event type
+   * @param value
+   *          the first value
+   * @param otherValue
+   *          the second value
+   * @return the index of the event
+   */
+  private int add(byte type, Object value, Object otherValue) {
+    if (events == types.length) {
+      types = Arrays.copyOf(types, 2 * events);
+      values = Arrays.copyOf(values, 4 * events);
+      ranges = Arrays.copyOf(ranges, 4 * events);
+    }
+    types[events] = type;
+    values[2 * events] = value;
+    values[2 * events + 1] = otherValue;
+    return events++;
+  }
+
+  /**
+   * Adds an event along with its characters. Consecutive character events are
+   * merged, which is perfectly legal for a SAX parser.
+   * 
+   * @param type
+   *          the event type
+   * @param ch
+   *          the characters
+   * @param start
+   *          the offset of the first character
+   * @param count
+   *          the number of characters
+   */
+  private void addCharacters(byte type, char[] ch, int start, int count) {
+    if (length + count > chars.length)
+      chars = Arrays.copyOf(chars, Math.max(2 * chars.length, length + count));
+    System.arraycopy(ch, start, chars, length, count);
+    if (events > 0 && types[events - 1] == type) {
+      ranges[2 * events - 1] += count;
+    } else {
+      int event = add(type, null, null);
+      ranges[2 * event] = length;
+      ranges[2 * event + 1] = count;
+    }
+    length += count;
+  }
+
+  /**
+   * Releases the space that is not needed by the recorded events.
+   */
+  private void trim() {
+    types = Arrays.copyOf(types, events);
+    values = Arrays.copyOf(values, 2 * events);
+    ranges = Arrays.copyOf(ranges, 2 * events);
+    chars = Arrays.copyOf(chars, length);
+  }
+
+  /**
+   * Names of an element.
+   */
+  private static final class Element {
+
+    /** The namespace uri */
+    private final String uri;
+
+    /** The local name */
+    private final String localName;
+
+    /** The qualified name */
+    private final String qName;
+
+    /**
+     * Creates the names of an element.
+     * 
+     * @param uri
+     *          the namespace uri
+     * @param localName
+     *          the local name
+     * @param qName
+     *          the qualified name
+     */
+    Element(String uri, String localName, String qName) {
+      this.uri = uri;
+      this.localName = localName;
+      this.qName = qName;
+    }
+
+  }
+
+}
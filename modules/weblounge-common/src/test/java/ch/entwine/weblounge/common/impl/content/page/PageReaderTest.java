@@ -22,6 +22,7 @@ package ch.entwine.weblounge.common.impl.content.page;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import ch.entwine.weblounge.common.content.Resource;
@@ -29,6 +30,7 @@ import ch.entwine.weblounge.common.content.page.Page;
 import ch.entwine.weblounge.common.impl.content.ResourceURIImpl;
 import ch.entwine.weblounge.common.impl.security.SystemRole;
 import ch.entwine.weblounge.common.impl.util.TestUtils;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
 import ch.entwine.weblounge.common.security.SystemAction;
 import ch.entwine.weblounge.common.site.Site;
 
@@ -106,4 +108,29 @@ public class PageReaderTest {
     assertEquals(testXml, new String(page.toXml().getBytes("utf-8"), "utf-8"));
   }
 
-}
\ No newline at end of file
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.content.page.PageReader#read(SAXEventBuffer, Site)}
+   * .
+   */
+  @Test
+  public void testReadFromEvents() throws Exception {
+    String testXml = TestUtils.loadXmlFromResource(testFile);
+    String otherTestXml = TestUtils.loadXmlFromResource(otherTestFile);
+    SAXEventBuffer events = SAXEventBuffer.record(this.getClass().getResource(testFile).openStream());
+    SAXEventBuffer otherEvents = SAXEventBuffer.record(this.getClass().getResource(otherTestFile).openStream());
+
+    // Replay the test page
+    Page replayedPage = reader.read(events, site);
+    assertEquals(testXml, replayedPage.toXml());
+
+    // Replay the other test page
+    assertEquals(otherTestXml, reader.read(otherEvents, site).toXml());
+
+    // Replay the test page again, which needs to produce a new page
+    Page otherReplayedPage = reader.read(events, site);
+    assertNotSame(replayedPage, otherReplayedPage);
+    assertEquals(testXml, otherReplayedPage.toXml());
+  }
+
+}
@@ -20,7 +20,10 @@
 
 package ch.entwine.weblounge.common.impl.content.page;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import ch.entwine.weblounge.common.Times;
 import ch.entwine.weblounge.common.content.page.Link;
@@ -85,6 +88,11 @@ public class PageletRendererImplTest {
   /** The preview mode */
   protected PagePreviewMode previewMode = PagePreviewMode.First;
   
+  /** The fragment vary dimensions */
+  protected String[] varyDimensions = new String[] {
+      PageletRenderer.VARY_USER,
+      PageletRenderer.VARY_PARAMETER + "sort" };
+
   /** English pagelet name */
   protected String name = "Pagelet renderer";
 
@@ -121,6 +129,9 @@ public class PageletRendererImplTest {
     renderer.setCacheExpirationTime(validTime);
     renderer.setComposeable(composeable);
     renderer.setPreviewMode(previewMode);
+    renderer.setFragmentCacheable(true);
+    for (String dimension : varyDimensions)
+      renderer.addVaryDimension(dimension);
     renderer.setName(name);
     renderer.addHTMLHeader(css);
     renderer.setModule(module);
@@ -191,6 +202,49 @@ public class PageletRendererImplTest {
     assertEquals(previewMode, renderer.getPreviewMode());
   }
 
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl#isFragmentCacheable()}
+   * .
+   */
+  @Test
+  public void testIsFragmentCacheable() {
+    assertTrue(renderer.isFragmentCacheable());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl#getVaryDimensions()}
+   * .
+   */
+  @Test
+  public void testGetVaryDimensions() {
+    assertArrayEquals(varyDimensions, renderer.getVaryDimensions());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl#addVaryDimension(String)}
+   * .
+   */
+  @Test
+  public void testAddVaryDimension() {
+    renderer.addVaryDimension(PageletRenderer.VARY_USER);
+    assertEquals(varyDimensions.length, renderer.getVaryDimensions().length);
+    try {
+      renderer.addVaryDimension(PageletRenderer.VARY_HEADER);
+      fail("Header dimension without a name was accepted");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    try {
+      renderer.addVaryDimension("cookie:id");
+      fail("Unsupported dimension was accepted");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
   /**
    * Test method for
    * {@link ch.entwine.weblounge.common.impl.content.GeneralComposeable#getClientRevalidationTime()}
@@ -26,6 +26,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.language.UnknownLanguageException;
 
@@ -198,4 +200,55 @@ public class LanguageUtilsTest {
     }
   }
 
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.language.LanguageUtils#getAcceptedLanguage(javax.servlet.http.HttpServletRequest, ch.entwine.weblounge.common.site.Site)}
+   * .
+   */
+  @Test
+  public void testGetAcceptedLanguage() {
+    SiteImpl site = new SiteImpl();
+    site.setIdentifier("languages");
+    site.addLanguage(italian);
+
+    // The first supported language wins, also when memoized
+    for (int i = 0; i < 2; i++) {
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+      request.addHeader("Accept-Language", "fr,it;q=0.8");
+      request.addPreferredLocale(italianLocale);
+      request.addPreferredLocale(frenchLocale);
+      assertEquals(italian, LanguageUtils.getAcceptedLanguage(request, site));
+      assertEquals(italian, LanguageUtils.getPreferredLanguage(request, site));
+    }
+
+    // None of the languages is supported
+    for (int i = 0; i < 2; i++) {
+      MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+      request.addHeader("Accept-Language", "fr");
+      request.addPreferredLocale(frenchLocale);
+      assertNull(LanguageUtils.getAcceptedLanguage(request, site));
+    }
+
+    // Languages that are no longer supported must not be returned
+    site.removeLanguage(italian);
+    MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+    request.addHeader("Accept-Language", "fr,it;q=0.8");
+    request.addPreferredLocale(italianLocale);
+    request.addPreferredLocale(frenchLocale);
+    assertNull(LanguageUtils.getAcceptedLanguage(request, site));
+
+    // Headers that matched none of the languages are resolved again
+    site.addLanguage(french);
+    request = new MockHttpServletRequest("GET", "/");
+    request.addHeader("Accept-Language", "fr");
+    request.addPreferredLocale(frenchLocale);
+    assertEquals(french, LanguageUtils.getAcceptedLanguage(request, site));
+
+    // A site that replaces the old one with other languages
+    SiteImpl otherSite = new SiteImpl();
+    otherSite.setIdentifier("languages");
+    otherSite.addLanguage(italian);
+    assertNull(LanguageUtils.getAcceptedLanguage(request, otherSite));
+  }
+
 }
@@ -0,0 +1,117 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for {@link ByteRange}.
+ */
+public class ByteRangeTest {
+
+  /** Size of the body */
+  protected long size = 10000;
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.ByteRange#parse(String, long)}
+   * .
+   */
+  @Test
+  public void testParseSingleRange() {
+    assertEquals(Arrays.asList(new ByteRange(0, 499)), ByteRange.parse("bytes=0-499", size));
+    assertEquals(Arrays.asList(new ByteRange(9500, 9999)), ByteRange.parse("bytes=9500-", size));
+    assertEquals(Arrays.asList(new ByteRange(9500, 9999)), ByteRange.parse("bytes=-500", size));
+    assertEquals(Arrays.asList(new ByteRange(0, 9999)), ByteRange.parse("bytes=-20000", size));
+    assertEquals(Arrays.asList(new ByteRange(9000, 9999)), ByteRange.parse("Bytes = 9000-99999999999999999999", size));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.ByteRange#parse(String, long)}
+   * .
+   */
+  @Test
+  public void testParseMultipleRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=500-999, 0-99,,-100", size);
+    assertEquals(Arrays.asList(new ByteRange(0, 99), new ByteRange(500, 999), new ByteRange(9900, 9999)), ranges);
+
+    // Overlapping and adjacent ranges are merged
+    ranges = ByteRange.parse("bytes=0-99,100-199,150-299,500-600", size);
+    assertEquals(Arrays.asList(new ByteRange(0, 299), new ByteRange(500, 600)), ranges);
+
+    // Unsatisfiable ranges are dropped
+    ranges = ByteRange.parse("bytes=0-0,20000-30000", size);
+    assertEquals(Arrays.asList(new ByteRange(0, 0)), ranges);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.ByteRange#parse(String, long)}
+   * .
+   */
+  @Test
+  public void testParseUnsatisfiable() {
+    assertTrue(ByteRange.parse("bytes=10000-", size).isEmpty());
+    assertTrue(ByteRange.parse("bytes=-0", size).isEmpty());
+    assertTrue(ByteRange.parse("bytes=0-10", 0).isEmpty());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.ByteRange#parse(String, long)}
+   * .
+   */
+  @Test
+  public void testParseMalformed() {
+    assertNull(ByteRange.parse(null, size));
+    assertNull(ByteRange.parse("bytes=", size));
+    assertNull(ByteRange.parse("bytes=500-100", size));
+    assertNull(ByteRange.parse("bytes=a-b", size));
+    assertNull(ByteRange.parse("bytes=100", size));
+    assertNull(ByteRange.parse("items=0-1", size));
+    assertNull(ByteRange.parse("0-1", size));
+    StringBuilder header = new StringBuilder("bytes=0-0");
+    for (int i = 1; i <= ByteRange.MAX_RANGES; i++)
+      header.append(",").append(i * 10).append("-").append(i * 10);
+    assertNull(ByteRange.parse(header.toString(), size));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.ByteRange#toContentRange(long)}
+   * .
+   */
+  @Test
+  public void testToContentRange() {
+    ByteRange range = new ByteRange(500, 999);
+    assertEquals(500, range.getLength());
+    assertEquals("bytes 500-999/10000", range.toContentRange(size));
+  }
+
+}
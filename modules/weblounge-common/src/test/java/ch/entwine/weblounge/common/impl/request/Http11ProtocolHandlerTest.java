@@ -0,0 +1,116 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Test case for the range support in {@link Http11ProtocolHandler}.
+ */
+public class Http11ProtocolHandlerTest {
+
+  /** The modification date */
+  protected long modified = 1300000000000L;
+
+  /** The entity tag */
+  protected String eTag = Http11Utils.calcETag(modified);
+
+  /** Size of the body */
+  protected long size = 1000;
+
+  /**
+   * Creates a <code>GET</code> request with the given range headers.
+   * 
+   * @param range
+   *          the range header
+   * @param ifRange
+   *          the if-range header
+   * @param ifRangeDate
+   *          the if-range header as a date
+   * @return the request
+   */
+  private HttpServletRequest createRequest(String range, String ifRange,
+      long ifRangeDate) {
+    HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+    EasyMock.expect(request.getMethod()).andReturn("GET").anyTimes();
+    EasyMock.expect(request.getHeader("Range")).andReturn(range).anyTimes();
+    EasyMock.expect(request.getHeader("If-Range")).andReturn(ifRange).anyTimes();
+    EasyMock.expect(request.getDateHeader("If-Range")).andReturn(ifRangeDate).anyTimes();
+    EasyMock.expect(request.getDateHeader(EasyMock.<String> anyObject())).andReturn(-1L).anyTimes();
+    EasyMock.replay(request);
+    return request;
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.Http11ProtocolHandler#analyzeRange(HttpServletRequest, String, long, long)}
+   * .
+   */
+  @Test
+  public void testAnalyzeRange() {
+    HttpServletRequest request = createRequest("bytes=0-99", null, -1);
+    assertEquals(Arrays.asList(new ByteRange(0, 99)), Http11ProtocolHandler.analyzeRange(request, eTag, modified, size));
+    assertNull(Http11ProtocolHandler.analyzeRange(createRequest(null, null, -1), eTag, modified, size));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.Http11ProtocolHandler#analyzeRange(HttpServletRequest, String, long, long)}
+   * .
+   */
+  @Test
+  public void testAnalyzeIfRange() {
+    HttpServletRequest request = createRequest("bytes=0-99", eTag, -1);
+    assertEquals(1, Http11ProtocolHandler.analyzeRange(request, eTag, modified, size).size());
+    request = createRequest("bytes=0-99", "\"WL-0\"", -1);
+    assertNull(Http11ProtocolHandler.analyzeRange(request, eTag, modified, size));
+    request = createRequest("bytes=0-99", "Sun, 13 Mar 2011 07:06:40 GMT", modified + 500);
+    assertEquals(1, Http11ProtocolHandler.analyzeRange(request, eTag, modified, size).size());
+    request = createRequest("bytes=0-99", "Sun, 13 Mar 2011 07:06:39 GMT", modified - 1000);
+    assertNull(Http11ProtocolHandler.analyzeRange(request, eTag, modified, size));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.Http11ProtocolHandler#analyzeRequest(HttpServletRequest, long, long, long)}
+   * .
+   */
+  @Test
+  public void testAnalyzeRequest() {
+    Http11ResponseType type = Http11ProtocolHandler.analyzeRequest(createRequest("bytes=100-", null, -1), modified, 0, size);
+    assertEquals(Http11ProtocolHandler.RESPONSE_PARTIAL_CONTENT, type.getType());
+    assertEquals(100, type.getFrom());
+    assertEquals(999, type.getTo());
+    type = Http11ProtocolHandler.analyzeRequest(createRequest("bytes=1000-", null, -1), modified, 0, size);
+    assertEquals(Http11ProtocolHandler.RESPONSE_REQUESTED_RANGE_NOT_SATISFIABLE, type.getType());
+    type = Http11ProtocolHandler.analyzeRequest(createRequest("bytes=0-1,5-6", null, -1), modified, 0, size);
+    assertEquals(Http11ProtocolHandler.RESPONSE_OK, type.getType());
+  }
+
+}
@@ -0,0 +1,136 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.request;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test case for {@link SegmentedBuffer} and {@link BufferPool}.
+ */
+public class SegmentedBufferTest {
+
+  /** Size of the segments */
+  protected static final int SEGMENT_SIZE = 16;
+
+  /** The buffer pool */
+  protected BufferPool pool = null;
+
+  /** The buffer */
+  protected SegmentedBuffer buffer = null;
+
+  /** The test content, spanning several segments */
+  protected byte[] content = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    pool = new BufferPool(SEGMENT_SIZE, 4);
+    buffer = new SegmentedBuffer(pool);
+    content = new byte[SEGMENT_SIZE * 3 + 5];
+    for (int i = 0; i < content.length; i++)
+      content[i] = (byte) i;
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.SegmentedBuffer#write(byte[], int, int)}
+   * .
+   */
+  @Test
+  public void testWrite() throws Exception {
+    buffer.write(content, 0, 7);
+    buffer.write(content, 7, content.length - 8);
+    buffer.write(content[content.length - 1]);
+    assertEquals(content.length, buffer.size());
+    assertArrayEquals(content, buffer.toByteArray());
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    buffer.writeTo(os);
+    assertArrayEquals(content, os.toByteArray());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.SegmentedBuffer#toString(String)}
+   * .
+   */
+  @Test
+  public void testToString() throws Exception {
+    String text = "Gr\u00fc\u00dfe aus Z\u00fcrich, Gr\u00fc\u00dfe aus Z\u00fcrich";
+    byte[] bytes = text.getBytes("utf-8");
+    buffer.write(bytes, 0, 4);
+    assertEquals("Gr\u00fc", buffer.toString("utf-8"));
+    buffer.write(bytes, 4, bytes.length - 4);
+    assertEquals(text, buffer.toString("utf-8"));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.SegmentedBuffer#release()}
+   * .
+   */
+  @Test
+  public void testRelease() throws Exception {
+    buffer.write(content, 0, content.length);
+    assertEquals(0, pool.getPooledSegments());
+    buffer.release();
+    assertEquals(0, buffer.size());
+    assertEquals(4, pool.getPooledSegments());
+
+    // The buffer can be reused and takes its segments from the pool
+    buffer.write(content, 0, SEGMENT_SIZE);
+    assertEquals(3, pool.getPooledSegments());
+    assertArrayEquals(new byte[0], new SegmentedBuffer(pool).toByteArray());
+    buffer.release();
+    assertEquals(4, pool.getPooledSegments());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.request.BufferPool#release(byte[])}
+   * .
+   */
+  @Test
+  public void testPool() {
+    byte[] segment = pool.acquire();
+    assertEquals(SEGMENT_SIZE, segment.length);
+    pool.release(segment);
+    assertSame(segment, pool.acquire());
+    assertNotSame(segment, pool.acquire());
+
+    // Segments of the wrong size and segments beyond the limit are dropped
+    pool.release(new byte[SEGMENT_SIZE + 1]);
+    assertEquals(0, pool.getPooledSegments());
+    for (int i = 0; i < 10; i++)
+      pool.release(new byte[SEGMENT_SIZE]);
+    assertEquals(4, pool.getPooledSegments());
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * Test case for {@link HttpDateFormat}.
+ */
+public class HttpDateFormatTest {
+
+  /** Sun, 06 Nov 1994 08:49:37 GMT */
+  protected long date = 784111777000L;
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.util.HttpDateFormat#format(long)}
+   * .
+   */
+  @Test
+  public void testFormat() {
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateFormat.format(date));
+    assertEquals("Sun, 06 Nov 1994 08:49:38 GMT", HttpDateFormat.format(date + 1000L));
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDateFormat.format(new Date(date + 999L)));
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDateFormat.format(0L));
+    assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDateFormat.format(-1L));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.util.HttpDateFormat#format(long)}
+   * with dates that fall into the same second.
+   */
+  @Test
+  public void testFormatSameSecond() {
+    String formatted = HttpDateFormat.format(date);
+    assertSame(formatted, HttpDateFormat.format(date + 500L));
+    assertSame(formatted, HttpDateFormat.format(date + 999L));
+  }
+
+}
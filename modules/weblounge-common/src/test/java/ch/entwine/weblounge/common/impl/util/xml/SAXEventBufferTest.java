@@ -0,0 +1,147 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.common.impl.util.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Test case for {@link SAXEventBuffer}.
+ */
+public class SAXEventBufferTest {
+
+  /** The xml document */
+  protected String xml = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<page id=\"4bb19980\" version=\"live\"><title>Caf\u00e9 &amp; more</title><?wl cache?><body/></page>";
+
+  /** The recorded events */
+  protected SAXEventBuffer events = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    events = SAXEventBuffer.record(new ByteArrayInputStream(xml.getBytes("utf-8")));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer#replay(org.xml.sax.ContentHandler)}
+   * .
+   */
+  @Test
+  public void testReplay() throws Exception {
+    String expected = "[page id=4bb19980 version=live][title]Caf\u00e9 & more[/title]<?wl cache?>[body][/body][/page]";
+    EventWriter writer = new EventWriter();
+    events.replay(writer);
+    assertEquals(expected, writer.toString());
+
+    // Replaying needs to produce the same events again
+    writer = new EventWriter();
+    events.replay(writer);
+    assertEquals(expected, writer.toString());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer#getSize()}
+   * .
+   */
+  @Test
+  public void testGetSize() throws Exception {
+    assertTrue(events.getSize() >= 2 * "Caf\u00e9 & more".length());
+  }
+
+  /**
+   * Content handler that writes the events it receives to a string.
+   */
+  private static final class EventWriter extends DefaultHandler {
+
+    /** The events */
+    private final StringBuilder buf = new StringBuilder();
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String,
+     *      java.lang.String, java.lang.String, org.xml.sax.Attributes)
+     */
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attributes) {
+      buf.append('[').append(qName);
+      for (int i = 0; i < attributes.getLength(); i++)
+        buf.append(' ').append(attributes.getQName(i)).append('=').append(attributes.getValue(i));
+      buf.append(']');
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      buf.append("[/").append(qName).append(']');
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+     */
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      buf.append(ch, start, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see org.xml.sax.helpers.DefaultHandler#processingInstruction(java.lang.String,
+     *      java.lang.String)
+     */
+    @Override
+    public void processingInstruction(String target, String data) {
+      buf.append("<?").append(target).append(' ').append(data).append("?>");
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return buf.toString();
+    }
+
+  }
+
+}
@@ -25,9 +25,20 @@ import ch.entwine.weblounge.common.content.Resource;
 /**
  * A resource listener can be implemented to follow the life cycle of a given
  * set of resources.
+ * <p>
+ * Listeners that are registered with the OSGi service registry are notified by
+ * the writable content repositories. The service properties
+ * {@link #PROP_SITE} and {@link #PROP_RESOURCE_TYPE} may be used to restrict
+ * the notifications to the resources of a single site or resource type.
  */
 public interface ResourceListener<T extends Resource<?>> {
 
+  /** Service property holding the identifier of the site of interest */
+  String PROP_SITE = "site.identifier";
+
+  /** Service property holding the resource type of interest */
+  String PROP_RESOURCE_TYPE = "resource.type";
+
   /**
    * Called when a resource has been created and added to the system.
    * 
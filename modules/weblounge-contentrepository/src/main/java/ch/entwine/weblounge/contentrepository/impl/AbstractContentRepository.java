@@ -33,11 +33,14 @@ import ch.entwine.weblounge.common.content.SearchResult;
 import ch.entwine.weblounge.common.content.image.ImagePreviewGenerator;
 import ch.entwine.weblounge.common.content.image.ImageStyle;
 import ch.entwine.weblounge.common.impl.content.GeneralResourceURIImpl;
+import ch.entwine.weblounge.common.impl.content.ReplayableResourceReader;
 import ch.entwine.weblounge.common.impl.content.ResourceURIImpl;
 import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
 import ch.entwine.weblounge.common.impl.content.image.ImageStyleImpl;
 import ch.entwine.weblounge.common.impl.content.image.ImageStyleUtils;
 import ch.entwine.weblounge.common.impl.language.LanguageUtils;
+import ch.entwine.weblounge.common.impl.util.config.ConfigurationUtils;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.repository.ContentRepository;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
@@ -76,6 +79,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -99,6 +103,9 @@ public abstract class AbstractContentRepository implements ContentRepository {
   /** Logging facility */
   static final Logger logger = LoggerFactory.getLogger(AbstractContentRepository.class);
 
+  /** Configuration key for the maximum size of the parsed resources in bytes */
+  public static final String OPT_CACHE_SIZE = "contentrepository.cacheSize";
+
   /** The repository type */
   protected String type = null;
 
@@ -138,6 +145,9 @@ public abstract class AbstractContentRepository implements ContentRepository {
   /** The search index service */
   protected SearchIndex searchIndex = null;
 
+  /** The parsed resources */
+  final ResourceCache resourceCache = new ResourceCache();
+
   /** The image style tracker */
   private ImageStyleTracker imageStyleTracker = null;
 
@@ -175,6 +185,26 @@ public abstract class AbstractContentRepository implements ContentRepository {
     return type;
   }
 
+  /**
+   * Sets the maximum size of the parsed resources that are kept in memory to
+   * the value of {@link #OPT_CACHE_SIZE}, or to the default size if the option
+   * is missing or malformed.
+   * 
+   * @param properties
+   *          the repository configuration
+   */
+  protected void configureResourceCache(Dictionary<?, ?> properties) {
+    String value = properties != null ? (String) properties.get(OPT_CACHE_SIZE) : null;
+    long cacheSize = ResourceCache.DEFAULT_CACHE_SIZE;
+    try {
+      cacheSize = ConfigurationUtils.getValue(value, ResourceCache.DEFAULT_CACHE_SIZE);
+    } catch (NumberFormatException e) {
+      logger.warn("Value for content repository setting '{}' is malformed: {}", OPT_CACHE_SIZE, value);
+    }
+    resourceCache.setCacheSize(cacheSize);
+    logger.debug("Content repository keeps up to {} bytes of parsed resources", cacheSize);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -234,6 +264,10 @@ public abstract class AbstractContentRepository implements ContentRepository {
       imageStyleTracker = null;
     }
 
+    // Discard the parsed resources
+    logger.debug("Discarding {}", resourceCache);
+    resourceCache.clear();
+
     // Close the index and mark the content repository as offline
     try {
       connected = false;
@@ -312,7 +346,30 @@ public abstract class AbstractContentRepository implements ContentRepository {
       uri.setIdentifier(index.getIdentifier(uri));
     }
 
-    // Load the resource
+    // Find the resource reader
+    ResourceSerializer<?, ?> serializer = getSerializerByType(uri.getType());
+    if (serializer == null) {
+      logger.warn("No resource serializer for type '{}' found", uri.getType());
+      throw new ContentRepositoryException("No resource serializer for type '" + uri.getType() + "' found");
+    }
+    ResourceReader<?, ?> reader = serializer.getReader();
+
+    // Create a copy of the resource from the parsed resources, if possible
+    SAXEventBuffer events = null;
+    if (reader instanceof ReplayableResourceReader<?, ?> && uri.getIdentifier() != null)
+      events = resourceCache.get(uri.getIdentifier(), uri.getVersion());
+    if (events != null) {
+      try {
+        return (R) ((ReplayableResourceReader<?, ?>) reader).read(events, site);
+      } catch (Throwable t) {
+        logger.error("Error loading {}: {}", uri, t.getMessage());
+        throw new ContentRepositoryException(t);
+      }
+    }
+
+    // Load the resource. Note that the number of modifications needs to be
+    // obtained before loading, so a concurrent update is not missed.
+    long modifications = resourceCache.getModifications();
     SearchQuery q = new SearchQueryImpl(site).withVersion(uri.getVersion()).withIdentifier(uri.getIdentifier());
     SearchResult result = searchIndex.getByQuery(q);
 
@@ -320,14 +377,8 @@ public abstract class AbstractContentRepository implements ContentRepository {
       ResourceSearchResultItem searchResultItem = (ResourceSearchResultItem) result.getItems()[0];
       InputStream is = null;
       try {
-        ResourceSerializer<?, ?> serializer = getSerializerByType(uri.getType());
-        if (serializer == null) {
-          logger.warn("No resource serializer for type '{}' found", uri.getType());
-          throw new ContentRepositoryException("No resource serializer for type '" + uri.getType() + "' found");
-        }
-        ResourceReader<?, ?> reader = serializer.getReader();
         is = IOUtils.toInputStream(searchResultItem.getResourceXml(), "utf-8");
-        return (R) reader.read(is, site);
+        return (R) read(reader, is, uri, modifications);
       } catch (Throwable t) {
         logger.error("Error loading {}: {}", uri, t.getMessage());
         throw new ContentRepositoryException(t);
@@ -346,9 +397,7 @@ public abstract class AbstractContentRepository implements ContentRepository {
             return null;
           }
           is = new BufferedInputStream(resourceStream);
-          ResourceSerializer<?, ?> serializer = getSerializerByType(uri.getType());
-          ResourceReader<?, ?> reader = serializer.getReader();
-          resource = reader.read(is, site);
+          resource = read(reader, is, uri, modifications);
         } catch (Throwable t) {
           String version = ResourceUtils.getVersionString(uri.getVersion());
           throw new IOException("Error reading " + version + " version of " + uri + " (" + uri.getIdentifier() + ")", t);
@@ -370,6 +419,38 @@ public abstract class AbstractContentRepository implements ContentRepository {
 
   }
 
+  /**
+   * Reads the resource from the input stream. If the reader supports it, the
+   * parser events are recorded and added to the parsed resources, provided
+   * that no resource has been modified since <code>modifications</code> was
+   * obtained from the resource cache.
+   * 
+   * @param reader
+   *          the resource reader
+   * @param is
+   *          the resource's xml
+   * @param uri
+   *          the resource uri
+   * @param modifications
+   *          the number of modifications before the resource was loaded
+   * @return the resource
+   * @throws SAXException
+   *           if parsing the resource fails
+   * @throws IOException
+   *           if reading the input stream fails
+   * @throws ParserConfigurationException
+   *           if the parser setup fails
+   */
+  private Resource<?> read(ResourceReader<?, ?> reader, InputStream is,
+      ResourceURI uri, long modifications) throws SAXException, IOException,
+      ParserConfigurationException {
+    if (!(reader instanceof ReplayableResourceReader<?, ?>) || uri.getIdentifier() == null)
+      return reader.read(is, site);
+    SAXEventBuffer events = SAXEventBuffer.record(is);
+    resourceCache.put(uri.getIdentifier(), uri.getVersion(), events, modifications);
+    return ((ReplayableResourceReader<?, ?>) reader).read(events, site);
+  }
+
   @Override
   public InputStream getContent(ResourceURI uri, Language language)
       throws ContentRepositoryException, IOException {
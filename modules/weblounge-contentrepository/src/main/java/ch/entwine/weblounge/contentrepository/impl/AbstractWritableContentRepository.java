@@ -20,14 +20,10 @@
 
 package ch.entwine.weblounge.contentrepository.impl;
 
-import static ch.entwine.weblounge.search.impl.IndexSchema.PATH;
-
 import ch.entwine.weblounge.cache.ResponseCacheTracker;
 import ch.entwine.weblounge.common.content.MalformedResourceURIException;
 import ch.entwine.weblounge.common.content.Resource;
 import ch.entwine.weblounge.common.content.ResourceContent;
-import ch.entwine.weblounge.common.content.ResourceMetadata;
-import ch.entwine.weblounge.common.content.ResourceReader;
 import ch.entwine.weblounge.common.content.ResourceSearchResultItem;
 import ch.entwine.weblounge.common.content.ResourceURI;
 import ch.entwine.weblounge.common.content.SearchQuery;
@@ -39,7 +35,6 @@ import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
 import ch.entwine.weblounge.common.impl.content.page.PageImpl;
 import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
 import ch.entwine.weblounge.common.impl.security.UserImpl;
-import ch.entwine.weblounge.common.impl.url.WebUrlImpl;
 import ch.entwine.weblounge.common.impl.util.config.ConfigurationUtils;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
 import ch.entwine.weblounge.common.repository.ReferentialIntegrityException;
@@ -56,7 +51,6 @@ import ch.entwine.weblounge.common.url.UrlUtils;
 import ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.osgi.framework.Bundle;
 import org.slf4j.Logger;
@@ -85,6 +79,9 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
   /** The environment tracker */
   private EnvironmentTracker environmentTracker = null;
 
+  /** The resource listener tracker */
+  private ResourceListenerTracker resourceListenerTracker = null;
+
   /** True to create a homepage when an empty repository is started */
   protected boolean createHomepage = true;
 
@@ -120,6 +117,8 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       responseCacheTracker.open();
       environmentTracker = new EnvironmentTracker(bundle.getBundleContext(), this);
       environmentTracker.open();
+      resourceListenerTracker = new ResourceListenerTracker(bundle.getBundleContext(), site.getIdentifier());
+      resourceListenerTracker.open();
     }
   }
 
@@ -149,6 +148,12 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       environmentTracker.close();
       environmentTracker = null;
     }
+
+    // Close the resource listener tracker
+    if (resourceListenerTracker != null) {
+      resourceListenerTracker.close();
+      resourceListenerTracker = null;
+    }
   }
 
   /**
@@ -162,6 +167,17 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     return responseCacheTracker.getCache();
   }
 
+  /**
+   * Returns the tracker that is used to notify the registered resource
+   * listeners or <code>null</code> if the repository is not running inside an
+   * OSGi environment.
+   * 
+   * @return the resource listener tracker
+   */
+  protected ResourceListenerTracker getResourceListeners() {
+    return resourceListenerTracker;
+  }
+
   /**
    * Creates an empty homepage in the content repository if it doesn't exist
    * yet.
@@ -299,6 +315,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     // Delete the index entries
     for (long revision : revisions) {
       index.delete(new ResourceURIImpl(uri, revision));
+      resourceCache.invalidate(uri.getIdentifier(), revision);
     }
 
     // Delete previews
@@ -310,6 +327,15 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       cache.invalidate(new CacheTag[] { new CacheTagImpl(CacheTag.Resource, uri.getIdentifier()) }, true);
     }
 
+    // Let the listeners know
+    ResourceListenerTracker listeners = getResourceListeners();
+    if (listeners != null) {
+      if (!allRevisions && uri.getVersion() == Resource.LIVE)
+        listeners.fireResourceUnpublished(resource);
+      else
+        listeners.fireResourceDeleted(resource);
+    }
+
     return true;
   }
 
@@ -370,6 +396,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     }
 
     // Finally, move all resources
+    List<Resource<?>> movedResources = new ArrayList<Resource<?>>();
     for (ResourceURI u : documentsToMove) {
       String originalPath = u.getPath();
       String pathSuffix = originalPath.substring(originalPathPrefix.length());
@@ -396,10 +423,14 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
         // Update the index
         r.getURI().setPath(originalPath);
         index.move(r.getURI(), newPath);
+        resourceCache.invalidate(u.getIdentifier(), version);
 
         // Create the preview images
         if (connected && !initializing)
           createPreviews(r);
+
+        r.getURI().setPath(newPath);
+        movedResources.add(r);
       }
     }
 
@@ -408,6 +439,13 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     if (cache != null) {
       cache.invalidate(new CacheTag[] { new CacheTagImpl(CacheTag.Resource, uri.getIdentifier()) }, true);
     }
+
+    // Let the listeners know
+    ResourceListenerTracker listeners = getResourceListeners();
+    if (listeners != null) {
+      for (Resource<?> r : movedResources)
+        listeners.fireResourceUpdated(r);
+    }
   }
 
   @Override
@@ -428,7 +466,8 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
 
     // If the document exists in the given version, update it otherwise add it
     // to the index
-    if (index.exists(uri)) {
+    boolean existing = index.exists(uri);
+    if (existing) {
       index.update(resource);
     } else {
       if (resource.contents().size() > 0)
@@ -453,11 +492,23 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
 
     // Write the updated resource to disk
     storeResource(resource);
+    resourceCache.invalidate(uri.getIdentifier(), uri.getVersion());
 
     // Create the preview images. Don't if the site is currently being created.
     if (updatePreviews && connected && !initializing)
       createPreviews(resource);
 
+    // Let the listeners know
+    ResourceListenerTracker listeners = getResourceListeners();
+    if (listeners != null) {
+      if (existing)
+        listeners.fireResourceUpdated(resource);
+      else if (uri.getVersion() == Resource.LIVE)
+        listeners.fireResourcePublished(resource);
+      else
+        listeners.fireResourceCreated(resource);
+    }
+
     return resource;
   }
 
@@ -494,6 +545,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     storeResourceContent(uri, content, is);
     storeResource(resource);
     index.update(resource);
+    resourceCache.invalidate(resource.getIdentifier(), resource.getVersion());
 
     // Create the preview images
     if (connected && !initializing)
@@ -505,6 +557,11 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       cache.invalidate(new CacheTag[] { new CacheTagImpl(CacheTag.Resource, uri.getIdentifier()) }, true);
     }
 
+    // Let the listeners know
+    ResourceListenerTracker listeners = getResourceListeners();
+    if (listeners != null)
+      listeners.fireResourceUpdated(resource);
+
     return resource;
   }
 
@@ -534,6 +591,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
     deleteResourceContent(uri, content);
     storeResource(resource);
     index.update(resource);
+    resourceCache.invalidate(resource.getIdentifier(), resource.getVersion());
 
     // Delete previews
     deletePreviews(resource, content.getLanguage());
@@ -544,6 +602,11 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       cache.invalidate(new CacheTag[] { new CacheTagImpl(CacheTag.Resource, uri.getIdentifier()) }, true);
     }
 
+    // Let the listeners know
+    ResourceListenerTracker listeners = getResourceListeners();
+    if (listeners != null)
+      listeners.fireResourceUpdated(resource);
+
     return resource;
   }
 
@@ -594,6 +657,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
         cause = e;
       throw new ContentRepositoryException("Error during reindex of '" + site.getIdentifier() + "'", cause);
     } finally {
+      resourceCache.clear();
       indexing = false;
       indexingOffsite = false;
       logger.info("Switching site '{}' back to write mode", site);
@@ -621,6 +685,7 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       logger.info("Switching site '{}' to read only mode", site.getIdentifier());
 
     rebuildIndex(idx);
+    resourceCache.clear();
 
     indexing = false;
     if (!oldReadOnly)
@@ -678,6 +743,14 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
           logger.error("Error while trying to cleanup after failed indexing operation", e);
         }
       }
+
+      // Make the indexed resources searchable
+      try {
+        if (idx != null)
+          idx.refresh();
+      } catch (ContentRepositoryException e) {
+        logger.error("Error while refreshing the index after indexing operation", e);
+      }
     }
   }
 
@@ -685,6 +758,10 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
    * This method indexes a certain type of resources and expects the resources
    * to be located in a sub directory of the site directory named
    * <tt>&lt;resourceType&gt;s<tt>.
+   * <p>
+   * The resources are read and added to the index in parallel and in bulk,
+   * which means that they are not searchable until the index has been
+   * refreshed.
    * 
    * @param idx
    *          the content repository index
@@ -705,72 +782,9 @@ public abstract class AbstractWritableContentRepository extends AbstractContentR
       return 0;
     }
 
-    long resourceCount = 0;
-    long resourceVersionCount = 0;
-    ResourceSelector selector = new ResourceSelectorImpl(site).withTypes(resourceType);
-
     // Ask for all existing resources of the current type and index them
-    for (ResourceURI uri : list(selector)) {
-      try {
-        Resource<?> resource = null;
-        ResourceReader<?, ?> reader = serializer.getReader();
-        InputStream is = null;
-
-        // Read the resource
-        try {
-          is = loadResource(uri);
-          resource = reader.read(is, site);
-          if (resource == null) {
-            logger.warn("Unkown error loading '{}'", uri);
-            continue;
-          }
-
-          // Fix malformed paths stemming from content conversion
-          for (ResourceMetadata<?> metadataItem : serializer.toMetadata(resource)) {
-            if (PATH.equals(metadataItem.getName())) {
-              String path = (String) metadataItem.getValues().get(0);
-              try {
-                // try to create a web url, which will reveal invalid paths
-                new WebUrlImpl(site, path);
-              } catch (IllegalArgumentException e) {
-                logger.info("Updating {} {}:{} to remove invalid path '{}'", new Object[] {
-                    serializer.getType().toLowerCase(),
-                    site.getIdentifier(),
-                    resource.getIdentifier(),
-                    path });
-                resource.setPath(null);
-                storeResource(resource);
-              }
-            }
-          }
-        } catch (Throwable t) {
-          logger.error("Error loading '{}': {}", uri, t.getMessage());
-          continue;
-        } finally {
-          IOUtils.closeQuietly(is);
-        }
-
-        logger.info("Indexing {} [{}]", resource, resource.getVersion());
-        idx.add(resource);
-        resourceVersionCount++;
-
-      } catch (Throwable t) {
-        logger.error("Error indexing {} {}: {}", new Object[] {
-            resourceType,
-            uri,
-            t.getMessage() });
-      }
-    }
-
-    // Log the work
-    if (resourceCount > 0) {
-      logger.info("{} {}s and {} revisions added to index", new Object[] {
-          resourceCount,
-          resourceType,
-          resourceVersionCount - resourceCount });
-    }
-
-    return resourceCount;
+    ResourceSelector selector = new ResourceSelectorImpl(site).withTypes(resourceType);
+    return new ResourceIndexer(this, idx, serializer).index(list(selector));
   }
 
   @Override
@@ -0,0 +1,326 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of parsed resources, which holds the parser events that have been
+ * recorded while reading a resource's xml, keyed by resource identifier and
+ * version.
+ * <p>
+ * The events are used to produce a fresh copy of the resource for every
+ * caller, since the resources handed out by the content repository are mutable
+ * and therefore cannot be shared. Replaying the events is a lot cheaper than
+ * loading and parsing the xml again.
+ * <p>
+ * Lookups don't lock. Every entry remembers when it has last been accessed, and
+ * the least recently used entries are evicted once the recorded events exceed
+ * the cache size. Resources need to be invalidated once they have been
+ * modified, and readers that load a resource while it is being modified find
+ * out about that through {@link #getModifications()}.
+ */
+final class ResourceCache {
+
+  /** Default maximum size of the cached parser events in bytes */
+  static final long DEFAULT_CACHE_SIZE = 32L * 1024L * 1024L;
+
+  /** The cached events */
+  private final Map<String, Entry> resources = new ConcurrentHashMap<String, Entry>(64, 0.75f, 16);
+
+  /** Source of the access stamps */
+  private final AtomicLong clock = new AtomicLong();
+
+  /** Maximum size of the cached events in bytes */
+  private volatile long cacheSize;
+
+  /** Current size of the cached events in bytes */
+  private volatile long size = 0;
+
+  /** Number of resource modifications that have been applied to the cache */
+  private volatile long modifications = 0;
+
+  /** Number of cache hits */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of cache misses */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a new resource cache that holds up to
+   * {@link #DEFAULT_CACHE_SIZE} bytes of parser events.
+   */
+  ResourceCache() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a new resource cache that holds up to <code>cacheSize</code> bytes
+   * of parser events.
+   * 
+   * @param cacheSize
+   *          the maximum size in bytes
+   */
+  ResourceCache(long cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * Sets the maximum size of the cached parser events in bytes and evicts the
+   * least recently used resources if the cache has grown beyond that size.
+   * 
+   * @param cacheSize
+   *          the maximum size in bytes
+   */
+  synchronized void setCacheSize(long cacheSize) {
+    this.cacheSize = cacheSize;
+    evict();
+  }
+
+  /**
+   * Returns the maximum size of the cached parser events in bytes.
+   * 
+   * @return the maximum size
+   */
+  long getCacheSize() {
+    return cacheSize;
+  }
+
+  /**
+   * Returns the parser events of the given version of the resource or
+   * <code>null</code> if they are not in the cache.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param version
+   *          the resource version
+   * @return the parser events
+   */
+  SAXEventBuffer get(String id, long version) {
+    Entry entry = resources.get(createKey(id, version));
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    entry.access = clock.incrementAndGet();
+    hits.incrementAndGet();
+    return entry.events;
+  }
+
+  /**
+   * Returns the number of resource modifications that have been applied to
+   * the cache so far. Callers loading a resource need to pass this number to
+   * {@link #put(String, long, SAXEventBuffer, long)} in order to find out if
+   * the resource has been modified in the meantime.
+   * 
+   * @return the number of modifications
+   */
+  long getModifications() {
+    return modifications;
+  }
+
+  /**
+   * Adds the parser events of the given version of the resource to the cache,
+   * provided that no resource has been modified since
+   * <code>modifications</code> was obtained from {@link #getModifications()}.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param version
+   *          the resource version
+   * @param events
+   *          the parser events
+   * @param modifications
+   *          the number of modifications when the resource was loaded
+   * @return <code>true</code> if the events have been added
+   */
+  synchronized boolean put(String id, long version, SAXEventBuffer events,
+      long modifications) {
+    if (this.modifications != modifications)
+      return false;
+    long eventSize = events.getSize();
+    if (eventSize > cacheSize)
+      return false;
+    Entry previous = resources.put(createKey(id, version), new Entry(events, clock.incrementAndGet()));
+    long size = this.size + eventSize;
+    if (previous != null)
+      size -= previous.events.getSize();
+    this.size = size;
+    evict();
+    return true;
+  }
+
+  /**
+   * Removes the given version of the resource from the cache. If the
+   * identifier is unknown, all resources are removed.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param version
+   *          the resource version
+   */
+  synchronized void invalidate(String id, long version) {
+    if (id == null) {
+      clear();
+      return;
+    }
+    modifications++;
+    Entry entry = resources.remove(createKey(id, version));
+    if (entry != null)
+      size -= entry.events.getSize();
+  }
+
+  /**
+   * Removes all resources from the cache.
+   */
+  synchronized void clear() {
+    modifications++;
+    resources.clear();
+    size = 0;
+  }
+
+  /**
+   * Returns the number of resource versions in the cache.
+   * 
+   * @return the number of resources
+   */
+  int getResourceCount() {
+    return resources.size();
+  }
+
+  /**
+   * Returns the size of the cached parser events in bytes.
+   * 
+   * @return the size
+   */
+  long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the number of lookups that found the resource in the cache.
+   * 
+   * @return the number of hits
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of lookups that did not find the resource in the cache.
+   * 
+   * @return the number of misses
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Removes the least recently used resources until the cached events fit
+   * into the cache size. Callers need to hold the cache's lock.
+   */
+  private void evict() {
+    if (size <= cacheSize)
+      return;
+
+    // Order the resources by their last access. Since the stamps keep changing
+    // while the cache is being read, they are taken once and not compared
+    // while sorting. Every stamp is unique, since it is drawn from the clock.
+    SortedMap<Long, String> lru = new TreeMap<Long, String>();
+    for (Map.Entry<String, Entry> entry : resources.entrySet())
+      lru.put(entry.getValue().access, entry.getKey());
+
+    long size = this.size;
+    for (String key : lru.values()) {
+      if (size <= cacheSize)
+        break;
+      Entry entry = resources.remove(key);
+      if (entry != null)
+        size -= entry.events.getSize();
+    }
+    this.size = size;
+  }
+
+  /**
+   * Returns the key that identifies a version of a resource.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param version
+   *          the resource version
+   * @return the key
+   */
+  private static String createKey(String id, long version) {
+    return new StringBuilder(id.length() + 4).append(id).append('/').append(version).toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    long hits = this.hits.get();
+    long requests = hits + misses.get();
+    StringBuilder buf = new StringBuilder("resource cache [");
+    buf.append(resources.size()).append(" resources, ");
+    buf.append(size / 1024L).append(" kB, ");
+    buf.append(hits).append(" hits, ").append(requests - hits).append(" misses");
+    if (requests > 0)
+      buf.append(", ").append(100L * hits / requests).append("% hit rate");
+    buf.append("]");
+    return buf.toString();
+  }
+
+  /**
+   * The parser events of a resource along with the time of the last access.
+   */
+  private static final class Entry {
+
+    /** The parser events */
+    final SAXEventBuffer events;
+
+    /** Stamp of the last access */
+    volatile long access;
+
+    /**
+     * Creates a new cache entry.
+     * 
+     * @param events
+     *          the parser events
+     * @param access
+     *          stamp of the last access
+     */
+    Entry(SAXEventBuffer events, long access) {
+      this.events = events;
+      this.access = access;
+    }
+
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import ch.entwine.weblounge.common.language.Language;
+import ch.entwine.weblounge.common.repository.ContentRepository;
+import ch.entwine.weblounge.common.security.User;
+import ch.entwine.weblounge.common.site.Environment;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider;
+
+/**
+ * Returns runtime information on the cache of parsed resources that is kept by
+ * the current site's content repository.
+ */
+public class ResourceCacheRuntimeInformation implements RuntimeInformationProvider {
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider#getComponentId()
+   */
+  public String getComponentId() {
+    return "resourcecache";
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider#getRuntimeInformation(ch.entwine.weblounge.common.site.Site,
+   *      ch.entwine.weblounge.common.security.User,
+   *      ch.entwine.weblounge.common.language.Language, Environment)
+   */
+  public String getRuntimeInformation(Site site, User user, Language language,
+      Environment environment) {
+    if (site == null)
+      return null;
+    ContentRepository repository = site.getContentRepository();
+    if (!(repository instanceof AbstractContentRepository))
+      return null;
+    ResourceCache cache = ((AbstractContentRepository) repository).resourceCache;
+    StringBuffer cacheXml = new StringBuffer();
+    cacheXml.append("<resources>").append(cache.getResourceCount()).append("</resources>");
+    cacheXml.append("<size>").append(cache.getSize()).append("</size>");
+    cacheXml.append("<maxsize>").append(cache.getCacheSize()).append("</maxsize>");
+    cacheXml.append("<hits>").append(cache.getHits()).append("</hits>");
+    cacheXml.append("<misses>").append(cache.getMisses()).append("</misses>");
+    return cacheXml.toString();
+  }
+
+}
@@ -0,0 +1,387 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import static ch.entwine.weblounge.search.impl.IndexSchema.PATH;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.ResourceMetadata;
+import ch.entwine.weblounge.common.content.ResourceURI;
+import ch.entwine.weblounge.common.impl.url.WebUrlImpl;
+import ch.entwine.weblounge.common.repository.ResourceSerializer;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexer that reads the resources of one type from the content repository
+ * and adds them to the content repository index in bulk.
+ * <p>
+ * The resources are read and parsed in parallel on a pool of worker threads.
+ * Each worker collects all versions of a number of resources and posts them to
+ * the index as a single bulk request, which is why the resources are not
+ * searchable until the index has been refreshed. Resources that cannot be read
+ * or indexed are skipped and counted one at a time, without affecting the
+ * other resources of the batch.
+ */
+final class ResourceIndexer {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(ResourceIndexer.class);
+
+  /** Default number of resources that are posted to the index at once */
+  static final int DEFAULT_BATCH_SIZE = 250;
+
+  /** Default number of worker threads */
+  static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  /** Time between two progress reports in milliseconds */
+  private static final long PROGRESS_INTERVAL = 10000L;
+
+  /** The content repository */
+  private final AbstractWritableContentRepository repository;
+
+  /** The content repository index */
+  private final ContentRepositoryIndex index;
+
+  /** The resource serializer */
+  private final ResourceSerializer<?, ?> serializer;
+
+  /** Number of resources that are posted to the index at once */
+  private final int batchSize;
+
+  /** Number of worker threads */
+  private final int parallelism;
+
+  /** Number of indexed resources */
+  private final AtomicLong resources = new AtomicLong();
+
+  /** Number of indexed resource versions */
+  private final AtomicLong versions = new AtomicLong();
+
+  /** Number of resource versions that could not be indexed */
+  private final AtomicLong failures = new AtomicLong();
+
+  /** Total number of resource versions to index */
+  private long total = 0;
+
+  /** Start of the indexing operation */
+  private long started = 0;
+
+  /** Time of the last progress report */
+  private long reported = 0;
+
+  /**
+   * Creates a new indexer with a pool of {@link #DEFAULT_PARALLELISM} workers,
+   * posting {@link #DEFAULT_BATCH_SIZE} resources at once.
+   * 
+   * @param repository
+   *          the content repository
+   * @param index
+   *          the content repository index
+   * @param serializer
+   *          serializer of the resources to index
+   */
+  ResourceIndexer(AbstractWritableContentRepository repository,
+      ContentRepositoryIndex index, ResourceSerializer<?, ?> serializer) {
+    this(repository, index, serializer, DEFAULT_BATCH_SIZE, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Creates a new indexer with a pool of <code>parallelism</code> workers,
+   * posting <code>batchSize</code> resources at once.
+   * 
+   * @param repository
+   *          the content repository
+   * @param index
+   *          the content repository index
+   * @param serializer
+   *          serializer of the resources to index
+   * @param batchSize
+   *          the number of resources per bulk request
+   * @param parallelism
+   *          the number of worker threads
+   */
+  ResourceIndexer(AbstractWritableContentRepository repository,
+      ContentRepositoryIndex index, ResourceSerializer<?, ?> serializer,
+      int batchSize, int parallelism) {
+    this.repository = repository;
+    this.index = index;
+    this.serializer = serializer;
+    this.batchSize = Math.max(1, batchSize);
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * Reads the resources and adds them to the index. Resources that cannot be
+   * read or indexed are logged and skipped.
+   * 
+   * @param uris
+   *          uris of all versions of the resources
+   * @return the number of resources that have been indexed
+   */
+  long index(Collection<ResourceURI> uris) {
+    String resourceType = serializer.getType().toLowerCase();
+
+    // Collect the versions of each resource, since they need to be indexed
+    // together
+    Map<String, List<ResourceURI>> uriGroups = new LinkedHashMap<String, List<ResourceURI>>();
+    for (ResourceURI uri : uris) {
+      List<ResourceURI> group = uriGroups.get(uri.getIdentifier());
+      if (group == null) {
+        group = new ArrayList<ResourceURI>(2);
+        uriGroups.put(uri.getIdentifier(), group);
+      }
+      group.add(uri);
+    }
+    List<List<ResourceURI>> groups = new ArrayList<List<ResourceURI>>(uriGroups.values());
+    if (groups.isEmpty())
+      return 0;
+
+    total = uris.size();
+    started = System.currentTimeMillis();
+    reported = started;
+    logger.info("Indexing {} {}s using {} threads", new Object[] {
+        groups.size(),
+        resourceType,
+        parallelism });
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new IndexTask(groups, 0, groups.size()));
+    } finally {
+      pool.shutdown();
+    }
+
+    long time = Math.max(1, System.currentTimeMillis() - started);
+    logger.info("Indexed {} {}s and {} revisions in {} ms ({} versions per second, {} failures)", new Object[] {
+        resources.get(),
+        resourceType,
+        versions.get() - resources.get(),
+        time,
+        versions.get() * 1000L / time,
+        failures.get() });
+
+    return resources.get();
+  }
+
+  /**
+   * Reads the resource versions and posts them to the index.
+   * 
+   * @param groups
+   *          the uris of the versions, grouped by resource
+   */
+  private void index(List<List<ResourceURI>> groups) {
+    List<List<Resource<?>>> loadedGroups = new ArrayList<List<Resource<?>>>(groups.size());
+    List<Resource<?>> batch = new ArrayList<Resource<?>>(2 * groups.size());
+    for (List<ResourceURI> group : groups) {
+      List<Resource<?>> loaded = new ArrayList<Resource<?>>(group.size());
+      for (ResourceURI uri : group) {
+        Resource<?> resource = read(uri);
+        if (resource == null) {
+          failures.incrementAndGet();
+          continue;
+        }
+        loaded.add(resource);
+      }
+      if (!loaded.isEmpty()) {
+        loadedGroups.add(loaded);
+        batch.addAll(loaded);
+      }
+    }
+
+    // Post the resources. Resources that the index cannot handle are skipped
+    // by the index, so if the batch fails as a whole, it is retried one
+    // resource at a time in order to only lose the one that is causing it.
+    try {
+      add(batch);
+    } catch (Throwable t) {
+      logger.warn("Error indexing {} {}s, retrying one by one: {}", new Object[] {
+          batch.size(),
+          serializer.getType().toLowerCase(),
+          t.getMessage() });
+      for (List<Resource<?>> group : loadedGroups) {
+        try {
+          add(group);
+        } catch (Throwable e) {
+          logger.error("Error indexing {}: {}", group.get(0).getURI(), e.getMessage());
+          failures.addAndGet(group.size());
+        }
+      }
+    }
+
+    reportProgress();
+  }
+
+  /**
+   * Adds the resources to the index and counts the resources and versions that
+   * have been added, as well as those that have been skipped.
+   * 
+   * @param batch
+   *          all versions of a number of resources
+   * @throws Exception
+   *           if posting the resources fails
+   */
+  private void add(List<Resource<?>> batch) throws Exception {
+    List<Resource<?>> added = index.addAll(batch);
+    Set<String> ids = new HashSet<String>();
+    for (Resource<?> resource : added)
+      ids.add(resource.getIdentifier());
+    failures.addAndGet(batch.size() - added.size());
+    versions.addAndGet(added.size());
+    resources.addAndGet(ids.size());
+  }
+
+  /**
+   * Reads the resource from the content repository. Malformed paths stemming
+   * from content conversion are removed along the way.
+   * 
+   * @param uri
+   *          the resource uri
+   * @return the resource or <code>null</code> if it cannot be read
+   */
+  private Resource<?> read(ResourceURI uri) {
+    Site site = repository.getSite();
+    InputStream is = null;
+    try {
+      is = repository.loadResource(uri);
+      Resource<?> resource = serializer.getReader().read(is, site);
+      if (resource == null) {
+        logger.warn("Unkown error loading '{}'", uri);
+        return null;
+      }
+
+      // Fix malformed paths stemming from content conversion
+      for (ResourceMetadata<?> metadataItem : serializer.toMetadata(resource)) {
+        if (PATH.equals(metadataItem.getName())) {
+          String path = (String) metadataItem.getValues().get(0);
+          try {
+            // try to create a web url, which will reveal invalid paths
+            new WebUrlImpl(site, path);
+          } catch (IllegalArgumentException e) {
+            logger.info("Updating {} {}:{} to remove invalid path '{}'", new Object[] {
+                serializer.getType().toLowerCase(),
+                site.getIdentifier(),
+                resource.getIdentifier(),
+                path });
+            resource.setPath(null);
+            repository.storeResource(resource);
+          }
+        }
+      }
+
+      return resource;
+    } catch (Throwable t) {
+      logger.error("Error loading '{}': {}", uri, t.getMessage());
+      return null;
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+  }
+
+  /**
+   * Logs the progress if the last report is sufficiently long ago.
+   */
+  private void reportProgress() {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      if (now - reported < PROGRESS_INTERVAL)
+        return;
+      reported = now;
+    }
+    long done = versions.get() + failures.get();
+    long time = Math.max(1, now - started);
+    logger.info("Indexing {}s: {}/{} versions done ({}%, {} versions per second)", new Object[] {
+        serializer.getType().toLowerCase(),
+        done,
+        total,
+        done * 100L / Math.max(1, total),
+        done * 1000L / time });
+  }
+
+  /**
+   * Task that indexes a range of resources, either by itself or by splitting
+   * the range among subtasks.
+   */
+  private final class IndexTask extends RecursiveAction {
+
+    /** Serial version uid */
+    private static final long serialVersionUID = -4154931543290237853L;
+
+    /** The uris of the versions, grouped by resource */
+    private final List<List<ResourceURI>> groups;
+
+    /** Index of the first resource */
+    private final int from;
+
+    /** Index after the last resource */
+    private final int to;
+
+    /**
+     * Creates a task that indexes the resources from <code>from</code>
+     * (inclusive) to <code>to</code> (exclusive).
+     * 
+     * @param groups
+     *          the uris of the versions, grouped by resource
+     * @param from
+     *          index of the first resource
+     * @param to
+     *          index after the last resource
+     */
+    IndexTask(List<List<ResourceURI>> groups, int from, int to) {
+      this.groups = groups;
+      this.from = from;
+      this.to = to;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.RecursiveAction#compute()
+     */
+    @Override
+    protected void compute() {
+      if (to - from <= batchSize) {
+        index(groups.subList(from, to));
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new IndexTask(groups, from, middle), new IndexTask(groups, middle, to));
+    }
+
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.contentrepository.ResourceListener;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The <code>ResourceListenerTracker</code> watches instances of
+ * {@link ResourceListener} in the OSGi registry and notifies them about changes
+ * to the resources of a content repository.
+ * <p>
+ * Listeners that specify the {@link ResourceListener#PROP_SITE} or
+ * {@link ResourceListener#PROP_RESOURCE_TYPE} service properties are only
+ * notified about the resources of the matching site or type.
+ */
+public class ResourceListenerTracker extends ServiceTracker {
+
+  /** Logger */
+  private static final Logger logger = LoggerFactory.getLogger(ResourceListenerTracker.class);
+
+  /** The site identifier */
+  protected String siteId = null;
+
+  /** The registered listeners */
+  protected final CopyOnWriteArrayList<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+
+  /**
+   * Creates a new tracker for {@link ResourceListener} instances.
+   * 
+   * @param context
+   *          the bundle context
+   * @param siteId
+   *          the site identifier
+   */
+  public ResourceListenerTracker(BundleContext context, String siteId) {
+    super(context, ResourceListener.class.getName(), null);
+    this.siteId = siteId;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.util.tracker.ServiceTracker#addingService(org.osgi.framework.ServiceReference)
+   */
+  @Override
+  public Object addingService(ServiceReference reference) {
+    Object site = reference.getProperty(ResourceListener.PROP_SITE);
+    if (site != null && !siteId.equals(site.toString()))
+      return null;
+    ResourceListener<?> listener = (ResourceListener<?>) context.getService(reference);
+    Object type = reference.getProperty(ResourceListener.PROP_RESOURCE_TYPE);
+    listeners.add(new Registration(listener, type != null ? type.toString() : null));
+    logger.trace("Found resource listener {} for site '{}'", listener, siteId);
+    return listener;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.util.tracker.ServiceTracker#removedService(org.osgi.framework.ServiceReference,
+   *      java.lang.Object)
+   */
+  @Override
+  public void removedService(ServiceReference reference, Object service) {
+    for (Registration registration : listeners) {
+      if (registration.listener == service)
+        listeners.remove(registration);
+    }
+    logger.trace("Resource listener {} went away", service);
+    if (reference.getBundle() != null) {
+      try {
+        super.removedService(reference, service);
+      } catch (IllegalStateException e) {
+        // The service has been removed, probably due to bundle shutdown
+      } catch (Throwable t) {
+        logger.warn("Error removing service: {}", t.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Notifies the listeners that <code>resource</code> has been created.
+   * 
+   * @param resource
+   *          the resource
+   */
+  public void fireResourceCreated(Resource<?> resource) {
+    fire(Event.Created, resource);
+  }
+
+  /**
+   * Notifies the listeners that <code>resource</code> has been updated.
+   * 
+   * @param resource
+   *          the resource
+   */
+  public void fireResourceUpdated(Resource<?> resource) {
+    fire(Event.Updated, resource);
+  }
+
+  /**
+   * Notifies the listeners that <code>resource</code> has been published.
+   * 
+   * @param resource
+   *          the resource
+   */
+  public void fireResourcePublished(Resource<?> resource) {
+    fire(Event.Published, resource);
+  }
+
+  /**
+   * Notifies the listeners that <code>resource</code> has been unpublished.
+   * 
+   * @param resource
+   *          the resource
+   */
+  public void fireResourceUnpublished(Resource<?> resource) {
+    fire(Event.Unpublished, resource);
+  }
+
+  /**
+   * Notifies the listeners that <code>resource</code> has been deleted.
+   * 
+   * @param resource
+   *          the resource
+   */
+  public void fireResourceDeleted(Resource<?> resource) {
+    fire(Event.Deleted, resource);
+  }
+
+  /**
+   * Passes the event on to every listener that is interested in the resource.
+   * A failing listener is logged and does not keep the others from being
+   * notified.
+   * 
+   * @param event
+   *          the event
+   * @param resource
+   *          the resource
+   */
+  @SuppressWarnings("unchecked")
+  private void fire(Event event, Resource<?> resource) {
+    if (resource == null)
+      return;
+    for (Registration registration : listeners) {
+      if (registration.type != null && !registration.type.equals(resource.getType()))
+        continue;
+      ResourceListener<Resource<?>> listener = (ResourceListener<Resource<?>>) registration.listener;
+      try {
+        switch (event) {
+          case Created:
+            listener.created(resource);
+            break;
+          case Updated:
+            listener.updated(resource);
+            break;
+          case Published:
+            listener.published(resource);
+            break;
+          case Unpublished:
+            listener.unpublished(resource);
+            break;
+          case Deleted:
+            listener.deleted(resource);
+            break;
+          default:
+            break;
+        }
+      } catch (Throwable t) {
+        logger.warn("Resource listener {} failed to process {} event for {}: {}", new Object[] {
+            listener,
+            event,
+            resource.getURI(),
+            t.getMessage() });
+      }
+    }
+  }
+
+  /**
+   * The resource events.
+   */
+  private enum Event {
+    Created, Updated, Published, Unpublished, Deleted
+  }
+
+  /**
+   * A registered listener along with the resource type it is interested in.
+   */
+  private static final class Registration {
+
+    /** The listener */
+    private final ResourceListener<?> listener;
+
+    /** The resource type or <code>null</code> for any type */
+    private final String type;
+
+    /**
+     * Creates a new registration.
+     * 
+     * @param listener
+     *          the listener
+     * @param type
+     *          the resource type
+     */
+    Registration(ResourceListener<?> listener, String type) {
+      this.listener = listener;
+      this.type = type;
+    }
+
+  }
+
+}
@@ -156,6 +156,7 @@ public class BundleContentRepository extends AbstractContentRepository implement
       logger.info("Bundle content repository indicex will {} removed on shutdown", (cleanupTemporaryIndex ? "be" : "not be"));
     }
 
+    configureResourceCache(properties);
   }
 
   /**
@@ -129,6 +129,8 @@ public class FileSystemContentRepository extends AbstractWritableContentReposito
       throw new ConfigurationException(OPT_ROOT_DIR, "Unable to create repository storage at " + repositoryRoot, e);
     }
 
+    configureResourceCache(properties);
+
     logger.debug("Content repository configured");
   }
 
@@ -26,9 +26,11 @@ import static ch.entwine.weblounge.search.impl.IndexSchema.TYPE;
 import static ch.entwine.weblounge.search.impl.IndexSchema.VERSION;
 
 import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.ResourceMetadata;
 import ch.entwine.weblounge.common.content.ResourceSearchResultItem;
 import ch.entwine.weblounge.common.content.ResourceURI;
 import ch.entwine.weblounge.common.content.SearchQuery;
+import ch.entwine.weblounge.common.content.SearchResult;
 import ch.entwine.weblounge.common.content.SearchResultItem;
 import ch.entwine.weblounge.common.impl.content.ResourceURIImpl;
 import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
@@ -41,25 +43,41 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
  * This index into the repository is used to map resource and resource urls into
  * repository indices and vice versa. In addition, it will facilitate listing
  * url hierarchies.
+ * <p>
+ * Identifiers, paths, types and versions of all resources are loaded from the
+ * search index when the index is created and kept in memory from then on, so
+ * resolving a resource uri does not require a search. All modifications to the
+ * site's resources therefore need to go through this index.
  */
 public class ContentRepositoryIndex {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(ContentRepositoryIndex.class);
 
+  /** Number of resources that are loaded from the search index at once */
+  private static final int LOAD_PAGE_SIZE = 1000;
+
   /** The search index */
   protected SearchIndex searchIdx = null;
 
   /** The site */
   protected Site site = null;
 
+  /** The resource identifiers, paths, types and versions */
+  private final ResourceURIIndex uris = new ResourceURIIndex();
+
   /**
    * Creates a new index that is located in the indicated folder.
    * 
@@ -81,6 +99,65 @@ public class ContentRepositoryIndex {
     
     this.site = site;
     this.searchIdx = searchIndex;
+
+    try {
+      load();
+    } catch (ContentRepositoryException e) {
+      throw new IOException("Error loading resources of " + site + " from the search index", e);
+    }
+  }
+
+  /**
+   * Loads identifier, path, type and version of every resource in the search
+   * index.
+   * 
+   * @throws ContentRepositoryException
+   *           if querying the search index fails
+   */
+  private void load() throws ContentRepositoryException {
+    long hitCount = 0;
+    int offset = 0;
+    do {
+      SearchQuery q = new SearchQueryImpl(site).withField(TYPE).withOffset(offset).withLimit(LOAD_PAGE_SIZE);
+      SearchResult result = searchIdx.getByQuery(q);
+      hitCount = result.getHitCount();
+      SearchResultItem[] items = result.getItems();
+      for (SearchResultItem item : items) {
+        ResourceSearchResultItem resourceItem = (ResourceSearchResultItem) item;
+        String id = (String) getValue(resourceItem, RESOURCE_ID);
+        String path = (String) getValue(resourceItem, PATH);
+        String type = (String) getValue(resourceItem, TYPE);
+        Number version = (Number) getValue(resourceItem, VERSION);
+        if (id == null || version == null) {
+          logger.warn("Skipping incomplete search index entry {}", resourceItem.getResourceURI());
+          continue;
+        }
+        uris.put(id, StringUtils.trimToNull(path), type, version.longValue());
+      }
+      if (items.length == 0)
+        break;
+      offset += items.length;
+    } while (offset < hitCount);
+
+    logger.debug("Loaded {} resources and {} revisions of site '{}'", new Object[] {
+        uris.getResourceCount(),
+        uris.getRevisionCount(),
+        site.getIdentifier() });
+  }
+
+  /**
+   * Returns the value of the metadata <code>key</code> or <code>null</code> if
+   * the item does not contain the metadata.
+   * 
+   * @param item
+   *          the search result item
+   * @param key
+   *          the metadata key
+   * @return the value
+   */
+  private static Object getValue(ResourceSearchResultItem item, String key) {
+    ResourceMetadata<?> metadata = item.getMetadataByKey(key);
+    return metadata != null ? metadata.getValue() : null;
   }
 
   /**
@@ -102,6 +179,7 @@ public class ContentRepositoryIndex {
   public void close() throws IOException {
     if (searchIdx != null)
       searchIdx = null;
+    uris.clear();
   }
 
   /**
@@ -112,8 +190,7 @@ public class ContentRepositoryIndex {
    *           if querying for the resource count fails
    */
   public long getResourceCount() throws ContentRepositoryException {
-    SearchQuery q = new SearchQueryImpl(site).withPreferredVersion(Resource.LIVE).withField(RESOURCE_ID);
-    return searchIdx.getByQuery(q).getHitCount();
+    return uris.getResourceCount();
   }
 
   /**
@@ -124,8 +201,7 @@ public class ContentRepositoryIndex {
    *           if querying for the resource count fails
    */
   public long getRevisionCount() throws ContentRepositoryException {
-    SearchQuery q = new SearchQueryImpl(site).withField(RESOURCE_ID);
-    return searchIdx.getByQuery(q).getHitCount();
+    return uris.getRevisionCount();
   }
 
   /**
@@ -151,14 +227,12 @@ public class ContentRepositoryIndex {
     // Make sure we are not asked to add a resource to the index that has the
     // same id as an existing one
     if (id != null) {
-      SearchQuery q = new SearchQueryImpl(site).withIdentifier(id).withPreferredVersion(version).withLimit(1).withField(PATH);
-      SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-      if (items.length > 0) {
-        long versionInIndex = (Long) ((ResourceSearchResultItem) items[0]).getMetadataByKey(VERSION).getValue();
-        if (items.length == 1 && versionInIndex == version)
+      ResourceURIIndex.Entry entry = uris.getById(id);
+      if (entry != null) {
+        if (entry.hasVersion(version))
           throw new ContentRepositoryException("Resource '" + id + "' already exists in version " + version);
         if (path == null) {
-          path = (String) ((ResourceSearchResultItem) items[0]).getMetadataByKey(PATH).getValue();
+          path = entry.path;
           resource.getURI().setPath(path);
         }
       }
@@ -167,14 +241,12 @@ public class ContentRepositoryIndex {
     // Make sure we are not asked to add a resource to the index that has the
     // same path as an existing one
     if (path != null) {
-      SearchQuery q = new SearchQueryImpl(site).withPath(path).withPreferredVersion(version).withLimit(1).withField(RESOURCE_ID);
-      SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-      if (items.length > 0) {
-        long versionInIndex = (Long) ((ResourceSearchResultItem) items[0]).getMetadataByKey(VERSION).getValue();
-        if (items.length == 1 && versionInIndex == version)
+      ResourceURIIndex.Entry entry = uris.getByPath(path);
+      if (entry != null) {
+        if (entry.hasVersion(version))
           throw new ContentRepositoryException("Resource '" + id + "' already exists in version " + version);
         if (id == null) {
-          id = (String) ((ResourceSearchResultItem) items[0]).getMetadataByKey(RESOURCE_ID).getValue();
+          id = entry.id;
           resource.getURI().setIdentifier(id);
         }
       }
@@ -196,9 +268,99 @@ public class ContentRepositoryIndex {
       throw new ContentRepositoryException("Error adding " + resource + " to index", t);
     }
 
+    uris.put(id, path, uri.getType(), version);
     return uri;
   }
 
+  /**
+   * Adds the resources to the index in bulk, replacing those that are already
+   * part of the index. All versions of a resource need to be passed along in
+   * the same call. Resources are skipped if their path is taken by another
+   * resource or if the search index cannot handle them.
+   * <p>
+   * The resources are not guaranteed to be searchable until {@link #refresh()}
+   * is called.
+   * 
+   * @param resources
+   *          the resources
+   * @return the resources that have been added
+   * @throws IOException
+   *           if writing to the index fails
+   * @throws ContentRepositoryException
+   *           if adding to the index fails
+   */
+  public List<Resource<?>> addAll(Collection<? extends Resource<?>> resources)
+      throws IOException, ContentRepositoryException {
+    List<Resource<?>> added = new ArrayList<Resource<?>>(resources.size());
+    List<ResourceURI> created = new ArrayList<ResourceURI>(resources.size());
+
+    synchronized (this) {
+      for (Resource<?> resource : resources) {
+        ResourceURI uri = resource.getURI();
+        String id = uri.getIdentifier();
+        String path = StringUtils.trimToNull(uri.getPath());
+
+        // Make sure the path is not taken by another resource
+        if (path != null) {
+          ResourceURIIndex.Entry entry = uris.getByPath(path);
+          if (entry != null && !entry.id.equals(id)) {
+            logger.warn("Skipping {}, since its path is taken by resource '{}'", uri, entry.id);
+            continue;
+          }
+        }
+
+        // Create an id if necessary
+        if (id == null) {
+          id = UUID.randomUUID().toString();
+          resource.setIdentifier(id);
+          uri.setIdentifier(id);
+        }
+
+        ResourceURIIndex.Entry entry = uris.getById(id);
+        if (entry == null || !entry.hasVersion(uri.getVersion()))
+          created.add(uri);
+        uris.put(id, path, uri.getType(), uri.getVersion());
+        added.add(resource);
+      }
+    }
+
+    List<Resource<?>> indexed = null;
+    try {
+      indexed = searchIdx.addAll(added);
+    } catch (ContentRepositoryException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Error adding resources to index", t);
+    } finally {
+
+      // Remove the entries of the resources that didn't make it into the
+      // search index, unless they replaced existing ones
+      Set<ResourceURI> indexedUris = new HashSet<ResourceURI>();
+      if (indexed != null) {
+        for (Resource<?> resource : indexed)
+          indexedUris.add(resource.getURI());
+      }
+      synchronized (this) {
+        for (ResourceURI uri : created) {
+          if (!indexedUris.contains(uri))
+            uris.remove(uri.getIdentifier(), uri.getVersion());
+        }
+      }
+    }
+
+    return indexed;
+  }
+
+  /**
+   * Makes all modifications to the index searchable.
+   * 
+   * @throws ContentRepositoryException
+   *           if refreshing the index fails
+   */
+  public void refresh() throws ContentRepositoryException {
+    searchIdx.refresh(site);
+  }
+
   /**
    * Removes all entries for the given resource uri from the index and returns
    * <code>true</code>. If the resource is not part of the index,
@@ -214,12 +376,13 @@ public class ContentRepositoryIndex {
    */
   public synchronized boolean delete(ResourceURI uri) throws IOException,
       ContentRepositoryException, IllegalArgumentException {
-    getIdentifier(uri);
-    StringUtils.trimToNull(uri.getPath());
-    uri.getVersion();
+    String id = getIdentifier(uri);
 
     // Finally, delete the entry
-    return searchIdx.delete(uri);
+    boolean deleted = searchIdx.delete(uri);
+    if (id != null)
+      uris.remove(id, uri.getVersion());
+    return deleted;
   }
 
   /**
@@ -234,13 +397,10 @@ public class ContentRepositoryIndex {
     String id = getIdentifier(uri);
     if (id == null)
       return new long[] {};
-    SearchQuery q = new SearchQueryImpl(site).withIdentifier(id).withField(VERSION);
-    SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-    long[] versions = new long[items.length];
-    for (int i = 0; i < items.length; i++) {
-      versions[i] = (Long) ((ResourceSearchResultItem) items[i]).getMetadataByKey(VERSION).getValue();
-    }
-    return versions;
+    ResourceURIIndex.Entry entry = uris.getById(id);
+    if (entry == null)
+      return new long[] {};
+    return entry.getVersions();
   }
 
   /**
@@ -265,19 +425,15 @@ public class ContentRepositoryIndex {
     if (path == null)
       throw new IllegalArgumentException("ResourceURI must contain a path");
 
-    // Load the identifier from the index
-    SearchQuery q = new SearchQueryImpl(site).withPath(path);
-    if (uri.getType() != null)
-      q.withTypes(uri.getType());
-    SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-    if (items.length == 0) {
+    // Look up the identifier
+    ResourceURIIndex.Entry entry = uris.getByPath(path);
+    if (entry == null || (uri.getType() != null && !uri.getType().equals(entry.type))) {
       logger.debug("Attempt to locate id for non-existing path {}", path);
       return null;
     }
 
-    String id = (String) ((ResourceSearchResultItem) items[0]).getMetadataByKey(RESOURCE_ID).getValue();
-    uri.setIdentifier(id);
-    return id;
+    uri.setIdentifier(entry.id);
+    return entry.id;
   }
 
   /**
@@ -302,19 +458,15 @@ public class ContentRepositoryIndex {
     if (id == null)
       throw new IllegalArgumentException("ResourceURI must contain an identifier");
 
-    // Load the path from the index
-    SearchQuery q = new SearchQueryImpl(site).withIdentifier(id);
-    if (uri.getType() != null)
-      q.withTypes(uri.getType());
-    SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-    if (items.length == 0) {
+    // Look up the path
+    ResourceURIIndex.Entry entry = uris.getById(id);
+    if (entry == null || (uri.getType() != null && !uri.getType().equals(entry.type))) {
       logger.debug("Attempt to locate path for non existing resource '{}'", id);
       return null;
     }
 
-    String path = (String) ((ResourceSearchResultItem) items[0]).getMetadataByKey(RESOURCE_ID).getValue();
-    uri.setPath(path);
-    return path;
+    uri.setPath(entry.path);
+    return entry.path;
   }
 
   /**
@@ -333,25 +485,23 @@ public class ContentRepositoryIndex {
 
     String id = uri.getIdentifier();
     String path = uri.getPath();
-    SearchQuery q = null;
+    ResourceURIIndex.Entry entry = null;
 
     if (id != null)
-      q = new SearchQueryImpl(site).withIdentifier(id).withLimit(1);
+      entry = uris.getById(id);
     else if (path != null)
-      q = new SearchQueryImpl(site).withPath(path).withLimit(1);
+      entry = uris.getByPath(path);
     else
       throw new IllegalArgumentException("URI must have either id or path");
 
-    // Load the path from the index
-    SearchResultItem[] items = searchIdx.getByQuery(q).getItems();
-    if (items.length == 0) {
+    // Look up the type
+    if (entry == null) {
       logger.debug("Attempt to locate path for non existing resource '{}'", id);
       return null;
     }
 
-    String type = (String) ((ResourceSearchResultItem) items[0]).getMetadataByKey(TYPE).getValue();
-    uri.setType(type);
-    return type;
+    uri.setType(entry.type);
+    return entry.type;
   }
 
   /**
@@ -374,6 +524,8 @@ public class ContentRepositoryIndex {
     }
 
     searchIdx.update(resource);
+    if (uri.getIdentifier() != null)
+      uris.put(uri.getIdentifier(), StringUtils.trimToNull(uri.getPath()), uri.getType(), uri.getVersion());
   }
 
   /**
@@ -397,7 +549,8 @@ public class ContentRepositoryIndex {
     ResourceURI newURI = new ResourceURIImpl(uri.getType(), uri.getSite(), StringUtils.trimToNull(path), uri.getIdentifier(), uri.getVersion());
     path = newURI.getPath();
 
-    searchIdx.move(uri, path);
+    if (searchIdx.move(uri, path))
+      uris.move(uri.getIdentifier(), path);
   }
 
   /**
@@ -408,6 +561,7 @@ public class ContentRepositoryIndex {
    */
   public synchronized void clear() throws IOException {
     searchIdx.clear(site);
+    uris.clear();
   }
 
   /**
@@ -420,13 +574,8 @@ public class ContentRepositoryIndex {
    *           if looking up the uri fails
    */
   public boolean exists(ResourceURI uri) throws ContentRepositoryException {
-    String id = getIdentifier(uri);
-    if (id == null)
-      return false;
-    SearchQuery q = new SearchQueryImpl(site).withIdentifier(id).withVersion(uri.getVersion()).withField(RESOURCE_ID);
-    if (uri.getType() != null)
-      q.withTypes(uri.getType());
-    return searchIdx.getByQuery(q).getDocumentCount() > 0;
+    ResourceURIIndex.Entry entry = getEntry(uri);
+    return entry != null && entry.hasVersion(uri.getVersion());
   }
 
   /**
@@ -440,13 +589,28 @@ public class ContentRepositoryIndex {
    */
   public boolean existsInAnyVersion(ResourceURI uri)
       throws ContentRepositoryException {
+    return getEntry(uri) != null;
+  }
+
+  /**
+   * Returns the resource identified by <code>uri</code> or <code>null</code>
+   * if it is not part of the index or if it is of a different type.
+   * 
+   * @param uri
+   *          the uri
+   * @return the resource
+   * @throws ContentRepositoryException
+   *           if looking up the uri fails
+   */
+  private ResourceURIIndex.Entry getEntry(ResourceURI uri)
+      throws ContentRepositoryException {
     String id = getIdentifier(uri);
     if (id == null)
-      return false;
-    SearchQuery q = new SearchQueryImpl(site).withIdentifier(id).withLimit(1).withField(RESOURCE_ID);
-    if (uri.getType() != null)
-      q.withTypes(uri.getType());
-    return searchIdx.getByQuery(q).getDocumentCount() > 0;
+      return null;
+    ResourceURIIndex.Entry entry = uris.getById(id);
+    if (entry == null || (uri.getType() != null && !uri.getType().equals(entry.type)))
+      return null;
+    return entry;
   }
 
   /**
@@ -0,0 +1,266 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl.index;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory map of the resources in a site's search index, which resolves
+ * resource identifiers to paths, types and versions and vice versa.
+ * <p>
+ * Entries are immutable and are replaced whenever a resource changes, so
+ * lookups don't need to lock. Modifications need to be synchronized by the
+ * caller.
+ */
+final class ResourceURIIndex {
+
+  /** Versions of resources that do not exist */
+  private static final long[] NO_VERSIONS = new long[] {};
+
+  /** The resources by identifier */
+  private final ConcurrentMap<String, Entry> resourcesById = new ConcurrentHashMap<String, Entry>();
+
+  /** The resources by path */
+  private final ConcurrentMap<String, Entry> resourcesByPath = new ConcurrentHashMap<String, Entry>();
+
+  /** The total number of resource versions */
+  private volatile long revisionCount = 0;
+
+  /**
+   * Returns the resource with the given identifier or <code>null</code> if
+   * there is no such resource.
+   * 
+   * @param id
+   *          the resource identifier
+   * @return the resource
+   */
+  Entry getById(String id) {
+    return resourcesById.get(id);
+  }
+
+  /**
+   * Returns the resource that is located at <code>path</code> or
+   * <code>null</code> if there is no such resource.
+   * 
+   * @param path
+   *          the resource path
+   * @return the resource
+   */
+  Entry getByPath(String path) {
+    return resourcesByPath.get(path);
+  }
+
+  /**
+   * Adds the given version of a resource or updates its path and type if the
+   * version is already known.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param path
+   *          the resource path, may be <code>null</code>
+   * @param type
+   *          the resource type
+   * @param version
+   *          the resource version
+   */
+  void put(String id, String path, String type, long version) {
+    Entry entry = resourcesById.get(id);
+    long[] versions = NO_VERSIONS;
+    if (entry != null) {
+      versions = entry.versions;
+      if (path == null)
+        path = entry.path;
+      if (type == null)
+        type = entry.type;
+    }
+
+    // Add the version, keeping the versions sorted
+    int index = Arrays.binarySearch(versions, version);
+    if (index < 0) {
+      index = -index - 1;
+      long[] newVersions = new long[versions.length + 1];
+      System.arraycopy(versions, 0, newVersions, 0, index);
+      newVersions[index] = version;
+      System.arraycopy(versions, index, newVersions, index + 1, versions.length - index);
+      versions = newVersions;
+      revisionCount++;
+    }
+
+    replace(entry, new Entry(id, path, type, versions));
+  }
+
+  /**
+   * Removes the given version of a resource and the resource itself if it was
+   * the last version.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param version
+   *          the resource version
+   * @return <code>true</code> if the version was removed
+   */
+  boolean remove(String id, long version) {
+    Entry entry = resourcesById.get(id);
+    if (entry == null)
+      return false;
+    int index = Arrays.binarySearch(entry.versions, version);
+    if (index < 0)
+      return false;
+
+    long[] versions = new long[entry.versions.length - 1];
+    System.arraycopy(entry.versions, 0, versions, 0, index);
+    System.arraycopy(entry.versions, index + 1, versions, index, versions.length - index);
+    revisionCount--;
+
+    replace(entry, versions.length > 0 ? new Entry(id, entry.path, entry.type, versions) : null);
+    return true;
+  }
+
+  /**
+   * Moves the resource to <code>path</code>.
+   * 
+   * @param id
+   *          the resource identifier
+   * @param path
+   *          the new path
+   * @return <code>true</code> if the resource was moved
+   */
+  boolean move(String id, String path) {
+    Entry entry = resourcesById.get(id);
+    if (entry == null)
+      return false;
+    replace(entry, new Entry(id, path, entry.type, entry.versions));
+    return true;
+  }
+
+  /**
+   * Removes all resources.
+   */
+  void clear() {
+    resourcesById.clear();
+    resourcesByPath.clear();
+    revisionCount = 0;
+  }
+
+  /**
+   * Returns the number of resources.
+   * 
+   * @return the number of resources
+   */
+  long getResourceCount() {
+    return resourcesById.size();
+  }
+
+  /**
+   * Returns the number of resource versions.
+   * 
+   * @return the number of versions
+   */
+  long getRevisionCount() {
+    return revisionCount;
+  }
+
+  /**
+   * Replaces <code>oldEntry</code> with <code>newEntry</code>, either of which
+   * may be <code>null</code>. The new entry is put in place before the old one
+   * is removed, so a concurrent lookup will always find one of them.
+   * 
+   * @param oldEntry
+   *          the current entry
+   * @param newEntry
+   *          the new entry
+   */
+  private void replace(Entry oldEntry, Entry newEntry) {
+    if (newEntry != null) {
+      resourcesById.put(newEntry.id, newEntry);
+      if (newEntry.path != null)
+        resourcesByPath.put(newEntry.path, newEntry);
+    }
+    if (oldEntry != null) {
+      if (oldEntry.path != null && (newEntry == null || !oldEntry.path.equals(newEntry.path)))
+        resourcesByPath.remove(oldEntry.path, oldEntry);
+      if (newEntry == null)
+        resourcesById.remove(oldEntry.id, oldEntry);
+    }
+  }
+
+  /**
+   * A resource along with its versions.
+   */
+  static final class Entry {
+
+    /** The resource identifier */
+    final String id;
+
+    /** The resource path */
+    final String path;
+
+    /** The resource type */
+    final String type;
+
+    /** The versions in ascending order */
+    private final long[] versions;
+
+    /**
+     * Creates a new entry. Path and type are interned, since they are shared
+     * with lots of other resources.
+     * 
+     * @param id
+     *          the resource identifier
+     * @param path
+     *          the resource path
+     * @param type
+     *          the resource type
+     * @param versions
+     *          the versions in ascending order
+     */
+    Entry(String id, String path, String type, long[] versions) {
+      this.id = id;
+      this.path = path != null ? path.intern() : null;
+      this.type = type != null ? type.intern() : null;
+      this.versions = versions;
+    }
+
+    /**
+     * Returns <code>true</code> if the resource exists in the given version.
+     * 
+     * @param version
+     *          the version
+     * @return <code>true</code> if the version exists
+     */
+    boolean hasVersion(long version) {
+      return Arrays.binarySearch(versions, version) >= 0;
+    }
+
+    /**
+     * Returns the versions of the resource in ascending order.
+     * 
+     * @return the versions
+     */
+    long[] getVersions() {
+      return versions.clone();
+    }
+
+  }
+
+}
@@ -0,0 +1,246 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import ch.entwine.weblounge.common.repository.ContentRepositoryException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue that groups concurrent writes into a single bulk request.
+ * <p>
+ * A writer adds its items to the queue and waits. If no bulk request is in
+ * progress, the writer takes over the items of every writer that is waiting
+ * at that time and hands them to the {@link Handler} at once, while writers
+ * that arrive in the meantime are queued up for the next bulk request. This
+ * way, the number of bulk requests adapts to the load: a single writer has
+ * its items sent right away, while many concurrent writers share a few large
+ * requests.
+ * 
+ * @param <T>
+ *          type of the items
+ */
+final class BulkRequestQueue<T> {
+
+  /** The handler that executes the bulk requests */
+  private final Handler<T> handler;
+
+  /** Lock object for the pending writes and the writing flag */
+  private final Object lock = new Object();
+
+  /** The writes that are waiting for the next bulk request */
+  private List<Write<T>> pending = new ArrayList<Write<T>>();
+
+  /** Whether a bulk request is being executed */
+  private boolean writing = false;
+
+  /** Number of writes */
+  private final AtomicLong writes = new AtomicLong();
+
+  /** Number of bulk requests */
+  private final AtomicLong requests = new AtomicLong();
+
+  /**
+   * Creates a new queue that has its bulk requests executed by
+   * <code>handler</code>.
+   * 
+   * @param handler
+   *          the handler
+   */
+  BulkRequestQueue(Handler<T> handler) {
+    if (handler == null)
+      throw new IllegalArgumentException("Handler must not be null");
+    this.handler = handler;
+  }
+
+  /**
+   * Writes the items as part of the next bulk request and returns once that
+   * request has been executed.
+   * 
+   * @param items
+   *          the items
+   * @throws ContentRepositoryException
+   *           if writing any of the items fails
+   */
+  void write(List<T> items) throws ContentRepositoryException {
+    if (items.isEmpty())
+      return;
+
+    Write<T> write = new Write<T>(items);
+    List<Write<T>> batch = null;
+    boolean interrupted = false;
+
+    synchronized (lock) {
+      pending.add(write);
+      while (writing && !write.done) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      // If nobody took care of the write, send it along with the others
+      if (!write.done) {
+        writing = true;
+        batch = pending;
+        pending = new ArrayList<Write<T>>();
+      }
+    }
+
+    if (batch != null) {
+      try {
+        execute(batch);
+      } finally {
+        synchronized (lock) {
+          for (Write<T> w : batch)
+            w.done = true;
+          writing = false;
+          lock.notifyAll();
+        }
+      }
+    }
+
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    writes.incrementAndGet();
+    if (write.failure != null)
+      throw write.failure;
+  }
+
+  /**
+   * Has the items of all writes in <code>batch</code> sent as one bulk request
+   * and assigns the failures to the writes that they belong to.
+   * 
+   * @param batch
+   *          the writes
+   */
+  private void execute(List<Write<T>> batch) {
+    List<T> items = new ArrayList<T>();
+    for (Write<T> w : batch)
+      items.addAll(w.items);
+
+    requests.incrementAndGet();
+
+    String[] failures = null;
+    try {
+      failures = handler.execute(items);
+    } catch (Throwable t) {
+      for (Write<T> w : batch)
+        w.failure = new ContentRepositoryException("Cannot write bulk request", t);
+      return;
+    }
+
+    if (failures == null)
+      return;
+    int offset = 0;
+    for (Write<T> w : batch) {
+      for (int i = offset; i < offset + w.items.size() && i < failures.length; i++) {
+        if (failures[i] != null) {
+          w.failure = new ContentRepositoryException(failures[i]);
+          break;
+        }
+      }
+      offset += w.items.size();
+    }
+  }
+
+  /**
+   * Returns the number of writes.
+   * 
+   * @return the number of writes
+   */
+  long getWrites() {
+    return writes.get();
+  }
+
+  /**
+   * Returns the number of bulk requests that were needed for the writes.
+   * 
+   * @return the number of bulk requests
+   */
+  long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return writes.get() + " writes in " + requests.get() + " bulk requests";
+  }
+
+  /**
+   * Executes a bulk request.
+   * 
+   * @param <T>
+   *          type of the items
+   */
+  interface Handler<T> {
+
+    /**
+     * Sends the items as one bulk request and returns the failure message for
+     * every item that could not be written.
+     * 
+     * @param items
+     *          the items
+     * @return the failure messages by item, or <code>null</code> if all items
+     *         were written
+     * @throws Exception
+     *           if the bulk request fails as a whole
+     */
+    String[] execute(List<T> items) throws Exception;
+
+  }
+
+  /**
+   * The items of one writer.
+   */
+  private static final class Write<T> {
+
+    /** The items */
+    private final List<T> items;
+
+    /** Whether the items have been sent */
+    private boolean done = false;
+
+    /** The failure */
+    private ContentRepositoryException failure = null;
+
+    /**
+     * Creates a new write.
+     * 
+     * @param items
+     *          the items
+     */
+    Write(List<T> items) {
+      this.items = items;
+    }
+
+  }
+
+}
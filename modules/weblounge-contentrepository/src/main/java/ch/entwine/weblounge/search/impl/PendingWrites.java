@@ -0,0 +1,240 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the writes to the site indices that have not been made
+ * searchable by a refresh yet.
+ * <p>
+ * Every write is assigned a sequence number, and the number of the latest
+ * write that was covered by a refresh is stored per index. Since only the
+ * writes that affect a query need to be waited for, the writes are
+ * remembered by the identifiers of the resources that were written as well
+ * as by the user that wrote them.
+ */
+final class PendingWrites {
+
+  /** The state by index name */
+  private final Map<String, Index> indices = new HashMap<String, Index>();
+
+  /**
+   * Records a write of the given resources by <code>user</code> and returns
+   * the sequence number of the write.
+   * 
+   * @param index
+   *          the index name
+   * @param ids
+   *          the resource identifiers
+   * @param user
+   *          login of the user, may be <code>null</code>
+   * @return the sequence number
+   */
+  synchronized long written(String index, Collection<String> ids, String user) {
+    Index state = getIndex(index);
+    long sequence = ++state.sequence;
+    for (String id : ids)
+      state.resources.put(id, sequence);
+    if (user != null)
+      state.users.put(user, sequence);
+    return sequence;
+  }
+
+  /**
+   * Returns the sequence number of the latest write that has not been
+   * refreshed and either touched one of the resources or was done by
+   * <code>user</code>, or <code>0</code> if there is no such write.
+   * 
+   * @param index
+   *          the index name
+   * @param ids
+   *          the resource identifiers
+   * @param user
+   *          login of the user, may be <code>null</code>
+   * @return the sequence number
+   */
+  synchronized long getPending(String index, String[] ids, String user) {
+    Index state = indices.get(index);
+    if (state == null || state.sequence == state.refreshed)
+      return 0;
+    long sequence = 0;
+    for (String id : ids) {
+      Long s = state.resources.get(id);
+      if (s != null)
+        sequence = Math.max(sequence, s);
+    }
+    if (user != null) {
+      Long s = state.users.get(user);
+      if (s != null)
+        sequence = Math.max(sequence, s);
+    }
+    return sequence;
+  }
+
+  /**
+   * Returns the sequence number of the latest write to the index.
+   * 
+   * @param index
+   *          the index name
+   * @return the sequence number
+   */
+  synchronized long getSequence(String index) {
+    Index state = indices.get(index);
+    return state != null ? state.sequence : 0;
+  }
+
+  /**
+   * Returns the sequence number of the latest write that has been made
+   * searchable.
+   * 
+   * @param index
+   *          the index name
+   * @return the sequence number
+   */
+  synchronized long getRefreshed(String index) {
+    Index state = indices.get(index);
+    return state != null ? state.refreshed : 0;
+  }
+
+  /**
+   * Records that the index has been refreshed and that all writes up to
+   * <code>sequence</code> are searchable.
+   * 
+   * @param index
+   *          the index name
+   * @param sequence
+   *          sequence number of the latest write before the refresh
+   */
+  synchronized void refreshed(String index, long sequence) {
+    Index state = indices.get(index);
+    if (state == null || sequence <= state.refreshed)
+      return;
+    state.refreshed = sequence;
+    prune(state.resources.values().iterator(), sequence);
+    prune(state.users.values().iterator(), sequence);
+  }
+
+  /**
+   * Returns the names of the indices with writes that have not been
+   * refreshed.
+   * 
+   * @return the index names
+   */
+  synchronized Set<String> getDirtyIndices() {
+    Set<String> dirty = new HashSet<String>();
+    for (Map.Entry<String, Index> entry : indices.entrySet()) {
+      if (entry.getValue().sequence > entry.getValue().refreshed)
+        dirty.add(entry.getKey());
+    }
+    return dirty;
+  }
+
+  /**
+   * Returns the object that refreshes of the index are synchronized on.
+   * 
+   * @param index
+   *          the index name
+   * @return the lock object
+   */
+  synchronized Object getLock(String index) {
+    return getIndex(index);
+  }
+
+  /**
+   * Forgets about the writes to the index.
+   * 
+   * @param index
+   *          the index name
+   */
+  synchronized void clear(String index) {
+    Index state = indices.get(index);
+    if (state == null)
+      return;
+    state.refreshed = state.sequence;
+    state.resources.clear();
+    state.users.clear();
+  }
+
+  /**
+   * Forgets about all writes.
+   */
+  synchronized void clear() {
+    for (String index : indices.keySet())
+      clear(index);
+  }
+
+  /**
+   * Returns the state of the index, which is created if needed.
+   * 
+   * @param index
+   *          the index name
+   * @return the state
+   */
+  private Index getIndex(String index) {
+    Index state = indices.get(index);
+    if (state == null) {
+      state = new Index();
+      indices.put(index, state);
+    }
+    return state;
+  }
+
+  /**
+   * Removes the sequence numbers up to and including <code>sequence</code>.
+   * 
+   * @param sequences
+   *          the sequence numbers
+   * @param sequence
+   *          the latest refreshed sequence number
+   */
+  private static void prune(Iterator<Long> sequences, long sequence) {
+    while (sequences.hasNext()) {
+      if (sequences.next() <= sequence)
+        sequences.remove();
+    }
+  }
+
+  /**
+   * The writes to one index.
+   */
+  private static final class Index {
+
+    /** Sequence number of the latest write */
+    private long sequence = 0;
+
+    /** Sequence number of the latest refreshed write */
+    private long refreshed = 0;
+
+    /** Sequence number of the latest write by resource identifier */
+    private final Map<String, Long> resources = new HashMap<String, Long>();
+
+    /** Sequence number of the latest write by user login */
+    private final Map<String, Long> users = new HashMap<String, Long>();
+
+  }
+
+}
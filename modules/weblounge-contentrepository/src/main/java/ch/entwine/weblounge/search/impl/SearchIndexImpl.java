@@ -36,14 +36,18 @@ import ch.entwine.weblounge.common.content.image.ImageResource;
 import ch.entwine.weblounge.common.content.movie.MovieResource;
 import ch.entwine.weblounge.common.content.page.Page;
 import ch.entwine.weblounge.common.impl.content.ResourceMetadataImpl;
+import ch.entwine.weblounge.common.impl.content.ResourceURIImpl;
 import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
 import ch.entwine.weblounge.common.impl.content.SearchResultImpl;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
 import ch.entwine.weblounge.common.impl.util.TestUtils;
+import ch.entwine.weblounge.common.impl.util.config.ConfigurationUtils;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
 import ch.entwine.weblounge.common.repository.ResourceSerializer;
 import ch.entwine.weblounge.common.repository.ResourceSerializerService;
 import ch.entwine.weblounge.common.search.SearchIndex;
 import ch.entwine.weblounge.common.security.Securable.Order;
+import ch.entwine.weblounge.common.security.User;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.PathUtils;
 import ch.entwine.weblounge.search.impl.elasticsearch.ElasticSearchDocument;
@@ -73,10 +77,12 @@ import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.update.UpdateRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.IndicesAdminClient;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.node.Node;
@@ -94,12 +100,28 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A search index implementation based on ElasticSearch.
+ * <p>
+ * By default, every write is made searchable right away by refreshing the
+ * index as part of the write. In near-real-time mode, the index is instead
+ * refreshed periodically, and concurrent writes are grouped into shared bulk
+ * requests. Queries that ask for resources with pending writes or that are
+ * issued by a user with pending writes have the index refreshed first, so
+ * that editors always see their own changes.
  */
 public class SearchIndexImpl implements SearchIndex {
 
@@ -112,6 +134,33 @@ public class SearchIndexImpl implements SearchIndex {
   /** Type of the document containing the index version information */
   private static final String VERSION_TYPE = "version";
 
+  /** Script that replaces the alternate versions of a document */
+  private static final String ALTERNATE_VERSION_SCRIPT = "ctx._source." + ALTERNATE_VERSION + " = " + ALTERNATE_VERSION;
+
+  /** Name of the index setting that defines the periodic refresh */
+  private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+  /** Elasticsearch's default refresh interval */
+  private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+  /** Configuration key for the write mode */
+  public static final String OPT_WRITE_MODE = "ch.entwine.weblounge.search.writemode";
+
+  /** Configuration key for the refresh interval in near-real-time mode */
+  public static final String OPT_NRT_REFRESH_INTERVAL = "ch.entwine.weblounge.search.refresh";
+
+  /** Write mode that makes every write searchable immediately */
+  public static final String WRITE_MODE_IMMEDIATE = "immediate";
+
+  /** Write mode that makes writes searchable with the next refresh */
+  public static final String WRITE_MODE_NRT = "nrt";
+
+  /** Default write mode */
+  private static final String DEFAULT_WRITE_MODE = WRITE_MODE_IMMEDIATE;
+
+  /** Default refresh interval in near-real-time mode in milliseconds */
+  private static final long DEFAULT_NRT_REFRESH_INTERVAL = 1000L;
+
   /** Lock object for {@code elasticSearch} */
   private static final Object elasticSearchLock = new Object();
 
@@ -136,6 +185,32 @@ public class SearchIndexImpl implements SearchIndex {
   /** The resource serializer */
   protected ResourceSerializerService resourceSerializer = null;
 
+  /** The cached query results */
+  private final SearchResultCache resultCache = new SearchResultCache();
+
+  /** Indices with bulk operations that have not been refreshed yet */
+  private final Set<String> bulkIndices = new HashSet<String>();
+
+  /** True to have writes made searchable by the periodic refresh */
+  protected boolean nearRealTime = false;
+
+  /** Refresh interval in near-real-time mode in milliseconds */
+  protected long refreshInterval = DEFAULT_NRT_REFRESH_INTERVAL;
+
+  /** Writes that have not been refreshed yet */
+  private final PendingWrites pendingWrites = new PendingWrites();
+
+  /** The queue that groups concurrent writes in near-real-time mode */
+  private final BulkRequestQueue<ElasticSearchDocument> bulkQueue = new BulkRequestQueue<ElasticSearchDocument>(new BulkRequestQueue.Handler<ElasticSearchDocument>() {
+    public String[] execute(List<ElasticSearchDocument> documents)
+        throws Exception {
+      return post(false, documents);
+    }
+  });
+
+  /** The executor running the periodic refresh in near-real-time mode */
+  private ScheduledExecutorService refreshExecutor = null;
+
   /**
    * OSGi callback to activate this component instance.
    * 
@@ -145,6 +220,25 @@ public class SearchIndexImpl implements SearchIndex {
    *           if the search index cannot be initialized
    */
   protected void activate(ComponentContext ctx) throws IOException {
+    String writeMode = StringUtils.trimToNull(ctx.getBundleContext().getProperty(OPT_WRITE_MODE));
+    if (writeMode == null)
+      writeMode = DEFAULT_WRITE_MODE;
+    if (WRITE_MODE_NRT.equalsIgnoreCase(writeMode))
+      nearRealTime = true;
+    else if (!WRITE_MODE_IMMEDIATE.equalsIgnoreCase(writeMode))
+      logger.warn("Unknown search index write mode '{}', using '{}'", writeMode, DEFAULT_WRITE_MODE);
+
+    String interval = StringUtils.trimToNull(ctx.getBundleContext().getProperty(OPT_NRT_REFRESH_INTERVAL));
+    if (interval != null) {
+      try {
+        refreshInterval = ConfigurationUtils.parseDuration(interval);
+      } catch (IllegalArgumentException e) {
+        logger.warn("Unable to parse search index refresh interval '{}', using default", interval);
+      }
+      if (refreshInterval <= 0)
+        refreshInterval = DEFAULT_NRT_REFRESH_INTERVAL;
+    }
+
     try {
       init();
     } catch (Throwable t) {
@@ -197,8 +291,112 @@ public class SearchIndexImpl implements SearchIndex {
 
     // See if the index version exists and check if it matches.
     String indexName = query.getSite().getIdentifier();
+
+    // Make sure the query sees the pending writes it depends on
+    if (nearRealTime) {
+      User user = SecurityUtils.getUser();
+      String login = user != null ? user.getLogin() : null;
+      long sequence = pendingWrites.getPending(indexName, query.getIdentifier(), login);
+      if (sequence > 0)
+        refresh(indexName, sequence);
+    }
+
+    SearchRequestBuilder requestBuilder = createRequest(query);
+
+    // Try the result cache first. Results are stored with the generation of
+    // the index that was current before the query was sent, so they are
+    // dropped if the index is modified in the meantime.
+    String key = createCacheKey(query, requestBuilder);
+    SearchResultCache.Generation generation = resultCache.getGeneration(indexName);
+    SearchResultCache.Hits hits = key != null ? generation.get(key) : null;
+    boolean cached = hits != null;
+
+    try {
+
+      if (hits == null) {
+
+        // Execute the query and try to get hold of a query response
+        SearchResponse response = null;
+        try {
+          response = nodeClient.search(requestBuilder.request()).actionGet();
+        } catch (Throwable t) {
+          throw new ContentRepositoryException(t);
+        }
+
+        hits = new SearchResultCache.Hits(response.getHits().getTotalHits(), response.getTookInMillis());
+        for (SearchHit doc : response.getHits()) {
+
+          // Wrap the search result metadata
+          List<ResourceMetadata<?>> metadata = new ArrayList<ResourceMetadata<?>>(doc.getFields().size());
+          for (SearchHitField field : doc.getFields().values()) {
+            String name = field.getName();
+            ResourceMetadata<Object> m = new ResourceMetadataImpl<Object>(name);
+            // TODO: Add values with more care (localized, correct type etc.)
+            if (field.getValues().size() > 1) {
+              for (Object v : field.getValues()) {
+                m.addValue(v);
+              }
+            } else {
+              m.addValue(field.getValue());
+            }
+            metadata.add(m);
+          }
+
+          // Remember the hit along with its score
+          hits.add(doc.getType(), doc.getScore(), metadata);
+        }
+
+        if (key != null)
+          generation.put(key, hits);
+      }
+
+      // Create and configure the query result
+      long size = hits.getHits().size();
+      SearchResultImpl result = new SearchResultImpl(query, hits.getTotalHits(), size);
+      result.setSearchTime(cached ? 0 : hits.getSearchTime());
+
+      // Walk through response and create new items with title, creator, etc:
+      for (SearchResultCache.Hit doc : hits.getHits()) {
+
+        // Get the resource serializer
+        ResourceSerializer<?, ?> serializer = resourceSerializer.getSerializerByType(doc.type);
+        if (serializer == null) {
+          logger.warn("Skipping search result due to missing serializer of type {}", doc.type);
+          size--;
+          continue;
+        }
+
+        // Have the serializer in charge create a type-specific search result
+        // item
+        try {
+          List<ResourceMetadata<?>> metadata = new ArrayList<ResourceMetadata<?>>(doc.metadata);
+          SearchResultItem item = serializer.toSearchResultItem(query.getSite(), doc.score, metadata);
+          result.addResultItem(item);
+        } catch (Throwable t) {
+          logger.warn("Error during search result serialization: '{}'. Skipping this search result.", t.getMessage());
+          size--;
+          continue;
+        }
+      }
+
+      result.setDocumentCount(size);
+      return result;
+
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Error querying index", t);
+    }
+  }
+
+  /**
+   * Creates the search request for the given query.
+   * 
+   * @param query
+   *          the query
+   * @return the search request
+   */
+  SearchRequestBuilder createRequest(SearchQuery query) {
     SearchRequestBuilder requestBuilder = new SearchRequestBuilder(nodeClient);
-    requestBuilder.setIndices(indexName);
+    requestBuilder.setIndices(query.getSite().getIdentifier());
     requestBuilder.setSearchType(SearchType.QUERY_THEN_FETCH);
     requestBuilder.setPreference("_local");
 
@@ -218,11 +416,7 @@ public class SearchIndexImpl implements SearchIndex {
     }
 
     // Restrict the scope to the given type
-    if (query.getTypes().length > 0) {
-      requestBuilder.setTypes(query.getTypes());
-    } else {
-      requestBuilder.setTypes(FileResource.TYPE, ImageResource.TYPE, MovieResource.TYPE, Page.TYPE);
-    }
+    requestBuilder.setTypes(getTypes(query));
 
     // Pagination
     if (query.getOffset() >= 0)
@@ -282,71 +476,47 @@ public class SearchIndexImpl implements SearchIndex {
     // requestBuilder.addSort(IndexSchema.SCORE, SortOrder.DESC);
     // }
 
-    try {
-
-      // Execute the query and try to get hold of a query response
-      SearchResponse response = null;
-      try {
-        response = nodeClient.search(requestBuilder.request()).actionGet();
-      } catch (Throwable t) {
-        throw new ContentRepositoryException(t);
-      }
-
-      // Create and configure the query result
-      long hits = response.getHits().getTotalHits();
-      long size = response.getHits().getHits().length;
-      SearchResultImpl result = new SearchResultImpl(query, hits, size);
-      result.setSearchTime(response.getTookInMillis());
-
-      // Walk through response and create new items with title, creator, etc:
-      for (SearchHit doc : response.getHits()) {
-
-        // Get the resource serializer
-        String type = doc.getType();
-        ResourceSerializer<?, ?> serializer = resourceSerializer.getSerializerByType(type);
-        if (serializer == null) {
-          logger.warn("Skipping search result due to missing serializer of type {}", type);
-          size--;
-          continue;
-        }
-
-        // Wrap the search result metadata
-        List<ResourceMetadata<?>> metadata = new ArrayList<ResourceMetadata<?>>(doc.getFields().size());
-        for (SearchHitField field : doc.getFields().values()) {
-          String name = field.getName();
-          ResourceMetadata<Object> m = new ResourceMetadataImpl<Object>(name);
-          // TODO: Add values with more care (localized, correct type etc.)
-          if (field.getValues().size() > 1) {
-            for (Object v : field.getValues()) {
-              m.addValue(v);
-            }
-          } else {
-            m.addValue(field.getValue());
-          }
-          metadata.add(m);
-        }
-
-        // Get the score for this item
-        float score = doc.getScore();
-
-        // Have the serializer in charge create a type-specific search result
-        // item
-        try {
-          SearchResultItem item = serializer.toSearchResultItem(query.getSite(), score, metadata);
-          result.addResultItem(item);
-        } catch (Throwable t) {
-          logger.warn("Error during search result serialization: '{}'. Skipping this search result.", t.getMessage());
-          size--;
-          continue;
-        }
-      }
+    return requestBuilder;
+  }
 
-      result.setDocumentCount(size);
-      return result;
+  /**
+   * Returns the key that identifies the result of <code>request</code> in the
+   * result cache or <code>null</code> if the result must not be cached.
+   * <p>
+   * The key consists of the resource types and the request in its serialized
+   * form, which includes the access control clauses and therefore the user's
+   * roles. Queries that ask for more recent documents to be boosted are not
+   * cached, since the boost depends on the current time.
+   * 
+   * @param query
+   *          the query
+   * @param request
+   *          the search request that was created from the query
+   * @return the cache key
+   */
+  static String createCacheKey(SearchQuery query, SearchRequestBuilder request) {
+    if (query.getRecencyPriority())
+      return null;
+    StringBuilder key = new StringBuilder();
+    for (String type : getTypes(query))
+      key.append(type).append(',');
+    key.append(request.toString());
+    return key.toString();
+  }
 
-    } catch (Throwable t) {
-      throw new ContentRepositoryException("Error querying index", t);
-    }
+  /**
+   * Returns the resource types that the query is restricted to, which are all
+   * types if the query does not name any.
+   * 
+   * @param query
+   *          the query
+   * @return the resource types
+   */
+  private static String[] getTypes(SearchQuery query) {
+    String[] types = query.getTypes();
+    if (types.length == 0)
+      types = new String[] { FileResource.TYPE, ImageResource.TYPE, MovieResource.TYPE, Page.TYPE };
+    return types;
   }
 
   /**
@@ -367,9 +537,15 @@ public class SearchIndexImpl implements SearchIndex {
       }
     } catch (Throwable t) {
       throw new IOException("Cannot clear index", t);
+    } finally {
+      resultCache.invalidate(site.getIdentifier());
     }
 
     preparedIndices.remove(site.getIdentifier());
+    synchronized (bulkIndices) {
+      bulkIndices.remove(site.getIdentifier());
+    }
+    pendingWrites.clear(site.getIdentifier());
   }
 
   /**
@@ -385,9 +561,15 @@ public class SearchIndexImpl implements SearchIndex {
         logger.error("Indices could not be deleted");
     } catch (Throwable t) {
       throw new IOException("Cannot clear index", t);
+    } finally {
+      resultCache.clear();
     }
 
     preparedIndices.clear();
+    synchronized (bulkIndices) {
+      bulkIndices.clear();
+    }
+    pendingWrites.clear();
   }
 
   /**
@@ -406,16 +588,29 @@ public class SearchIndexImpl implements SearchIndex {
     String type = uri.getType();
     String uid = uri.getUID();
 
+    // Remember the other versions of the resource before the document is gone
+    Set<Long> alternateVersions = getAlternateVersions(uri);
+
+    // If the other versions need to be updated, refresh after the last update
+    boolean updateVersions = alternateVersions != null && alternateVersions.size() > 0;
     DeleteRequestBuilder deleteRequest = nodeClient.prepareDelete(index, type, uid);
-    deleteRequest.setRefresh(true);
-    DeleteResponse delete = deleteRequest.execute().actionGet();
+    deleteRequest.setRefresh(!nearRealTime && !updateVersions);
+    DeleteResponse delete = null;
+    try {
+      delete = deleteRequest.execute().actionGet();
+    } finally {
+      resultCache.invalidate(index);
+    }
     if (delete.notFound()) {
       logger.trace("Document {} to delete was not found", uri);
       return false;
     }
+    if (nearRealTime)
+      written(index, Arrays.asList(uri.getIdentifier()));
 
-    // Adjust the version information
-    updateVersions(uri);
+    // Remove the version from the other versions' information
+    if (updateVersions)
+      updateVersions(uri, alternateVersions, alternateVersions);
 
     return true;
   }
@@ -444,6 +639,206 @@ public class SearchIndexImpl implements SearchIndex {
     return true;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The periodic refresh of the affected indices is suspended until
+   * {@link #refresh(Site)} is called, so that the bulk operations are not
+   * slowed down by the creation of lots of small index segments.
+   * 
+   * @see ch.entwine.weblounge.common.search.SearchIndex#addAll(java.util.Collection)
+   */
+  @Override
+  public List<Resource<?>> addAll(Collection<? extends Resource<?>> resources)
+      throws ContentRepositoryException {
+    List<Resource<?>> added = new ArrayList<Resource<?>>(resources.size());
+    if (resources.isEmpty())
+      return added;
+
+    logger.debug("Adding {} resources to search index", resources.size());
+
+    // Turn each resource into its metadata, skipping those that the index
+    // cannot handle, and collect the versions of each resource
+    Map<String, Map<Resource<?>, List<ResourceMetadata<?>>>> versions = new LinkedHashMap<String, Map<Resource<?>, List<ResourceMetadata<?>>>>();
+    for (Resource<?> resource : resources) {
+      ResourceURI uri = resource.getURI();
+      List<ResourceMetadata<?>> resourceMetadata = null;
+      try {
+        if (Order.DenyAllow.equals(resource.getAllowDenyOrder()))
+          throw new NotImplementedException("The index does not (yet) support resources with DENY-ALLOW ACL order");
+        ResourceSerializer<?, ?> serializer = resourceSerializer.getSerializerByType(uri.getType());
+        if (serializer == null)
+          throw new ContentRepositoryException("No serializer found");
+        resourceMetadata = serializer.toMetadata(resource);
+      } catch (Throwable t) {
+        logger.warn("Skipping {}, since it cannot be added to the index: {}", uri, t.getMessage());
+        continue;
+      }
+      String key = uri.getSite().getIdentifier() + "/" + uri.getIdentifier();
+      Map<Resource<?>, List<ResourceMetadata<?>>> resourceVersions = versions.get(key);
+      if (resourceVersions == null) {
+        resourceVersions = new LinkedHashMap<Resource<?>, List<ResourceMetadata<?>>>(4);
+        versions.put(key, resourceVersions);
+      }
+      resourceVersions.put(resource, resourceMetadata);
+    }
+
+    // Create the input documents, including the alternate version information
+    List<ElasticSearchDocument> documents = new ArrayList<ElasticSearchDocument>(resources.size());
+    Set<Site> sites = new HashSet<Site>();
+    for (Map<Resource<?>, List<ResourceMetadata<?>>> resourceVersions : versions.values()) {
+      for (Map.Entry<Resource<?>, List<ResourceMetadata<?>>> entry : resourceVersions.entrySet()) {
+        ResourceURI uri = entry.getKey().getURI();
+        List<ResourceMetadata<?>> resourceMetadata = entry.getValue();
+        ResourceMetadataImpl<Long> alternateVersions = new ResourceMetadataImpl<Long>(ALTERNATE_VERSION);
+        alternateVersions.setAddToFulltext(false);
+        for (Resource<?> v : resourceVersions.keySet()) {
+          if (v.getURI().getVersion() != uri.getVersion())
+            alternateVersions.addValue(v.getURI().getVersion());
+        }
+        if (alternateVersions.getValues().size() > 0)
+          resourceMetadata.add(alternateVersions);
+        documents.add(new ElasticSearchDocument(uri, resourceMetadata));
+        sites.add(uri.getSite());
+        added.add(entry.getKey());
+      }
+    }
+    if (documents.isEmpty())
+      return added;
+
+    // Suspend the periodic refresh and post the documents
+    for (Site site : sites) {
+      ensureSiteIndexExists(site);
+      suspendRefresh(site.getIdentifier());
+    }
+    String[] failures = null;
+    try {
+      failures = post(false, documents);
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Cannot add documents to index", t);
+    }
+
+    // Leave out the documents that were rejected by the index
+    if (failures != null) {
+      for (int i = failures.length - 1; i >= 0; i--) {
+        if (failures[i] != null)
+          added.remove(i);
+      }
+    }
+    return added;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.search.SearchIndex#refresh(ch.entwine.weblounge.common.site.Site)
+   */
+  @Override
+  public void refresh(Site site) throws ContentRepositoryException {
+    ensureSiteIndexExists(site);
+    String index = site.getIdentifier();
+    long sequence = pendingWrites.getSequence(index);
+    try {
+      resumeRefresh(index);
+      nodeClient.admin().indices().prepareRefresh(index).execute().actionGet();
+      pendingWrites.refreshed(index, sequence);
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Cannot refresh index " + index, t);
+    } finally {
+      resultCache.invalidate(index);
+    }
+  }
+
+  /**
+   * Refreshes the index unless all writes up to <code>sequence</code> have
+   * been made searchable already. Concurrent callers share a single refresh.
+   * 
+   * @param index
+   *          the index name
+   * @param sequence
+   *          sequence number of the latest write that needs to be searchable
+   * @throws ContentRepositoryException
+   *           if refreshing the index fails
+   */
+  private void refresh(String index, long sequence)
+      throws ContentRepositoryException {
+    synchronized (pendingWrites.getLock(index)) {
+      if (pendingWrites.getRefreshed(index) >= sequence)
+        return;
+      long latest = pendingWrites.getSequence(index);
+      try {
+        nodeClient.admin().indices().prepareRefresh(index).execute().actionGet();
+        pendingWrites.refreshed(index, latest);
+      } catch (Throwable t) {
+        throw new ContentRepositoryException("Cannot refresh index " + index, t);
+      } finally {
+        resultCache.invalidate(index);
+      }
+    }
+  }
+
+  /**
+   * Refreshes the indices with pending writes, except for those that are
+   * being written in bulk.
+   */
+  private void refreshPendingWrites() {
+    for (String index : pendingWrites.getDirtyIndices()) {
+      synchronized (bulkIndices) {
+        if (bulkIndices.contains(index))
+          continue;
+      }
+      try {
+        refresh(index, pendingWrites.getSequence(index));
+      } catch (Throwable t) {
+        logger.warn("Error refreshing index '{}': {}", index, t.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Records a write to the given resources by the current user.
+   * 
+   * @param index
+   *          the index name
+   * @param ids
+   *          the resource identifiers
+   */
+  private void written(String index, Collection<String> ids) {
+    User user = SecurityUtils.getUser();
+    pendingWrites.written(index, ids, user != null ? user.getLogin() : null);
+  }
+
+  /**
+   * Turns off the periodic refresh of the index.
+   * 
+   * @param index
+   *          the index name
+   */
+  private void suspendRefresh(String index) {
+    synchronized (bulkIndices) {
+      if (!bulkIndices.add(index))
+        return;
+      logger.debug("Suspending periodic refresh of index '{}'", index);
+      nodeClient.admin().indices().prepareUpdateSettings(index).setSettings(ImmutableSettings.settingsBuilder().put(REFRESH_INTERVAL, "-1")).execute().actionGet();
+    }
+  }
+
+  /**
+   * Turns the periodic refresh of the index back on if it has been suspended
+   * by {@link #suspendRefresh(String)}.
+   * 
+   * @param index
+   *          the index name
+   */
+  private void resumeRefresh(String index) {
+    synchronized (bulkIndices) {
+      if (!bulkIndices.remove(index))
+        return;
+      logger.debug("Resuming periodic refresh of index '{}'", index);
+      nodeClient.admin().indices().prepareUpdateSettings(index).setSettings(ImmutableSettings.settingsBuilder().put(REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL)).execute().actionGet();
+    }
+  }
+
   /**
    * Adds the given resource to the search index.
    * 
@@ -468,17 +863,43 @@ public class SearchIndexImpl implements SearchIndex {
     if (serializer == null)
       throw new ContentRepositoryException("Unable to create an input document for " + resource + ": no serializer found");
 
-    // Add the resource to the index
+    // Find the other versions of the resource. If the version is not new,
+    // the information is available from the existing document.
+    Set<Long> alternateVersions = getAlternateVersions(uri);
+    boolean created = alternateVersions == null;
+    if (created) {
+      alternateVersions = getVersions(uri);
+      alternateVersions.remove(uri.getVersion());
+    }
+
+    // Add the resource to the index, including the alternate version
+    // information
     List<ResourceMetadata<?>> resourceMetadata = serializer.toMetadata(resource);
+    if (alternateVersions.size() > 0) {
+      ResourceMetadataImpl<Long> alternateVersionMetadata = new ResourceMetadataImpl<Long>(ALTERNATE_VERSION);
+      alternateVersionMetadata.setAddToFulltext(false);
+      for (Long version : alternateVersions)
+        alternateVersionMetadata.addValue(version);
+      resourceMetadata.add(alternateVersionMetadata);
+    }
+    // If the other versions need to be updated, refresh after the last update
+    boolean updateVersions = created && alternateVersions.size() > 0;
     ElasticSearchDocument doc = new ElasticSearchDocument(uri, resourceMetadata);
     try {
-      update(doc);
+      if (updateVersions && !nearRealTime)
+        update(false, doc);
+      else
+        update(doc);
     } catch (Throwable t) {
       throw new ContentRepositoryException("Cannot write resource " + resource + " to index", t);
     }
 
-    // Adjust the version information
-    updateVersions(uri);
+    // Let the other versions know about the new one
+    if (updateVersions) {
+      Set<Long> versions = new HashSet<Long>(alternateVersions);
+      versions.add(uri.getVersion());
+      updateVersions(uri, versions, alternateVersions);
+    }
   }
 
   private void ensureSiteIndexExists(Site site) throws ContentRepositoryException {
@@ -494,110 +915,206 @@ public class SearchIndexImpl implements SearchIndex {
   }
 
   /**
-   * Aligns the information on alternate resource versions in the search index,
-   * which is needed to support querying by preferred version.
+   * Returns the versions of the resource other than the one that
+   * <code>uri</code> is pointing to, as stored with the resource's document,
+   * or <code>null</code> if there is no such document. Since the document is
+   * retrieved in real time, the result includes writes that have not been
+   * refreshed yet.
    * 
    * @param uri
-   *          uri of the resource to update
+   *          uri of the resource version
+   * @return the alternate versions
    * @throws ContentRepositoryException
-   *           if updating fails
+   *           if accessing the index fails
    */
-  private void updateVersions(ResourceURI uri)
+  private Set<Long> getAlternateVersions(ResourceURI uri)
       throws ContentRepositoryException {
-
-    String resourceType = uri.getType();
-    ResourceSerializer<?, ?> serializer = resourceSerializer.getSerializerByType(resourceType);
-    if (serializer == null)
-      throw new ContentRepositoryException("Unable to create an input document for " + uri + ": no serializer found");
-
-    // List all versions of the resource
-    List<Resource<?>> resources = new ArrayList<Resource<?>>();
-    Site site = uri.getSite();
-    String id = uri.getIdentifier();
-    SearchQuery q = new SearchQueryImpl(site).withIdentifier(id);
-    for (SearchResultItem existingResource : getByQuery(q).getItems()) {
-      List<ResourceMetadata<?>> resourceMetadata = ((ResourceSearchResultItem) existingResource).getMetadata();
-      resources.add(serializer.toResource(site, resourceMetadata));
+    GetRequestBuilder getRequest = nodeClient.prepareGet(uri.getSite().getIdentifier(), uri.getType(), uri.getUID());
+    getRequest.setFields(ALTERNATE_VERSION);
+    getRequest.setRealtime(true);
+    try {
+      GetResponse response = getRequest.execute().actionGet();
+      if (!response.exists())
+        return null;
+      Set<Long> versions = new HashSet<Long>();
+      GetField field = response.field(ALTERNATE_VERSION);
+      if (field != null) {
+        for (Object version : field.getValues())
+          versions.add(Long.valueOf(version.toString()));
+      }
+      return versions;
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Cannot read versions of resource " + uri + " from index", t);
     }
+  }
 
-    if (resources.size() == 0)
-      return;
+  /**
+   * Returns all versions of the resource that are found in the index.
+   * 
+   * @param uri
+   *          uri of the resource
+   * @return the versions
+   * @throws ContentRepositoryException
+   *           if querying the index fails
+   */
+  private Set<Long> getVersions(ResourceURI uri)
+      throws ContentRepositoryException {
+    Set<Long> versions = new HashSet<Long>();
+    SearchQuery q = new SearchQueryImpl(uri.getSite()).withIdentifier(uri.getIdentifier()).withField(VERSION);
+    for (SearchResultItem item : getByQuery(q).getItems()) {
+      ResourceMetadata<?> version = ((ResourceSearchResultItem) item).getMetadataByKey(VERSION);
+      if (version != null && version.getValues().size() > 0)
+        versions.add(((Number) version.getValue()).longValue());
+    }
+    return versions;
+  }
 
-    // Add the alternate version information to each resource's metadata and
-    // write it back to the search index (including the new one)
-    List<ElasticSearchDocument> documents = new ArrayList<ElasticSearchDocument>();
-    for (Resource<?> r : resources) {
-      List<ResourceMetadata<?>> resourceMetadata = serializer.toMetadata(r);
-      ResourceMetadataImpl<Long> alternateVersions = new ResourceMetadataImpl<Long>(ALTERNATE_VERSION);
-      alternateVersions.setAddToFulltext(false);
-
-      // Look for alternate versions
-      long currentVersion = r.getURI().getVersion();
-      for (Resource<?> v : resources) {
-        long version = v.getURI().getVersion();
-        if (version != currentVersion) {
-          alternateVersions.addValue(version);
-        }
+  /**
+   * Aligns the information on alternate resource versions in the search index,
+   * which is needed to support querying by preferred version. The alternate
+   * version field of the documents is set by a script, which means that the
+   * documents are re-indexed from their stored source.
+   * <p>
+   * Unless the index is in near-real-time mode, the index is refreshed
+   * together with the last update, which also makes preceding writes
+   * searchable that have been posted without a refresh.
+   * 
+   * @param uri
+   *          uri of the resource to update
+   * @param versions
+   *          the versions of the resource that are found in the index
+   * @param documents
+   *          the versions whose documents need to be updated
+   * @throws ContentRepositoryException
+   *           if updating fails
+   */
+  private void updateVersions(ResourceURI uri, Set<Long> versions,
+      Set<Long> documents) throws ContentRepositoryException {
+    String index = uri.getSite().getIdentifier();
+    try {
+      int remaining = documents.size();
+      for (Long version : documents) {
+        List<Long> alternateVersions = new ArrayList<Long>(versions);
+        alternateVersions.remove(version);
+        String uid = new ResourceURIImpl(uri, version).getUID();
+        UpdateRequestBuilder updateRequest = nodeClient.prepareUpdate(index, uri.getType(), uid);
+        updateRequest.setScript(ALTERNATE_VERSION_SCRIPT);
+        updateRequest.addScriptParam(ALTERNATE_VERSION, alternateVersions);
+        updateRequest.setRefresh(!nearRealTime && --remaining == 0);
+        updateRequest.execute().actionGet();
       }
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Cannot update versions of resource " + uri + " in index", t);
+    } finally {
+      resultCache.invalidate(index);
+    }
 
-      // If alternate versions were found, add them
-      if (alternateVersions.getValues().size() > 0) {
-        resourceMetadata.add(alternateVersions);
-      }
+    if (nearRealTime)
+      written(index, Arrays.asList(uri.getIdentifier()));
+  }
 
-      // Write the resource to the index
-      documents.add(new ElasticSearchDocument(r.getURI(), resourceMetadata));
+  /**
+   * Posts the input documents to the search index. Depending on the write
+   * mode, the documents are either searchable immediately or with the next
+   * refresh of the index.
+   * 
+   * @param documents
+   *          the input documents
+   * @throws ContentRepositoryException
+   *           if posting to the index fails
+   */
+  protected void update(ElasticSearchDocument... documents)
+      throws ContentRepositoryException {
+    if (!nearRealTime) {
+      update(true, documents);
+      return;
     }
 
-    // Now update all documents at once
-    try {
-      update(documents.toArray(new ElasticSearchDocument[documents.size()]));
-    } catch (Throwable t) {
-      throw new ContentRepositoryException("Cannot update versions of resource " + uri + " in index", t);
+    bulkQueue.write(Arrays.asList(documents));
+
+    // Remember the writes until the next refresh
+    Map<String, List<String>> ids = new HashMap<String, List<String>>();
+    for (ElasticSearchDocument doc : documents) {
+      String index = doc.getSite().getIdentifier();
+      List<String> indexIds = ids.get(index);
+      if (indexIds == null) {
+        indexIds = new ArrayList<String>(documents.length);
+        ids.put(index, indexIds);
+      }
+      indexIds.add(doc.getURI().getIdentifier());
     }
+    for (Map.Entry<String, List<String>> entry : ids.entrySet())
+      written(entry.getKey(), entry.getValue());
   }
 
   /**
-   * Posts the input document to the search index.
+   * Posts the input documents to the search index.
    * 
-   * @param site
-   *          the site that these documents belong to
+   * @param refresh
+   *          <code>true</code> to make the documents searchable immediately
    * @param documents
    *          the input documents
-   * @return the query response
    * @throws ContentRepositoryException
    *           if posting to the index fails
    */
-  protected BulkResponse update(ElasticSearchDocument... documents)
+  private void update(boolean refresh, ElasticSearchDocument... documents)
       throws ContentRepositoryException {
+    String[] failures = null;
+    try {
+      failures = post(refresh, Arrays.asList(documents));
+    } catch (Throwable t) {
+      throw new ContentRepositoryException("Cannot update documents in index", t);
+    }
+    if (failures != null) {
+      for (String failure : failures) {
+        if (failure != null)
+          throw new ContentRepositoryException("Cannot update documents in index: " + failure);
+      }
+    }
+  }
 
+  /**
+   * Sends the input documents to the search index as one bulk request and
+   * returns the failure messages of the documents that could not be written.
+   * 
+   * @param refresh
+   *          <code>true</code> to make the documents searchable immediately
+   * @param documents
+   *          the input documents
+   * @return the failure messages by document, or <code>null</code> if all
+   *         documents were written
+   */
+  private String[] post(boolean refresh, List<ElasticSearchDocument> documents) {
     BulkRequestBuilder bulkRequest = nodeClient.prepareBulk();
+    Set<String> indices = new HashSet<String>();
     for (ElasticSearchDocument doc : documents) {
       String index = doc.getSite().getIdentifier();
       String type = doc.getType();
       String uid = doc.getUID();
       bulkRequest.add(nodeClient.prepareIndex(index, type, uid).setSource(doc));
+      indices.add(index);
     }
 
     // Make sure the operations are searchable immediately
-    bulkRequest.setRefresh(true);
+    bulkRequest.setRefresh(refresh);
 
     try {
       BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-
-      // Check for errors
-      if (bulkResponse.hasFailures()) {
-        for (BulkItemResponse item : bulkResponse.items()) {
-          if (item.isFailed()) {
-            logger.warn("Error updating {}: {}", item, item.failureMessage());
-            throw new ContentRepositoryException(item.getFailureMessage());
-          }
+      if (!bulkResponse.hasFailures())
+        return null;
+
+      // Collect the errors
+      String[] failures = new String[documents.size()];
+      for (BulkItemResponse item : bulkResponse.items()) {
+        if (item.isFailed()) {
+          logger.warn("Error updating {}: {}", item, item.failureMessage());
+          failures[item.getItemId()] = item.getFailureMessage();
         }
       }
-
-      return bulkResponse;
-    } catch (Throwable t) {
-      throw new ContentRepositoryException("Cannot update documents in index", t);
+      return failures;
+    } finally {
+      for (String index : indices)
+        resultCache.invalidate(index);
     }
   }
 
@@ -708,6 +1225,23 @@ public class SearchIndexImpl implements SearchIndex {
         elasticSearchClients.add(nodeClient);
       }
     }
+
+    // Start the periodic refresh
+    if (nearRealTime && refreshExecutor == null) {
+      logger.info("Search index refreshes every {} in near-real-time mode", ConfigurationUtils.toHumanReadableDuration(refreshInterval));
+      refreshExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Search index refresh");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      refreshExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          refreshPendingWrites();
+        }
+      }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
   }
 
   /**
@@ -717,8 +1251,16 @@ public class SearchIndexImpl implements SearchIndex {
    *           if stopping the Elasticsearch node fails
    */
   protected void close() throws IOException {
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+      refreshExecutor = null;
+    }
+
     try {
       if (nodeClient != null) {
+        if (nearRealTime)
+          logger.info("Search index wrote {}", bulkQueue);
+        logger.info("Closing search index, {}", resultCache);
         nodeClient.close();
 
         synchronized (elasticSearchLock) {
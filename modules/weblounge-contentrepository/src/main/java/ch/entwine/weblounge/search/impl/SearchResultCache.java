@@ -0,0 +1,323 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import ch.entwine.weblounge.common.content.ResourceMetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the hits of search index queries.
+ * <p>
+ * Every site index has a generation, which is replaced whenever a document in
+ * the index is written or removed. Query results are stored with the
+ * generation that was current when the query was sent to the index, so a
+ * result that is computed while the index is being modified is never handed
+ * out once the modification is complete.
+ * <p>
+ * The cache stores the raw hits rather than search result items, since the
+ * items and the resources created from them are mutable and must not be
+ * shared between callers.
+ */
+final class SearchResultCache {
+
+  /** Default maximum number of cached queries per site */
+  static final int DEFAULT_CACHE_SIZE = 512;
+
+  /** The current generation of every site index */
+  private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+  /** Maximum number of cached queries per site */
+  private final int cacheSize;
+
+  /** Number of queries answered from the cache */
+  private final AtomicLong hits = new AtomicLong();
+
+  /** Number of queries that needed to be sent to the index */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a new cache that holds up to {@link #DEFAULT_CACHE_SIZE} queries
+   * per site.
+   */
+  SearchResultCache() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a new cache that holds up to <code>cacheSize</code> queries per
+   * site.
+   * 
+   * @param cacheSize
+   *          the maximum number of cached queries per site
+   */
+  SearchResultCache(int cacheSize) {
+    this.cacheSize = cacheSize;
+  }
+
+  /**
+   * Returns the current generation of the given site's index.
+   * 
+   * @param site
+   *          the site identifier
+   * @return the generation
+   */
+  Generation getGeneration(String site) {
+    Generation generation = generations.get(site);
+    if (generation == null) {
+      generation = new Generation(0, cacheSize);
+      Generation existing = generations.putIfAbsent(site, generation);
+      if (existing != null)
+        generation = existing;
+    }
+    return generation;
+  }
+
+  /**
+   * Starts a new generation for the given site's index, which discards every
+   * query result of that site.
+   * 
+   * @param site
+   *          the site identifier
+   */
+  void invalidate(String site) {
+    while (true) {
+      Generation current = getGeneration(site);
+      Generation next = new Generation(current.number + 1, cacheSize);
+      if (generations.replace(site, current, next))
+        return;
+    }
+  }
+
+  /**
+   * Discards the query results of all sites.
+   */
+  void clear() {
+    for (String site : generations.keySet())
+      invalidate(site);
+  }
+
+  /**
+   * Returns the number of queries that have been answered from the cache.
+   * 
+   * @return the number of cache hits
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of queries that have not been found in the cache.
+   * 
+   * @return the number of cache misses
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    long hits = getHits();
+    long total = hits + getMisses();
+    return "search result cache: " + hits + " of " + total + " queries answered from cache";
+  }
+
+  /**
+   * The query results that were computed from one generation of a site index.
+   */
+  final class Generation {
+
+    /** The generation number */
+    private final long number;
+
+    /** The query results by query */
+    private final ConcurrentMap<String, Hits> results;
+
+    /**
+     * Creates a new generation.
+     * 
+     * @param number
+     *          the generation number
+     * @param cacheSize
+     *          the maximum number of cached queries
+     */
+    Generation(long number, int cacheSize) {
+      this.number = number;
+      this.results = new ConcurrentHashMap<String, Hits>(Math.min(cacheSize, 64));
+    }
+
+    /**
+     * Returns the generation number.
+     * 
+     * @return the number
+     */
+    long getNumber() {
+      return number;
+    }
+
+    /**
+     * Returns the hits of the given query or <code>null</code> if the query
+     * result is not in the cache.
+     * 
+     * @param query
+     *          the normalized query
+     * @return the hits
+     */
+    Hits get(String query) {
+      Hits result = results.get(query);
+      if (result != null)
+        hits.incrementAndGet();
+      else
+        misses.incrementAndGet();
+      return result;
+    }
+
+    /**
+     * Stores the hits of the given query. Once the cache is full, it is
+     * discarded and populated again with what is requested from then on.
+     * 
+     * @param query
+     *          the normalized query
+     * @param result
+     *          the hits
+     */
+    void put(String query, Hits result) {
+      if (results.size() >= cacheSize)
+        results.clear();
+      results.put(query, result);
+    }
+
+  }
+
+  /**
+   * The hits of a query as returned by the index.
+   */
+  static final class Hits {
+
+    /** The total number of hits */
+    private final long totalHits;
+
+    /** The time it took to execute the query in milliseconds */
+    private final long searchTime;
+
+    /** The hits */
+    private final List<Hit> hits = new ArrayList<Hit>();
+
+    /**
+     * Creates a new, empty list of hits.
+     * 
+     * @param totalHits
+     *          the total number of hits
+     * @param searchTime
+     *          the time it took to execute the query
+     */
+    Hits(long totalHits, long searchTime) {
+      this.totalHits = totalHits;
+      this.searchTime = searchTime;
+    }
+
+    /**
+     * Adds a hit.
+     * 
+     * @param type
+     *          the resource type
+     * @param score
+     *          the score
+     * @param metadata
+     *          the stored fields of the document
+     */
+    void add(String type, float score, List<ResourceMetadata<?>> metadata) {
+      hits.add(new Hit(type, score, Collections.unmodifiableList(metadata)));
+    }
+
+    /**
+     * Returns the total number of hits, which may be higher than the number of
+     * hits that were returned.
+     * 
+     * @return the total number of hits
+     */
+    long getTotalHits() {
+      return totalHits;
+    }
+
+    /**
+     * Returns the time it took to execute the query.
+     * 
+     * @return the time in milliseconds
+     */
+    long getSearchTime() {
+      return searchTime;
+    }
+
+    /**
+     * Returns the hits.
+     * 
+     * @return the hits
+     */
+    List<Hit> getHits() {
+      return hits;
+    }
+
+  }
+
+  /**
+   * A single hit.
+   */
+  static final class Hit {
+
+    /** The resource type */
+    final String type;
+
+    /** The score */
+    final float score;
+
+    /** The stored fields of the document */
+    final List<ResourceMetadata<?>> metadata;
+
+    /**
+     * Creates a new hit.
+     * 
+     * @param type
+     *          the resource type
+     * @param score
+     *          the score
+     * @param metadata
+     *          the stored fields of the document
+     */
+    Hit(String type, float score, List<ResourceMetadata<?>> metadata) {
+      this.type = type;
+      this.score = score;
+      this.metadata = metadata;
+    }
+
+  }
+
+}
@@ -139,6 +139,15 @@ public final class ElasticSearchDocument extends HashMap<String, Object> {
 
   }
 
+  /**
+   * Returns the uri of the resource that this document represents.
+   * 
+   * @return the resource uri
+   */
+  public ResourceURI getURI() {
+    return uri;
+  }
+
   /**
    * Returns the document's associated site.
    * 
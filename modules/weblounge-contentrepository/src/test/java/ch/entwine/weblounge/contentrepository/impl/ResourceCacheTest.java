@@ -0,0 +1,178 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.impl.util.xml.SAXEventBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Test case for {@link ResourceCache}.
+ */
+public class ResourceCacheTest {
+
+  /** The resource identifier */
+  protected String id = "4bb19980-8f98-4873-a813-000000000006";
+
+  /** The other resource identifier */
+  protected String otherId = "4bb19980-8f98-4873-a813-000000000007";
+
+  /** The cache */
+  protected ResourceCache cache = null;
+
+  /** The recorded parser events */
+  protected SAXEventBuffer events = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    cache = new ResourceCache();
+    events = SAXEventBuffer.record(new ByteArrayInputStream("<page id=\"4bb19980\"><body/></page>".getBytes("utf-8")));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#put(String, long, SAXEventBuffer, long)}
+   * .
+   */
+  @Test
+  public void testPut() {
+    assertNull(cache.get(id, Resource.LIVE));
+    assertTrue(cache.put(id, Resource.LIVE, events, cache.getModifications()));
+    assertSame(events, cache.get(id, Resource.LIVE));
+    assertNull(cache.get(id, Resource.WORK));
+    assertEquals(1, cache.getResourceCount());
+    assertEquals(events.getSize(), cache.getSize());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#put(String, long, SAXEventBuffer, long)}
+   * with a modification that happened while the resource was loaded.
+   */
+  @Test
+  public void testPutModified() {
+    long modifications = cache.getModifications();
+    cache.invalidate(otherId, Resource.LIVE);
+    assertFalse(cache.put(id, Resource.LIVE, events, modifications));
+    assertNull(cache.get(id, Resource.LIVE));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#put(String, long, SAXEventBuffer, long)}
+   * with a cache that is full.
+   */
+  @Test
+  public void testEviction() {
+    cache = new ResourceCache(2 * events.getSize());
+    cache.put(id, Resource.LIVE, events, cache.getModifications());
+    cache.put(id, Resource.WORK, events, cache.getModifications());
+    cache.get(id, Resource.LIVE);
+    cache.put(otherId, Resource.LIVE, events, cache.getModifications());
+    assertEquals(2, cache.getResourceCount());
+    assertEquals(2 * events.getSize(), cache.getSize());
+    assertSame(events, cache.get(id, Resource.LIVE));
+    assertNull(cache.get(id, Resource.WORK));
+    assertSame(events, cache.get(otherId, Resource.LIVE));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#setCacheSize(long)}
+   * .
+   */
+  @Test
+  public void testSetCacheSize() {
+    cache.put(id, Resource.LIVE, events, cache.getModifications());
+    cache.put(id, Resource.WORK, events, cache.getModifications());
+    cache.get(id, Resource.LIVE);
+    cache.setCacheSize(events.getSize());
+    assertEquals(events.getSize(), cache.getCacheSize());
+    assertEquals(1, cache.getResourceCount());
+    assertEquals(events.getSize(), cache.getSize());
+    assertSame(events, cache.get(id, Resource.LIVE));
+    cache.setCacheSize(0);
+    assertEquals(0, cache.getResourceCount());
+    assertFalse(cache.put(id, Resource.LIVE, events, cache.getModifications()));
+  }
+
+  /**
+   * Test method for {@link ResourceCache#getHits()} and
+   * {@link ResourceCache#getMisses()}.
+   */
+  @Test
+  public void testHitsAndMisses() {
+    cache.get(id, Resource.LIVE);
+    cache.put(id, Resource.LIVE, events, cache.getModifications());
+    cache.get(id, Resource.LIVE);
+    cache.get(id, Resource.LIVE);
+    cache.get(id, Resource.WORK);
+    assertEquals(2, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#invalidate(String, long)}
+   * .
+   */
+  @Test
+  public void testInvalidate() {
+    cache.put(id, Resource.LIVE, events, cache.getModifications());
+    cache.put(id, Resource.WORK, events, cache.getModifications());
+    cache.invalidate(id, Resource.WORK);
+    assertSame(events, cache.get(id, Resource.LIVE));
+    assertNull(cache.get(id, Resource.WORK));
+    assertEquals(events.getSize(), cache.getSize());
+    cache.invalidate(null, Resource.LIVE);
+    assertEquals(0, cache.getResourceCount());
+    assertEquals(0, cache.getSize());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.ResourceCache#clear()}
+   * .
+   */
+  @Test
+  public void testClear() {
+    long modifications = cache.getModifications();
+    cache.put(id, Resource.LIVE, events, modifications);
+    cache.clear();
+    assertNull(cache.get(id, Resource.LIVE));
+    assertEquals(0, cache.getSize());
+    assertFalse(cache.put(id, Resource.LIVE, events, modifications));
+  }
+
+}
@@ -0,0 +1,295 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.impl.content.file.FileResourceImpl;
+import ch.entwine.weblounge.common.impl.content.file.FileResourceURIImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageURIImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.contentrepository.ResourceListener;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test case for {@link ResourceListenerTracker}.
+ */
+public class ResourceListenerTrackerTest {
+
+  /** The tracker under test */
+  protected ResourceListenerTracker tracker = null;
+
+  /** The bundle context */
+  protected BundleContext context = null;
+
+  /** The notifications in the order they were received */
+  protected List<String> events = null;
+
+  /** A page */
+  protected Resource<?> page = null;
+
+  /** A file */
+  protected Resource<?> file = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    context = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.replay(context);
+    tracker = new ResourceListenerTracker(context, "test");
+    events = new ArrayList<String>();
+    SiteImpl site = new SiteImpl();
+    site.setIdentifier("test");
+    page = new PageImpl(new PageURIImpl(site, "/page/", "page"));
+    file = new FileResourceImpl(new FileResourceURIImpl(site, "/file/", "file"));
+  }
+
+  /**
+   * Test that every event is passed on to the matching callback.
+   */
+  @Test
+  public void testEvents() throws Exception {
+    add(new RecordingListener("a"), null, null);
+    tracker.fireResourceCreated(page);
+    tracker.fireResourceUpdated(page);
+    tracker.fireResourcePublished(page);
+    tracker.fireResourceUnpublished(page);
+    tracker.fireResourceDeleted(page);
+    tracker.fireResourceCreated(null);
+    assertEvents("a created page", "a updated page", "a published page", "a unpublished page", "a deleted page");
+  }
+
+  /**
+   * Test that listeners are notified in the order they have been registered.
+   */
+  @Test
+  public void testOrdering() throws Exception {
+    add(new RecordingListener("a"), null, null);
+    add(new RecordingListener("b"), null, null);
+    add(new RecordingListener("c"), null, null);
+    tracker.fireResourcePublished(page);
+    tracker.fireResourceDeleted(file);
+    assertEvents("a published page", "b published page", "c published page", "a deleted file", "b deleted file", "c deleted file");
+  }
+
+  /**
+   * Test that listeners restricted to another site are not tracked.
+   */
+  @Test
+  public void testSiteFilter() throws Exception {
+    RecordingListener other = new RecordingListener("other");
+    assertNull(add(other, "other", null));
+    RecordingListener same = new RecordingListener("same");
+    assertSame(same, add(same, "test", null));
+    tracker.fireResourcePublished(page);
+    assertEvents("same published page");
+  }
+
+  /**
+   * Test that listeners restricted to a resource type are only notified about
+   * resources of that type.
+   */
+  @Test
+  public void testTypeFilter() throws Exception {
+    add(new RecordingListener("pages"), null, "page");
+    add(new RecordingListener("files"), "test", "file");
+    tracker.fireResourceUpdated(page);
+    tracker.fireResourceUpdated(file);
+    assertEvents("pages updated page", "files updated file");
+  }
+
+  /**
+   * Test that a failing listener does not keep the others from being notified.
+   */
+  @Test
+  public void testFailingListener() throws Exception {
+    RecordingListener failing = new RecordingListener("a");
+    failing.failing = true;
+    add(failing, null, null);
+    add(new RecordingListener("b"), null, null);
+    tracker.fireResourceDeleted(page);
+    assertEvents("a deleted page", "b deleted page");
+  }
+
+  /**
+   * Test that listeners that went away are no longer notified.
+   */
+  @Test
+  public void testRemoval() throws Exception {
+    RecordingListener a = new RecordingListener("a");
+    ServiceReference reference = createReference(null, null);
+    EasyMock.reset(context);
+    EasyMock.expect(context.getService(reference)).andReturn(a).anyTimes();
+    EasyMock.replay(context);
+    tracker.addingService(reference);
+    add(new RecordingListener("b"), null, null);
+
+    tracker.removedService(reference, a);
+    tracker.fireResourceUnpublished(page);
+    assertEvents("b unpublished page");
+  }
+
+  /**
+   * Adds the listener to the tracker as if it had been registered with the
+   * given service properties.
+   *
+   * @param listener
+   *          the listener
+   * @param site
+   *          the site property
+   * @param type
+   *          the resource type property
+   * @return the tracked service, or <code>null</code> if the listener is not
+   *         being tracked
+   */
+  protected Object add(RecordingListener listener, String site, String type) {
+    ServiceReference reference = createReference(site, type);
+    EasyMock.reset(context);
+    EasyMock.expect(context.getService(reference)).andReturn(listener).anyTimes();
+    EasyMock.replay(context);
+    return tracker.addingService(reference);
+  }
+
+  /**
+   * Returns a service reference with the given service properties.
+   *
+   * @param site
+   *          the site property
+   * @param type
+   *          the resource type property
+   * @return the service reference
+   */
+  protected ServiceReference createReference(String site, String type) {
+    ServiceReference reference = EasyMock.createNiceMock(ServiceReference.class);
+    EasyMock.expect(reference.getProperty(ResourceListener.PROP_SITE)).andReturn(site).anyTimes();
+    EasyMock.expect(reference.getProperty(ResourceListener.PROP_RESOURCE_TYPE)).andReturn(type).anyTimes();
+    EasyMock.replay(reference);
+    return reference;
+  }
+
+  /**
+   * Asserts that the given notifications have been received, in this order.
+   *
+   * @param expected
+   *          the notifications
+   */
+  protected void assertEvents(String... expected) {
+    assertEquals(Arrays.asList(expected), events);
+  }
+
+  /**
+   * Listener that records the notifications it receives.
+   */
+  protected class RecordingListener implements ResourceListener<Resource<?>> {
+
+    /** The listener name */
+    private final String name;
+
+    /** True if the listener should fail after recording a notification */
+    boolean failing = false;
+
+    /**
+     * Creates a new listener.
+     *
+     * @param name
+     *          the name
+     */
+    RecordingListener(String name) {
+      this.name = name;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.contentrepository.ResourceListener#created(ch.entwine.weblounge.common.content.Resource)
+     */
+    public void created(Resource<?> resource) {
+      record("created", resource);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.contentrepository.ResourceListener#updated(ch.entwine.weblounge.common.content.Resource)
+     */
+    public void updated(Resource<?> resource) {
+      record("updated", resource);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.contentrepository.ResourceListener#published(ch.entwine.weblounge.common.content.Resource)
+     */
+    public void published(Resource<?> resource) {
+      record("published", resource);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.contentrepository.ResourceListener#unpublished(ch.entwine.weblounge.common.content.Resource)
+     */
+    public void unpublished(Resource<?> resource) {
+      record("unpublished", resource);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.contentrepository.ResourceListener#deleted(ch.entwine.weblounge.common.content.Resource)
+     */
+    public void deleted(Resource<?> resource) {
+      record("deleted", resource);
+    }
+
+    /**
+     * Records the notification and fails if asked to.
+     *
+     * @param event
+     *          the event
+     * @param resource
+     *          the resource
+     */
+    private void record(String event, Resource<?> resource) {
+      events.add(name + " " + event + " " + resource.getIdentifier());
+      if (failing)
+        throw new IllegalStateException("Listener " + name + " failed");
+    }
+
+  }
+
+}
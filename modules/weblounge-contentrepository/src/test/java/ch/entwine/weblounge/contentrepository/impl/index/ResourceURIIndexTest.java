@@ -0,0 +1,144 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.contentrepository.impl.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.content.Resource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for {@link ResourceURIIndex}.
+ */
+public class ResourceURIIndexTest {
+
+  /** The index to test */
+  protected ResourceURIIndex index = null;
+
+  /** Resource identifier */
+  protected String id = "4bb19980-8f98-4873-a813-000000000006";
+
+  /** Resource path */
+  protected String path = "/a/b/";
+
+  /** Resource type */
+  protected String type = "page";
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    index = new ResourceURIIndex();
+    index.put(id, path, type, Resource.WORK);
+    index.put(id, path, type, Resource.LIVE);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ResourceURIIndex#put(String, String, String, long)}
+   * .
+   */
+  @Test
+  public void testPut() {
+    ResourceURIIndex.Entry entry = index.getById(id);
+    assertEquals(id, entry.id);
+    assertEquals(path, entry.path);
+    assertEquals(type, entry.type);
+    assertSame(entry, index.getByPath(path));
+    assertEquals(2, entry.getVersions().length);
+    assertEquals(Resource.LIVE, entry.getVersions()[0]);
+    assertEquals(Resource.WORK, entry.getVersions()[1]);
+    assertEquals(1, index.getResourceCount());
+    assertEquals(2, index.getRevisionCount());
+
+    // Adding a known version must not change the counts
+    index.put(id, null, null, Resource.LIVE);
+    assertEquals(path, index.getById(id).path);
+    assertEquals(type, index.getById(id).type);
+    assertEquals(1, index.getResourceCount());
+    assertEquals(2, index.getRevisionCount());
+
+    // Paths and types are interned
+    index.put("other", new String("/a/b/c/"), new String(type), Resource.LIVE);
+    assertSame(type, index.getById("other").type);
+    assertSame("/a/b/c/", index.getByPath("/a/b/c/").path);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ResourceURIIndex#remove(String, long)}
+   * .
+   */
+  @Test
+  public void testRemove() {
+    assertFalse(index.remove("other", Resource.LIVE));
+    assertTrue(index.remove(id, Resource.WORK));
+    assertFalse(index.remove(id, Resource.WORK));
+    assertTrue(index.getById(id).hasVersion(Resource.LIVE));
+    assertFalse(index.getById(id).hasVersion(Resource.WORK));
+    assertEquals(1, index.getRevisionCount());
+
+    // Removing the last version removes the resource
+    assertTrue(index.remove(id, Resource.LIVE));
+    assertNull(index.getById(id));
+    assertNull(index.getByPath(path));
+    assertEquals(0, index.getResourceCount());
+    assertEquals(0, index.getRevisionCount());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ResourceURIIndex#move(String, String)}
+   * .
+   */
+  @Test
+  public void testMove() {
+    String newPath = "/c/";
+    assertFalse(index.move("other", newPath));
+    assertTrue(index.move(id, newPath));
+    assertNull(index.getByPath(path));
+    assertEquals(id, index.getByPath(newPath).id);
+    assertEquals(newPath, index.getById(id).path);
+    assertEquals(2, index.getRevisionCount());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ResourceURIIndex#clear()}
+   * .
+   */
+  @Test
+  public void testClear() {
+    index.clear();
+    assertNull(index.getById(id));
+    assertNull(index.getByPath(path));
+    assertEquals(0, index.getResourceCount());
+    assertEquals(0, index.getRevisionCount());
+  }
+
+}
@@ -22,6 +22,8 @@ package ch.entwine.weblounge.contentrepository.index;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -33,6 +35,7 @@ import ch.entwine.weblounge.common.content.file.FileResource;
 import ch.entwine.weblounge.common.content.page.Page;
 import ch.entwine.weblounge.common.content.page.PageTemplate;
 import ch.entwine.weblounge.common.content.page.Pagelet;
+import ch.entwine.weblounge.common.impl.content.GeneralResourceURIImpl;
 import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
 import ch.entwine.weblounge.common.impl.content.file.FileResourceImpl;
 import ch.entwine.weblounge.common.impl.content.file.FileResourceURIImpl;
@@ -44,6 +47,7 @@ import ch.entwine.weblounge.common.impl.security.SiteAdminImpl;
 import ch.entwine.weblounge.common.impl.util.TestUtils;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
+import ch.entwine.weblounge.common.security.Securable.Order;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.UrlUtils;
 import ch.entwine.weblounge.contentrepository.impl.FileResourceSerializer;
@@ -249,6 +253,88 @@ public class ContentRepositoryIndexTest {
 
   }
 
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#addAll(java.util.Collection)}
+   * .
+   */
+  @Test
+  public void testAddAll() {
+    String id = UUID.randomUUID().toString();
+    page.setIdentifier(id);
+    Page workPage = new PageImpl(new PageURIImpl(site, page.getURI().getPath(), id, Resource.WORK));
+    workPage.setTemplate(template.getIdentifier());
+    Page conflictingPage = new PageImpl(new PageURIImpl(site, page.getURI().getPath(), UUID.randomUUID().toString(), Resource.LIVE));
+    conflictingPage.setTemplate(template.getIdentifier());
+
+    List<Resource<?>> resources = new ArrayList<Resource<?>>();
+    resources.add(page);
+    resources.add(workPage);
+    resources.add(otherPage);
+    resources.add(conflictingPage);
+
+    try {
+      List<Resource<?>> added = idx.addAll(resources);
+      assertEquals(3, added.size());
+      assertFalse(added.contains(conflictingPage));
+      assertEquals(2, idx.getResourceCount());
+      assertEquals(3, idx.getRevisionCount());
+      assertEquals(2, idx.getRevisions(page.getURI()).length);
+      assertNotNull(otherPage.getIdentifier());
+
+      // Adding the resources again replaces them
+      idx.addAll(resources.subList(0, 3));
+      assertEquals(3, idx.getRevisionCount());
+
+      // Make sure the alternate versions are available once refreshed
+      idx.refresh();
+      SearchQuery q = new SearchQueryImpl(site).withIdentifier(id);
+      assertEquals(2, searchIdx.getByQuery(q).getDocumentCount());
+      q = new SearchQueryImpl(site).withIdentifier(id).withPreferredVersion(Resource.LIVE);
+      assertEquals(1, searchIdx.getByQuery(q).getDocumentCount());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail(t.getMessage());
+    }
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#addAll(java.util.Collection)}
+   * with a batch containing a resource that cannot be indexed.
+   */
+  @Test
+  public void testAddAllWithBadResource() {
+    PageImpl badPage = new PageImpl(new PageURIImpl(site, "/bad", UUID.randomUUID().toString(), Resource.LIVE));
+    badPage.setTemplate(template.getIdentifier());
+    badPage.setAllowDenyOrder(Order.DenyAllow);
+
+    List<Resource<?>> resources = new ArrayList<Resource<?>>();
+    resources.add(page);
+    resources.add(badPage);
+    resources.add(otherPage);
+
+    try {
+      List<Resource<?>> added = idx.addAll(resources);
+      assertEquals(2, added.size());
+      assertFalse(added.contains(badPage));
+      assertEquals(2, idx.getResourceCount());
+      assertFalse(idx.existsInAnyVersion(badPage.getURI()));
+      assertTrue(idx.exists(page.getURI()));
+      assertTrue(idx.exists(otherPage.getURI()));
+
+      // The other resources are searchable once refreshed
+      idx.refresh();
+      SearchQuery q = new SearchQueryImpl(site).withIdentifier(page.getIdentifier());
+      assertEquals(1, searchIdx.getByQuery(q).getDocumentCount());
+      q = new SearchQueryImpl(site).withIdentifier(badPage.getIdentifier());
+      assertEquals(0, searchIdx.getByQuery(q).getDocumentCount());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail(t.getMessage());
+    }
+  }
+
   /**
    * Test method for
    * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#update(Resource)}
@@ -399,6 +485,55 @@ public class ContentRepositoryIndexTest {
     }
   }
 
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#getPath(ch.entwine.weblounge.common.content.ResourceURI)}
+   * and
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#getType(ch.entwine.weblounge.common.content.ResourceURI)}
+   * .
+   */
+  @Test
+  public void testGetPathAndType() {
+    try {
+      String id = idx.add(page).getIdentifier();
+      assertEquals(page.getURI().getPath(), idx.getPath(new GeneralResourceURIImpl(site, null, id)));
+      assertEquals(Page.TYPE, idx.getType(new GeneralResourceURIImpl(site, null, id)));
+      assertEquals(id, idx.getIdentifier(new PageURIImpl(site, page.getURI().getPath())));
+      assertNull(idx.getIdentifier(new FileResourceURIImpl(site, page.getURI().getPath())));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail(t.getMessage());
+    }
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#ContentRepositoryIndex(Site, ch.entwine.weblounge.common.search.SearchIndex)}
+   * with resources in the search index.
+   */
+  @Test
+  public void testLoad() {
+    ResourceURI workURI = new PageURIImpl(site, "/etc/weblounge", Resource.WORK);
+    Page workPage = new PageImpl(workURI);
+    workPage.setTemplate(template.getIdentifier());
+    try {
+      String id = idx.add(page).getIdentifier();
+      idx.add(file);
+      idx.add(workPage);
+      ContentRepositoryIndex loadedIdx = new ContentRepositoryIndex(site, searchIdx);
+      assertEquals(3, loadedIdx.getResourceCount());
+      assertEquals(3, loadedIdx.getRevisionCount());
+      assertTrue(loadedIdx.exists(new PageURIImpl(site, page.getURI().getPath())));
+      assertEquals(id, loadedIdx.getIdentifier(new PageURIImpl(site, page.getURI().getPath())));
+      assertFalse(loadedIdx.exists(new PageURIImpl(site, "/etc/weblounge")));
+      assertTrue(loadedIdx.existsInAnyVersion(new PageURIImpl(site, "/etc/weblounge")));
+      assertTrue(loadedIdx.exists(new FileResourceURIImpl(site, null, file.getIdentifier())));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail(t.getMessage());
+    }
+  }
+
   /**
    * Test method for
    * {@link ch.entwine.weblounge.contentrepository.impl.index.ContentRepositoryIndex#list(ch.entwine.weblounge.common.content.ResourceURI, int)}
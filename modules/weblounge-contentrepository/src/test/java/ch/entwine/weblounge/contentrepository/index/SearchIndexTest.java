@@ -25,6 +25,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import ch.entwine.weblounge.common.NotImplementedException;
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.ResourceSearchResultItem;
 import ch.entwine.weblounge.common.content.ResourceURI;
 import ch.entwine.weblounge.common.content.SearchQuery;
 import ch.entwine.weblounge.common.content.SearchQuery.Order;
@@ -714,6 +716,44 @@ public class SearchIndexTest {
     assertEquals(testPages.length, idx.getByQuery(q).getDocumentCount());
   }
 
+  /**
+   * Test method for the alternate version information that is maintained by
+   * {@link ch.entwine.weblounge.search.impl.SearchIndexImpl#add(ch.entwine.weblounge.common.content.Resource)}
+   * and
+   * {@link ch.entwine.weblounge.search.impl.SearchIndexImpl#delete(ch.entwine.weblounge.common.content.ResourceURI)}
+   * .
+   */
+  @Test
+  public void testAlternateVersions() throws Exception {
+    populateIndex();
+    SearchQuery workPreferred = new SearchQueryImpl(testSite).withTypes(Page.TYPE).withIdentifier(uuid1).withPreferredVersion(Resource.WORK);
+    SearchQuery livePreferred = new SearchQueryImpl(testSite).withTypes(Page.TYPE).withIdentifier(uuid1).withPreferredVersion(Resource.LIVE);
+    SearchQuery allVersions = new SearchQueryImpl(testSite).withTypes(Page.TYPE).withIdentifier(uuid1);
+    assertEquals(Resource.LIVE, getVersion(idx.getByQuery(workPreferred)));
+
+    // Add a work version
+    InputStream is = this.getClass().getResourceAsStream("/page1.xml");
+    Page workPage = new PageReader().read(is, testSite);
+    IOUtils.closeQuietly(is);
+    workPage.setVersion(Resource.WORK);
+    idx.add(workPage);
+    assertEquals(2, idx.getByQuery(allVersions).getDocumentCount());
+    assertEquals(Resource.WORK, getVersion(idx.getByQuery(workPreferred)));
+    assertEquals(Resource.LIVE, getVersion(idx.getByQuery(livePreferred)));
+
+    // Update both versions
+    idx.update(workPage);
+    idx.update(testPages[0]);
+    assertEquals(2, idx.getByQuery(allVersions).getDocumentCount());
+    assertEquals(Resource.WORK, getVersion(idx.getByQuery(workPreferred)));
+    assertEquals(Resource.LIVE, getVersion(idx.getByQuery(livePreferred)));
+
+    // Remove the work version
+    idx.delete(workPage.getURI());
+    assertEquals(1, idx.getByQuery(allVersions).getDocumentCount());
+    assertEquals(Resource.LIVE, getVersion(idx.getByQuery(workPreferred)));
+  }
+
   /**
    * Test method for
    * {@link ch.entwine.weblounge.search.impl.SearchIndexImpl#suggest(ch.entwine.weblounge.contentrepository.impl.index.solr.Suggestions.Dictionary, String, boolean, int, boolean)}
@@ -780,4 +820,16 @@ public class SearchIndexTest {
     return count;
   }
 
+  /**
+   * Returns the version of the single resource that was found.
+   *
+   * @param result
+   *          the search result
+   * @return the resource version
+   */
+  protected long getVersion(SearchResult result) {
+    assertEquals(1, result.getDocumentCount());
+    return ((ResourceSearchResultItem) result.getItems()[0]).getResourceURI().getVersion();
+  }
+
 }
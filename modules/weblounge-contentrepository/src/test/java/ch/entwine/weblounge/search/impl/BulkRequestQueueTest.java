@@ -0,0 +1,182 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ch.entwine.weblounge.common.repository.ContentRepositoryException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test case for {@link BulkRequestQueue}.
+ */
+public class BulkRequestQueueTest {
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.BulkRequestQueue#write(List)}.
+   */
+  @Test
+  public void testWrite() throws Exception {
+    final List<List<String>> requests = new ArrayList<List<String>>();
+    BulkRequestQueue<String> queue = new BulkRequestQueue<String>(new BulkRequestQueue.Handler<String>() {
+      public String[] execute(List<String> items) {
+        requests.add(new ArrayList<String>(items));
+        return null;
+      }
+    });
+    queue.write(Arrays.asList("a", "b"));
+    queue.write(Collections.<String> emptyList());
+    queue.write(Arrays.asList("c"));
+    assertEquals(2, requests.size());
+    assertEquals(Arrays.asList("a", "b"), requests.get(0));
+    assertEquals(Arrays.asList("c"), requests.get(1));
+    assertEquals(2, queue.getWrites());
+    assertEquals(2, queue.getRequests());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.BulkRequestQueue#write(List)}
+   * with concurrent writers.
+   */
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+    final BulkRequestQueue<String> queue = new BulkRequestQueue<String>(new BulkRequestQueue.Handler<String>() {
+      public String[] execute(List<String> items) throws Exception {
+        requests.add(new ArrayList<String>(items));
+        if (items.contains("first")) {
+          blocked.countDown();
+          release.await();
+        }
+        return null;
+      }
+    });
+
+    // Keep the first bulk request busy while the others are being queued
+    Thread first = write(queue, "first");
+    assertTrue(blocked.await(5, TimeUnit.SECONDS));
+    List<Thread> writers = new ArrayList<Thread>();
+    for (int i = 0; i < 10; i++)
+      writers.add(write(queue, Integer.toString(i)));
+    while (!allWaiting(writers))
+      Thread.sleep(10);
+    release.countDown();
+
+    first.join(5000);
+    for (Thread t : writers)
+      t.join(5000);
+
+    assertEquals(2, requests.size());
+    assertEquals(10, requests.get(1).size());
+    assertEquals(11, queue.getWrites());
+    assertEquals(2, queue.getRequests());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.BulkRequestQueue#write(List)}
+   * with failing items.
+   */
+  @Test
+  public void testFailures() throws Exception {
+    BulkRequestQueue<String> queue = new BulkRequestQueue<String>(new BulkRequestQueue.Handler<String>() {
+      public String[] execute(List<String> items) throws Exception {
+        if (items.contains("broken"))
+          throw new IllegalStateException("broken");
+        String[] failures = new String[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+          if (items.get(i).startsWith("x"))
+            failures[i] = "Failed to write " + items.get(i);
+        }
+        return failures;
+      }
+    });
+
+    queue.write(Arrays.asList("a", "b"));
+    try {
+      queue.write(Arrays.asList("a", "xb"));
+      fail("Failed item was not reported");
+    } catch (ContentRepositoryException e) {
+      assertEquals("Failed to write xb", e.getMessage());
+    }
+    try {
+      queue.write(Arrays.asList("broken"));
+      fail("Failed request was not reported");
+    } catch (ContentRepositoryException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  /**
+   * Writes <code>item</code> to the queue in a separate thread.
+   * 
+   * @param queue
+   *          the queue
+   * @param item
+   *          the item
+   * @return the thread
+   */
+  private static Thread write(final BulkRequestQueue<String> queue,
+      final String item) {
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.write(Arrays.asList(item));
+        } catch (ContentRepositoryException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  /**
+   * Returns <code>true</code> if all threads are waiting.
+   * 
+   * @param threads
+   *          the threads
+   * @return <code>true</code> if all threads are waiting
+   */
+  private static boolean allWaiting(List<Thread> threads) {
+    for (Thread t : threads) {
+      if (t.getState() != Thread.State.WAITING)
+        return false;
+    }
+    return true;
+  }
+
+}
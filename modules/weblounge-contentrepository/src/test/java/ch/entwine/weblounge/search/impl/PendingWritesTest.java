@@ -0,0 +1,112 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test case for {@link PendingWrites}.
+ */
+public class PendingWritesTest {
+
+  /** The writes under test */
+  protected PendingWrites writes = null;
+
+  /** The resource identifiers */
+  protected String[] ids = new String[] { "4bb19980-8f98-4873-a813-000000000001" };
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    writes = new PendingWrites();
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.PendingWrites#getPending(String, String[], String)}
+   * .
+   */
+  @Test
+  public void testGetPending() {
+    assertEquals(0, writes.getPending("test", ids, "editor"));
+    long sequence = writes.written("test", Arrays.asList(ids), "editor");
+    assertEquals(1, sequence);
+    assertEquals(sequence, writes.getPending("test", ids, null));
+    assertEquals(sequence, writes.getPending("test", new String[] {}, "editor"));
+    assertEquals(0, writes.getPending("test", new String[] {}, "visitor"));
+    assertEquals(0, writes.getPending("other", ids, "editor"));
+
+    long next = writes.written("test", Collections.<String> emptyList(), "other");
+    assertEquals(sequence, writes.getPending("test", ids, "editor"));
+    assertEquals(next, writes.getPending("test", ids, "other"));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.PendingWrites#refreshed(String, long)}
+   * .
+   */
+  @Test
+  public void testRefreshed() {
+    long sequence = writes.written("test", Arrays.asList(ids), "editor");
+    long next = writes.written("test", Collections.<String> emptyList(), "other");
+    assertEquals(next, writes.getSequence("test"));
+    assertTrue(writes.getDirtyIndices().contains("test"));
+
+    writes.refreshed("test", sequence);
+    assertEquals(sequence, writes.getRefreshed("test"));
+    assertEquals(0, writes.getPending("test", ids, "editor"));
+    assertEquals(next, writes.getPending("test", ids, "other"));
+    assertTrue(writes.getDirtyIndices().contains("test"));
+
+    // Refreshes that were started earlier must not be recorded
+    writes.refreshed("test", next);
+    writes.refreshed("test", sequence);
+    assertEquals(next, writes.getRefreshed("test"));
+    assertEquals(0, writes.getPending("test", ids, "other"));
+    assertTrue(writes.getDirtyIndices().isEmpty());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.PendingWrites#clear(String)}.
+   */
+  @Test
+  public void testClear() {
+    writes.written("test", Arrays.asList(ids), "editor");
+    writes.written("other", Arrays.asList(ids), "editor");
+    writes.clear("test");
+    assertEquals(0, writes.getPending("test", ids, "editor"));
+    assertEquals(1, writes.getPending("other", ids, "editor"));
+    writes.clear();
+    assertTrue(writes.getDirtyIndices().isEmpty());
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import ch.entwine.weblounge.common.content.SearchQuery;
+import ch.entwine.weblounge.common.content.page.Page;
+import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for the query result caching in {@link SearchIndexImpl}.
+ */
+public class SearchIndexImplTest {
+
+  /** The search index */
+  protected SearchIndexImpl idx = null;
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    idx = new SearchIndexImpl();
+    site = new SiteImpl();
+    site.setIdentifier("test");
+  }
+
+  /**
+   * Test that equal queries share a cache key and that queries differing in
+   * any of the criteria don't.
+   */
+  @Test
+  public void testCreateCacheKey() {
+    String key = createCacheKey(createQuery());
+    assertNotNull(key);
+    assertEquals(key, createCacheKey(createQuery()));
+    assertFalse(key.equals(createCacheKey(createQuery().withOffset(10))));
+    assertFalse(key.equals(createCacheKey(createQuery().withLimit(20))));
+    assertFalse(key.equals(createCacheKey(createQuery().withTypes(Page.TYPE))));
+    assertFalse(key.equals(createCacheKey(createQuery().withText("other"))));
+    assertFalse(key.equals(createCacheKey(createQuery().withPath("/a/"))));
+  }
+
+  /**
+   * Test that queries whose result depends on the current time are not cached.
+   */
+  @Test
+  public void testCreateCacheKeyWithRecencyPriority() {
+    assertNull(createCacheKey(createQuery().withRecencyPriority()));
+  }
+
+  /**
+   * Returns a new query for the same criteria.
+   *
+   * @return the query
+   */
+  protected SearchQuery createQuery() {
+    return new SearchQueryImpl(site).withText("weblounge").withLimit(10);
+  }
+
+  /**
+   * Returns the cache key of the given query.
+   *
+   * @param query
+   *          the query
+   * @return the cache key
+   */
+  protected String createCacheKey(SearchQuery query) {
+    return SearchIndexImpl.createCacheKey(query, idx.createRequest(query));
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.search.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import ch.entwine.weblounge.common.content.ResourceMetadata;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+/**
+ * Test case for {@link SearchResultCache}.
+ */
+public class SearchResultCacheTest {
+
+  /** The cache under test */
+  protected SearchResultCache cache = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    cache = new SearchResultCache(2);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.SearchResultCache.Generation#get(String)}
+   * .
+   */
+  @Test
+  public void testGet() {
+    SearchResultCache.Generation generation = cache.getGeneration("test");
+    assertSame(generation, cache.getGeneration("test"));
+    assertNull(generation.get("a"));
+
+    SearchResultCache.Hits hits = new SearchResultCache.Hits(1, 5);
+    hits.add("page", 1.0f, new ArrayList<ResourceMetadata<?>>());
+    generation.put("a", hits);
+    assertSame(hits, cache.getGeneration("test").get("a"));
+    assertNull(cache.getGeneration("other").get("a"));
+    assertEquals(1, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.SearchResultCache#invalidate(String)}
+   * .
+   */
+  @Test
+  public void testInvalidate() {
+    SearchResultCache.Generation generation = cache.getGeneration("test");
+    SearchResultCache.Generation other = cache.getGeneration("other");
+    generation.put("a", new SearchResultCache.Hits(0, 0));
+    other.put("a", new SearchResultCache.Hits(0, 0));
+
+    cache.invalidate("test");
+    assertNotSame(generation, cache.getGeneration("test"));
+    assertEquals(generation.getNumber() + 1, cache.getGeneration("test").getNumber());
+    assertNull(cache.getGeneration("test").get("a"));
+    assertSame(other, cache.getGeneration("other"));
+
+    // Results of queries that were running while the index was modified must
+    // not show up in the cache
+    generation.put("b", new SearchResultCache.Hits(0, 0));
+    assertNull(cache.getGeneration("test").get("b"));
+
+    cache.clear();
+    assertNull(cache.getGeneration("other").get("a"));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.search.impl.SearchResultCache.Generation#put(String, ch.entwine.weblounge.search.impl.SearchResultCache.Hits)}
+   * .
+   */
+  @Test
+  public void testCacheSize() {
+    SearchResultCache.Generation generation = cache.getGeneration("test");
+    generation.put("a", new SearchResultCache.Hits(0, 0));
+    generation.put("b", new SearchResultCache.Hits(0, 0));
+    generation.put("c", new SearchResultCache.Hits(0, 0));
+    assertNull(generation.get("a"));
+    assertNull(generation.get("b"));
+    assertEquals(0, generation.get("c").getTotalHits());
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher;
+
+import ch.entwine.weblounge.common.site.Site;
+
+/**
+ * A <code>RoutedRequestHandler</code> is a {@link RequestHandler} that is only
+ * interested in requests to a known set of paths. The dispatcher uses the
+ * routes to build a routing table per site, so that requests are only offered
+ * to the handlers that may actually serve them.
+ * <p>
+ * Handlers that do not implement this interface, or that return the root route
+ * <code>/</code>, are offered every request.
+ */
+public interface RoutedRequestHandler extends RequestHandler {
+
+  /** The route that matches every request */
+  String ROOT = "/";
+
+  /**
+   * Returns the path prefixes of the requests that this handler is interested
+   * in for the given site, e.g. <code>/weblounge-files/</code>. A request is
+   * offered to the handler if its path starts with one of the routes.
+   * <p>
+   * The routes are collected when the routing table for the site is built and
+   * are collected again once {@link #getRoutesVersion()} changes.
+   * 
+   * @param site
+   *          the site
+   * @return the routes
+   */
+  String[] getRoutes(Site site);
+
+  /**
+   * Returns a number that changes whenever the routes of this handler change,
+   * e. g. because new url spaces have been registered with the handler.
+   * Handlers whose routes are fixed return <code>0</code>.
+   * 
+   * @return the version of the routes
+   */
+  long getRoutesVersion();
+
+}
@@ -20,12 +20,15 @@
 
 package ch.entwine.weblounge.dispatcher.impl;
 
+import ch.entwine.weblounge.common.impl.request.BufferedResponse;
+
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
@@ -36,7 +39,7 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * output can be written to the response cache <i>and</i> to the client at the
  * same time.
  */
-class BufferedHttpServletResponse extends HttpServletResponseWrapper {
+class BufferedHttpServletResponse extends HttpServletResponseWrapper implements BufferedResponse {
 
   /**
    * Holds the special tee writer that copies the output to the network and to
@@ -50,6 +53,15 @@ class BufferedHttpServletResponse extends HttpServletResponseWrapper {
   /** Whether the getOuputStream has already been called */
   private boolean osCalled = false;
 
+  /** Whether the buffer has been bypassed */
+  private boolean unbuffered = false;
+
+  /** The output stream that bypasses the buffer */
+  private CountingServletOutputStream unbufferedOs = null;
+
+  /** Number of buffered bytes that have been written to the client */
+  private long bufferedBytes = 0;
+
   /** Default encoding */
   private static final String DEFAULT_ENCODING = "utf-8";
 
@@ -114,6 +126,31 @@ class BufferedHttpServletResponse extends HttpServletResponseWrapper {
     return os;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.impl.request.BufferedResponse#getUnbufferedOutputStream()
+   */
+  public ServletOutputStream getUnbufferedOutputStream() throws IOException {
+    unbuffered = true;
+    if (os != null)
+      os.release();
+    if (unbufferedOs == null)
+      unbufferedOs = new CountingServletOutputStream(super.getOutputStream());
+    return unbufferedOs;
+  }
+
+  /**
+   * Returns the number of bytes of content that have been written to the
+   * client so far, either from the buffer or through the unbuffered output
+   * stream.
+   * 
+   * @return the number of bytes written
+   */
+  long getBytesWritten() {
+    return bufferedBytes + (unbufferedOs != null ? unbufferedOs.count : 0);
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -131,23 +168,109 @@ class BufferedHttpServletResponse extends HttpServletResponseWrapper {
       if (isCommitted())
         return;
 
-      if (os != null) {
-        // Get the buffered content
-        byte[] content = os.getContent();
-
+      if (os != null && !unbuffered) {
         // Set content-related headers
-        setContentLength(content.length);
+        setContentLength(os.size());
 
         // Write the buffered content to the underlying output stream
-        super.getOutputStream().write(content);
+        os.writeTo(super.getOutputStream());
+        bufferedBytes += os.size();
       }
 
       // Flush the underlying buffer
       super.flushBuffer();
 
     } finally {
+      if (os != null)
+        os.release();
       os = null;
     }
   }
 
+  /**
+   * Output stream that counts the bytes that are written to the wrapped
+   * stream.
+   */
+  private static final class CountingServletOutputStream extends ServletOutputStream {
+
+    /** The wrapped output stream */
+    private final ServletOutputStream os;
+
+    /** Number of bytes written */
+    private long count = 0;
+
+    /**
+     * Creates a stream that writes to <code>os</code>.
+     * 
+     * @param os
+     *          the output stream
+     */
+    CountingServletOutputStream(ServletOutputStream os) {
+      this.os = os;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int b) throws IOException {
+      os.write(b);
+      count++;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      os.write(b, off, len);
+      count += len;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.io.OutputStream#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+      os.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.io.OutputStream#close()
+     */
+    @Override
+    public void close() throws IOException {
+      os.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.ServletOutputStream#isReady()
+     */
+    @Override
+    public boolean isReady() {
+      return os.isReady();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.ServletOutputStream#setWriteListener(javax.servlet.WriteListener)
+     */
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+      os.setWriteListener(writeListener);
+    }
+
+  }
+
 }
@@ -20,23 +20,26 @@
 
 package ch.entwine.weblounge.dispatcher.impl;
 
+import ch.entwine.weblounge.common.impl.request.SegmentedBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 
 /**
  * Extension to the <code>ServletOutputStream</code> which does not write the
  * content directly back to the client but buffers it locally in order to be
  * written back in one big chunk.
+ * <p>
+ * The content is kept in a {@link SegmentedBuffer}, whose segments are handed
+ * back to the buffer pool by {@link #release()}.
  */
 final class BufferedServletOutputStream extends ServletOutputStream {
 
-  /** Default buffer size for the response */
-  private static final int BUFFER_SIZE = 20 * 1024;
-
   /** Output buffer */
-  private byte[] buf = new byte[BUFFER_SIZE];
-
-  /** Write position in the output buffer */
-  private int pos = 0;
+  private final SegmentedBuffer buf = new SegmentedBuffer();
 
   /**
    * {@inheritDoc}
@@ -44,12 +47,8 @@ final class BufferedServletOutputStream extends ServletOutputStream {
    * @see java.io.OutputStream#write(int)
    */
   @Override
-  public synchronized void write(int b) {
-    int newpos = pos + 1;
-    if (newpos > buf.length)
-      extendBuffer(newpos);
-    buf[pos] = (byte) b;
-    pos = newpos;
+  public void write(int b) {
+    buf.write(b);
   }
 
   /**
@@ -58,36 +57,57 @@ final class BufferedServletOutputStream extends ServletOutputStream {
    * @see java.io.OutputStream#write(byte[], int, int)
    */
   @Override
-  public synchronized void write(byte[] b, int off, int len) {
-    int newpos = pos + len;
-    if (newpos > buf.length)
-      extendBuffer(newpos);
-    System.arraycopy(b, off, buf, pos, len);
-    pos = newpos;
+  public void write(byte[] b, int off, int len) {
+    buf.write(b, off, len);
+  }
+
+  /**
+   * Returns the number of bytes that have been written to this stream.
+   * 
+   * @return the number of bytes
+   */
+  int size() {
+    return buf.size();
+  }
+
+  /**
+   * Writes the content of this stream to <code>os</code>.
+   * 
+   * @param os
+   *          the output stream
+   * @throws IOException
+   *           if writing to the output stream fails
+   */
+  void writeTo(OutputStream os) throws IOException {
+    buf.writeTo(os);
   }
 
   /**
-   * Extend the buffer to at least <code>size</code> bytes.
+   * Discards the content of this stream and returns its buffer to the buffer
+   * pool.
+   */
+  void release() {
+    buf.release();
+  }
+
+  /**
+   * {@inheritDoc}
    * 
-   * @param size
-   *          the minimum length of the new buffer
+   * @see javax.servlet.ServletOutputStream#isReady()
    */
-  private void extendBuffer(int size) {
-    int goal = buf.length << 1;
-    byte[] newbuf = new byte[goal > size ? goal : size];
-    System.arraycopy(buf, 0, newbuf, 0, pos);
-    buf = newbuf;
+  @Override
+  public boolean isReady() {
+    return true;
   }
 
   /**
-   * Returns the content of this stream as a byte array.
+   * {@inheritDoc}
    * 
-   * @return the content
+   * @see javax.servlet.ServletOutputStream#setWriteListener(javax.servlet.WriteListener)
    */
-  byte[] getContent() {
-    byte[] newbuf = new byte[pos];
-    System.arraycopy(buf, 0, newbuf, 0, pos);
-    return newbuf;
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    throw new UnsupportedOperationException("NIO not supported yet.");
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.ResourceUtils;
+import ch.entwine.weblounge.common.content.page.Page;
+import ch.entwine.weblounge.common.content.page.Pagelet;
+import ch.entwine.weblounge.common.content.page.PageletRenderer;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.security.AccessRule;
+import ch.entwine.weblounge.common.security.Role;
+import ch.entwine.weblounge.common.site.Module;
+import ch.entwine.weblounge.common.site.Site;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+/**
+ * The cache key policy defines how the identity of the current user becomes
+ * part of the primary cache tags of a response.
+ * <p>
+ * With {@link #User}, every user is given a private copy of every response.
+ * With {@link #Roles}, responses are shared among all users holding the same
+ * set of roles, unless the resource that is being rendered depends on the
+ * individual user, either because its access rules name individual users or
+ * because one of its pagelet renderers varies by user.
+ */
+public enum CacheKeyPolicy {
+
+  /** Responses are cached per user login */
+  User,
+
+  /** Responses are shared among users with the same set of roles */
+  Roles;
+
+  /** Maximum number of resource versions per site whose user dependency is kept */
+  static final int MAX_RESOURCES = 1024;
+
+  /** User dependency of the most recently rendered resource versions by site */
+  private static final Map<Site, Map<String, Boolean>> userDependencies = new WeakHashMap<Site, Map<String, Boolean>>();
+
+  /**
+   * Returns the cache tag that identifies the current user with respect to the
+   * response to <code>request</code>.
+   * 
+   * @param request
+   *          the request
+   * @param resource
+   *          the resource that is being rendered, may be <code>null</code>
+   * @return the cache tag
+   */
+  public CacheTag getCacheTag(WebloungeRequest request, Resource<?> resource) {
+    if (this == User || dependsOnUser(request.getSite(), resource))
+      return new CacheTagImpl(CacheTag.User, request.getUser().getLogin());
+
+    SortedSet<String> roles = new TreeSet<String>();
+    for (Role role : SecurityUtils.getRoles(request.getUser())) {
+      roles.add(role.getContext() + ":" + role.getIdentifier());
+    }
+    return new CacheTagImpl(CacheTag.Roles, StringUtils.join(roles, ','));
+  }
+
+  /**
+   * Returns <code>true</code> if the rendered version of <code>resource</code>
+   * may differ between two users holding the same roles.
+   * <p>
+   * Since the answer only changes with the resource or the site's renderers,
+   * it is computed once per resource version and modification date and kept
+   * with the site, which is replaced as a whole when its modules change.
+   * 
+   * @param site
+   *          the site
+   * @param resource
+   *          the resource
+   * @return <code>true</code> if the resource depends on the individual user
+   */
+  static boolean dependsOnUser(Site site, Resource<?> resource) {
+    if (resource == null)
+      return false;
+
+    String key = resource.getURI().getIdentifier() + ":" + resource.getVersion() + ":" + ResourceUtils.getModificationDate(resource).getTime();
+    Map<String, Boolean> dependencies = null;
+    synchronized (userDependencies) {
+      dependencies = userDependencies.get(site);
+      if (dependencies == null) {
+        dependencies = new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RESOURCES;
+          }
+        };
+        userDependencies.put(site, dependencies);
+      }
+      Boolean dependsOnUser = dependencies.get(key);
+      if (dependsOnUser != null)
+        return dependsOnUser.booleanValue();
+    }
+
+    boolean dependsOnUser = inspect(site, resource);
+    synchronized (userDependencies) {
+      dependencies.put(key, Boolean.valueOf(dependsOnUser));
+    }
+    return dependsOnUser;
+  }
+
+  /**
+   * Looks for access rules naming individual users and for pagelet renderers
+   * that vary by user.
+   * 
+   * @param site
+   *          the site
+   * @param resource
+   *          the resource
+   * @return <code>true</code> if the resource depends on the individual user
+   */
+  private static boolean inspect(Site site, Resource<?> resource) {
+
+    // Access rules that are granted to or withheld from individual users
+    String userAuthorityType = ch.entwine.weblounge.common.security.User.class.getName();
+    for (AccessRule rule : resource.getAccessRules()) {
+      if (userAuthorityType.equals(rule.getAuthority().getAuthorityType()))
+        return true;
+    }
+
+    // Pagelet renderers that vary by user
+    if (resource instanceof Page) {
+      for (Pagelet pagelet : ((Page) resource).getPagelets()) {
+        Module module = site.getModule(pagelet.getModule());
+        if (module == null)
+          continue;
+        PageletRenderer renderer = module.getRenderer(pagelet.getIdentifier());
+        if (renderer == null)
+          continue;
+        if (Arrays.asList(renderer.getVaryDimensions()).contains(PageletRenderer.VARY_USER))
+          return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Parses the cache key policy.
+   * 
+   * @param policy
+   *          the policy
+   * @return the cache key policy
+   */
+  public static CacheKeyPolicy parse(String policy) {
+    if (policy == null)
+      throw new IllegalArgumentException("Policy must not be null");
+    policy = StringUtils.capitalize(policy.trim().toLowerCase());
+    return CacheKeyPolicy.valueOf(policy);
+  }
+
+}
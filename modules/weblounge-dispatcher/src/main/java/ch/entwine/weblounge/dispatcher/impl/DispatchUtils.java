@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -47,6 +48,12 @@ public final class DispatchUtils {
   /** List of dispatcher listeners */
   private static final List<DispatchListener> dispatcher = new ArrayList<DispatchListener>();
 
+  /** The policy that defines how users are represented in cache keys */
+  private static volatile CacheKeyPolicy cacheKeyPolicy = CacheKeyPolicy.User;
+
+  /** True if the servlet api at hand supports asynchronous requests */
+  private static final boolean asyncApi = hasAsyncApi();
+
   /**
    * This class is not intended to be instantiated.
    */
@@ -401,4 +408,81 @@ public final class DispatchUtils {
     dispatcher.remove(listener);
   }
 
-}
\ No newline at end of file
+  /**
+   * Sets the policy that defines how the current user is represented in the
+   * primary cache tags of a response.
+   * 
+   * @param policy
+   *          the cache key policy
+   */
+  public static void setCacheKeyPolicy(CacheKeyPolicy policy) {
+    if (policy == null)
+      throw new IllegalArgumentException("Cache key policy must not be null");
+    cacheKeyPolicy = policy;
+  }
+
+  /**
+   * Returns the policy that defines how the current user is represented in the
+   * primary cache tags of a response.
+   * 
+   * @return the cache key policy
+   */
+  public static CacheKeyPolicy getCacheKeyPolicy() {
+    return cacheKeyPolicy;
+  }
+
+  /**
+   * Returns <code>true</code> if <code>request</code> may be put into
+   * asynchronous mode. This is the case if the container implements Servlet
+   * 3.0 or later and has enabled asynchronous processing for the request.
+   * <p>
+   * Since the dispatcher also runs in Servlet 2.5 containers, the
+   * asynchronous parts of the servlet api must only be used once this method
+   * returned <code>true</code>.
+   * 
+   * @param request
+   *          the request
+   * @return <code>true</code> if the request supports asynchronous processing
+   */
+  public static boolean isAsyncSupported(ServletRequest request) {
+    if (!asyncApi)
+      return false;
+    try {
+      return request.isAsyncSupported();
+    } catch (AbstractMethodError e) {
+      // The request implements an older version of the servlet api
+      return false;
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if <code>request</code> has been put into
+   * asynchronous mode.
+   * 
+   * @param request
+   *          the request
+   * @return <code>true</code> if the request is being processed
+   *         asynchronously
+   * @see #isAsyncSupported(ServletRequest)
+   */
+  public static boolean isAsyncStarted(ServletRequest request) {
+    return isAsyncSupported(request) && request.isAsyncStarted();
+  }
+
+  /**
+   * Returns <code>true</code> if the servlet api that is wired to this bundle
+   * is version 3.0 or later.
+   * 
+   * @return <code>true</code> if asynchronous requests are part of the api
+   */
+  private static boolean hasAsyncApi() {
+    try {
+      ServletRequest.class.getMethod("isAsyncSupported");
+      return true;
+    } catch (NoSuchMethodException e) {
+      logger.debug("Servlet api does not support asynchronous requests");
+      return false;
+    }
+  }
+
+}
@@ -26,7 +26,9 @@ import ch.entwine.weblounge.dispatcher.RequestHandler;
 import ch.entwine.weblounge.dispatcher.SharedHttpContext;
 import ch.entwine.weblounge.dispatcher.SiteDispatcherService;
 import ch.entwine.weblounge.kernel.runtime.InstanceInformation;
+import ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider;
 
+import org.apache.commons.lang3.StringUtils;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.ConfigurationException;
@@ -35,6 +37,7 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.Hashtable;
 
@@ -54,12 +57,24 @@ public class DispatcherServiceImpl implements DispatcherService, ManagedService
   /** Logging instance */
   private static final Logger logger = LoggerFactory.getLogger(DispatcherServiceImpl.class);
 
+  /** Configuration key prefix for dispatcher configuration */
+  public static final String OPT_PREFIX = "dispatcher";
+
+  /** Configuration key for the cache key policy */
+  public static final String OPT_CACHE_KEY_POLICY = OPT_PREFIX + ".cacheKeyPolicy";
+
+  /** Default value for the cache key policy */
+  private static final CacheKeyPolicy DEFAULT_CACHE_KEY_POLICY = CacheKeyPolicy.User;
+
   /** The main dispatcher servlet */
   private WebloungeDispatcherServlet dispatcher = null;
 
   /** Service registration for the main dispatcher servlet */
   private ServiceRegistration dispatcherServiceRegistration = null;
 
+  /** Service registration for the request metrics */
+  private ServiceRegistration metricsServiceRegistration = null;
+
   /** The environment */
   private Environment environment = Environment.Production;
 
@@ -81,6 +96,19 @@ public class DispatcherServiceImpl implements DispatcherService, ManagedService
     if (properties == null)
       return;
     logger.debug("Updating dispatcher service properties");
+
+    // Cache key policy
+    String policy = StringUtils.trimToNull((String) properties.get(OPT_CACHE_KEY_POLICY));
+    CacheKeyPolicy cacheKeyPolicy = DEFAULT_CACHE_KEY_POLICY;
+    if (policy != null) {
+      try {
+        cacheKeyPolicy = CacheKeyPolicy.parse(policy);
+      } catch (IllegalArgumentException e) {
+        throw new ConfigurationException(OPT_CACHE_KEY_POLICY, "Unknown cache key policy '" + policy + "'");
+      }
+    }
+    DispatchUtils.setCacheKeyPolicy(cacheKeyPolicy);
+    logger.debug("Responses are cached per {}", cacheKeyPolicy.toString().toLowerCase());
   }
 
   /**
@@ -102,6 +130,11 @@ public class DispatcherServiceImpl implements DispatcherService, ManagedService
     initParams.put(SharedHttpContext.PATTERN, ".*");
     dispatcherServiceRegistration = bundleContext.registerService(Servlet.class.getName(), dispatcher, initParams);
 
+    // Publish the request metrics as runtime information and through jmx
+    RequestMetrics metrics = dispatcher.getRequestMetrics();
+    metricsServiceRegistration = bundleContext.registerService(RuntimeInformationProvider.class.getName(), metrics, null);
+    metrics.registerMBeans(ManagementFactory.getPlatformMBeanServer());
+
     if (instance.getName() != null)
       logger.info("Instance name is '{}'", instance.getName());
     else
@@ -133,6 +166,17 @@ public class DispatcherServiceImpl implements DispatcherService, ManagedService
       }
     }
 
+    if (metricsServiceRegistration != null) {
+      try {
+        metricsServiceRegistration.unregister();
+      } catch (IllegalStateException e) {
+        // Never mind, the service has been unregistered already
+      }
+    }
+    dispatcher.getRequestMetrics().unregisterMBeans();
+
+    logger.info("Request routing: {}", dispatcher.getRequestRouter());
+    logger.info("Request metrics: {}", dispatcher.getRequestMetrics());
     logger.debug("Weblounge dispatcher deactivated");
   }
 
@@ -0,0 +1,219 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of request latencies in microseconds.
+ * <p>
+ * Values below 32 are counted exactly, larger values are counted in buckets
+ * that split every power of two into 16 parts, which keeps the error of the
+ * reported percentiles below 6.25% while covering the full range of
+ * <code>long</code> values with less than a thousand counters. Recording a
+ * value is a handful of atomic increments and never blocks.
+ */
+final class LatencyHistogram {
+
+  /** Number of bits that are used to split a power of two */
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /** Number of buckets per power of two */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Number of values that are counted exactly */
+  private static final int EXACT_VALUES = SUB_BUCKETS << 1;
+
+  /** Total number of buckets, the last one counting Long.MAX_VALUE */
+  static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+  /** The bucket counters */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  /** Number of recorded values */
+  private final AtomicLong count = new AtomicLong();
+
+  /** Sum of the recorded values */
+  private final AtomicLong sum = new AtomicLong();
+
+  /** The largest recorded value */
+  private final AtomicLong max = new AtomicLong();
+
+  /** Number of failed requests */
+  private final AtomicLong errors = new AtomicLong();
+
+  /** Number of bytes served */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /**
+   * Records a request.
+   * 
+   * @param micros
+   *          the latency in microseconds
+   * @param length
+   *          the number of bytes served
+   * @param failed
+   *          <code>true</code> if the request failed
+   */
+  void record(long micros, long length, boolean failed) {
+    long value = Math.max(0, micros);
+    buckets.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    if (length > 0)
+      bytes.addAndGet(length);
+    if (failed)
+      errors.incrementAndGet();
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value))
+      currentMax = max.get();
+  }
+
+  /**
+   * Resets the histogram. Requests that are recorded while resetting may be
+   * partially lost.
+   */
+  void reset() {
+    for (int i = 0; i < BUCKETS; i++)
+      buckets.set(i, 0);
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+    errors.set(0);
+    bytes.set(0);
+  }
+
+  /**
+   * Returns a snapshot of the current state of the histogram.
+   * 
+   * @return the snapshot
+   */
+  Snapshot getSnapshot() {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long highest = max.get();
+    Snapshot snapshot = new Snapshot();
+    snapshot.count = total;
+    snapshot.errors = errors.get();
+    snapshot.bytes = bytes.get();
+    snapshot.max = highest;
+    snapshot.mean = total > 0 ? sum.get() / (double) total : 0;
+    snapshot.p50 = percentile(counts, total, 0.50, highest);
+    snapshot.p95 = percentile(counts, total, 0.95, highest);
+    snapshot.p99 = percentile(counts, total, 0.99, highest);
+    return snapshot;
+  }
+
+  /**
+   * Returns the value at the given percentile.
+   * 
+   * @param counts
+   *          the bucket counts
+   * @param total
+   *          the total number of values
+   * @param percentile
+   *          the percentile, between 0 and 1
+   * @param highest
+   *          the largest recorded value
+   * @return the value
+   */
+  private static long percentile(long[] counts, long total, double percentile,
+      long highest) {
+    if (total == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(total * percentile));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return Math.min(highestValueIn(i), highest);
+    }
+    return highest;
+  }
+
+  /**
+   * Returns the index of the bucket that counts <code>value</code>.
+   * 
+   * @param value
+   *          the value
+   * @return the bucket index
+   */
+  static int indexOf(long value) {
+    if (value < EXACT_VALUES)
+      return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Returns the largest value that is counted in bucket <code>index</code>.
+   * 
+   * @param index
+   *          the bucket index
+   * @return the largest value
+   */
+  static long highestValueIn(int index) {
+    if (index < EXACT_VALUES)
+      return index;
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    long next = (subBucket + 1) << shift;
+    return next <= 0 ? Long.MAX_VALUE : next - 1;
+  }
+
+  /**
+   * The state of a histogram at a given point in time.
+   */
+  static final class Snapshot {
+
+    /** Number of requests */
+    long count = 0;
+
+    /** Number of failed requests */
+    long errors = 0;
+
+    /** Number of bytes served */
+    long bytes = 0;
+
+    /** Mean latency in microseconds */
+    double mean = 0;
+
+    /** Largest latency in microseconds */
+    long max = 0;
+
+    /** Median latency in microseconds */
+    long p50 = 0;
+
+    /** 95th percentile of the latency in microseconds */
+    long p95 = 0;
+
+    /** 99th percentile of the latency in microseconds */
+    long p99 = 0;
+
+  }
+
+}
@@ -0,0 +1,490 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import ch.entwine.weblounge.common.language.Language;
+import ch.entwine.weblounge.common.security.User;
+import ch.entwine.weblounge.common.site.Environment;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Keeps latency histograms and throughput counters per site, request handler
+ * and mode, where the mode tells whether a response has been served from the
+ * response cache or has been rendered.
+ * <p>
+ * Recording a request is lock-free and does not allocate once the series for
+ * the site and handler exists. The metrics are published as runtime
+ * information with component id <code>metrics</code> as well as through JMX,
+ * using one management bean per series.
+ */
+final class RequestMetrics implements RuntimeInformationProvider {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(RequestMetrics.class);
+
+  /** Mode of responses that were served from the response cache */
+  static final String MODE_CACHED = "cached";
+
+  /** Mode of responses that were rendered */
+  static final String MODE_RENDERED = "rendered";
+
+  /** Domain of the management beans */
+  static final String JMX_DOMAIN = "ch.entwine.weblounge";
+
+  /** The series by site identifier and request handler */
+  private final ConcurrentMap<String, ConcurrentMap<RequestHandler, Series[]>> sites = new ConcurrentHashMap<String, ConcurrentMap<RequestHandler, Series[]>>();
+
+  /** The server that the management beans are registered with */
+  private MBeanServer mbeanServer = null;
+
+  /**
+   * Records a request that has been served by <code>handler</code>.
+   * 
+   * @param site
+   *          the site
+   * @param handler
+   *          the request handler
+   * @param cached
+   *          <code>true</code> if the response came from the response cache
+   * @param nanos
+   *          the time it took to serve the request in nanoseconds
+   * @param bytes
+   *          the number of bytes written to the client
+   * @param failed
+   *          <code>true</code> if the request failed
+   */
+  void record(Site site, RequestHandler handler, boolean cached, long nanos,
+      long bytes, boolean failed) {
+    Series[] series = getSeries(site.getIdentifier(), handler);
+    series[cached ? 0 : 1].histogram.record(nanos / 1000L, bytes, failed);
+  }
+
+  /**
+   * Returns the cached and the rendered series for the given site and handler,
+   * creating them if needed.
+   * 
+   * @param site
+   *          the site identifier
+   * @param handler
+   *          the request handler
+   * @return the series
+   */
+  private Series[] getSeries(String site, RequestHandler handler) {
+    ConcurrentMap<RequestHandler, Series[]> handlers = sites.get(site);
+    if (handlers == null) {
+      handlers = new ConcurrentHashMap<RequestHandler, Series[]>();
+      ConcurrentMap<RequestHandler, Series[]> existing = sites.putIfAbsent(site, handlers);
+      if (existing != null)
+        handlers = existing;
+    }
+    Series[] series = handlers.get(handler);
+    if (series == null) {
+      series = new Series[] {
+          new Series(site, handler.getName(), MODE_CACHED),
+          new Series(site, handler.getName(), MODE_RENDERED) };
+      Series[] existing = handlers.putIfAbsent(handler, series);
+      if (existing != null)
+        return existing;
+      synchronized (this) {
+        if (mbeanServer != null) {
+          for (Series s : series)
+            register(s);
+        }
+      }
+    }
+    return series;
+  }
+
+  /**
+   * Returns all series that have been recorded for the site with identifier
+   * <code>site</code>.
+   * 
+   * @param site
+   *          the site identifier
+   * @return the series
+   */
+  List<Series> getSeries(String site) {
+    List<Series> result = new ArrayList<Series>();
+    Map<RequestHandler, Series[]> handlers = sites.get(site);
+    if (handlers == null)
+      return result;
+    for (Series[] series : handlers.values()) {
+      for (Series s : series)
+        result.add(s);
+    }
+    return result;
+  }
+
+  /**
+   * Publishes the metrics to <code>server</code>.
+   * 
+   * @param server
+   *          the management bean server
+   */
+  synchronized void registerMBeans(MBeanServer server) {
+    mbeanServer = server;
+    for (Map<RequestHandler, Series[]> handlers : sites.values()) {
+      for (Series[] series : handlers.values()) {
+        for (Series s : series)
+          register(s);
+      }
+    }
+  }
+
+  /**
+   * Removes the metrics from the management bean server.
+   */
+  synchronized void unregisterMBeans() {
+    if (mbeanServer == null)
+      return;
+    for (Map<RequestHandler, Series[]> handlers : sites.values()) {
+      for (Series[] series : handlers.values()) {
+        for (Series s : series)
+          unregister(s);
+      }
+    }
+    mbeanServer = null;
+  }
+
+  /**
+   * Discards the metrics of <code>handler</code> on all sites and removes the
+   * according management beans, so that a handler registered later on under
+   * the same name starts over.
+   * 
+   * @param handler
+   *          the request handler
+   */
+  synchronized void remove(RequestHandler handler) {
+    for (Map<RequestHandler, Series[]> handlers : sites.values()) {
+      Series[] series = handlers.remove(handler);
+      if (series == null || mbeanServer == null)
+        continue;
+      for (Series s : series)
+        unregister(s);
+    }
+  }
+
+  /**
+   * Registers the series with the management bean server.
+   * 
+   * @param series
+   *          the series
+   */
+  private void register(Series series) {
+    try {
+      ObjectName name = series.getObjectName();
+      if (mbeanServer.isRegistered(name)) {
+        logger.debug("Request metrics {} are already registered", series);
+        return;
+      }
+      mbeanServer.registerMBean(new StandardMBean(series, RequestMetricsMBean.class), name);
+      series.registered = true;
+    } catch (Exception e) {
+      logger.warn("Error registering request metrics {}: {}", series, e.getMessage());
+    }
+  }
+
+  /**
+   * Removes the series from the management bean server, provided that it has
+   * been registered by this instance.
+   * 
+   * @param series
+   *          the series
+   */
+  private void unregister(Series series) {
+    if (!series.registered)
+      return;
+    try {
+      mbeanServer.unregisterMBean(series.getObjectName());
+    } catch (Exception e) {
+      logger.warn("Error unregistering request metrics {}: {}", series, e.getMessage());
+    } finally {
+      series.registered = false;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider#getComponentId()
+   */
+  public String getComponentId() {
+    return "metrics";
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.kernel.runtime.RuntimeInformationProvider#getRuntimeInformation(ch.entwine.weblounge.common.site.Site,
+   *      ch.entwine.weblounge.common.security.User,
+   *      ch.entwine.weblounge.common.language.Language, Environment)
+   */
+  public String getRuntimeInformation(Site site, User user, Language language,
+      Environment environment) {
+    if (site == null)
+      return null;
+    StringBuffer xml = new StringBuffer();
+    for (Series series : getSeries(site.getIdentifier())) {
+      LatencyHistogram.Snapshot snapshot = series.histogram.getSnapshot();
+      if (snapshot.count == 0)
+        continue;
+      xml.append("<handler mode=\"").append(series.mode).append("\">");
+      xml.append("<name><![CDATA[").append(series.handler).append("]]></name>");
+      xml.append("<requests>").append(snapshot.count).append("</requests>");
+      xml.append("<errors>").append(snapshot.errors).append("</errors>");
+      xml.append("<bytes>").append(snapshot.bytes).append("</bytes>");
+      xml.append("<latency unit=\"ms\">");
+      xml.append("<mean>").append(toMillis(snapshot.mean)).append("</mean>");
+      xml.append("<p50>").append(toMillis(snapshot.p50)).append("</p50>");
+      xml.append("<p95>").append(toMillis(snapshot.p95)).append("</p95>");
+      xml.append("<p99>").append(toMillis(snapshot.p99)).append("</p99>");
+      xml.append("<max>").append(toMillis(snapshot.max)).append("</max>");
+      xml.append("</latency>");
+      xml.append("</handler>");
+    }
+    return xml.toString();
+  }
+
+  /**
+   * Converts microseconds to milliseconds.
+   * 
+   * @param micros
+   *          the value in microseconds
+   * @return the value in milliseconds
+   */
+  static double toMillis(double micros) {
+    return Math.round(micros) / 1000d;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    StringBuffer buf = new StringBuffer();
+    for (Map<RequestHandler, Series[]> handlers : sites.values()) {
+      for (Series[] series : handlers.values()) {
+        for (Series s : series) {
+          LatencyHistogram.Snapshot snapshot = s.histogram.getSnapshot();
+          if (snapshot.count == 0)
+            continue;
+          if (buf.length() > 0)
+            buf.append(", ");
+          buf.append(s).append(" ").append(snapshot.count).append(" requests");
+          buf.append(" p50=").append(toMillis(snapshot.p50)).append("ms");
+          buf.append(" p99=").append(toMillis(snapshot.p99)).append("ms");
+        }
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * The metrics of a request handler on a site in one mode.
+   */
+  static final class Series implements RequestMetricsMBean {
+
+    /** The site identifier */
+    private final String site;
+
+    /** The handler name */
+    private final String handler;
+
+    /** The mode */
+    private final String mode;
+
+    /** The latency histogram */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /** True if the series is registered as a management bean */
+    private boolean registered = false;
+
+    /**
+     * Creates a new series.
+     * 
+     * @param site
+     *          the site identifier
+     * @param handler
+     *          the handler name
+     * @param mode
+     *          the mode
+     */
+    Series(String site, String handler, String mode) {
+      this.site = site;
+      this.handler = handler;
+      this.mode = mode;
+    }
+
+    /**
+     * Returns the name of the management bean.
+     * 
+     * @return the object name
+     * @throws MalformedObjectNameException
+     *           if the name is invalid
+     */
+    ObjectName getObjectName() throws MalformedObjectNameException {
+      StringBuffer name = new StringBuffer(JMX_DOMAIN);
+      name.append(":type=RequestMetrics");
+      name.append(",site=").append(ObjectName.quote(site));
+      name.append(",handler=").append(ObjectName.quote(handler));
+      name.append(",mode=").append(mode);
+      return new ObjectName(name.toString());
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getSite()
+     */
+    public String getSite() {
+      return site;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getHandler()
+     */
+    public String getHandler() {
+      return handler;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getMode()
+     */
+    public String getMode() {
+      return mode;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getCount()
+     */
+    public long getCount() {
+      return histogram.getSnapshot().count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getErrors()
+     */
+    public long getErrors() {
+      return histogram.getSnapshot().errors;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getBytesServed()
+     */
+    public long getBytesServed() {
+      return histogram.getSnapshot().bytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getMeanMillis()
+     */
+    public double getMeanMillis() {
+      return toMillis(histogram.getSnapshot().mean);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getMaxMillis()
+     */
+    public double getMaxMillis() {
+      return toMillis(histogram.getSnapshot().max);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getP50Millis()
+     */
+    public double getP50Millis() {
+      return toMillis(histogram.getSnapshot().p50);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getP95Millis()
+     */
+    public double getP95Millis() {
+      return toMillis(histogram.getSnapshot().p95);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#getP99Millis()
+     */
+    public double getP99Millis() {
+      return toMillis(histogram.getSnapshot().p99);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.RequestMetricsMBean#reset()
+     */
+    public void reset() {
+      histogram.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return site + "/" + handler + " (" + mode + ")";
+    }
+
+  }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+/**
+ * Management interface of the latency and throughput metrics that are kept for
+ * a request handler on a site, separately for responses that were served from
+ * the response cache and for responses that were rendered.
+ */
+public interface RequestMetricsMBean {
+
+  /**
+   * Returns the identifier of the site.
+   * 
+   * @return the site identifier
+   */
+  String getSite();
+
+  /**
+   * Returns the name of the request handler.
+   * 
+   * @return the handler name
+   */
+  String getHandler();
+
+  /**
+   * Returns <code>cached</code> or <code>rendered</code>, depending on whether
+   * the metrics are about responses from the response cache or not.
+   * 
+   * @return the mode
+   */
+  String getMode();
+
+  /**
+   * Returns the number of requests that have been served.
+   * 
+   * @return the number of requests
+   */
+  long getCount();
+
+  /**
+   * Returns the number of requests that resulted in an error.
+   * 
+   * @return the number of failed requests
+   */
+  long getErrors();
+
+  /**
+   * Returns the number of bytes that have been served, as far as the length
+   * of the responses was known.
+   * 
+   * @return the number of bytes
+   */
+  long getBytesServed();
+
+  /**
+   * Returns the mean latency in milliseconds.
+   * 
+   * @return the mean latency
+   */
+  double getMeanMillis();
+
+  /**
+   * Returns the largest latency in milliseconds.
+   * 
+   * @return the largest latency
+   */
+  double getMaxMillis();
+
+  /**
+   * Returns the median latency in milliseconds.
+   * 
+   * @return the median latency
+   */
+  double getP50Millis();
+
+  /**
+   * Returns the 95th percentile of the latency in milliseconds.
+   * 
+   * @return the 95th percentile
+   */
+  double getP95Millis();
+
+  /**
+   * Returns the 99th percentile of the latency in milliseconds.
+   * 
+   * @return the 99th percentile
+   */
+  double getP99Millis();
+
+  /**
+   * Resets the metrics.
+   */
+  void reset();
+
+}
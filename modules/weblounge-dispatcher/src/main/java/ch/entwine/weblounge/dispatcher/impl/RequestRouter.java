@@ -0,0 +1,604 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the registered request handlers and decides which of them a
+ * request is offered to.
+ * <p>
+ * For every site, the routes of the handlers are compiled into a prefix tree.
+ * Looking up a request path yields the handlers whose routes are a prefix of
+ * the path, ordered by priority and, among handlers of the same priority, by
+ * the length of the matching route, so that the handler that owns the most
+ * specific route is asked first.
+ */
+final class RequestRouter {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(RequestRouter.class);
+
+  /** The registered handlers, ordered by priority */
+  private final List<RequestHandler> handlers = new ArrayList<RequestHandler>();
+
+  /** The routing tables by site identifier */
+  private final ConcurrentMap<String, RoutingTable> tables = new ConcurrentHashMap<String, RoutingTable>();
+
+  /** The routing statistics by handler */
+  private final ConcurrentMap<RequestHandler, HandlerStatistics> statistics = new ConcurrentHashMap<RequestHandler, HandlerStatistics>();
+
+  /** Version of the list of handlers, used to detect outdated tables */
+  private volatile long generation = 0;
+
+  /** The registered handlers that declare routes */
+  private volatile RoutedRequestHandler[] routedHandlers = new RoutedRequestHandler[0];
+
+  /** Number of routed requests */
+  private final AtomicLong requests = new AtomicLong();
+
+  /** Number of requests that no handler served */
+  private final AtomicLong unserved = new AtomicLong();
+
+  /** Number of requests that failed in a handler */
+  private final AtomicLong failed = new AtomicLong();
+
+  /** Number of times that a handler declined a request */
+  private final AtomicLong declines = new AtomicLong();
+
+  /**
+   * Adds <code>handler</code> to the list of request handlers. Handlers with
+   * the same priority are asked in the order of their registration.
+   *
+   * @param handler
+   *          the request handler
+   */
+  synchronized void add(RequestHandler handler) {
+    if (handlers.contains(handler))
+      return;
+    int position = handlers.size();
+    for (int i = 0; i < handlers.size(); i++) {
+      if (handlers.get(i).getPriority() < handler.getPriority()) {
+        position = i;
+        break;
+      }
+    }
+    handlers.add(position, handler);
+    statistics.put(handler, new HandlerStatistics(handler));
+    handlersChanged();
+  }
+
+  /**
+   * Removes <code>handler</code> from the list of request handlers.
+   *
+   * @param handler
+   *          the request handler
+   * @return <code>true</code> if the handler was removed
+   */
+  synchronized boolean remove(RequestHandler handler) {
+    if (!handlers.remove(handler))
+      return false;
+    statistics.remove(handler);
+    handlersChanged();
+    return true;
+  }
+
+  /**
+   * Discards the routing tables after the list of handlers has changed.
+   */
+  private void handlersChanged() {
+    List<RoutedRequestHandler> routed = new ArrayList<RoutedRequestHandler>();
+    for (RequestHandler handler : handlers) {
+      if (handler instanceof RoutedRequestHandler)
+        routed.add((RoutedRequestHandler) handler);
+    }
+    routedHandlers = routed.toArray(new RoutedRequestHandler[routed.size()]);
+    generation++;
+    tables.clear();
+  }
+
+  /**
+   * Returns the request handlers in the order of their priority.
+   *
+   * @return the request handlers
+   */
+  synchronized List<RequestHandler> getHandlers() {
+    return new ArrayList<RequestHandler>(handlers);
+  }
+
+  /**
+   * Returns the handlers that a request to <code>path</code> on
+   * <code>site</code> should be offered to, in the order in which they should
+   * be asked. The returned array must not be modified.
+   *
+   * @param site
+   *          the site
+   * @param path
+   *          the request path
+   * @return the handlers
+   */
+  RequestHandler[] route(Site site, String path) {
+    requests.incrementAndGet();
+    RoutingTable table = tables.get(site.getIdentifier());
+    if (table == null || table.generation != generation || table.routesVersion != getRoutesVersion()) {
+      table = compile(site);
+      tables.put(site.getIdentifier(), table);
+    }
+    return table.lookup(path);
+  }
+
+  /**
+   * Returns the sum of the route versions of the handlers. Since route versions
+   * only ever grow, the sum changes whenever the routes of a handler change.
+   *
+   * @return the version of the handlers' routes
+   */
+  private long getRoutesVersion() {
+    long version = 0;
+    for (RoutedRequestHandler handler : routedHandlers)
+      version += handler.getRoutesVersion();
+    return version;
+  }
+
+  /**
+   * Builds the routing table for the given site.
+   *
+   * @param site
+   *          the site
+   * @return the routing table
+   */
+  private RoutingTable compile(Site site) {
+    List<RequestHandler> handlers = null;
+    long generation = 0;
+    long routesVersion = 0;
+    synchronized (this) {
+      handlers = new ArrayList<RequestHandler>(this.handlers);
+      generation = this.generation;
+      routesVersion = getRoutesVersion();
+    }
+
+    RoutingTable table = new RoutingTable(generation, routesVersion, handlers);
+    for (RequestHandler handler : handlers) {
+      String[] routes = null;
+      if (handler instanceof RoutedRequestHandler)
+        routes = ((RoutedRequestHandler) handler).getRoutes(site);
+      if (routes == null || routes.length == 0)
+        routes = new String[] { RoutedRequestHandler.ROOT };
+      for (String route : routes) {
+        table.add(route, handler);
+      }
+    }
+    table.compile();
+
+    logger.debug("Compiled routing table for {} request handlers of site '{}'", handlers.size(), site);
+    return table;
+  }
+
+  /**
+   * Records that <code>handler</code> has served the current request after
+   * <code>declined</code> handlers had declined it.
+   *
+   * @param handler
+   *          the request handler
+   * @param declined
+   *          the number of handlers that declined the request
+   */
+  void served(RequestHandler handler, int declined) {
+    HandlerStatistics stats = statistics.get(handler);
+    if (stats != null) {
+      stats.served.incrementAndGet();
+      stats.precedingDeclines.addAndGet(declined);
+    }
+  }
+
+  /**
+   * Records that <code>handler</code> has declined the current request.
+   *
+   * @param handler
+   *          the request handler
+   */
+  void declined(RequestHandler handler) {
+    declines.incrementAndGet();
+    HandlerStatistics stats = statistics.get(handler);
+    if (stats != null)
+      stats.declined.incrementAndGet();
+  }
+
+  /**
+   * Records that <code>handler</code> failed while serving the current
+   * request.
+   *
+   * @param handler
+   *          the request handler
+   */
+  void failed(RequestHandler handler) {
+    failed.incrementAndGet();
+    HandlerStatistics stats = statistics.get(handler);
+    if (stats != null)
+      stats.failed.incrementAndGet();
+  }
+
+  /**
+   * Records that none of the handlers served the current request.
+   */
+  void unserved() {
+    unserved.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of requests that have been routed.
+   *
+   * @return the number of requests
+   */
+  long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * Returns the number of requests that were not served by any handler.
+   *
+   * @return the number of unserved requests
+   */
+  long getUnservedRequests() {
+    return unserved.get();
+  }
+
+  /**
+   * Returns the number of requests that failed in a handler.
+   *
+   * @return the number of failed requests
+   */
+  long getFailedRequests() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the total number of times that a handler declined a request.
+   *
+   * @return the number of declines
+   */
+  long getDeclines() {
+    return declines.get();
+  }
+
+  /**
+   * Returns the routing statistics of the registered handlers.
+   *
+   * @return the statistics
+   */
+  List<HandlerStatistics> getStatistics() {
+    List<HandlerStatistics> result = new ArrayList<HandlerStatistics>();
+    for (RequestHandler handler : getHandlers()) {
+      HandlerStatistics stats = statistics.get(handler);
+      if (stats != null)
+        result.add(stats);
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    long requests = getRequests();
+    buf.append(requests).append(" requests, ");
+    buf.append(getUnservedRequests()).append(" unserved, ");
+    buf.append(getFailedRequests()).append(" failed, ");
+    buf.append(String.format("%.2f", requests > 0 ? (double) getDeclines() / requests : 0d));
+    buf.append(" declines per request");
+    for (HandlerStatistics stats : getStatistics())
+      buf.append("; ").append(stats);
+    return buf.toString();
+  }
+
+  /**
+   * Routing statistics of a single handler.
+   */
+  static final class HandlerStatistics {
+
+    /** The handler */
+    private final RequestHandler handler;
+
+    /** Number of requests that were served */
+    private final AtomicLong served = new AtomicLong();
+
+    /** Number of requests that were declined */
+    private final AtomicLong declined = new AtomicLong();
+
+    /** Number of requests that failed */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Number of declines by other handlers before this one served */
+    private final AtomicLong precedingDeclines = new AtomicLong();
+
+    /**
+     * Creates the statistics for <code>handler</code>.
+     *
+     * @param handler
+     *          the request handler
+     */
+    HandlerStatistics(RequestHandler handler) {
+      this.handler = handler;
+    }
+
+    /**
+     * Returns the request handler.
+     *
+     * @return the handler
+     */
+    RequestHandler getHandler() {
+      return handler;
+    }
+
+    /**
+     * Returns the number of requests that were served by the handler.
+     *
+     * @return the number of served requests
+     */
+    long getServed() {
+      return served.get();
+    }
+
+    /**
+     * Returns the number of requests that were declined by the handler.
+     *
+     * @return the number of declined requests
+     */
+    long getDeclined() {
+      return declined.get();
+    }
+
+    /**
+     * Returns the number of requests that failed in the handler.
+     *
+     * @return the number of failed requests
+     */
+    long getFailed() {
+      return failed.get();
+    }
+
+    /**
+     * Returns the average number of handlers that declined a request before
+     * it was served by this handler.
+     *
+     * @return the average number of declines
+     */
+    double getDeclinesPerRequest() {
+      long served = this.served.get();
+      return served > 0 ? (double) precedingDeclines.get() / served : 0d;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return handler.getName() + ": " + getServed() + " served, " + getFailed() + " failed, " + getDeclined() + " declined, " + String.format("%.2f", getDeclinesPerRequest()) + " declines per served request";
+    }
+
+  }
+
+  /**
+   * Prefix tree of request paths, where every node holds the handlers that a
+   * request ending up at that node should be offered to.
+   */
+  private static final class RoutingTable {
+
+    /** Version of the list of handlers that the table was compiled from */
+    private final long generation;
+
+    /** Version of the handlers' routes that the table was compiled from */
+    private final long routesVersion;
+
+    /** The handlers in the order of their priority */
+    private final List<RequestHandler> order;
+
+    /** The root node */
+    private final Node root = new Node();
+
+    /**
+     * Creates a new routing table.
+     *
+     * @param generation
+     *          version of the list of handlers
+     * @param routesVersion
+     *          version of the handlers' routes
+     * @param order
+     *          the handlers in the order of their priority
+     */
+    RoutingTable(long generation, long routesVersion,
+        List<RequestHandler> order) {
+      this.generation = generation;
+      this.routesVersion = routesVersion;
+      this.order = order;
+    }
+
+    /**
+     * Adds a route for <code>handler</code>.
+     *
+     * @param route
+     *          the route
+     * @param handler
+     *          the handler
+     */
+    void add(String route, RequestHandler handler) {
+      Node node = root;
+      for (int i = 0; i < route.length(); i++)
+        node = node.getOrCreateChild(route.charAt(i));
+      if (node.routes == null)
+        node.routes = new ArrayList<RequestHandler>();
+      if (!node.routes.contains(handler))
+        node.routes.add(handler);
+    }
+
+    /**
+     * Determines the handlers for every node in the tree.
+     */
+    void compile() {
+      compile(root, 0, new HashMap<RequestHandler, Integer>(), new RequestHandler[0]);
+    }
+
+    /**
+     * Determines the handlers for <code>node</code> and its children.
+     *
+     * @param node
+     *          the node
+     * @param depth
+     *          the length of the route that ends at the node
+     * @param matches
+     *          the length of the longest matching route by handler
+     * @param inherited
+     *          the handlers of the parent node
+     */
+    private void compile(Node node, int depth,
+        Map<RequestHandler, Integer> matches, RequestHandler[] inherited) {
+      Map<RequestHandler, Integer> nodeMatches = matches;
+      if (node.routes == null) {
+        node.handlers = inherited;
+      } else {
+        nodeMatches = new HashMap<RequestHandler, Integer>(matches);
+        for (RequestHandler handler : node.routes)
+          nodeMatches.put(handler, depth);
+        node.handlers = sort(nodeMatches);
+        node.routes = null;
+      }
+      for (Node child : node.children)
+        compile(child, depth + 1, nodeMatches, node.handlers);
+    }
+
+    /**
+     * Returns the handlers in the order in which they need to be asked.
+     *
+     * @param matches
+     *          the length of the longest matching route by handler
+     * @return the handlers
+     */
+    private RequestHandler[] sort(final Map<RequestHandler, Integer> matches) {
+      List<RequestHandler> handlers = new ArrayList<RequestHandler>(matches.keySet());
+      Collections.sort(handlers, new Comparator<RequestHandler>() {
+        public int compare(RequestHandler a, RequestHandler b) {
+          if (a.getPriority() != b.getPriority())
+            return a.getPriority() > b.getPriority() ? -1 : 1;
+          int specificity = matches.get(b).compareTo(matches.get(a));
+          if (specificity != 0)
+            return specificity;
+          return Integer.valueOf(order.indexOf(a)).compareTo(order.indexOf(b));
+        }
+      });
+      return handlers.toArray(new RequestHandler[handlers.size()]);
+    }
+
+    /**
+     * Returns the handlers for the given path.
+     *
+     * @param path
+     *          the request path
+     * @return the handlers
+     */
+    RequestHandler[] lookup(String path) {
+      Node node = root;
+      for (int i = 0; i < path.length(); i++) {
+        Node child = node.getChild(path.charAt(i));
+        if (child == null)
+          break;
+        node = child;
+      }
+      return node.handlers;
+    }
+
+  }
+
+  /**
+   * Node in the routing table.
+   */
+  private static final class Node {
+
+    /** The characters leading to the child nodes */
+    private char[] keys = new char[0];
+
+    /** The child nodes */
+    private Node[] children = new Node[0];
+
+    /** The handlers whose routes end at this node, only used while compiling */
+    private List<RequestHandler> routes = null;
+
+    /** The handlers for requests whose longest matching route ends here */
+    private RequestHandler[] handlers = null;
+
+    /**
+     * Returns the child node for <code>c</code> or <code>null</code>.
+     *
+     * @param c
+     *          the character
+     * @return the child node
+     */
+    Node getChild(char c) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == c)
+          return children[i];
+      }
+      return null;
+    }
+
+    /**
+     * Returns the child node for <code>c</code>, which is created if needed.
+     *
+     * @param c
+     *          the character
+     * @return the child node
+     */
+    Node getOrCreateChild(char c) {
+      Node child = getChild(c);
+      if (child != null)
+        return child;
+      child = new Node();
+      keys = Arrays.copyOf(keys, keys.length + 1);
+      children = Arrays.copyOf(children, children.length + 1);
+      keys[keys.length - 1] = c;
+      children[children.length - 1] = child;
+      return child;
+    }
+
+  }
+
+}
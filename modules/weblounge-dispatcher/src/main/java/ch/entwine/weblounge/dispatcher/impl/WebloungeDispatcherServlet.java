@@ -27,6 +27,7 @@ import ch.entwine.weblounge.common.impl.request.RequestUtils;
 import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
 import ch.entwine.weblounge.common.impl.request.WebloungeResponseImpl;
 import ch.entwine.weblounge.common.impl.security.SecurityUtils;
+import ch.entwine.weblounge.common.impl.util.HttpDateFormat;
 import ch.entwine.weblounge.common.request.RequestListener;
 import ch.entwine.weblounge.common.request.ResponseCache;
 import ch.entwine.weblounge.common.request.WebloungeRequest;
@@ -43,15 +44,16 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -93,8 +95,11 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
   /** List of dispatcher listeners */
   private List<DispatchListener> dispatcher = null;
 
-  /** List of dispatcher listeners */
-  private Set<RequestHandler> requestHandler = null;
+  /** The request handlers */
+  private RequestRouter router = null;
+
+  /** Latency and throughput of the request handlers */
+  private RequestMetrics metrics = null;
 
   /** List with well known urls and files */
   private static List<String> wellknownFiles = new ArrayList<String>();
@@ -126,15 +131,8 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
     this.environment = environment;
     requestListeners = new CopyOnWriteArrayList<RequestListener>();
     dispatcher = new CopyOnWriteArrayList<DispatchListener>();
-    requestHandler = new TreeSet<RequestHandler>(new Comparator<RequestHandler>() {
-      public int compare(RequestHandler handler1, RequestHandler handler2) {
-        int compare = Integer.valueOf(handler2.getPriority()).compareTo(Integer.valueOf(handler1.getPriority()));
-        // FIXME if 0 is returned the request handler will not be added?!
-        if (compare == 0)
-          return 1;
-        return compare;
-      }
-    });
+    router = new RequestRouter();
+    metrics = new RequestMetrics();
     caches = new HashMap<String, ResponseCache>();
   }
 
@@ -252,6 +250,7 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
   @Override
   protected void service(HttpServletRequest httpRequest,
       HttpServletResponse httpResponse) throws ServletException, IOException {
+    long start = System.nanoTime();
 
     // Return the instance name if available
     if (instanceName != null) {
@@ -301,7 +300,8 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
     }
 
     // Make sure the response is buffered
-    httpResponse = new BufferedHttpServletResponse(httpResponse);
+    BufferedHttpServletResponse bufferedResponse = new BufferedHttpServletResponse(httpResponse);
+    httpResponse = bufferedResponse;
 
     // Get the servlet that is responsible for the site's content
     Servlet siteServlet = sites.getSiteServlet(site);
@@ -324,24 +324,31 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
     response.setResponseCache(cache);
     response.setCharacterEncoding(DEFAULT_RESPONSE_ENCODING);
     response.setHeader("X-Powered-By", POWERED_BY);
-    response.setDateHeader("Date", Calendar.getInstance().getTimeInMillis());
+    response.setHeader("Date", HttpDateFormat.format(System.currentTimeMillis()));
 
     // Notify listeners about starting request
     fireRequestStarted(request, response, site);
 
     boolean requestServed = false;
+    RequestHandler servingHandler = null;
+    int declines = 0;
 
-    // Ask the registered request handler if they are willing to handle
-    // the request.
+    // Ask the request handlers that are routed to the request's path if they
+    // are willing to handle the request.
     try {
       SecurityUtils.setSite(site);
       request.setUser(SecurityUtils.getUser());
-      for (RequestHandler handler : requestHandler) {
+      for (RequestHandler handler : router.route(site, request.getUrl().getPath())) {
         try {
           logger.trace("Asking {} to serve {}", handler, request);
           if (handler.service(request, response)) {
             requestServed = true;
-            logger.debug("{} served request {}", handler, request);
+            servingHandler = handler;
+            router.served(handler, declines);
+            logger.debug("{} served request {} after {} declines", new Object[] {
+                handler,
+                request,
+                declines });
             if (response.hasError()) {
               logger.debug("Request processing failed on {}", request);
               fireRequestFailed(request, response, site);
@@ -350,7 +357,10 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
             }
             return;
           }
+          router.declined(handler);
+          declines++;
         } catch (Throwable t) {
+          servingHandler = handler;
           response.invalidate();
           String params = RequestUtils.dumpParameters(request);
           if (t.getCause() != null) {
@@ -362,17 +372,30 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
               params });
           logger.error(t.getMessage(), t);
           DispatchUtils.sendInternalError(t.getMessage(), request, response);
-          break;
+          return;
         }
       }
     } finally {
       SecurityUtils.setSite(null);
-      if (requestServed) {
+      if (requestServed && DispatchUtils.isAsyncStarted(request)) {
+        // The handler is going to finish the response once it's ready
+        logger.debug("Processing of {} continues asynchronously", httpRequest.getRequestURI());
+        request.getAsyncContext().addListener(new MetricsListener(site, servingHandler, response, bufferedResponse, start));
+      } else if (requestServed) {
         response.endResponse();
         response.flushBuffer();
+        metrics.record(site, servingHandler, response.isServedFromCache(), System.nanoTime() - start, bufferedResponse.getBytesWritten(), response.hasError());
         logger.debug("Finished processing of {}", httpRequest.getRequestURI());
+      } else if (servingHandler != null) {
+        logger.debug("Processing of {} failed", httpRequest.getRequestURI());
+        router.failed(servingHandler);
+        if (cache != null)
+          cache.invalidate(response);
+        fireRequestFailed(request, response, site);
+        metrics.record(site, servingHandler, false, System.nanoTime() - start, bufferedResponse.getBytesWritten(), true);
       } else {
         logger.debug("No handler found for {}", request);
+        router.unserved();
         DispatchUtils.sendNotFound(request, response);
         if (cache != null)
           cache.invalidate(response);
@@ -453,18 +476,38 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
    *          the request handler
    */
   void addRequestHandler(RequestHandler handler) {
-    requestHandler.add(handler);
-    requestHandler.size();
+    router.add(handler);
   }
 
   /**
-   * Removes the request handler from the list of handlers.
+   * Removes the request handler from the list of handlers and discards its
+   * metrics.
    * 
    * @param handler
    *          the request handler to remove
    */
   void removeRequestHandler(RequestHandler handler) {
-    requestHandler.remove(handler);
+    router.remove(handler);
+    metrics.remove(handler);
+  }
+
+  /**
+   * Returns the router that decides which request handlers a request is
+   * offered to and keeps track of the routing statistics.
+   * 
+   * @return the request router
+   */
+  RequestRouter getRequestRouter() {
+    return router;
+  }
+
+  /**
+   * Returns the latency and throughput metrics of the request handlers.
+   * 
+   * @return the request metrics
+   */
+  RequestMetrics getRequestMetrics() {
+    return metrics;
   }
 
   /**
@@ -590,4 +633,101 @@ public final class WebloungeDispatcherServlet extends HttpServlet {
     return "Weblounge dispatcher servlet";
   }
 
+  /**
+   * Listener that records the metrics of a request once its asynchronous
+   * processing is over.
+   */
+  private final class MetricsListener implements AsyncListener {
+
+    /** The site */
+    private final Site site;
+
+    /** The request handler that served the request */
+    private final RequestHandler handler;
+
+    /** The response */
+    private final WebloungeResponseImpl response;
+
+    /** The buffered response */
+    private final BufferedHttpServletResponse bufferedResponse;
+
+    /** Start of the request processing in nanoseconds */
+    private final long start;
+
+    /** True if the request has been recorded */
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    /**
+     * Creates a listener for the given request.
+     * 
+     * @param site
+     *          the site
+     * @param handler
+     *          the request handler
+     * @param response
+     *          the response
+     * @param bufferedResponse
+     *          the buffered response
+     * @param start
+     *          start of the request processing in nanoseconds
+     */
+    MetricsListener(Site site, RequestHandler handler,
+        WebloungeResponseImpl response,
+        BufferedHttpServletResponse bufferedResponse, long start) {
+      this.site = site;
+      this.handler = handler;
+      this.response = response;
+      this.bufferedResponse = bufferedResponse;
+      this.start = start;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.AsyncListener#onComplete(javax.servlet.AsyncEvent)
+     */
+    public void onComplete(AsyncEvent event) throws IOException {
+      record(response.hasError());
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.AsyncListener#onTimeout(javax.servlet.AsyncEvent)
+     */
+    public void onTimeout(AsyncEvent event) throws IOException {
+      // The request is going to be completed or will fail
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.AsyncListener#onError(javax.servlet.AsyncEvent)
+     */
+    public void onError(AsyncEvent event) throws IOException {
+      record(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see javax.servlet.AsyncListener#onStartAsync(javax.servlet.AsyncEvent)
+     */
+    public void onStartAsync(AsyncEvent event) throws IOException {
+      // Nothing to do
+    }
+
+    /**
+     * Records the request unless this has been done already.
+     * 
+     * @param failed
+     *          <code>true</code> if the request failed
+     */
+    private void record(boolean failed) {
+      if (recorded.compareAndSet(false, true))
+        metrics.record(site, handler, response.isServedFromCache(), System.nanoTime() - start, bufferedResponse.getBytesWritten(), failed);
+    }
+
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,399 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import ch.entwine.weblounge.common.impl.site.ActionPool;
+import ch.entwine.weblounge.common.request.RequestFlavor;
+import ch.entwine.weblounge.common.site.Action;
+import ch.entwine.weblounge.common.url.UrlMatcher;
+import ch.entwine.weblounge.common.url.WebUrl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of actions that finds the action that is responsible for a given
+ * url.
+ * <p>
+ * Whenever an action is registered or unregistered, the mountpoints of the
+ * actions are compiled into a prefix tree per site. Since an action serves
+ * its mountpoint as well as every url below it, every node that a mountpoint
+ * ends at acts as a wildcard for the remainder of the url, and the action
+ * with the longest matching mountpoint wins.
+ * <p>
+ * The results of the lookups, including the urls that no action is registered
+ * for, are kept in a cache of limited size that is discarded whenever the
+ * registered actions change.
+ */
+final class ActionRegistry {
+
+  /** Default maximum number of urls in the lookup cache */
+  static final int DEFAULT_CACHE_SIZE = 1024;
+
+  /** Marker for urls that are not served by any action */
+  private static final Object NO_ACTION = new Object();
+
+  /** The registered actions */
+  private final Map<UrlMatcher, Registration> actions = new LinkedHashMap<UrlMatcher, Registration>();
+
+  /** Maximum number of urls in the lookup cache */
+  private final int cacheSize;
+
+  /** The compiled actions */
+  private volatile Routes routes = null;
+
+  /** Number of times that the registered actions have changed */
+  private volatile long version = 0;
+
+  /**
+   * Creates a new registry with a lookup cache of
+   * {@link #DEFAULT_CACHE_SIZE} urls.
+   */
+  ActionRegistry() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a new registry with a lookup cache of <code>cacheSize</code> urls.
+   *
+   * @param cacheSize
+   *          the maximum number of cached urls
+   */
+  ActionRegistry(int cacheSize) {
+    this.cacheSize = cacheSize;
+    this.routes = new Routes(new HashMap<String, Node>(), cacheSize);
+  }
+
+  /**
+   * Registers the action pool for the action's url space.
+   *
+   * @param matcher
+   *          the action's url matcher
+   * @param action
+   *          the action
+   * @param pool
+   *          the action pool
+   */
+  synchronized void register(UrlMatcher matcher, Action action, ActionPool pool) {
+    actions.put(matcher, new Registration(action, matcher.getMountpoint(), pool));
+    compile();
+  }
+
+  /**
+   * Removes the action pool that was registered with <code>matcher</code>.
+   *
+   * @param matcher
+   *          the action's url matcher
+   * @return the action pool or <code>null</code> if no pool was registered
+   */
+  synchronized ActionPool unregister(UrlMatcher matcher) {
+    Registration registration = actions.remove(matcher);
+    if (registration == null)
+      return null;
+    compile();
+    return registration.pool;
+  }
+
+  /**
+   * Returns the action pool that is responsible for <code>url</code> or
+   * <code>null</code> if there is none.
+   *
+   * @param url
+   *          the url
+   * @param flavor
+   *          the request flavor
+   * @return the action pool
+   */
+  ActionPool lookup(WebUrl url, RequestFlavor flavor) {
+    Routes routes = this.routes;
+    String site = url.getSite().getIdentifier();
+    String normalizedUrl = url.normalize(false, false, true);
+    StringBuilder key = new StringBuilder(site.length() + normalizedUrl.length() + 16);
+    key.append(site).append("://").append(normalizedUrl).append(':').append(flavor);
+
+    // Try the cache first
+    Object cached = routes.cache.get(key.toString());
+    if (cached != null)
+      return cached == NO_ACTION ? null : (ActionPool) cached;
+
+    // Look up the action in the prefix tree
+    ActionPool pool = null;
+    Node root = routes.sites.get(site);
+    if (root != null) {
+      Match match = new Match();
+      root.lookup(url.normalize(false, false, false), flavor, match);
+      root.lookup(normalizedUrl, flavor, match);
+      if (match.registration != null)
+        pool = match.registration.pool;
+    }
+
+    // Remember the result. Once the cache is full, it is discarded and
+    // populated again with what is requested from then on.
+    if (routes.cache.size() >= cacheSize)
+      routes.cache.clear();
+    routes.cache.put(key.toString(), pool != null ? pool : NO_ACTION);
+
+    return pool;
+  }
+
+  /**
+   * Returns the mountpoints of the actions that are registered for the given
+   * site.
+   *
+   * @param site
+   *          the site identifier
+   * @return the mountpoints
+   */
+  synchronized String[] getMountpoints(String site) {
+    Set<String> mountpoints = new LinkedHashSet<String>();
+    for (Registration registration : actions.values()) {
+      if (registration.site.equals(site))
+        mountpoints.add(registration.mountpoint);
+    }
+    return mountpoints.toArray(new String[mountpoints.size()]);
+  }
+
+  /**
+   * Returns a number that changes whenever actions are registered or
+   * unregistered.
+   *
+   * @return the version of the registered actions
+   */
+  long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the number of urls in the lookup cache.
+   *
+   * @return the number of cached urls
+   */
+  int getCachedUrls() {
+    return routes.cache.size();
+  }
+
+  /**
+   * Compiles the registered actions into a prefix tree per site and replaces
+   * the current routes along with the lookup cache.
+   */
+  private void compile() {
+    Map<String, Node> sites = new HashMap<String, Node>();
+    for (Registration registration : actions.values()) {
+      Node root = sites.get(registration.site);
+      if (root == null) {
+        root = new Node();
+        sites.put(registration.site, root);
+      }
+      root.add(registration.mountpoint, 0, registration);
+    }
+    routes = new Routes(sites, cacheSize);
+    version++;
+  }
+
+  /**
+   * The compiled actions along with the lookup cache that was populated from
+   * them.
+   */
+  private static final class Routes {
+
+    /** The prefix trees by site identifier */
+    private final Map<String, Node> sites;
+
+    /** The lookup cache */
+    private final ConcurrentMap<String, Object> cache;
+
+    /**
+     * Creates a new set of routes.
+     *
+     * @param sites
+     *          the prefix trees by site identifier
+     * @param cacheSize
+     *          the maximum number of cached urls
+     */
+    Routes(Map<String, Node> sites, int cacheSize) {
+      this.sites = sites;
+      this.cache = new ConcurrentHashMap<String, Object>(Math.min(cacheSize, 64));
+    }
+
+  }
+
+  /**
+   * A registered action.
+   */
+  private static final class Registration {
+
+    /** Identifier of the action's site */
+    private final String site;
+
+    /** The mountpoint */
+    private final String mountpoint;
+
+    /** The supported flavors */
+    private final Set<RequestFlavor> flavors;
+
+    /** The action pool */
+    private final ActionPool pool;
+
+    /**
+     * Creates a new registration.
+     *
+     * @param action
+     *          the action
+     * @param mountpoint
+     *          the mountpoint
+     * @param pool
+     *          the action pool
+     */
+    Registration(Action action, String mountpoint, ActionPool pool) {
+      this.site = action.getSite().getIdentifier();
+      this.mountpoint = mountpoint;
+      this.flavors = new HashSet<RequestFlavor>(Arrays.asList(action.getFlavors()));
+      this.pool = pool;
+    }
+
+    /**
+     * Returns <code>true</code> if the action supports <code>flavor</code>.
+     *
+     * @param flavor
+     *          the request flavor
+     * @return <code>true</code> if the flavor is supported
+     */
+    boolean supports(RequestFlavor flavor) {
+      return RequestFlavor.ANY.equals(flavor) || flavors.contains(flavor);
+    }
+
+  }
+
+  /**
+   * The best match of a lookup.
+   */
+  private static final class Match {
+
+    /** The matching registration */
+    private Registration registration = null;
+
+    /** Length of the matching mountpoint */
+    private int length = -1;
+
+  }
+
+  /**
+   * Node in the prefix tree of mountpoints.
+   */
+  private static final class Node {
+
+    /** The characters leading to the child nodes */
+    private char[] keys = new char[0];
+
+    /** The child nodes */
+    private Node[] children = new Node[0];
+
+    /** The actions whose mountpoint ends at this node */
+    private List<Registration> registrations = Collections.emptyList();
+
+    /**
+     * Adds the registration for the remainder of <code>mountpoint</code>,
+     * starting at <code>index</code>.
+     *
+     * @param mountpoint
+     *          the mountpoint
+     * @param index
+     *          the index of the next character
+     * @param registration
+     *          the registration
+     */
+    void add(String mountpoint, int index, Registration registration) {
+      Node node = this;
+      for (int i = index; i < mountpoint.length(); i++) {
+        char c = mountpoint.charAt(i);
+        Node child = node.getChild(c);
+        if (child == null) {
+          child = new Node();
+          node.keys = Arrays.copyOf(node.keys, node.keys.length + 1);
+          node.children = Arrays.copyOf(node.children, node.children.length + 1);
+          node.keys[node.keys.length - 1] = c;
+          node.children[node.children.length - 1] = child;
+        }
+        node = child;
+      }
+      if (node.registrations.isEmpty())
+        node.registrations = new ArrayList<Registration>(1);
+      node.registrations.add(registration);
+    }
+
+    /**
+     * Returns the child node for <code>c</code> or <code>null</code>.
+     *
+     * @param c
+     *          the character
+     * @return the child node
+     */
+    private Node getChild(char c) {
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == c)
+          return children[i];
+      }
+      return null;
+    }
+
+    /**
+     * Walks down the tree along <code>path</code> and updates
+     * <code>match</code> if a longer mountpoint supporting
+     * <code>flavor</code> is found.
+     *
+     * @param path
+     *          the path
+     * @param flavor
+     *          the request flavor
+     * @param match
+     *          the best match so far
+     */
+    void lookup(String path, RequestFlavor flavor, Match match) {
+      Node node = this;
+      for (int i = 0; node != null; i++) {
+        if (i > match.length) {
+          for (Registration registration : node.registrations) {
+            if (registration.supports(flavor)) {
+              match.registration = registration;
+              match.length = i;
+              break;
+            }
+          }
+        }
+        if (i == path.length())
+          break;
+        node = node.getChild(path.charAt(i));
+      }
+    }
+
+  }
+
+}
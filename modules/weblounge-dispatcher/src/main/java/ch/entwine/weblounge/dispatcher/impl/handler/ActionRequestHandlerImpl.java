@@ -51,6 +51,7 @@ import ch.entwine.weblounge.common.site.XMLAction;
 import ch.entwine.weblounge.common.url.UrlMatcher;
 import ch.entwine.weblounge.common.url.WebUrl;
 import ch.entwine.weblounge.dispatcher.ActionRequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.slf4j.Logger;
@@ -60,11 +61,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -73,23 +72,19 @@ import javax.servlet.http.HttpServletResponse;
  * the url space of registered action, it will handle the request by forwarding
  * it to the action.
  */
-public final class ActionRequestHandlerImpl implements ActionRequestHandler {
+public final class ActionRequestHandlerImpl implements ActionRequestHandler, RoutedRequestHandler {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(ActionRequestHandlerImpl.class);
 
   /** The registered actions */
-  private Map<UrlMatcher, ActionPool> actions = null;
-
-  /** Known urls */
-  private Map<String, ActionPool> urlCache = null;
+  private ActionRegistry actions = null;
 
   /**
    * Creates a new action request handler.
    */
   public ActionRequestHandlerImpl() {
-    actions = new HashMap<UrlMatcher, ActionPool>();
-    urlCache = new HashMap<String, ActionPool>();
+    actions = new ActionRegistry();
   }
 
   /**
@@ -690,38 +685,9 @@ public final class ActionRequestHandlerImpl implements ActionRequestHandler {
    * @return the handler
    */
   private ActionPool getActionForUrl(WebUrl url, RequestFlavor flavor) {
-    StringBuilder normalizedUrlBuilder = new StringBuilder(url.getSite().getIdentifier());
-    normalizedUrlBuilder.append("://").append(url.normalize(false, false, true));
-
-    // Try to use the url cache
-    ActionPool actionPool = urlCache.get(normalizedUrlBuilder.toString());
-    if (actionPool != null)
-      return actionPool;
-
-    // Nothing is in the cache, let's see if this is simply the first time
-    // that this action is being called
-    int maxMatchLength = 0;
-    for (Entry<UrlMatcher, ActionPool> entry : actions.entrySet()) {
-      UrlMatcher matcher = entry.getKey();
-      if (matcher.matches(url, flavor)) {
-        ActionPool pool = entry.getValue();
-        int matchLength = matcher.getMountpoint().length();
-        if (matchLength > maxMatchLength) {
-          maxMatchLength = matchLength;
-          actionPool = pool;
-        }
-      }
-    }
-
-    // Still nothing?
-    if (actionPool == null) {
+    ActionPool actionPool = actions.lookup(url, flavor);
+    if (actionPool == null)
       logger.debug("No action registered to handle {}", url);
-      return null;
-    }
-
-    // Register the url for future reference
-    urlCache.put(normalizedUrlBuilder.toString(), actionPool);
-
     return actionPool;
   }
 
@@ -740,22 +706,13 @@ public final class ActionRequestHandlerImpl implements ActionRequestHandler {
     StringBuffer registration = new StringBuffer(new WebUrlImpl(action.getSite(), action.getPath()).normalize());
 
     // Register the action
-    synchronized (actions) {
-      actions.put(matcher, pool);
-    }
+    actions.register(matcher, action, pool);
 
-    // Cache the action urls
     StringBuffer flavors = new StringBuffer();
-    synchronized (urlCache) {
-      for (RequestFlavor flavor : action.getFlavors()) {
-        WebUrl actionUrl = new WebUrlImpl(action.getSite(), action.getPath(), Resource.LIVE, flavor);
-        String normalizedUrl = actionUrl.normalize(false, false, true);
-        urlCache.put(normalizedUrl, pool);
-        if (flavors.length() > 0)
-          flavors.append(",");
-        flavors.append(flavor.toString().toLowerCase());
-        logger.trace("Caching action '{}' for url {}", action, normalizedUrl);
-      }
+    for (RequestFlavor flavor : action.getFlavors()) {
+      if (flavors.length() > 0)
+        flavors.append(",");
+      flavors.append(flavor.toString().toLowerCase());
     }
 
     logger.debug("Action '{}' ({}) registered for site://{}", new Object[] {
@@ -770,28 +727,12 @@ public final class ActionRequestHandlerImpl implements ActionRequestHandler {
    * @see ch.entwine.weblounge.dispatcher.ActionRequestHandler#unregister(ch.entwine.weblounge.common.site.Action)
    */
   public boolean unregister(Action action) {
-    ActionPool pool = null;
-
     // Remove the pool from the actions registry
-    synchronized (actions) {
-      UrlMatcher matcher = new UrlMatcherImpl(action);
-      pool = actions.remove(matcher);
-      if (pool == null) {
-        logger.warn("Tried to unregister unknown action '{}'", action);
-        return false;
-      }
-    }
-
-    // Remove entries from the url cache
-    synchronized (urlCache) {
-      Iterator<Entry<String, ActionPool>> cacheIterator = urlCache.entrySet().iterator();
-      while (cacheIterator.hasNext()) {
-        ActionPool candidate = cacheIterator.next().getValue();
-        if (candidate.equals(pool)) {
-          logger.trace("Removing '{}' from action url cache", action);
-          cacheIterator.remove();
-        }
-      }
+    UrlMatcher matcher = new UrlMatcherImpl(action);
+    ActionPool pool = actions.unregister(matcher);
+    if (pool == null) {
+      logger.warn("Tried to unregister unknown action '{}'", action);
+      return false;
     }
 
     logger.debug("Unregistering action '{}' from {}", action, new WebUrlImpl(action.getSite(), action.getPath()).normalize());
@@ -817,6 +758,43 @@ public final class ActionRequestHandlerImpl implements ActionRequestHandler {
     return getName();
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The routes are the mountpoints of the site's actions. Since actions are
+   * also matched against the url including the flavor, the parent of a
+   * mountpoint that ends with a flavor extension is a route as well.
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    List<String> routes = new ArrayList<String>();
+    for (String mountpoint : actions.getMountpoints(site.getIdentifier())) {
+      routes.add(mountpoint);
+      String path = mountpoint.endsWith("/") ? mountpoint.substring(0, mountpoint.length() - 1) : mountpoint;
+      int separator = path.lastIndexOf('/');
+      if (separator < 0)
+        continue;
+      String lastSegment = path.substring(separator + 1);
+      for (RequestFlavor flavor : RequestFlavor.values()) {
+        if (flavor.toExtension().equalsIgnoreCase(lastSegment)) {
+          routes.add(path.substring(0, separator + 1));
+          break;
+        }
+      }
+    }
+    return routes.toArray(new String[routes.size()]);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return actions.getVersion();
+  }
+
   /**
    * {@inheritDoc}
    * 
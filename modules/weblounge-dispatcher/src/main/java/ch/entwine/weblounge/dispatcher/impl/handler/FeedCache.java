@@ -0,0 +1,580 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import ch.entwine.weblounge.common.content.Renderer;
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.page.Page;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
+import ch.entwine.weblounge.common.impl.security.SystemAuthorities;
+import ch.entwine.weblounge.common.language.Language;
+import ch.entwine.weblounge.common.security.AccessRule;
+import ch.entwine.weblounge.common.security.Action;
+import ch.entwine.weblounge.common.security.Role;
+import ch.entwine.weblounge.common.security.Rule;
+import ch.entwine.weblounge.common.security.Securable;
+import ch.entwine.weblounge.common.security.SystemAction;
+import ch.entwine.weblounge.common.security.User;
+import ch.entwine.weblounge.common.site.Environment;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.contentrepository.ResourceListener;
+
+import com.sun.syndication.feed.synd.SyndEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of materialized feeds, which holds the entries of every feed that has
+ * been requested per site, environment, language, set of subjects, number of
+ * entries and set of authorities that the feed was compiled for.
+ * <p>
+ * The cache registers as a {@link ResourceListener} and applies the changes to
+ * live pages to the affected feeds as they happen, so that a feed only needs
+ * to be compiled from the content repository once. If a change cannot be
+ * applied without looking at the repository, e. g. because a page has been
+ * removed from a feed that was limited to a certain number of entries, the feed
+ * is discarded and compiled again on the next request.
+ * <p>
+ * Since the content repository only returns the pages that the current user
+ * may read, feeds are kept per set of authorities, and pages are only added to
+ * a feed by the cache if one of the feed's authorities is allowed to read
+ * them.
+ */
+final class FeedCache implements ResourceListener<Resource<?>> {
+
+  /** Default maximum number of feeds in the cache */
+  static final int DEFAULT_CACHE_SIZE = 256;
+
+  /** Time after which a materialized feed is compiled again */
+  static final long DEFAULT_VALID_TIME = Renderer.DEFAULT_VALID_TIME;
+
+  /** The materialized feeds */
+  private final ConcurrentMap<String, Feed> feeds = new ConcurrentHashMap<String, Feed>();
+
+  /** Maximum number of feeds in the cache */
+  private final int cacheSize;
+
+  /** Time in milliseconds after which a feed is compiled again */
+  private final long validTime;
+
+  /** Number of page modifications that have been applied, by site */
+  private final Map<String, Long> modifications = new HashMap<String, Long>();
+
+  /**
+   * Creates a new feed cache that holds up to {@link #DEFAULT_CACHE_SIZE}
+   * feeds.
+   */
+  FeedCache() {
+    this(DEFAULT_CACHE_SIZE, DEFAULT_VALID_TIME);
+  }
+
+  /**
+   * Creates a new feed cache that holds up to <code>cacheSize</code> feeds and
+   * compiles them again after <code>validTime</code> milliseconds.
+   * 
+   * @param cacheSize
+   *          the maximum number of feeds
+   * @param validTime
+   *          the time after which a feed is compiled again
+   */
+  FeedCache(int cacheSize, long validTime) {
+    this.cacheSize = cacheSize;
+    this.validTime = validTime;
+  }
+
+  /**
+   * Returns the key that identifies a feed.
+   * 
+   * @param site
+   *          the site
+   * @param environment
+   *          the environment
+   * @param language
+   *          the feed language
+   * @param subjects
+   *          the subjects
+   * @param limit
+   *          the maximum number of entries
+   * @param authorities
+   *          the authorities the feed is compiled for
+   * @return the key
+   */
+  static String createKey(Site site, Environment environment,
+      Language language, Collection<String> subjects, int limit,
+      Collection<String> authorities) {
+    StringBuilder key = new StringBuilder(site.getIdentifier());
+    key.append('/').append(environment);
+    key.append('/').append(language.getIdentifier());
+    key.append('/').append(limit).append('/');
+    boolean first = true;
+    for (String subject : new TreeSet<String>(subjects)) {
+      if (!first)
+        key.append(',');
+      key.append(subject);
+      first = false;
+    }
+    key.append('/');
+    first = true;
+    for (String authority : new TreeSet<String>(authorities)) {
+      if (!first)
+        key.append(',');
+      key.append(authority);
+      first = false;
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns the authorities that the content repository takes into account
+   * when looking for pages on behalf of <code>user</code>, which are the
+   * user's roles and the <i>any</i> authority.
+   * 
+   * @param user
+   *          the user, may be <code>null</code>
+   * @return the authority identifiers
+   */
+  static SortedSet<String> getAuthorities(User user) {
+    SortedSet<String> authorities = new TreeSet<String>();
+    authorities.add(SystemAuthorities.ANY.getAuthorityId());
+    if (user != null) {
+      for (Role role : SecurityUtils.getRoles(user)) {
+        authorities.add(role.getAuthorityId());
+      }
+    }
+    return authorities;
+  }
+
+  /**
+   * Returns the feed identified by <code>key</code> or <code>null</code> if
+   * the feed has not been materialized or needs to be compiled again.
+   * 
+   * @param key
+   *          the key
+   * @return the feed
+   */
+  Feed get(String key) {
+    Feed feed = feeds.get(key);
+    if (feed == null)
+      return null;
+    if (feed.isStale() || System.currentTimeMillis() - feed.created > validTime) {
+      feeds.remove(key, feed);
+      return null;
+    }
+    return feed;
+  }
+
+  /**
+   * Returns the number of page modifications that have been applied to the
+   * feeds of the given site so far. Callers compiling a feed need to pass this
+   * number to {@link #put(String, Feed, long)} in order to find out if the
+   * feed has missed a modification in the meantime.
+   * 
+   * @param site
+   *          identifier of the site
+   * @return the number of modifications
+   */
+  synchronized long getModifications(String site) {
+    Long count = modifications.get(site);
+    return count != null ? count.longValue() : 0;
+  }
+
+  /**
+   * Adds the feed to the cache, provided that no page of the feed's site has
+   * been modified since <code>modifications</code> was obtained from
+   * {@link #getModifications(String)}.
+   * 
+   * @param key
+   *          the key
+   * @param feed
+   *          the feed
+   * @param modifications
+   *          the number of modifications when the feed was compiled
+   * @return <code>true</code> if the feed has been added
+   */
+  synchronized boolean put(String key, Feed feed, long modifications) {
+    if (getModifications(feed.site) != modifications)
+      return false;
+    if (feeds.size() >= cacheSize)
+      feeds.clear();
+    feeds.put(key, feed);
+    return true;
+  }
+
+  /**
+   * Returns the number of materialized feeds.
+   * 
+   * @return the number of feeds
+   */
+  int size() {
+    return feeds.size();
+  }
+
+  /**
+   * Removes all feeds from the cache.
+   */
+  void clear() {
+    feeds.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.contentrepository.ResourceListener#created(ch.entwine.weblounge.common.content.Resource)
+   */
+  public void created(Resource<?> resource) {
+    changed(resource);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.contentrepository.ResourceListener#updated(ch.entwine.weblounge.common.content.Resource)
+   */
+  public void updated(Resource<?> resource) {
+    changed(resource);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.contentrepository.ResourceListener#published(ch.entwine.weblounge.common.content.Resource)
+   */
+  public void published(Resource<?> resource) {
+    changed(resource);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.contentrepository.ResourceListener#unpublished(ch.entwine.weblounge.common.content.Resource)
+   */
+  public void unpublished(Resource<?> resource) {
+    removed(resource);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.contentrepository.ResourceListener#deleted(ch.entwine.weblounge.common.content.Resource)
+   */
+  public void deleted(Resource<?> resource) {
+    removed(resource);
+  }
+
+  /**
+   * Applies the modified page to the feeds of its site.
+   * 
+   * @param resource
+   *          the resource
+   */
+  private synchronized void changed(Resource<?> resource) {
+    if (!(resource instanceof Page) || resource.getURI().getVersion() != Resource.LIVE)
+      return;
+    String site = resource.getURI().getSite().getIdentifier();
+    modifications.put(site, getModifications(site) + 1);
+    for (Feed feed : feeds.values()) {
+      if (feed.site.equals(site))
+        feed.update((Page) resource);
+    }
+  }
+
+  /**
+   * Removes the page from the feeds of its site.
+   * 
+   * @param resource
+   *          the resource
+   */
+  private synchronized void removed(Resource<?> resource) {
+    if (!(resource instanceof Page) || resource.getURI().getVersion() != Resource.LIVE)
+      return;
+    String site = resource.getURI().getSite().getIdentifier();
+    modifications.put(site, getModifications(site) + 1);
+    for (Feed feed : feeds.values()) {
+      if (feed.site.equals(site))
+        feed.remove(resource.getIdentifier());
+    }
+  }
+
+  /**
+   * The entries of a materialized feed, ordered by publishing date with the
+   * most recent entry first.
+   */
+  static final class Feed {
+
+    /** Identifier of the site */
+    private final String site;
+
+    /** The subjects, an empty set matches every page */
+    private final Set<String> subjects;
+
+    /** The maximum number of entries, or <code>0</code> for no limit */
+    private final int limit;
+
+    /** The authorities that the feed has been compiled for */
+    private final Set<String> authorities;
+
+    /** Creation time of the feed */
+    private final long created = System.currentTimeMillis();
+
+    /** The entries */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /** True if the feed needs to be compiled again */
+    private boolean stale = false;
+
+    /**
+     * Creates a new feed from the pages that have been found in the content
+     * repository.
+     * 
+     * @param site
+     *          identifier of the site
+     * @param subjects
+     *          the subjects
+     * @param limit
+     *          the maximum number of entries
+     * @param authorities
+     *          the authorities the pages have been looked up for
+     * @param pages
+     *          the pages, most recent first
+     */
+    Feed(String site, Collection<String> subjects, int limit,
+        Collection<String> authorities, List<Page> pages) {
+      this.site = site;
+      this.subjects = new HashSet<String>(subjects);
+      this.limit = Math.max(0, limit);
+      this.authorities = new HashSet<String>(authorities);
+      for (Page page : pages)
+        entries.add(new Entry(page));
+    }
+
+    /**
+     * Returns a snapshot of the feed entries, most recent first.
+     * 
+     * @return the entries
+     */
+    synchronized List<Entry> getEntries() {
+      return new ArrayList<Entry>(entries);
+    }
+
+    /**
+     * Returns <code>true</code> if the feed needs to be compiled again.
+     * 
+     * @return <code>true</code> if the feed is stale
+     */
+    synchronized boolean isStale() {
+      return stale;
+    }
+
+    /**
+     * Returns <code>true</code> if <code>page</code> belongs in this feed.
+     * 
+     * @param page
+     *          the page
+     * @return <code>true</code> if the page matches the feed's subjects and
+     *         may be read by the feed's authorities
+     */
+    boolean matches(Page page) {
+      if (!isReadable(page))
+        return false;
+      if (subjects.isEmpty())
+        return true;
+      for (String subject : page.getSubjects()) {
+        if (subjects.contains(subject))
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Returns <code>true</code> if one of the feed's authorities is allowed to
+     * read <code>page</code>. Like the search index, this only supports pages
+     * with allow-deny order.
+     * 
+     * @param page
+     *          the page
+     * @return <code>true</code> if the page may be read
+     */
+    private boolean isReadable(Page page) {
+      if (!Securable.Order.AllowDeny.equals(page.getAllowDenyOrder()))
+        return false;
+      Action read = SystemAction.READ;
+      for (AccessRule rule : page.getAccessRules()) {
+        if (!Rule.Allow.equals(rule.getRule()))
+          continue;
+        Action action = rule.getAction();
+        if (!read.getContext().equals(action.getContext()) || !read.getIdentifier().equals(action.getIdentifier()))
+          continue;
+        if (authorities.contains(rule.getAuthority().getAuthorityId()))
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Adds, replaces or removes the entry for <code>page</code>, depending on
+     * whether the page matches the feed.
+     * 
+     * @param page
+     *          the page
+     */
+    synchronized void update(Page page) {
+      int index = indexOf(page.getIdentifier());
+      boolean full = limit > 0 && entries.size() >= limit;
+      if (index >= 0)
+        entries.remove(index);
+
+      // If an entry of a full feed leaves, we don't know its successor
+      if (!matches(page)) {
+        if (index >= 0 && full)
+          stale = true;
+        return;
+      }
+
+      // Insert the page according to its publishing date
+      Entry entry = new Entry(page);
+      int position = 0;
+      while (position < entries.size() && !entry.isMoreRecentThan(entries.get(position)))
+        position++;
+      entries.add(position, entry);
+
+      // Drop the oldest entry, or find out if an existing entry that is now
+      // the oldest one might have been overtaken by a page we don't know about
+      if (limit > 0 && entries.size() > limit)
+        entries.remove(entries.size() - 1);
+      else if (full && index >= 0 && position == entries.size() - 1)
+        stale = true;
+    }
+
+    /**
+     * Removes the entry for the page with the given identifier.
+     * 
+     * @param id
+     *          the page identifier
+     */
+    synchronized void remove(String id) {
+      int index = indexOf(id);
+      if (index < 0)
+        return;
+      if (limit > 0 && entries.size() >= limit)
+        stale = true;
+      entries.remove(index);
+    }
+
+    /**
+     * Returns the position of the entry for the page with the given identifier
+     * or <code>-1</code>.
+     * 
+     * @param id
+     *          the page identifier
+     * @return the position
+     */
+    private int indexOf(String id) {
+      for (int i = 0; i < entries.size(); i++) {
+        if (entries.get(i).page.getIdentifier().equals(id))
+          return i;
+      }
+      return -1;
+    }
+
+  }
+
+  /**
+   * Entry of a materialized feed, consisting of the page and the feed entry
+   * that is rendered from it on first use.
+   */
+  static final class Entry {
+
+    /** The page */
+    private final Page page;
+
+    /** The rendered feed entry */
+    private volatile SyndEntry syndEntry = null;
+
+    /**
+     * Creates a new entry for the given page.
+     * 
+     * @param page
+     *          the page
+     */
+    Entry(Page page) {
+      this.page = page;
+    }
+
+    /**
+     * Returns the page.
+     * 
+     * @return the page
+     */
+    Page getPage() {
+      return page;
+    }
+
+    /**
+     * Returns the rendered feed entry or <code>null</code> if the entry has
+     * not been rendered yet.
+     * 
+     * @return the feed entry
+     */
+    SyndEntry getSyndEntry() {
+      return syndEntry;
+    }
+
+    /**
+     * Sets the rendered feed entry.
+     * 
+     * @param syndEntry
+     *          the feed entry
+     */
+    void setSyndEntry(SyndEntry syndEntry) {
+      this.syndEntry = syndEntry;
+    }
+
+    /**
+     * Returns <code>true</code> if this entry's page has been published after
+     * the page of <code>entry</code>. Pages without a publishing date are
+     * considered to be the oldest ones.
+     * 
+     * @param entry
+     *          the other entry
+     * @return <code>true</code> if this entry is more recent
+     */
+    boolean isMoreRecentThan(Entry entry) {
+      Date published = page.getPublishFrom();
+      Date other = entry.page.getPublishFrom();
+      if (published == null)
+        return false;
+      return other == null || published.after(other);
+    }
+
+  }
+
+}
@@ -35,8 +35,10 @@ import ch.entwine.weblounge.common.content.page.PageletRenderer;
 import ch.entwine.weblounge.common.impl.content.SearchQueryImpl;
 import ch.entwine.weblounge.common.impl.content.page.ComposerImpl;
 import ch.entwine.weblounge.common.impl.request.CacheTagSet;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
 import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
 import ch.entwine.weblounge.common.impl.testing.MockHttpServletResponse;
+import ch.entwine.weblounge.common.impl.url.WebUrlImpl;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.repository.ContentRepository;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
@@ -50,7 +52,8 @@ import ch.entwine.weblounge.common.site.Module;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.UrlUtils;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.contentrepository.ResourceListener;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import com.sun.syndication.feed.atom.Content;
@@ -71,6 +74,7 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
@@ -84,10 +88,14 @@ import java.io.Writer;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
@@ -114,7 +122,7 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * </p>
  */
-public class FeedRequestHandlerImpl implements RequestHandler {
+public class FeedRequestHandlerImpl implements RoutedRequestHandler {
 
   /** The subjects parameter name */
   public static final String PARAM_SUBJECT = "subject";
@@ -134,6 +142,12 @@ public class FeedRequestHandlerImpl implements RequestHandler {
   /** The cache service tracker */
   private ServiceTracker siteServletTracker = null;
 
+  /** The materialized feeds */
+  private final FeedCache feedCache = new FeedCache();
+
+  /** Registration of the feed cache as a resource listener */
+  private ServiceRegistration feedCacheRegistration = null;
+
   /** Filter expression used to look up site servlets */
   private static final String serviceFilter = "(&(objectclass=" + Servlet.class.getName() + ")(" + Site.class.getName().toLowerCase() + "=*))";
 
@@ -154,6 +168,11 @@ public class FeedRequestHandlerImpl implements RequestHandler {
     } catch (InvalidSyntaxException e) {
       throw new IllegalStateException(e);
     }
+
+    // Keep the materialized feeds up to date with the live pages
+    Dictionary<String, String> properties = new Hashtable<String, String>();
+    properties.put(ResourceListener.PROP_RESOURCE_TYPE, Page.TYPE);
+    feedCacheRegistration = ctx.getBundleContext().registerService(ResourceListener.class.getName(), feedCache, properties);
   }
 
   /**
@@ -163,6 +182,15 @@ public class FeedRequestHandlerImpl implements RequestHandler {
     if (siteServletTracker != null) {
       siteServletTracker.close();
     }
+    if (feedCacheRegistration != null) {
+      try {
+        feedCacheRegistration.unregister();
+      } catch (IllegalStateException e) {
+        // Never mind, the service has been unregistered already
+      }
+      feedCacheRegistration = null;
+    }
+    feedCache.clear();
   }
 
   /**
@@ -307,15 +335,19 @@ public class FeedRequestHandlerImpl implements RequestHandler {
    * @return the feed object
    * @throws ContentRepositoryException
    *           if the content repository can't be accessed
+   * @throws IOException
+   *           if a pagelet renderer fails to create its output
+   * @throws ServletException
+   *           if an exception occurs while processing a pagelet renderer
    */
   private SyndFeed createFeed(String feedType, String feedVersion, Site site,
       WebloungeRequest request, WebloungeResponse response)
-      throws ContentRepositoryException {
+      throws ContentRepositoryException, IOException, ServletException {
 
     // Extract the subjects. The parameter may be specified multiple times
     // and add more than one subject by separating them using a comma.
     String[] subjectParameter = request.getParameterValues(PARAM_SUBJECT);
-    List<String> subjects = new ArrayList<String>();
+    Set<String> subjects = new TreeSet<String>();
     if (subjectParameter != null) {
       for (String parameter : subjectParameter) {
         for (String subject : parameter.split(",")) {
@@ -337,20 +369,51 @@ public class FeedRequestHandlerImpl implements RequestHandler {
       }
     }
 
-    // Get hold of the content repository
-    ContentRepository contentRepository = site.getContentRepository();
-    if (contentRepository == null) {
-      logger.warn("No content repository found for site '{}'", site);
-      return null;
-    } else if (contentRepository.isIndexing()) {
-      logger.debug("Content repository of site '{}' is currently being indexed", site);
-      DispatchUtils.sendServiceUnavailable(request, response);
-      return null;
-    }
-
-    // User and language
+    // User, language and environment
     Language language = request.getLanguage();
-    // User user = request.getUser();
+    Environment environment = request.getEnvironment();
+
+    // The authorities that the content repository will check the pages against
+    Set<String> authorities = FeedCache.getAuthorities(SecurityUtils.getUser());
+
+    // Look up the materialized feed and compile it if needed
+    String key = FeedCache.createKey(site, environment, language, subjects, limit, authorities);
+    FeedCache.Feed materializedFeed = feedCache.get(key);
+    if (materializedFeed == null) {
+      long modifications = feedCache.getModifications(site.getIdentifier());
+
+      // Get hold of the content repository
+      ContentRepository contentRepository = site.getContentRepository();
+      if (contentRepository == null) {
+        logger.warn("No content repository found for site '{}'", site);
+        return null;
+      } else if (contentRepository.isIndexing()) {
+        logger.debug("Content repository of site '{}' is currently being indexed", site);
+        DispatchUtils.sendServiceUnavailable(request, response);
+        return null;
+      }
+
+      SearchQuery query = new SearchQueryImpl(site);
+      query.withAction(SystemAction.READ);
+      query.withVersion(Resource.LIVE);
+      query.withTypes(Page.TYPE);
+      query.withLimit(limit);
+      query.sortByPublishingDate(Order.Descending);
+      for (String subject : subjects) {
+        query.withSubject(subject);
+      }
+
+      // Load the result
+      SearchResult result = contentRepository.find(query);
+      List<Page> pages = new ArrayList<Page>();
+      for (SearchResultItem item : result.getItems()) {
+        pages.add(((PageSearchResultItem) item).getPage());
+      }
+
+      materializedFeed = new FeedCache.Feed(site.getIdentifier(), subjects, limit, authorities, pages);
+      if (feedCache.put(key, materializedFeed, modifications))
+        logger.debug("Materialized feed {} with {} entries", key, pages.size());
+    }
 
     // Determine the feed type
     feedType = feedType.toLowerCase() + "_" + feedVersion;
@@ -364,115 +427,161 @@ public class FeedRequestHandlerImpl implements RequestHandler {
 
     // TODO: Add more feed metadata, ask site
 
-    SearchQuery query = new SearchQueryImpl(site);
-    query.withAction(SystemAction.READ);
-    query.withVersion(Resource.LIVE);
-    query.withTypes(Page.TYPE);
-    query.withLimit(limit);
-    query.sortByPublishingDate(Order.Descending);
+    // Make sure the feed is thrown out of the response cache once pages
+    // with the requested subjects are published
     for (String subject : subjects) {
-      query.withSubject(subject);
+      response.addTag(CacheTag.Subject, subject);
     }
 
-    // Load the result and add feed entries
-    SearchResult result = contentRepository.find(query);
-    List<SyndEntry> entries = new ArrayList<SyndEntry>();
-    limit = result.getItems().length;
-
-    while (limit > 0) {
-      SearchResultItem item = result.getItems()[limit - 1];
-      limit--;
-
-      // Get the page
-      PageSearchResultItem pageItem = (PageSearchResultItem) item;
-      Page page = pageItem.getPage();
+    // Add the feed entries, starting with the oldest one
+    List<FeedCache.Entry> materializedEntries = materializedFeed.getEntries();
+    List<SyndEntry> entries = new ArrayList<SyndEntry>(materializedEntries.size());
+    for (int i = materializedEntries.size() - 1; i >= 0; i--) {
+      FeedCache.Entry materializedEntry = materializedEntries.get(i);
+      Page page = materializedEntry.getPage();
 
       // TODO: Can the page be accessed?
 
-      // Set the page's language to the feed language
-      page.switchTo(language);
-
       // Tag the cache entry
       response.addTag(CacheTag.Resource, page.getIdentifier());
 
-      // If this is to become the most recent entry, let's set the feed's
-      // modification date to be that of this entry
-      if (entries.size() == 0) {
+      // The most recent entry determines the feed's modification date
+      if (i == 0 && page.getPublishFrom() != null) {
         feed.setPublishedDate(page.getPublishFrom());
       }
 
-      // Create the entry
-      SyndEntry entry = new SyndEntryImpl();
-      entry.setPublishedDate(page.getPublishFrom());
-      entry.setLink(site.getHostname(request.getEnvironment()).toExternalForm() + item.getUrl().getLink());
-      entry.setAuthor(page.getCreator().getName());
-      entry.setTitle(page.getTitle());
-
-      // Categories
-      if (page.getSubjects().length > 0) {
-        List<SyndCategory> categories = new ArrayList<SyndCategory>();
-        for (String subject : page.getSubjects()) {
-          SyndCategory category = new SyndCategoryImpl();
-          category.setName(subject);
-          categories.add(category);
-        }
-        entry.setCategories(categories);
+      // Render the entry unless this has been done before
+      SyndEntry entry = materializedEntry.getSyndEntry();
+      if (entry == null) {
+        entry = createEntry(site, page, language, environment);
+        materializedEntry.setSyndEntry(entry);
       }
 
-      // TODO: Can the page be accessed?
+      entries.add(entry);
+    }
 
-      // Try to render the preview pagelets and write them to the feed
-      List<SyndContent> entryContent = new ArrayList<SyndContent>();
-      Composer composer = new ComposerImpl("preview", page.getPreview());
+    feed.setEntries(entries);
 
-      for (Pagelet pagelet : composer.getPagelets()) {
-        Module module = site.getModule(pagelet.getModule());
-        PageletRenderer renderer = null;
-        if (module == null) {
-          logger.warn("Skipping pagelet {} in feed due to missing module '{}'", pagelet, pagelet.getModule());
-          continue;
-        }
+    return feed;
+  }
 
-        renderer = module.getRenderer(pagelet.getIdentifier());
-        if (renderer == null) {
-          logger.warn("Skipping pagelet {} in feed due to missing renderer '{}/{}'", new Object[] { pagelet, pagelet.getModule(), pagelet.getIdentifier() });
-          continue;
-        }
+  /**
+   * Creates the feed entry for the given page, including the rendered preview
+   * pagelets.
+   * 
+   * @param site
+   *          the site
+   * @param page
+   *          the page
+   * @param language
+   *          the feed language
+   * @param environment
+   *          the environment
+   * @return the feed entry
+   * @throws IOException
+   *           if a pagelet renderer fails to create its output
+   * @throws ServletException
+   *           if an exception occurs while processing a pagelet renderer
+   */
+  private SyndEntry createEntry(Site site, Page page, Language language,
+      Environment environment) throws IOException, ServletException {
 
-        URL rendererURL = renderer.getRenderer(RendererType.Feed.toString());
-        Environment environment = request.getEnvironment();
-        if (rendererURL == null)
-          rendererURL = renderer.getRenderer();
-        if (rendererURL != null) {
-          String rendererContent = null;
-          try {
-            pagelet.switchTo(language);
-            rendererContent = loadContents(rendererURL, site, page, composer, pagelet, environment);
-          } catch (ServletException e) {
-            logger.warn("Error processing the pagelet renderer at {}: {}", rendererURL, e.getMessage());
-            DispatchUtils.sendInternalError(request, response);
-          } catch (IOException e) {
-            logger.warn("Error processing the pagelet renderer at {}: {}", rendererURL, e.getMessage());
-            DispatchUtils.sendInternalError(request, response);
-          }
-          SyndContent content = new SyndContentImpl();
-          content.setType("text/html");
-          content.setMode("escaped");
-          content.setValue(rendererContent);
-          entryContent.add(content);
-        }
+    // The page may be shared by feeds in different languages
+    synchronized (page) {
+      page.switchTo(language);
+      return createEntry(site, page, language, environment, page.getPreview());
+    }
+  }
+
+  /**
+   * Creates the feed entry for the given page, which has already been switched
+   * to the feed language.
+   * 
+   * @param site
+   *          the site
+   * @param page
+   *          the page
+   * @param language
+   *          the feed language
+   * @param environment
+   *          the environment
+   * @param preview
+   *          the preview pagelets
+   * @return the feed entry
+   * @throws IOException
+   *           if a pagelet renderer fails to create its output
+   * @throws ServletException
+   *           if an exception occurs while processing a pagelet renderer
+   */
+  private SyndEntry createEntry(Site site, Page page, Language language,
+      Environment environment, Pagelet[] preview) throws IOException,
+      ServletException {
+
+    // Create the entry
+    SyndEntry entry = new SyndEntryImpl();
+    WebUrl url = new WebUrlImpl(site, page.getURI().getPath());
+    entry.setPublishedDate(page.getPublishFrom());
+    entry.setLink(site.getHostname(environment).toExternalForm() + url.getLink());
+    entry.setAuthor(page.getCreator().getName());
+    entry.setTitle(page.getTitle());
+
+    // Categories
+    if (page.getSubjects().length > 0) {
+      List<SyndCategory> categories = new ArrayList<SyndCategory>();
+      for (String subject : page.getSubjects()) {
+        SyndCategory category = new SyndCategoryImpl();
+        category.setName(subject);
+        categories.add(category);
       }
+      entry.setCategories(categories);
+    }
 
-      if (entryContent.size() > 0) {
-        entry.setContents(entryContent);
+    // Try to render the preview pagelets and write them to the feed
+    List<SyndContent> entryContent = new ArrayList<SyndContent>();
+    Composer composer = new ComposerImpl("preview", preview);
+
+    for (Pagelet pagelet : composer.getPagelets()) {
+      Module module = site.getModule(pagelet.getModule());
+      PageletRenderer renderer = null;
+      if (module == null) {
+        logger.warn("Skipping pagelet {} in feed due to missing module '{}'", pagelet, pagelet.getModule());
+        continue;
       }
 
-      entries.add(entry);
+      renderer = module.getRenderer(pagelet.getIdentifier());
+      if (renderer == null) {
+        logger.warn("Skipping pagelet {} in feed due to missing renderer '{}/{}'", new Object[] { pagelet, pagelet.getModule(), pagelet.getIdentifier() });
+        continue;
+      }
+
+      URL rendererURL = renderer.getRenderer(RendererType.Feed.toString());
+      if (rendererURL == null)
+        rendererURL = renderer.getRenderer();
+      if (rendererURL != null) {
+        String rendererContent = null;
+        try {
+          pagelet.switchTo(language);
+          rendererContent = loadContents(rendererURL, site, page, composer, pagelet, environment);
+        } catch (ServletException e) {
+          logger.warn("Error processing the pagelet renderer at {}: {}", rendererURL, e.getMessage());
+          throw e;
+        } catch (IOException e) {
+          logger.warn("Error processing the pagelet renderer at {}: {}", rendererURL, e.getMessage());
+          throw e;
+        }
+        SyndContent content = new SyndContentImpl();
+        content.setType("text/html");
+        content.setMode("escaped");
+        content.setValue(rendererContent);
+        entryContent.add(content);
+      }
     }
 
-    feed.setEntries(entries);
+    if (entryContent.size() > 0) {
+      entry.setContents(entryContent);
+    }
 
-    return feed;
+    return entry;
   }
 
   /**
@@ -569,7 +678,7 @@ public class FeedRequestHandlerImpl implements RequestHandler {
     CacheTagSet cacheTags = new CacheTagSet();
     cacheTags.add(CacheTag.Url, request.getUrl().getPath());
     cacheTags.add(CacheTag.Language, request.getLanguage().getIdentifier());
-    cacheTags.add(CacheTag.User, request.getUser().getLogin());
+    cacheTags.add(DispatchUtils.getCacheKeyPolicy().getCacheTag(request, null));
     Enumeration<?> pe = request.getParameterNames();
     int parameterCount = 0;
     while (pe.hasMoreElements()) {
@@ -672,6 +781,24 @@ public class FeedRequestHandlerImpl implements RequestHandler {
     return getName();
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -40,7 +40,7 @@ import ch.entwine.weblounge.common.security.PermissionException;
 import ch.entwine.weblounge.common.security.User;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.apache.commons.io.FilenameUtils;
@@ -61,7 +61,7 @@ import javax.ws.rs.core.MediaType;
 /**
  * This request handler is used to handle requests to files in the repository.
  */
-public final class FileRequestHandlerImpl implements RequestHandler {
+public final class FileRequestHandlerImpl implements RoutedRequestHandler {
 
   /** Alternate uri prefix */
   protected static final String URI_PREFIX = "/weblounge-files/";
@@ -260,7 +260,8 @@ public final class FileRequestHandlerImpl implements RequestHandler {
     response.setHeader("Cache-Control", "public, max-age=" + revalidationTime);
 
     // Add last modified header
-    response.setDateHeader("Last-Modified", ResourceUtils.getModificationDate(fileResource, language).getTime());
+    long lastModified = ResourceUtils.getModificationDate(fileResource, language).getTime();
+    response.setDateHeader("Last-Modified", lastModified);
 
     // Add ETag header
     String eTag = ResourceUtils.getETagValue(fileResource);
@@ -272,15 +273,11 @@ public final class FileRequestHandlerImpl implements RequestHandler {
     // Add content disposition header
     response.setHeader("Content-Disposition", "inline; filename=" + content.getFilename());
 
-    // Add content size
-    response.setHeader("Content-Length", Long.toString(content.getSize()));
-
-    // Write the file back to the response
+    // Write the file or the requested ranges back to the response
     InputStream fileContents = null;
     try {
       fileContents = contentRepository.getContent(fileURI, language);
-      IOUtils.copy(fileContents, response.getOutputStream());
-      response.getOutputStream().flush();
+      ResourceContentWriter.write(request, response, fileContents, content.getSize(), contentType, eTag, lastModified);
       return true;
     } catch (ContentRepositoryException e) {
       logger.error("Unable to load file {}: {}", new Object[] {
@@ -321,6 +318,28 @@ public final class FileRequestHandlerImpl implements RequestHandler {
     return getName();
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * Besides the requests to <code>/weblounge-files/</code>, the handler is
+   * interested in all other requests as well, since files may be served from
+   * any path.
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX, ROOT };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
   /**
    * {@inheritDoc}
    * 
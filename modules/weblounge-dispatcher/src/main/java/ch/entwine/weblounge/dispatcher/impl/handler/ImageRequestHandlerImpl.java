@@ -41,7 +41,7 @@ import ch.entwine.weblounge.common.site.Environment;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.PathUtils;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.apache.commons.io.FilenameUtils;
@@ -63,7 +63,7 @@ import javax.ws.rs.core.MediaType;
  * This request handler is used to handle requests to scaled images in the
  * repository.
  */
-public final class ImageRequestHandlerImpl implements RequestHandler {
+public final class ImageRequestHandlerImpl implements RoutedRequestHandler {
 
   /** Alternate uri prefix */
   protected static final String URI_PREFIX = "/weblounge-images/";
@@ -275,7 +275,8 @@ public final class ImageRequestHandlerImpl implements RequestHandler {
     response.setDateHeader("Last-Modified", resourceLastModified);
 
     // Add ETag header
-    response.setHeader("ETag", ResourceUtils.getETagValue(imageResource));
+    String eTag = ResourceUtils.getETagValue(imageResource);
+    response.setHeader("ETag", eTag);
 
     // Load the input stream from the repository
     InputStream imageInputStream = null;
@@ -294,10 +295,8 @@ public final class ImageRequestHandlerImpl implements RequestHandler {
 
     // Write the image back to the client
     try {
-      response.setHeader("Content-Length", Long.toString(imageContents.getSize()));
       response.setHeader("Content-Disposition", "inline; filename=" + imageContents.getFilename());
-      IOUtils.copy(imageInputStream, response.getOutputStream());
-      response.getOutputStream().flush();
+      ResourceContentWriter.write(request, response, imageInputStream, imageContents.getSize(), contentType, eTag, resourceLastModified);
     } catch (EOFException e) {
       logger.debug("Error writing image '{}' back to client: connection closed by client", imageResource);
       return true;
@@ -343,6 +342,28 @@ public final class ImageRequestHandlerImpl implements RequestHandler {
     return getName();
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * Besides the requests to <code>/weblounge-images/</code>, the handler is
+   * interested in all other requests as well, since images may be served from
+   * any path.
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX, ROOT };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
   /**
    * {@inheritDoc}
    * 
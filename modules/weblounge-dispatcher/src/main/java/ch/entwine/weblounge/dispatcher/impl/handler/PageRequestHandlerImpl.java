@@ -283,7 +283,7 @@ public final class PageRequestHandlerImpl implements PageRequestHandler {
       if (!ignoreCache && request.getVersion() == Resource.LIVE && !isEditing) {
 
         // Create the set of tags that identify the page
-        CacheTagSet cacheTags = createPrimaryCacheTags(request);
+        CacheTagSet cacheTags = createPrimaryCacheTags(request, page);
 
         if (action == null) {
           long expirationTime = Renderer.DEFAULT_VALID_TIME;
@@ -473,14 +473,17 @@ public final class PageRequestHandlerImpl implements PageRequestHandler {
    * 
    * @param request
    *          the request
+   * @param page
+   *          the requested page
    * @return the cache tags
    */
-  protected CacheTagSet createPrimaryCacheTags(WebloungeRequest request) {
+  protected CacheTagSet createPrimaryCacheTags(WebloungeRequest request,
+      Page page) {
     CacheTagSet cacheTags = new CacheTagSet();
     cacheTags.add(CacheTag.Url, request.getUrl().getPath());
     cacheTags.add(CacheTag.Url, request.getRequestedUrl().getPath());
     cacheTags.add(CacheTag.Language, request.getLanguage().getIdentifier());
-    cacheTags.add(CacheTag.User, request.getUser().getLogin());
+    cacheTags.add(DispatchUtils.getCacheKeyPolicy().getCacheTag(request, page));
     Enumeration<?> pe = request.getParameterNames();
     int parameterCount = 0;
     while (pe.hasMoreElements()) {
@@ -33,6 +33,7 @@ import ch.entwine.weblounge.common.impl.content.ResourceURIImpl;
 import ch.entwine.weblounge.common.impl.content.image.ImageStyleUtils;
 import ch.entwine.weblounge.common.impl.language.LanguageUtils;
 import ch.entwine.weblounge.common.impl.request.RequestUtils;
+import ch.entwine.weblounge.common.impl.util.config.ConfigurationUtils;
 import ch.entwine.weblounge.common.language.Language;
 import ch.entwine.weblounge.common.repository.ContentRepository;
 import ch.entwine.weblounge.common.repository.ContentRepositoryException;
@@ -43,13 +44,15 @@ import ch.entwine.weblounge.common.security.User;
 import ch.entwine.weblounge.common.site.Environment;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.osgi.service.cm.ConfigurationException;
+import org.osgi.service.cm.ManagedService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,8 +68,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Dictionary;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.core.MediaType;
@@ -74,8 +86,16 @@ import javax.ws.rs.core.MediaType;
 /**
  * This request handler is used to handle requests to scaled images in the
  * repository.
+ * <p>
+ * Previews that are missing or outdated are rendered by a pool of preview
+ * threads. Requests for a preview that is being rendered are put into
+ * asynchronous mode if the container supports it, so they don't hold on to a
+ * request thread while waiting, and are answered as soon as the preview is
+ * available or the configured timeout has passed. On containers without
+ * support for asynchronous requests, the request thread waits for the much
+ * shorter blocking timeout only.
  */
-public final class PreviewRequestHandlerImpl implements RequestHandler {
+public final class PreviewRequestHandlerImpl implements RoutedRequestHandler, ManagedService {
 
   /** Alternate uri prefix */
   protected static final String URI_PREFIX = "/weblounge-previews/";
@@ -86,6 +106,24 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
   /** Length of a UUID */
   protected static final int UUID_LENGTH = 36;
 
+  /** Configuration key for the time that requests wait for a preview */
+  public static final String OPT_TIMEOUT = "preview.timeout";
+
+  /** Configuration key for the time that request threads block for a preview */
+  public static final String OPT_BLOCKING_TIMEOUT = "preview.blockingtimeout";
+
+  /** Configuration key for the number of preview rendering threads */
+  public static final String OPT_THREADS = "preview.threads";
+
+  /** Default time in milliseconds that requests wait for a preview */
+  public static final long DEFAULT_TIMEOUT = 30000L;
+
+  /** Default time in milliseconds that request threads block for a preview */
+  public static final long DEFAULT_BLOCKING_TIMEOUT = 500L;
+
+  /** Default number of preview rendering threads */
+  public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
   /** The server environment */
   protected Environment environment = Environment.Production;
 
@@ -98,11 +136,17 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
   /** Lock object for access to the 'previewGenerators' list */
   private final Object previewGeneratorsLock = new Object();
 
-  /** The list of previews that are being created at the moment */
-  private final List<String> previews = new ArrayList<String>();
-  
-  /** Lock object for access to the 'previews' list */
-  private final Object previewsLock = new Object();
+  /** The previews that are being rendered at the moment, by preview file */
+  private final ConcurrentMap<String, PreviewTask> previews = new ConcurrentHashMap<String, PreviewTask>();
+
+  /** The preview rendering threads */
+  private final ThreadPoolExecutor renderer = createRenderer(DEFAULT_THREADS);
+
+  /** Time in milliseconds that requests wait for a preview */
+  private volatile long timeout = DEFAULT_TIMEOUT;
+
+  /** Time in milliseconds that request threads block for a preview */
+  private volatile long blockingTimeout = DEFAULT_BLOCKING_TIMEOUT;
 
   /**
    * Handles the request for an image resource that is believed to be in the
@@ -117,7 +161,8 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
    * @param response
    *          the weblounge response
    */
-  public boolean service(WebloungeRequest request, WebloungeResponse response) {
+  public boolean service(final WebloungeRequest request,
+      final WebloungeResponse response) {
 
     WebUrl url = request.getUrl();
     Site site = request.getSite();
@@ -310,211 +355,321 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
     // Set Expires header
     response.setDateHeader("Expires", expirationDate);
 
-    // Write the image back to the client
-    InputStream previewInputStream = null;
+    // Serve the preview right away if it is up to date
+    if (previewFile.isFile() && previewFile.lastModified() >= resourceContents.getCreationDate().getTime()) {
+      writePreview(request, response, resource, previewFile, contentType);
+      return true;
+    }
+
+    // Have the preview rendered or join the rendering that is in progress
+    PreviewTask task = null;
     try {
-      if (previewFile.isFile() && previewFile.lastModified() >= resourceContents.getCreationDate().getTime()) {
-        previewInputStream = new FileInputStream(previewFile);
-      } else {
-        previewInputStream = createPreview(request, response, resource, language, style, previewGenerator, previewFile, contentRepository);
-      }
+      task = getPreviewTask(resource, language, style, previewGenerator, previewFile, contentRepository);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Unable to schedule rendering of preview {}: {}", previewFile, e.getMessage());
+      DispatchUtils.sendServiceUnavailable(request, response);
+      return true;
+    }
 
-      if (previewInputStream == null) {
-        // Assuming that createPreview() is setting the response header in the
-        // case of failure
-        return true;
+    final PreviewTask previewTask = task;
+    final String previewContentType = contentType;
+    task.answer(request, response, timeout, blockingTimeout, new Runnable() {
+      public void run() {
+        answer(previewTask, request, response, previewContentType);
       }
+    });
+    return true;
+  }
 
-      // Add last modified header
-      response.setDateHeader("Last-Modified", previewFile.lastModified());
-      response.setHeader("ETag", ResourceUtils.getETagValue(previewFile.lastModified()));
+  /**
+   * Writes the preview back to the client.
+   * 
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param resource
+   *          the resource
+   * @param previewFile
+   *          the preview
+   * @param contentType
+   *          the content type
+   */
+  private void writePreview(WebloungeRequest request,
+      WebloungeResponse response, Resource<?> resource, File previewFile,
+      String contentType) {
+    InputStream previewInputStream = null;
+    try {
+      long lastModified = previewFile.lastModified();
+      String eTag = ResourceUtils.getETagValue(lastModified);
+      response.setDateHeader("Last-Modified", lastModified);
+      response.setHeader("ETag", eTag);
       response.setHeader("Content-Disposition", "inline; filename=" + previewFile.getName());
-      response.setHeader("Content-Length", Long.toString(previewFile.length()));
       previewInputStream = new FileInputStream(previewFile);
-      IOUtils.copy(previewInputStream, response.getOutputStream());
-      response.getOutputStream().flush();
-      return true;
+      ResourceContentWriter.write(request, response, previewInputStream, previewFile.length(), contentType, eTag, lastModified);
     } catch (EOFException e) {
       logger.debug("Error writing image '{}' back to client: connection closed by client", resource);
-      return true;
     } catch (IOException e) {
       DispatchUtils.sendInternalError(request, response);
       if (RequestUtils.isCausedByClient(e))
-        return true;
-      logger.error("Error sending image '{}' to the client: {}", resourceURI, e.getMessage());
-      return true;
+        return;
+      logger.error("Error sending image '{}' to the client: {}", resource.getURI(), e.getMessage());
     } catch (Throwable t) {
-      logger.error("Error creating scaled image '{}': {}", resourceURI, t.getMessage());
+      logger.error("Error sending scaled image '{}': {}", resource.getURI(), t.getMessage());
       DispatchUtils.sendInternalError(request, response);
-      return true;
     } finally {
       IOUtils.closeQuietly(previewInputStream);
     }
   }
 
   /**
-   * Creates the preview image for the given resource and returns an input
-   * stream to the preview or <code>null</code> if the preview could not be
-   * created.
+   * Returns the task that is rendering <code>previewFile</code>. If there is
+   * none, a new one is created and handed to the preview threads.
+   * 
+   * @return the rendering task
+   * @throws RejectedExecutionException
+   *           if the task cannot be scheduled
    */
-  private InputStream createPreview(WebloungeRequest request,
-      WebloungeResponse response, Resource<?> resource, Language language,
+  private PreviewTask getPreviewTask(Resource<?> resource, Language language,
       ImageStyle style, PreviewGenerator previewGenerator, File previewFile,
       ContentRepository contentRepository) {
-
     String pathToImageFile = previewFile.getAbsolutePath();
-    boolean firstOne = true;
-
-    // Make sure the preview is not already being generated by another thread
-    synchronized (previewsLock) {
-      while (previews.contains(pathToImageFile)) {
-        logger.debug("Preview at {} is being created, waiting for it to be generated", pathToImageFile);
-        firstOne = false;
-        try {
-          previewsLock.wait(500);
-          if (previews.contains(pathToImageFile)) {
-            logger.trace("After waiting 500ms, preview at {} is still being worked on", pathToImageFile);
-            DispatchUtils.sendServiceUnavailable(request, response);
-            return null;
-          }
-        } catch (InterruptedException e) {
-          DispatchUtils.sendServiceUnavailable(request, response);
-          return null;
-        }
-      }
+    PreviewTask task = previews.get(pathToImageFile);
+    if (task != null) {
+      logger.debug("Preview at {} is being created, waiting for it to be generated", pathToImageFile);
+      return task;
+    }
+    task = new PreviewTask(resource, language, style, previewGenerator, previewFile, contentRepository);
+    PreviewTask existingTask = previews.putIfAbsent(pathToImageFile, task);
+    if (existingTask != null)
+      return existingTask;
+    try {
+      renderer.execute(task);
+    } catch (RejectedExecutionException e) {
+      previews.remove(pathToImageFile, task);
+      throw e;
+    }
+    return task;
+  }
 
-      // Make sure others are waiting until we are done
-      if (firstOne) {
-        previews.add(pathToImageFile);
-      }
+  /**
+   * Answers the request once the rendering task has finished.
+   * 
+   * @param task
+   *          the rendering task
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param contentType
+   *          the content type
+   */
+  private void answer(PreviewTask task, WebloungeRequest request,
+      WebloungeResponse response, String contentType) {
+    File previewFile = task.previewFile;
+
+    if (task.isFailed()) {
+      DispatchUtils.sendInternalError(request, response);
+      return;
     }
 
+    // Make sure whoever was in charge of creating the preview, was
+    // successful
+    boolean scaledImageExists = previewFile.isFile();
+    boolean scaledImageIsOutdated = previewFile.lastModified() < task.resourceLastModified;
+    if (!scaledImageExists || scaledImageIsOutdated) {
+      logger.debug("Apparently, preview rendering for {} failed", previewFile.getAbsolutePath());
+      DispatchUtils.sendServiceUnavailable(request, response);
+      return;
+    }
+
+    writePreview(request, response, task.resource, previewFile, contentType);
+  }
+
+  /**
+   * Creates the preview image for the given resource.
+   * 
+   * @return <code>true</code> if the preview was rendered
+   */
+  private boolean createPreview(Resource<?> resource, Language language,
+      ImageStyle style, PreviewGenerator previewGenerator, File previewFile,
+      ContentRepository contentRepository) {
+
+    String pathToImageFile = previewFile.getAbsolutePath();
+
     // Determine the resource's modification date
     long resourceLastModified = ResourceUtils.getModificationDate(resource, language).getTime();
 
-    // Create the preview if this is the first request
-    if (firstOne) {
+    ResourceURI resourceURI = resource.getURI();
 
-      ResourceURI resourceURI = resource.getURI();
+    if (style != null)
+      logger.info("Creating preview of {} with style '{}' at {}", new String[] {
+          resource.getIdentifier(),
+          style.getIdentifier(),
+          pathToImageFile });
+    else
+      logger.info("Creating original preview of {} at {}", new String[] {
+          resource.getIdentifier(),
+          pathToImageFile });
 
-      if (style != null)
-        logger.info("Creating preview of {} with style '{}' at {}", new String[] {
-            resource.getIdentifier(),
-            style.getIdentifier(),
-            pathToImageFile });
-      else
-        logger.info("Creating original preview of {} at {}", new String[] {
-            resource.getIdentifier(),
-            pathToImageFile });
+    // Get hold of the content
+    ResourceContent resourceContents = resource.getContent(language);
 
-      // Get hold of the content
-      ResourceContent resourceContents = resource.getContent(language);
+    // Get the mime type
+    final String mimetype = resourceContents.getMimetype();
+    final String format = mimetype.substring(mimetype.indexOf("/") + 1);
 
-      // Get the mime type
-      final String mimetype = resourceContents.getMimetype();
-      final String format = mimetype.substring(mimetype.indexOf("/") + 1);
+    boolean scalingFailed = false;
 
-      boolean scalingFailed = false;
+    InputStream is = null;
+    FileOutputStream fos = null;
+    try {
+      is = contentRepository.getContent(resourceURI, language);
 
-      InputStream is = null;
-      FileOutputStream fos = null;
-      try {
-        is = contentRepository.getContent(resourceURI, language);
-
-        // Remove the original image
-        FileUtils.deleteQuietly(previewFile);
-
-        // Create a work file
-        File imageDirectory = previewFile.getParentFile();
-        String workFileName = "." + UUID.randomUUID() + "-" + previewFile.getName();
-        FileUtils.forceMkdir(imageDirectory);
-        File workImageFile = new File(imageDirectory, workFileName);
-
-        // Create the scaled image
-        fos = new FileOutputStream(workImageFile);
-        logger.debug("Creating scaled image '{}' at {}", resource, previewFile);
-        previewGenerator.createPreview(resource, environment, language, style, format, is, fos);
-
-        // Move the work image in place
-        try {
-          FileUtils.moveFile(workImageFile, previewFile);
-        } catch (IOException e) {
-          logger.warn("Concurrent creation of preview {} resolved by copy instead of rename", previewFile.getAbsolutePath());
-          FileUtils.copyFile(workImageFile, previewFile);
-          FileUtils.deleteQuietly(workImageFile);
-        } finally {
-          previewFile.setLastModified(Math.max(new Date().getTime(), resourceLastModified));
-        }
+      // Remove the original image
+      FileUtils.deleteQuietly(previewFile);
 
-        // Make sure preview generation was successful
-        if (!previewFile.isFile()) {
-          logger.warn("The file at {} is not a regular file", pathToImageFile);
-          scalingFailed = true;
-        } else if (previewFile.length() == 0) {
-          logger.warn("The scaled file at {} has zero length", pathToImageFile);
-          scalingFailed = true;
-        }
+      // Create a work file
+      File imageDirectory = previewFile.getParentFile();
+      String workFileName = "." + UUID.randomUUID() + "-" + previewFile.getName();
+      FileUtils.forceMkdir(imageDirectory);
+      File workImageFile = new File(imageDirectory, workFileName);
 
-      } catch (ContentRepositoryException e) {
-        logger.error("Unable to load image {}: {}", new Object[] {
-            resourceURI,
-            e.getMessage(),
-            e });
-        scalingFailed = true;
-        DispatchUtils.sendInternalError(request, response);
+      // Create the scaled image
+      fos = new FileOutputStream(workImageFile);
+      logger.debug("Creating scaled image '{}' at {}", resource, previewFile);
+      previewGenerator.createPreview(resource, environment, language, style, format, is, fos);
+      IOUtils.closeQuietly(fos);
+
+      // Move the work image in place
+      try {
+        FileUtils.moveFile(workImageFile, previewFile);
       } catch (IOException e) {
-        logger.error("Error sending image '{}' to the client: {}", resourceURI, e.getMessage());
+        logger.warn("Concurrent creation of preview {} resolved by copy instead of rename", previewFile.getAbsolutePath());
+        FileUtils.copyFile(workImageFile, previewFile);
+        FileUtils.deleteQuietly(workImageFile);
+      } finally {
+        previewFile.setLastModified(Math.max(new Date().getTime(), resourceLastModified));
+      }
+
+      // Make sure preview generation was successful
+      if (!previewFile.isFile()) {
+        logger.warn("The file at {} is not a regular file", pathToImageFile);
         scalingFailed = true;
-        DispatchUtils.sendInternalError(request, response);
-      } catch (Throwable t) {
-        logger.error("Error creating scaled image '{}': {}", resourceURI, t.getMessage());
+      } else if (previewFile.length() == 0) {
+        logger.warn("The scaled file at {} has zero length", pathToImageFile);
         scalingFailed = true;
-        DispatchUtils.sendInternalError(request, response);
-      } finally {
-        IOUtils.closeQuietly(is);
-        IOUtils.closeQuietly(fos);
-
-        try {
-          if (scalingFailed && previewFile != null) {
-            logger.info("Cleaning up after failed scaling of {}", pathToImageFile);
-            File f = previewFile;
-            FileUtils.deleteQuietly(previewFile);
-            f = previewFile.getParentFile();
-            while (f != null && f.isDirectory() && (f.listFiles() == null || f.listFiles().length == 0)) {
-              FileUtils.deleteQuietly(f);
-              f = f.getParentFile();
-            }
+      }
+
+    } catch (ContentRepositoryException e) {
+      logger.error("Unable to load image {}: {}", new Object[] {
+          resourceURI,
+          e.getMessage(),
+          e });
+      scalingFailed = true;
+    } catch (IOException e) {
+      logger.error("Error creating scaled image '{}': {}", resourceURI, e.getMessage());
+      scalingFailed = true;
+    } catch (Throwable t) {
+      logger.error("Error creating scaled image '{}': {}", resourceURI, t.getMessage());
+      scalingFailed = true;
+    } finally {
+      IOUtils.closeQuietly(is);
+      IOUtils.closeQuietly(fos);
+
+      try {
+        if (scalingFailed && previewFile != null) {
+          logger.info("Cleaning up after failed scaling of {}", pathToImageFile);
+          File f = previewFile;
+          FileUtils.deleteQuietly(previewFile);
+          f = previewFile.getParentFile();
+          while (f != null && f.isDirectory() && (f.listFiles() == null || f.listFiles().length == 0)) {
+            FileUtils.deleteQuietly(f);
+            f = f.getParentFile();
           }
-        } catch (Throwable t) {
-          logger.warn("Error cleaning up after failed scaling of {}", pathToImageFile);
         }
+      } catch (Throwable t) {
+        logger.warn("Error cleaning up after failed scaling of {}", pathToImageFile);
+      }
+    }
 
-        synchronized (previews) {
-          previews.remove(pathToImageFile);
-          previews.notifyAll();
-        }
+    return !scalingFailed;
+  }
 
+  /**
+   * Creates the pool of preview rendering threads.
+   * 
+   * @param threads
+   *          the number of threads
+   * @return the thread pool
+   */
+  private static ThreadPoolExecutor createRenderer(int threads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Weblounge preview renderer " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
       }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.cm.ManagedService#updated(java.util.Dictionary)
+   */
+  @SuppressWarnings("rawtypes")
+  public void updated(Dictionary properties) throws ConfigurationException {
+    if (properties == null)
+      return;
+
+    // Time to wait for a preview
+    String timeoutValue = StringUtils.trimToNull((String) properties.get(OPT_TIMEOUT));
+    try {
+      timeout = timeoutValue != null ? ConfigurationUtils.parseDuration(timeoutValue) : DEFAULT_TIMEOUT;
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException(OPT_TIMEOUT, "Malformed duration '" + timeoutValue + "'");
     }
+    logger.debug("Requests wait up to {} for previews", ConfigurationUtils.toHumanReadableDuration(timeout));
 
-    // Make sure whoever was in charge of creating the preview, was
-    // successful
-    boolean scaledImageExists = previewFile.isFile();
-    boolean scaledImageIsOutdated = previewFile.lastModified() < resourceLastModified;
-    if (!scaledImageExists || scaledImageIsOutdated) {
-      logger.debug("Apparently, preview rendering for {} failed", previewFile.getAbsolutePath());
-      DispatchUtils.sendServiceUnavailable(request, response);
-      return null;
+    // Time to block a request thread for a preview
+    String blockingTimeoutValue = StringUtils.trimToNull((String) properties.get(OPT_BLOCKING_TIMEOUT));
+    try {
+      blockingTimeout = blockingTimeoutValue != null ? ConfigurationUtils.parseDuration(blockingTimeoutValue) : DEFAULT_BLOCKING_TIMEOUT;
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException(OPT_BLOCKING_TIMEOUT, "Malformed duration '" + blockingTimeoutValue + "'");
+    }
+    logger.debug("Request threads block for up to {} for previews", ConfigurationUtils.toHumanReadableDuration(blockingTimeout));
+
+    // Number of rendering threads
+    int threads = DEFAULT_THREADS;
+    try {
+      threads = ConfigurationUtils.getValue((String) properties.get(OPT_THREADS), DEFAULT_THREADS);
+    } catch (NumberFormatException e) {
+      throw new ConfigurationException(OPT_THREADS, "Malformed number '" + properties.get(OPT_THREADS) + "'");
+    }
+    if (threads < 1)
+      throw new ConfigurationException(OPT_THREADS, "At least one preview thread is required");
+    if (threads > renderer.getMaximumPoolSize()) {
+      renderer.setMaximumPoolSize(threads);
+      renderer.setCorePoolSize(threads);
     } else {
-      try {
-        return new FileInputStream(previewFile);
-      } catch (Throwable t) {
-        logger.error("Error reading content from preview at {}: {}", previewFile.getAbsolutePath(), t.getMessage());
-        DispatchUtils.sendServiceUnavailable(request, response);
-        return null;
-      }
+      renderer.setCorePoolSize(threads);
+      renderer.setMaximumPoolSize(threads);
     }
+    logger.debug("Previews are rendered by up to {} threads", threads);
+  }
+
+  /**
+   * Callback for OSGi's declarative services component inactivation, which
+   * lets the preview threads finish their work and stop.
+   */
+  void deactivate() {
+    renderer.shutdown();
   }
 
   /**
@@ -575,6 +730,24 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
     return getName();
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -584,4 +757,77 @@ public final class PreviewRequestHandlerImpl implements RequestHandler {
     return 0;
   }
 
-}
\ No newline at end of file
+  /**
+   * Renders a preview and notifies the requests that are waiting for it.
+   */
+  private final class PreviewTask extends RenderingTask {
+
+    /** The resource */
+    private final Resource<?> resource;
+
+    /** The language */
+    private final Language language;
+
+    /** The image style */
+    private final ImageStyle style;
+
+    /** The preview generator */
+    private final PreviewGenerator previewGenerator;
+
+    /** The preview */
+    private final File previewFile;
+
+    /** The content repository */
+    private final ContentRepository contentRepository;
+
+    /** The resource's modification date */
+    private final long resourceLastModified;
+
+    /**
+     * Creates a new task to render the preview.
+     */
+    PreviewTask(Resource<?> resource, Language language, ImageStyle style,
+        PreviewGenerator previewGenerator, File previewFile,
+        ContentRepository contentRepository) {
+      this.resource = resource;
+      this.language = language;
+      this.style = style;
+      this.previewGenerator = previewGenerator;
+      this.previewFile = previewFile;
+      this.contentRepository = contentRepository;
+      this.resourceLastModified = ResourceUtils.getModificationDate(resource, language).getTime();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.handler.RenderingTask#render()
+     */
+    @Override
+    protected boolean render() {
+      return createPreview(resource, language, style, previewGenerator, previewFile, contentRepository);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see ch.entwine.weblounge.dispatcher.impl.handler.RenderingTask#finished()
+     */
+    @Override
+    protected void finished() {
+      previews.remove(previewFile.getAbsolutePath(), this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "preview at " + previewFile;
+    }
+
+  }
+
+}
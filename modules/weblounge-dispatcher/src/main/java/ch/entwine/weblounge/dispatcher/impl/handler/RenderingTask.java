@@ -0,0 +1,313 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import ch.entwine.weblounge.common.impl.request.RequestUtils;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+import ch.entwine.weblounge.common.security.User;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * Work that is done in the background while requests are waiting for it.
+ * <p>
+ * Requests are answered once the work is done. If the container supports
+ * Servlet 3.0 and has enabled asynchronous processing, waiting requests are
+ * put into asynchronous mode and answered by the thread that finished the
+ * work, or with a <code>503</code> once the asynchronous timeout has passed.
+ * Otherwise, the request thread is blocked for no longer than the blocking
+ * timeout, which is meant to be short, since the container thread is not
+ * available to other requests while it is waiting.
+ * <p>
+ * The work is done in the security context, i. e. with the site and the user,
+ * of the thread that created the task.
+ */
+abstract class RenderingTask implements Runnable {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(RenderingTask.class);
+
+  /** The requests that are waiting for the work to be done */
+  private final List<Runnable> listeners = new ArrayList<Runnable>();
+
+  /** Whether the work is done */
+  private boolean done = false;
+
+  /** Whether the work failed */
+  private volatile boolean failed = false;
+
+  /** The site of the thread that created the task */
+  private final Site site = SecurityUtils.getSite();
+
+  /** The user of the thread that created the task */
+  private final User user = SecurityUtils.getUser();
+
+  /**
+   * Does the actual work.
+   *
+   * @return <code>true</code> if the work was successful
+   * @throws Exception
+   *           if the work fails
+   */
+  protected abstract boolean render() throws Exception;
+
+  /**
+   * Called once the work is done, before waiting requests are answered.
+   */
+  protected void finished() {
+    // Nothing to do by default
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public final void run() {
+    List<Runnable> waiting = null;
+    try {
+      SecurityUtils.setSite(site);
+      SecurityUtils.setUser(user);
+      failed = !render();
+    } catch (Throwable t) {
+      logger.error("Error rendering {}: {}", this, t.getMessage());
+      failed = true;
+    } finally {
+      SecurityUtils.setSite(null);
+      SecurityUtils.setUser(null);
+      finished();
+      synchronized (this) {
+        done = true;
+        waiting = new ArrayList<Runnable>(listeners);
+        listeners.clear();
+        notifyAll();
+      }
+    }
+    for (Runnable listener : waiting) {
+      try {
+        listener.run();
+      } catch (Throwable t) {
+        logger.warn("Error answering request waiting for {}: {}", this, t.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the work failed.
+   *
+   * @return <code>true</code> if the work failed
+   */
+  boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * Answers the request using <code>answer</code> once the work is done, or
+   * with a <code>503</code> once the timeout has passed.
+   * <p>
+   * If the request can be put into asynchronous mode, this method returns
+   * right away, and the request is finished once it has been answered or once
+   * <code>asyncTimeout</code> milliseconds have passed. Otherwise, the calling
+   * thread waits for up to <code>blockingTimeout</code> milliseconds.
+   *
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param asyncTimeout
+   *          the time to wait in milliseconds in asynchronous mode
+   * @param blockingTimeout
+   *          the time to block the calling thread in milliseconds
+   * @param answer
+   *          writes the response once the work is done
+   */
+  void answer(WebloungeRequest request, WebloungeResponse response,
+      long asyncTimeout, long blockingTimeout, Runnable answer) {
+    if (DispatchUtils.isAsyncSupported(request))
+      answerAsync(request, response, asyncTimeout, answer);
+    else
+      answerBlocking(request, response, blockingTimeout, answer);
+  }
+
+  /**
+   * Puts the request into asynchronous mode and answers it as soon as the
+   * work is done, or with a <code>503</code> once the timeout has passed.
+   *
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param timeout
+   *          the time to wait in milliseconds
+   * @param answer
+   *          writes the response once the work is done
+   */
+  private void answerAsync(final WebloungeRequest request,
+      final WebloungeResponse response, final long timeout,
+      final Runnable answer) {
+    final AsyncContext async = request.startAsync();
+    final AtomicBoolean answered = new AtomicBoolean();
+    async.setTimeout(timeout);
+    async.addListener(new AsyncListener() {
+      public void onTimeout(AsyncEvent event) throws IOException {
+        if (!answered.compareAndSet(false, true))
+          return;
+        logger.debug("After waiting {} ms, {} is still being worked on", timeout, RenderingTask.this);
+        DispatchUtils.sendServiceUnavailable(request, response);
+        complete(async, request, response);
+      }
+
+      public void onError(AsyncEvent event) throws IOException {
+        if (answered.compareAndSet(false, true))
+          complete(async, request, response);
+      }
+
+      public void onStartAsync(AsyncEvent event) throws IOException {
+        // Nothing to do
+      }
+
+      public void onComplete(AsyncEvent event) throws IOException {
+        // Nothing to do
+      }
+    });
+
+    Runnable listener = new Runnable() {
+      public void run() {
+        if (!answered.compareAndSet(false, true))
+          return;
+        try {
+          answer.run();
+        } finally {
+          complete(async, request, response);
+        }
+      }
+    };
+
+    if (!addListener(listener))
+      listener.run();
+  }
+
+  /**
+   * Blocks the current thread until the work is done and answers the request.
+   * This is used if the container does not support asynchronous requests.
+   *
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param timeout
+   *          the time to wait in milliseconds
+   * @param answer
+   *          writes the response once the work is done
+   */
+  private void answerBlocking(WebloungeRequest request,
+      WebloungeResponse response, long timeout, Runnable answer) {
+    try {
+      if (!await(timeout)) {
+        logger.debug("After waiting {} ms, {} is still being worked on", timeout, this);
+        DispatchUtils.sendServiceUnavailable(request, response);
+        return;
+      }
+    } catch (InterruptedException e) {
+      DispatchUtils.sendServiceUnavailable(request, response);
+      return;
+    }
+    answer.run();
+  }
+
+  /**
+   * Adds a listener that is called once the work is done.
+   *
+   * @param listener
+   *          the listener
+   * @return <code>false</code> if the work is done already
+   */
+  private synchronized boolean addListener(Runnable listener) {
+    if (done)
+      return false;
+    listeners.add(listener);
+    return true;
+  }
+
+  /**
+   * Waits up to <code>timeout</code> milliseconds for the work to be done.
+   *
+   * @param timeout
+   *          the timeout
+   * @return <code>true</code> if the work is done
+   * @throws InterruptedException
+   *           if the thread was interrupted while waiting
+   */
+  private synchronized boolean await(long timeout) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (!done) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0)
+        return false;
+      wait(remaining);
+    }
+    return true;
+  }
+
+  /**
+   * Finishes a request that has been put into asynchronous mode.
+   *
+   * @param async
+   *          the asynchronous context
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   */
+  private static void complete(AsyncContext async, WebloungeRequest request,
+      WebloungeResponse response) {
+    try {
+      response.endResponse();
+      response.flushBuffer();
+    } catch (IOException e) {
+      if (!RequestUtils.isCausedByClient(e))
+        logger.warn("Error finishing response to {}: {}", request, e.getMessage());
+    } catch (Throwable t) {
+      logger.warn("Error finishing response to {}: {}", request, t.getMessage());
+    } finally {
+      try {
+        async.complete();
+      } catch (IllegalStateException e) {
+        logger.debug("Request {} has already been completed", request);
+      }
+    }
+  }
+
+}
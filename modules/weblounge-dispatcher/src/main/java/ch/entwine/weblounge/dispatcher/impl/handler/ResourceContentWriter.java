@@ -0,0 +1,265 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import ch.entwine.weblounge.common.impl.request.BufferedResponse;
+import ch.entwine.weblounge.common.impl.request.ByteRange;
+import ch.entwine.weblounge.common.impl.request.Http11Constants;
+import ch.entwine.weblounge.common.impl.request.Http11ProtocolHandler;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the content of a resource from the content repository back to the
+ * client, honoring the <code>Range</code> and <code>If-Range</code> headers of
+ * the request.
+ * <p>
+ * A single range is answered with a <code>206 Partial Content</code>
+ * response, multiple ranges with a <code>multipart/byteranges</code> body.
+ * Bodies of {@link #UNBUFFERED_THRESHOLD} bytes and more are written past the
+ * dispatcher's response buffer, and content that is backed by a file is
+ * transferred using {@link FileChannel#transferTo(long, long,
+ * WritableByteChannel)} rather than being copied through the heap.
+ */
+final class ResourceContentWriter implements Http11Constants {
+
+  /** Bodies of this size and larger are not buffered */
+  static final long UNBUFFERED_THRESHOLD = 64 * 1024;
+
+  /** Encoding of the headers in multipart responses */
+  private static final Charset HEADER_ENCODING = Charset.forName("ISO-8859-1");
+
+  /** Source of the multipart boundaries */
+  private static final Random boundaries = new Random();
+
+  /**
+   * This class is not intended to be instantiated.
+   */
+  private ResourceContentWriter() {
+    // Nothing to be done
+  }
+
+  /**
+   * Writes <code>size</code> bytes of content from <code>is</code>, or the
+   * ranges that were requested thereof, to the response. Content type,
+   * <code>ETag</code> and <code>Last-Modified</code> headers are expected to
+   * be set by the caller, while the <code>Content-Length</code> and the range
+   * related headers are taken care of by this method.
+   * 
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param is
+   *          the content
+   * @param size
+   *          the size of the content or <code>-1</code> if it is unknown
+   * @param contentType
+   *          the content type
+   * @param eTag
+   *          the value of the <code>ETag</code> header
+   * @param modified
+   *          the modification time
+   * @throws IOException
+   *           if reading or writing the content fails
+   */
+  static void write(WebloungeRequest request, WebloungeResponse response,
+      InputStream is, long size, String contentType, String eTag,
+      long modified) throws IOException {
+
+    List<ByteRange> ranges = null;
+    if (size >= 0) {
+      response.setHeader(HEADER_ACCEPT_RANGES, ByteRange.UNIT);
+      ranges = Http11ProtocolHandler.analyzeRange(request, eTag, modified, size);
+    }
+
+    // The whole thing
+    if (ranges == null) {
+      if (size < 0) {
+        OutputStream os = response.getOutputStream();
+        IOUtils.copyLarge(is, os);
+        os.flush();
+        return;
+      }
+      response.setHeader("Content-Length", Long.toString(size));
+      OutputStream os = getOutputStream(response, size);
+      new Content(is).copy(0, size, os);
+      os.flush();
+      return;
+    }
+
+    // None of the ranges are within the content
+    if (ranges.isEmpty()) {
+      response.setHeader(HEADER_CONTENT_RANGE, ByteRange.UNIT + " */" + size);
+      DispatchUtils.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, request, response);
+      return;
+    }
+
+    Content content = new Content(is);
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+    // A single range
+    if (ranges.size() == 1) {
+      ByteRange range = ranges.get(0);
+      response.setHeader(HEADER_CONTENT_RANGE, range.toContentRange(size));
+      response.setHeader("Content-Length", Long.toString(range.getLength()));
+      OutputStream os = getOutputStream(response, range.getLength());
+      content.copy(range.getStart(), range.getLength(), os);
+      os.flush();
+      return;
+    }
+
+    // Multiple ranges, each one preceded by its part headers
+    String boundary = Long.toHexString(boundaries.nextLong() & Long.MAX_VALUE);
+    byte[][] partHeaders = new byte[ranges.size()][];
+    long length = 0;
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      StringBuilder part = new StringBuilder();
+      part.append("\r\n--").append(boundary).append("\r\n");
+      part.append("Content-Type: ").append(contentType).append("\r\n");
+      part.append(HEADER_CONTENT_RANGE).append(": ").append(range.toContentRange(size)).append("\r\n\r\n");
+      partHeaders[i] = part.toString().getBytes(HEADER_ENCODING);
+      length += partHeaders[i].length + range.getLength();
+    }
+    byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(HEADER_ENCODING);
+    length += trailer.length;
+
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    response.setHeader("Content-Length", Long.toString(length));
+    OutputStream os = getOutputStream(response, length);
+    for (int i = 0; i < ranges.size(); i++) {
+      os.write(partHeaders[i]);
+      content.copy(ranges.get(i).getStart(), ranges.get(i).getLength(), os);
+    }
+    os.write(trailer);
+    os.flush();
+  }
+
+  /**
+   * Returns the output stream for a body of <code>length</code> bytes. If the
+   * body is larger than {@link #UNBUFFERED_THRESHOLD}, the stream bypasses
+   * any of the buffering responses that are wrapped by <code>response</code>.
+   * 
+   * @param response
+   *          the response
+   * @param length
+   *          the length of the body
+   * @return the output stream
+   * @throws IOException
+   *           if the output stream could not be allocated
+   */
+  private static OutputStream getOutputStream(HttpServletResponse response,
+      long length) throws IOException {
+    if (length >= UNBUFFERED_THRESHOLD) {
+      ServletResponse r = response;
+      while (r instanceof ServletResponseWrapper) {
+        if (r instanceof BufferedResponse)
+          return ((BufferedResponse) r).getUnbufferedOutputStream();
+        r = ((ServletResponseWrapper) r).getResponse();
+      }
+    }
+    return response.getOutputStream();
+  }
+
+  /**
+   * The content, which is read either through its file channel or, if it is
+   * not backed by a file, sequentially.
+   */
+  private static final class Content {
+
+    /** The content */
+    private final InputStream is;
+
+    /** The file channel or <code>null</code> */
+    private final FileChannel channel;
+
+    /** The current position within the stream */
+    private long position = 0;
+
+    /**
+     * Creates a wrapper around the content.
+     * 
+     * @param is
+     *          the content
+     */
+    Content(InputStream is) {
+      this.is = is;
+      this.channel = is instanceof FileInputStream ? ((FileInputStream) is).getChannel() : null;
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>offset</code> to
+     * <code>os</code>. Unless the content is backed by a file, the offsets of
+     * subsequent calls need to be increasing.
+     * 
+     * @param offset
+     *          the position of the first byte
+     * @param length
+     *          the number of bytes
+     * @param os
+     *          the output stream
+     * @throws IOException
+     *           if reading or writing fails
+     */
+    void copy(long offset, long length, OutputStream os) throws IOException {
+      if (channel != null) {
+        WritableByteChannel target = Channels.newChannel(os);
+        long end = offset + length;
+        while (offset < end) {
+          long transferred = channel.transferTo(offset, end - offset, target);
+          if (transferred <= 0)
+            throw new IOException("Premature end of content at byte " + offset);
+          offset += transferred;
+        }
+        return;
+      }
+
+      if (offset < position)
+        throw new IllegalStateException("Content cannot be read backwards");
+      IOUtils.skipFully(is, offset - position);
+      long copied = IOUtils.copyLarge(is, os, 0, length);
+      position = offset + copied;
+      if (copied < length)
+        throw new IOException("Premature end of content at byte " + position);
+    }
+
+  }
+
+}
@@ -23,8 +23,9 @@ package ch.entwine.weblounge.dispatcher.impl.handler;
 import ch.entwine.weblounge.common.request.WebloungeRequest;
 import ch.entwine.weblounge.common.request.WebloungeResponse;
 import ch.entwine.weblounge.common.site.Environment;
+import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.apache.commons.io.IOUtils;
@@ -43,7 +44,7 @@ import javax.servlet.http.HttpServletResponse;
  * This request handler deals with requests to <code>/robots.txt</code> if the
  * target site does not ship its own.
  */
-public class RobotsRequestHandlerImpl implements RequestHandler {
+public class RobotsRequestHandlerImpl implements RoutedRequestHandler {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(RobotsRequestHandlerImpl.class);
@@ -164,10 +165,32 @@ public class RobotsRequestHandlerImpl implements RequestHandler {
   /**
    * {@inheritDoc}
    * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The handler is asked after the file request handler, so that a
+   * <code>robots.txt</code> that is part of the site's content takes
+   * precedence.
+   * 
    * @see ch.entwine.weblounge.dispatcher.RequestHandler#getPriority()
    */
   public int getPriority() {
-    return 0;
+    return -1;
   }
 
   /**
@@ -55,7 +55,7 @@ import ch.entwine.weblounge.common.security.User;
 import ch.entwine.weblounge.common.site.HTMLAction;
 import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.WebUrl;
-import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
 import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
 
 import org.slf4j.Logger;
@@ -74,7 +74,7 @@ import javax.ws.rs.WebApplicationException;
 /**
  * This handler is answering search requests.
  */
-public final class SearchRequestHandlerImpl implements RequestHandler {
+public final class SearchRequestHandlerImpl implements RoutedRequestHandler {
 
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(SearchRequestHandlerImpl.class);
@@ -335,7 +335,7 @@ public final class SearchRequestHandlerImpl implements RequestHandler {
     cacheTags.add(CacheTag.Url, request.getUrl().getPath());
     cacheTags.add(CacheTag.Url, request.getRequestedUrl().getPath());
     cacheTags.add(CacheTag.Language, request.getLanguage().getIdentifier());
-    cacheTags.add(CacheTag.User, request.getUser().getLogin());
+    cacheTags.add(DispatchUtils.getCacheKeyPolicy().getCacheTag(request, null));
     Enumeration<?> pe = request.getParameterNames();
     int parameterCount = 0;
     while (pe.hasMoreElements()) {
@@ -475,6 +475,24 @@ public final class SearchRequestHandlerImpl implements RequestHandler {
     return page;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+   */
+  public String[] getRoutes(Site site) {
+    return new String[] { URI_PREFIX };
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+   */
+  public long getRoutesVersion() {
+    return 0;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -0,0 +1,76 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for {@link BufferedHttpServletResponse}.
+ */
+public class BufferedHttpServletResponseTest {
+
+  /** The wrapped response */
+  protected MockHttpServletResponse servletResponse = null;
+
+  /** The response under test */
+  protected BufferedHttpServletResponse response = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    servletResponse = new MockHttpServletResponse();
+    response = new BufferedHttpServletResponse(servletResponse);
+  }
+
+  /**
+   * Test that buffered content is counted once it has been written to the
+   * client, whether or not a content length was announced.
+   */
+  @Test
+  public void testBufferedBytes() throws Exception {
+    response.getWriter().write("Hello World!");
+    assertEquals(0, response.getBytesWritten());
+    response.flushBuffer();
+    assertEquals(12, response.getBytesWritten());
+    assertEquals("Hello World!", servletResponse.getContentAsString());
+  }
+
+  /**
+   * Test that content bypassing the buffer is counted as well.
+   */
+  @Test
+  public void testUnbufferedBytes() throws Exception {
+    response.setContentLength(100);
+    response.getUnbufferedOutputStream().write(new byte[10], 0, 10);
+    response.getUnbufferedOutputStream().write(1);
+    response.flushBuffer();
+    assertEquals(11, response.getBytesWritten());
+    assertEquals(11, servletResponse.getContentAsByteArray().length);
+  }
+
+}
@@ -0,0 +1,169 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.content.page.PageletRenderer;
+import ch.entwine.weblounge.common.impl.content.page.PageImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageURIImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageletImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
+import ch.entwine.weblounge.common.impl.security.AccessRuleImpl;
+import ch.entwine.weblounge.common.impl.security.RoleImpl;
+import ch.entwine.weblounge.common.impl.security.UserImpl;
+import ch.entwine.weblounge.common.impl.site.ModuleImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.security.Rule;
+import ch.entwine.weblounge.common.security.SystemAction;
+import ch.entwine.weblounge.common.site.Environment;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * Test case for {@link CacheKeyPolicy}.
+ */
+public class CacheKeyPolicyTest {
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /** The page */
+  protected PageImpl page = null;
+
+  /** The pagelet renderer */
+  protected PageletRendererImpl renderer = null;
+
+  /** First user holding the editor and publisher roles */
+  protected UserImpl john = null;
+
+  /** Second user holding the editor and publisher roles */
+  protected UserImpl jane = null;
+
+  /** User holding the editor role only */
+  protected UserImpl joe = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    ModuleImpl module = new ModuleImpl();
+    module.setIdentifier("module");
+    site.addModule(module);
+    renderer = new PageletRendererImpl("renderer");
+    module.addRenderer(renderer);
+
+    page = new PageImpl(new PageURIImpl(site, "/a", "4bb19980-8f98-4873-a813-000000000001"));
+    page.addPagelet(new PageletImpl("module", "renderer"), "main");
+
+    john = new UserImpl("john");
+    john.addPublicCredentials(new RoleImpl("weblounge", "editor"), new RoleImpl("weblounge", "publisher"));
+    jane = new UserImpl("jane");
+    jane.addPublicCredentials(new RoleImpl("weblounge", "publisher"), new RoleImpl("weblounge", "editor"));
+    joe = new UserImpl("joe");
+    joe.addPublicCredentials(new RoleImpl("weblounge", "editor"));
+  }
+
+  /**
+   * Test that the user policy keys responses by login.
+   */
+  @Test
+  public void testUserKey() {
+    CacheTag tag = CacheKeyPolicy.User.getCacheTag(createRequest(john), page);
+    assertEquals(new CacheTagImpl(CacheTag.User, "john"), tag);
+    assertFalse(tag.equals(CacheKeyPolicy.User.getCacheTag(createRequest(jane), page)));
+  }
+
+  /**
+   * Test that the roles policy keys responses by the sorted set of roles.
+   */
+  @Test
+  public void testRolesKey() {
+    CacheTag tag = CacheKeyPolicy.Roles.getCacheTag(createRequest(john), page);
+    assertEquals(new CacheTagImpl(CacheTag.Roles, "weblounge:editor,weblounge:publisher"), tag);
+    assertEquals(tag, CacheKeyPolicy.Roles.getCacheTag(createRequest(jane), page));
+    assertEquals(new CacheTagImpl(CacheTag.Roles, "weblounge:editor"), CacheKeyPolicy.Roles.getCacheTag(createRequest(joe), page));
+    assertEquals(tag, CacheKeyPolicy.Roles.getCacheTag(createRequest(john), null));
+  }
+
+  /**
+   * Test that pages whose access rules name individual users are keyed by
+   * login.
+   */
+  @Test
+  public void testUserAccessRule() {
+    page.addAccessRule(new AccessRuleImpl(new UserImpl("john"), SystemAction.READ, Rule.Allow));
+    assertEquals(new CacheTagImpl(CacheTag.User, "john"), CacheKeyPolicy.Roles.getCacheTag(createRequest(john), page));
+    assertEquals(new CacheTagImpl(CacheTag.User, "jane"), CacheKeyPolicy.Roles.getCacheTag(createRequest(jane), page));
+  }
+
+  /**
+   * Test that pages containing pagelets which vary by user are keyed by login.
+   */
+  @Test
+  public void testUserRenderer() {
+    renderer.addVaryDimension(PageletRenderer.VARY_USER);
+    assertEquals(new CacheTagImpl(CacheTag.User, "john"), CacheKeyPolicy.Roles.getCacheTag(createRequest(john), page));
+  }
+
+  /**
+   * Test that the user dependency is computed once per version of the page.
+   */
+  @Test
+  public void testUserDependencyPerVersion() {
+    assertFalse(CacheKeyPolicy.dependsOnUser(site, page));
+
+    // Changes to the renderers are not picked up for the same version
+    renderer.addVaryDimension(PageletRenderer.VARY_USER);
+    assertFalse(CacheKeyPolicy.dependsOnUser(site, page));
+
+    // A modified page is inspected again
+    page.setModified(john, new Date(page.getLastModified().getTime() + 1000));
+    assertTrue(CacheKeyPolicy.dependsOnUser(site, page));
+  }
+
+  /**
+   * Returns a request for the test site issued by <code>user</code>.
+   *
+   * @param user
+   *          the user
+   * @return the request
+   */
+  protected WebloungeRequestImpl createRequest(UserImpl user) {
+    WebloungeRequestImpl request = new WebloungeRequestImpl(new MockHttpServletRequest("GET", "/a"), Environment.Production);
+    request.init(site);
+    request.setUser(user);
+    return request;
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Test case for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  /** The histogram under test */
+  protected LatencyHistogram histogram = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    histogram = new LatencyHistogram();
+  }
+
+  /**
+   * Test that small values are counted exactly.
+   */
+  @Test
+  public void testExactBuckets() {
+    for (int i = 0; i < 32; i++) {
+      assertEquals(i, LatencyHistogram.indexOf(i));
+      assertEquals(i, LatencyHistogram.highestValueIn(i));
+    }
+  }
+
+  /**
+   * Test the boundaries of the buckets that split the powers of two.
+   */
+  @Test
+  public void testBucketBoundaries() {
+    assertEquals(32, LatencyHistogram.indexOf(32));
+    assertEquals(32, LatencyHistogram.indexOf(33));
+    assertEquals(33, LatencyHistogram.indexOf(34));
+    assertEquals(33, LatencyHistogram.highestValueIn(32));
+    assertEquals(47, LatencyHistogram.indexOf(63));
+    assertEquals(63, LatencyHistogram.highestValueIn(47));
+    assertEquals(48, LatencyHistogram.indexOf(64));
+    assertEquals(67, LatencyHistogram.highestValueIn(48));
+    assertEquals(1023, LatencyHistogram.highestValueIn(LatencyHistogram.indexOf(1000)));
+
+    // The largest values end up in the last bucket
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueIn(LatencyHistogram.BUCKETS - 1));
+  }
+
+  /**
+   * Test that every value falls into the bucket whose range contains it and
+   * that the range is within 6.25% of the value.
+   */
+  @Test
+  public void testBucketRanges() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+      int index = LatencyHistogram.indexOf(value);
+      assertTrue(index < LatencyHistogram.BUCKETS);
+      long highest = LatencyHistogram.highestValueIn(index);
+      assertTrue(value + " > " + highest, value <= highest);
+      if (index > 0)
+        assertTrue(value + " <= " + LatencyHistogram.highestValueIn(index - 1), value > LatencyHistogram.highestValueIn(index - 1));
+      assertTrue(value + " ~ " + highest, highest - value <= value / 16);
+    }
+  }
+
+  /**
+   * Test the percentiles of a uniform distribution.
+   */
+  @Test
+  public void testPercentiles() {
+    for (int i = 1; i <= 100; i++)
+      histogram.record(i, 0, false);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(100, snapshot.count);
+    assertEquals(50.5d, snapshot.mean, 0.0d);
+    assertEquals(100, snapshot.max);
+
+    // 50 shares its bucket with 51
+    assertEquals(51, snapshot.p50);
+    assertEquals(95, snapshot.p95);
+    assertEquals(99, snapshot.p99);
+  }
+
+  /**
+   * Test that percentiles are never reported above the largest value.
+   */
+  @Test
+  public void testPercentilesBelowMax() {
+    histogram.record(1000, 0, false);
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(1000, snapshot.p50);
+    assertEquals(1000, snapshot.p99);
+    assertEquals(1000, snapshot.max);
+
+    // A single slow request shows up in the 99th percentile only
+    histogram.reset();
+    for (int i = 0; i < 99; i++)
+      histogram.record(10, 0, false);
+    histogram.record(1000, 0, false);
+    snapshot = histogram.getSnapshot();
+    assertEquals(10, snapshot.p50);
+    assertEquals(10, snapshot.p95);
+    assertEquals(10, snapshot.p99);
+    histogram.record(1000, 0, false);
+    assertEquals(1000, histogram.getSnapshot().p99);
+  }
+
+  /**
+   * Test the counters and the empty histogram.
+   */
+  @Test
+  public void testCounters() {
+    LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+    assertEquals(0, snapshot.count);
+    assertEquals(0, snapshot.p50);
+    assertEquals(0.0d, snapshot.mean, 0.0d);
+
+    histogram.record(-5, 100, false);
+    histogram.record(5, 0, true);
+    histogram.record(5, 50, true);
+    snapshot = histogram.getSnapshot();
+    assertEquals(3, snapshot.count);
+    assertEquals(2, snapshot.errors);
+    assertEquals(150, snapshot.bytes);
+    assertEquals(5, snapshot.max);
+
+    histogram.reset();
+    snapshot = histogram.getSnapshot();
+    assertEquals(0, snapshot.count);
+    assertEquals(0, snapshot.errors);
+    assertEquals(0, snapshot.bytes);
+    assertEquals(0, snapshot.max);
+  }
+
+}
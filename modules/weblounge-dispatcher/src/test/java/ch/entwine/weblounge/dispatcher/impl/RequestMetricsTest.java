@@ -0,0 +1,231 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+import ch.entwine.weblounge.dispatcher.RequestHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+/**
+ * Test case for {@link RequestMetrics}.
+ */
+public class RequestMetricsTest {
+
+  /** The metrics under test */
+  protected RequestMetrics metrics = null;
+
+  /** The management bean server */
+  protected MBeanServer mbeanServer = null;
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /** A request handler */
+  protected TestHandler pages = null;
+
+  /** Another request handler */
+  protected TestHandler files = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    metrics = new RequestMetrics();
+    mbeanServer = MBeanServerFactory.newMBeanServer();
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    pages = new TestHandler("pages");
+    files = new TestHandler("files");
+  }
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    metrics.unregisterMBeans();
+    MBeanServerFactory.releaseMBeanServer(mbeanServer);
+  }
+
+  /**
+   * Test that requests are recorded per handler and mode, in microseconds.
+   */
+  @Test
+  public void testRecord() {
+    metrics.record(site, pages, false, 2000000L, 100, false);
+    metrics.record(site, pages, false, 4000000L, 0, true);
+    metrics.record(site, pages, true, 1000L, 50, false);
+
+    List<RequestMetrics.Series> series = metrics.getSeries("test");
+    assertEquals(2, series.size());
+    for (RequestMetrics.Series s : series) {
+      assertEquals("test", s.getSite());
+      assertEquals("pages", s.getHandler());
+      if (RequestMetrics.MODE_RENDERED.equals(s.getMode())) {
+        assertEquals(2, s.getCount());
+        assertEquals(1, s.getErrors());
+        assertEquals(100, s.getBytesServed());
+        assertEquals(3.0d, s.getMeanMillis(), 0.0d);
+        assertEquals(4.0d, s.getMaxMillis(), 0.0d);
+      } else {
+        assertEquals(RequestMetrics.MODE_CACHED, s.getMode());
+        assertEquals(1, s.getCount());
+        assertEquals(50, s.getBytesServed());
+        assertEquals(0.001d, s.getP99Millis(), 0.0d);
+      }
+    }
+    assertEquals(0, metrics.getSeries("other").size());
+
+    String xml = metrics.getRuntimeInformation(site, null, null, null);
+    assertTrue(xml.contains("<requests>2</requests>"));
+    assertTrue(xml.contains("<requests>1</requests>"));
+  }
+
+  /**
+   * Test that a management bean is registered for every series and that the
+   * beans of a handler are removed along with the handler.
+   */
+  @Test
+  public void testMBeans() throws Exception {
+    metrics.record(site, pages, false, 1000L, 0, false);
+    metrics.registerMBeans(mbeanServer);
+    assertTrue(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_CACHED)));
+    assertTrue(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_RENDERED)));
+
+    // Series that show up later are registered right away
+    metrics.record(site, files, false, 1000L, 0, false);
+    assertTrue(mbeanServer.isRegistered(getObjectName("files", RequestMetrics.MODE_RENDERED)));
+    assertEquals(1L, mbeanServer.getAttribute(getObjectName("files", RequestMetrics.MODE_RENDERED), "Count"));
+
+    metrics.remove(files);
+    assertFalse(mbeanServer.isRegistered(getObjectName("files", RequestMetrics.MODE_CACHED)));
+    assertFalse(mbeanServer.isRegistered(getObjectName("files", RequestMetrics.MODE_RENDERED)));
+    assertTrue(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_RENDERED)));
+    assertEquals(2, metrics.getSeries("test").size());
+
+    // A handler registered under the same name starts over
+    TestHandler newFiles = new TestHandler("files");
+    metrics.record(site, newFiles, false, 1000L, 0, false);
+    metrics.record(site, newFiles, false, 1000L, 0, false);
+    assertEquals(2L, mbeanServer.getAttribute(getObjectName("files", RequestMetrics.MODE_RENDERED), "Count"));
+
+    metrics.unregisterMBeans();
+    assertFalse(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_RENDERED)));
+    assertFalse(mbeanServer.isRegistered(getObjectName("files", RequestMetrics.MODE_RENDERED)));
+  }
+
+  /**
+   * Test that removing a handler leaves the management beans of another
+   * handler with the same name alone.
+   */
+  @Test
+  public void testMBeanNameClash() throws Exception {
+    metrics.registerMBeans(mbeanServer);
+    TestHandler otherPages = new TestHandler("pages");
+    metrics.record(site, pages, false, 1000L, 0, false);
+    metrics.record(site, otherPages, false, 1000L, 0, false);
+    metrics.remove(otherPages);
+    assertTrue(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_RENDERED)));
+    metrics.remove(pages);
+    assertFalse(mbeanServer.isRegistered(getObjectName("pages", RequestMetrics.MODE_RENDERED)));
+  }
+
+  /**
+   * Returns the name of the management bean for the test site.
+   *
+   * @param handler
+   *          the handler name
+   * @param mode
+   *          the mode
+   * @return the object name
+   * @throws Exception
+   *           if the name is malformed
+   */
+  protected ObjectName getObjectName(String handler, String mode)
+      throws Exception {
+    return new RequestMetrics.Series("test", handler, mode).getObjectName();
+  }
+
+  /**
+   * Request handler that doesn't handle anything.
+   */
+  protected static class TestHandler implements RequestHandler {
+
+    /** The handler name */
+    private final String name;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param name
+     *          the name
+     */
+    TestHandler(String name) {
+      this.name = name;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#service(ch.entwine.weblounge.common.request.WebloungeRequest,
+     *      ch.entwine.weblounge.common.request.WebloungeResponse)
+     */
+    public boolean service(WebloungeRequest request, WebloungeResponse response) {
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#getPriority()
+     */
+    public int getPriority() {
+      return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#getName()
+     */
+    public String getName() {
+      return name;
+    }
+
+  }
+
+}
@@ -0,0 +1,257 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.dispatcher.RequestHandler;
+import ch.entwine.weblounge.dispatcher.RoutedRequestHandler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for {@link RequestRouter}.
+ */
+public class RequestRouterTest {
+
+  /** The router under test */
+  protected RequestRouter router = null;
+
+  /** The site */
+  protected Site site = null;
+
+  /** Handler serving a single prefix */
+  protected TestHandler files = null;
+
+  /** Handler serving a prefix as well as every other path */
+  protected TestHandler images = null;
+
+  /** Handler without routes */
+  protected TestHandler pages = null;
+
+  /** Handler with a lower priority */
+  protected TestHandler robots = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    router = new RequestRouter();
+    files = new TestHandler("files", 0, "/weblounge-files/");
+    images = new TestHandler("images", 0, "/weblounge-images/", RoutedRequestHandler.ROOT);
+    pages = new TestHandler("pages", 0);
+    robots = new TestHandler("robots", -1, "/robots.txt");
+    router.add(robots);
+    router.add(pages);
+    router.add(files);
+    router.add(images);
+  }
+
+  /**
+   * Test that the handler with the longest matching route is asked first and
+   * that handlers without a matching route are not asked at all.
+   */
+  @Test
+  public void testLongestPrefixMatch() {
+    assertArrayEquals(new RequestHandler[] { files, pages, images }, router.route(site, "/weblounge-files/a/b.pdf"));
+    assertArrayEquals(new RequestHandler[] { images, pages }, router.route(site, "/weblounge-images/a/b.png"));
+  }
+
+  /**
+   * Test that requests not matching any specific route are offered to the
+   * handlers that declared the root route or no routes at all.
+   */
+  @Test
+  public void testRootFallback() {
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/"));
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/about/"));
+
+    // Paths sharing part of a route don't match it
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/weblounge-filesystem/"));
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/weblounge-files"));
+  }
+
+  /**
+   * Test that handlers are ordered by priority first, by the length of the
+   * matching route second and by the order of registration last.
+   */
+  @Test
+  public void testHandlerOrder() {
+    assertArrayEquals(new RequestHandler[] { pages, images, robots }, router.route(site, "/robots.txt"));
+
+    TestHandler preview = new TestHandler("preview", 1, RoutedRequestHandler.ROOT);
+    router.add(preview);
+    assertArrayEquals(new RequestHandler[] { preview, files, pages, images }, router.route(site, "/weblounge-files/a"));
+
+    // Adding the same handler twice has no effect
+    router.add(preview);
+    assertEquals(5, router.getHandlers().size());
+  }
+
+  /**
+   * Test that the routing table is rebuilt when handlers are removed or their
+   * routes change.
+   */
+  @Test
+  public void testRoutingTableUpdates() {
+    assertArrayEquals(new RequestHandler[] { files, pages, images }, router.route(site, "/weblounge-files/a"));
+
+    assertTrue(router.remove(files));
+    assertFalse(router.remove(files));
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/weblounge-files/a"));
+
+    robots.routes = new String[] { "/weblounge-files/" };
+    robots.routesVersion++;
+    assertArrayEquals(new RequestHandler[] { pages, images, robots }, router.route(site, "/weblounge-files/a"));
+    assertArrayEquals(new RequestHandler[] { pages, images }, router.route(site, "/robots.txt"));
+  }
+
+  /**
+   * Test the routing statistics.
+   */
+  @Test
+  public void testStatistics() {
+    router.route(site, "/a");
+    router.declined(pages);
+    router.served(images, 1);
+    router.route(site, "/b");
+    router.unserved();
+    router.route(site, "/c");
+    router.failed(images);
+
+    assertEquals(3, router.getRequests());
+    assertEquals(1, router.getUnservedRequests());
+    assertEquals(1, router.getFailedRequests());
+    assertEquals(1, router.getDeclines());
+    for (RequestRouter.HandlerStatistics stats : router.getStatistics()) {
+      if (stats.getHandler() == images) {
+        assertEquals(1, stats.getServed());
+        assertEquals(1, stats.getFailed());
+        assertEquals(1.0d, stats.getDeclinesPerRequest(), 0.0d);
+      } else if (stats.getHandler() == pages) {
+        assertEquals(1, stats.getDeclined());
+      }
+    }
+  }
+
+  /**
+   * Request handler with configurable routes.
+   */
+  protected static class TestHandler implements RoutedRequestHandler {
+
+    /** The handler name */
+    private final String name;
+
+    /** The priority */
+    private final int priority;
+
+    /** The routes */
+    String[] routes;
+
+    /** The version of the routes */
+    long routesVersion = 0;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param name
+     *          the name
+     * @param priority
+     *          the priority
+     * @param routes
+     *          the routes
+     */
+    TestHandler(String name, int priority, String... routes) {
+      this.name = name;
+      this.priority = priority;
+      this.routes = routes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#service(ch.entwine.weblounge.common.request.WebloungeRequest,
+     *      ch.entwine.weblounge.common.request.WebloungeResponse)
+     */
+    public boolean service(WebloungeRequest request, WebloungeResponse response) {
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutes(ch.entwine.weblounge.common.site.Site)
+     */
+    public String[] getRoutes(Site site) {
+      return routes;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RoutedRequestHandler#getRoutesVersion()
+     */
+    public long getRoutesVersion() {
+      return routesVersion;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#getPriority()
+     */
+    public int getPriority() {
+      return priority;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.RequestHandler#getName()
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return name;
+    }
+
+  }
+
+}
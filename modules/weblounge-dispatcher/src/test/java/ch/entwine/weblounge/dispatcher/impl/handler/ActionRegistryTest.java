@@ -0,0 +1,249 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.impl.site.ActionPool;
+import ch.entwine.weblounge.common.impl.site.ActionSupport;
+import ch.entwine.weblounge.common.impl.site.HTMLActionSupport;
+import ch.entwine.weblounge.common.impl.site.JSONActionSupport;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.impl.url.UrlMatcherImpl;
+import ch.entwine.weblounge.common.impl.url.WebUrlImpl;
+import ch.entwine.weblounge.common.request.RequestFlavor;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.common.url.UrlMatcher;
+import ch.entwine.weblounge.common.url.WebUrl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test case for {@link ActionRegistry}.
+ */
+public class ActionRegistryTest {
+
+  /** The registry under test */
+  protected ActionRegistry registry = null;
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /** Another site */
+  protected SiteImpl otherSite = null;
+
+  /** Pool of the action mounted at /greeting */
+  protected ActionPool greeting = null;
+
+  /** Pool of the action mounted at /greeting/admin */
+  protected ActionPool admin = null;
+
+  /** The registered actions along with their pools */
+  protected Map<UrlMatcher, ActionPool> actions = null;
+
+  /** The paths that are looked up */
+  protected String[] paths = new String[] {
+      "/",
+      "/greeting",
+      "/greeting/",
+      "/greeting/hello",
+      "/greetings",
+      "/greeting/admin",
+      "/greeting/admin/users/",
+      "/api/",
+      "/api/json/",
+      "/api/json/a/b",
+      "/other" };
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    registry = new ActionRegistry();
+    actions = new LinkedHashMap<UrlMatcher, ActionPool>();
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    otherSite = new SiteImpl();
+    otherSite.setIdentifier("other");
+
+    greeting = register(createAction(new HTMLActionSupport(), site, "greeting", "/greeting", RequestFlavor.HTML));
+    admin = register(createAction(new HTMLActionSupport(), site, "admin", "/greeting/admin", RequestFlavor.HTML, RequestFlavor.JSON));
+    register(createAction(new JSONActionSupport(), site, "api", "/api/json", RequestFlavor.JSON));
+    register(createAction(new HTMLActionSupport(), otherSite, "other", "/greeting", RequestFlavor.HTML));
+  }
+
+  /**
+   * Test that lookups return the same action as the linear scan over the url
+   * matchers that the registry replaced, where the action with the longest
+   * mountpoint wins.
+   */
+  @Test
+  public void testMatcherEquivalence() {
+    for (Site s : new Site[] { site, otherSite }) {
+      for (String path : paths) {
+        WebUrl url = new WebUrlImpl(s, path);
+        for (RequestFlavor flavor : RequestFlavor.values()) {
+          String message = s.getIdentifier() + "://" + path + " (" + flavor + ")";
+          assertSame(message, scan(url, flavor), registry.lookup(url, flavor));
+
+          // The second lookup is served from the cache
+          assertSame(message, scan(url, flavor), registry.lookup(url, flavor));
+        }
+      }
+    }
+  }
+
+  /**
+   * Test a few of the lookups explicitly.
+   */
+  @Test
+  public void testLongestMountpoint() {
+    assertSame(greeting, registry.lookup(new WebUrlImpl(site, "/greeting/hello"), RequestFlavor.HTML));
+    assertSame(admin, registry.lookup(new WebUrlImpl(site, "/greeting/admin/users"), RequestFlavor.HTML));
+    assertSame(admin, registry.lookup(new WebUrlImpl(site, "/greeting/admin/users"), RequestFlavor.JSON));
+    assertNull(registry.lookup(new WebUrlImpl(site, "/greeting/hello"), RequestFlavor.XML));
+    assertNull(registry.lookup(new WebUrlImpl(site, "/greetings"), RequestFlavor.HTML));
+  }
+
+  /**
+   * Test that the lookup cache never grows beyond its bound.
+   */
+  @Test
+  public void testCacheBound() {
+    ActionRegistry bounded = new ActionRegistry(4);
+    ActionSupport action = createAction(new HTMLActionSupport(), site, "greeting", "/greeting", RequestFlavor.HTML);
+    bounded.register(new UrlMatcherImpl(action), action, greeting);
+    assertEquals(0, bounded.getCachedUrls());
+    for (int i = 0; i < 10; i++) {
+      assertSame(greeting, bounded.lookup(new WebUrlImpl(site, "/greeting/" + i), RequestFlavor.HTML));
+      assertTrue(bounded.getCachedUrls() <= 4);
+      assertTrue(bounded.getCachedUrls() > 0);
+    }
+
+    // Urls that were evicted are looked up again
+    assertSame(greeting, bounded.lookup(new WebUrlImpl(site, "/greeting/0"), RequestFlavor.HTML));
+    assertNull(bounded.lookup(new WebUrlImpl(site, "/news"), RequestFlavor.HTML));
+    assertTrue(bounded.getCachedUrls() <= 4);
+  }
+
+  /**
+   * Test that urls without an action are cached and that the cached misses
+   * are discarded when an action is registered for them.
+   */
+  @Test
+  public void testNegativeCacheInvalidation() {
+    WebUrl url = new WebUrlImpl(site, "/news/today");
+    assertNull(registry.lookup(url, RequestFlavor.HTML));
+    assertEquals(1, registry.getCachedUrls());
+    assertNull(registry.lookup(url, RequestFlavor.HTML));
+    assertEquals(1, registry.getCachedUrls());
+
+    // Registering the action discards the cached miss
+    long version = registry.getVersion();
+    ActionPool pool = register(createAction(new HTMLActionSupport(), site, "news", "/news", RequestFlavor.HTML));
+    assertTrue(registry.getVersion() != version);
+    assertEquals(0, registry.getCachedUrls());
+    assertSame(pool, registry.lookup(url, RequestFlavor.HTML));
+
+    // Unregistering it discards the cached hit
+    UrlMatcher matcher = new UrlMatcherImpl(createAction(new HTMLActionSupport(), site, "news", "/news", RequestFlavor.HTML));
+    assertSame(pool, registry.unregister(matcher));
+    assertNull(registry.unregister(matcher));
+    assertNull(registry.lookup(url, RequestFlavor.HTML));
+  }
+
+  /**
+   * Returns the action pool with the longest matching mountpoint by asking
+   * every registered url matcher, which is how actions were looked up before
+   * the registry was introduced.
+   *
+   * @param url
+   *          the url
+   * @param flavor
+   *          the request flavor
+   * @return the action pool
+   */
+  protected ActionPool scan(WebUrl url, RequestFlavor flavor) {
+    ActionPool actionPool = null;
+    int maxMatchLength = 0;
+    for (Map.Entry<UrlMatcher, ActionPool> entry : actions.entrySet()) {
+      UrlMatcher matcher = entry.getKey();
+      if (matcher.matches(url, flavor)) {
+        int matchLength = matcher.getMountpoint().length();
+        if (matchLength > maxMatchLength) {
+          maxMatchLength = matchLength;
+          actionPool = entry.getValue();
+        }
+      }
+    }
+    return actionPool;
+  }
+
+  /**
+   * Registers the action with both the registry and the list of actions that
+   * is used for the linear scan.
+   *
+   * @param action
+   *          the action
+   * @return the action pool
+   */
+  protected ActionPool register(ActionSupport action) {
+    UrlMatcher matcher = new UrlMatcherImpl(action);
+    ActionPool pool = new ActionPool(action);
+    actions.put(matcher, pool);
+    registry.register(matcher, action, pool);
+    return pool;
+  }
+
+  /**
+   * Configures the action.
+   *
+   * @param action
+   *          the action
+   * @param s
+   *          the site
+   * @param identifier
+   *          the action identifier
+   * @param path
+   *          the mountpoint
+   * @param flavors
+   *          the supported flavors
+   * @return the action
+   */
+  protected ActionSupport createAction(ActionSupport action, Site s,
+      String identifier, String path, RequestFlavor... flavors) {
+    action.setIdentifier(identifier);
+    action.setSite(s);
+    action.setPath(path);
+    for (RequestFlavor flavor : flavors)
+      action.addFlavor(flavor);
+    return action;
+  }
+
+}
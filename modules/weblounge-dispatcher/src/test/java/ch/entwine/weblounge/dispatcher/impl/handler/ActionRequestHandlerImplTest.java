@@ -0,0 +1,103 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.impl.site.HTMLActionSupport;
+import ch.entwine.weblounge.common.impl.site.JSONActionSupport;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.request.RequestFlavor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test case for {@link ActionRequestHandlerImpl}.
+ */
+public class ActionRequestHandlerImplTest {
+
+  /** The handler under test */
+  protected ActionRequestHandlerImpl handler = null;
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /** Another site */
+  protected SiteImpl otherSite = null;
+
+  /** An html action */
+  protected HTMLActionSupport htmlAction = null;
+
+  /** A json action mounted at a path ending with the flavor */
+  protected JSONActionSupport jsonAction = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    handler = new ActionRequestHandlerImpl();
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    otherSite = new SiteImpl();
+    otherSite.setIdentifier("other");
+
+    htmlAction = new HTMLActionSupport();
+    htmlAction.setIdentifier("greeting");
+    htmlAction.setSite(site);
+    htmlAction.setPath("/greeting");
+    htmlAction.addFlavor(RequestFlavor.HTML);
+
+    jsonAction = new JSONActionSupport();
+    jsonAction.setIdentifier("api");
+    jsonAction.setSite(site);
+    jsonAction.setPath("/api/json");
+    jsonAction.addFlavor(RequestFlavor.JSON);
+  }
+
+  /**
+   * Test that the routes of a site are the mountpoints of its actions and that
+   * they change with the registered actions.
+   */
+  @Test
+  public void testRoutes() {
+    assertEquals(0, handler.getRoutes(site).length);
+    long version = handler.getRoutesVersion();
+
+    handler.register(htmlAction);
+    assertTrue(handler.getRoutesVersion() != version);
+    assertArrayEquals(new String[] { "/greeting/" }, handler.getRoutes(site));
+    assertEquals(0, handler.getRoutes(otherSite).length);
+
+    // Flavors are stripped from request paths, so the parent is a route, too
+    handler.register(jsonAction);
+    assertArrayEquals(new String[] { "/greeting/", "/api/json/", "/api/" }, handler.getRoutes(site));
+
+    version = handler.getRoutesVersion();
+    handler.unregister(htmlAction);
+    assertTrue(handler.getRoutesVersion() != version);
+    assertArrayEquals(new String[] { "/api/json/", "/api/" }, handler.getRoutes(site));
+  }
+
+}
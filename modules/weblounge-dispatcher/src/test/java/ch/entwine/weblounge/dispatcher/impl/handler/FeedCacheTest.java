@@ -0,0 +1,468 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.content.Resource;
+import ch.entwine.weblounge.common.content.page.Page;
+import ch.entwine.weblounge.common.impl.content.page.PageImpl;
+import ch.entwine.weblounge.common.impl.content.page.PageURIImpl;
+import ch.entwine.weblounge.common.impl.language.LanguageUtils;
+import ch.entwine.weblounge.common.impl.security.AllowAccessRule;
+import ch.entwine.weblounge.common.impl.security.RoleImpl;
+import ch.entwine.weblounge.common.impl.security.SystemAuthorities;
+import ch.entwine.weblounge.common.impl.security.UserImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.language.Language;
+import ch.entwine.weblounge.common.security.Authority;
+import ch.entwine.weblounge.common.security.Role;
+import ch.entwine.weblounge.common.security.SystemAction;
+import ch.entwine.weblounge.common.site.Environment;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test case for {@link FeedCache}, covering the order of the feed entries,
+ * the detection of stale feeds, the separation of feeds by the readers' roles
+ * and the changes that are applied as pages are published, unpublished or
+ * deleted.
+ */
+public class FeedCacheTest {
+
+  /** Role that restricted pages may be read by */
+  protected static final Role EDITOR = new RoleImpl("system", "editor");
+
+  /** The cache under test */
+  protected FeedCache cache = null;
+
+  /** The site */
+  protected SiteImpl site = null;
+
+  /** Another site */
+  protected SiteImpl otherSite = null;
+
+  /** A user with the editor role */
+  protected UserImpl editor = null;
+
+  /** The feed language */
+  protected Language language = null;
+
+  /** The authorities of an anonymous user */
+  protected Set<String> authorities = null;
+
+  /** Key of the anonymous feed without subjects and without a limit */
+  protected String key = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    cache = new FeedCache();
+    site = new SiteImpl();
+    site.setIdentifier("test");
+    otherSite = new SiteImpl();
+    otherSite.setIdentifier("other");
+    language = LanguageUtils.getLanguage("en");
+    editor = new UserImpl("editor");
+    editor.addPublicCredentials(EDITOR);
+    authorities = FeedCache.getAuthorities(null);
+    key = FeedCache.createKey(site, Environment.Production, language, Collections.<String> emptyList(), 0, authorities);
+  }
+
+  /**
+   * Test that keys don't depend on the order of the subjects.
+   */
+  @Test
+  public void testCreateKey() {
+    String abKey = FeedCache.createKey(site, Environment.Production, language, Arrays.asList("a", "b"), 10, authorities);
+    String baKey = FeedCache.createKey(site, Environment.Production, language, Arrays.asList("b", "a"), 10, authorities);
+    assertEquals(abKey, baKey);
+    assertFalse(abKey.equals(FeedCache.createKey(site, Environment.Production, language, Arrays.asList("a", "b"), 5, authorities)));
+    assertFalse(abKey.equals(FeedCache.createKey(otherSite, Environment.Production, language, Arrays.asList("a", "b"), 10, authorities)));
+    assertFalse(abKey.equals(FeedCache.createKey(site, Environment.Staging, language, Arrays.asList("a", "b"), 10, authorities)));
+    assertFalse(abKey.equals(FeedCache.createKey(site, Environment.Production, language, Arrays.asList("a", "b"), 10, FeedCache.getAuthorities(editor))));
+  }
+
+  /**
+   * Test that pages are inserted according to their publishing date and that
+   * pages without a publishing date end up last.
+   */
+  @Test
+  public void testOrdering() throws Exception {
+    FeedCache.Feed feed = createFeed(0, createPage(site, "3", 3), createPage(site, "1", 1));
+    feed.update(createPage(site, "2", 2));
+    feed.update(createPage(site, "4", 4));
+    feed.update(createPage(site, "0", -1));
+    assertEntries(feed, "4", "3", "2", "1", "0");
+
+    // Pages that are published again move up
+    feed.update(createPage(site, "1", 5));
+    assertEntries(feed, "1", "4", "3", "2", "0");
+    assertFalse(feed.isStale());
+  }
+
+  /**
+   * Test that feeds never hold more than the maximum number of entries.
+   */
+  @Test
+  public void testLimit() throws Exception {
+    FeedCache.Feed feed = createFeed(2, createPage(site, "3", 3), createPage(site, "2", 2));
+    feed.update(createPage(site, "4", 4));
+    assertEntries(feed, "4", "3");
+
+    // Pages that are older than the oldest entry are dropped right away
+    feed.update(createPage(site, "1", 1));
+    assertEntries(feed, "4", "3");
+    assertFalse(feed.isStale());
+  }
+
+  /**
+   * Test that pages are only added to feeds with matching subjects.
+   */
+  @Test
+  public void testSubjects() throws Exception {
+    FeedCache.Feed feed = new FeedCache.Feed("test", Arrays.asList("news"), 0, authorities, new ArrayList<Page>());
+    feed.update(createPage(site, "1", 1));
+    feed.update(createPage(site, "2", 2, "sports"));
+    feed.update(createPage(site, "3", 3, "sports", "news"));
+    assertEntries(feed, "3");
+
+    // Pages that lose the subject leave the feed
+    feed.update(createPage(site, "3", 3, "sports"));
+    assertEntries(feed);
+    assertFalse(feed.isStale());
+  }
+
+  /**
+   * Test that a full feed is considered stale if it loses an entry, since
+   * its successor is unknown.
+   */
+  @Test
+  public void testStaleness() throws Exception {
+    FeedCache.Feed feed = createFeed(2, createPage(site, "3", 3, "news"), createPage(site, "2", 2, "news"));
+    feed.remove("1");
+    assertFalse(feed.isStale());
+    feed.remove("3");
+    assertTrue(feed.isStale());
+
+    // Pages that no longer match
+    feed = new FeedCache.Feed("test", Arrays.asList("news"), 2, authorities, Arrays.<Page> asList(createPage(site, "3", 3, "news"), createPage(site, "2", 2, "news")));
+    feed.update(createPage(site, "3", 3, "sports"));
+    assertTrue(feed.isStale());
+
+    // Pages that have become the oldest entry
+    feed = createFeed(2, createPage(site, "3", 3), createPage(site, "2", 2));
+    feed.update(createPage(site, "3", 1));
+    assertTrue(feed.isStale());
+
+    // Feeds without a limit are never stale
+    feed = createFeed(0, createPage(site, "3", 3), createPage(site, "2", 2));
+    feed.remove("3");
+    feed.update(createPage(site, "2", 1));
+    assertFalse(feed.isStale());
+  }
+
+  /**
+   * Test that published, unpublished and deleted pages are applied to the
+   * materialized feeds of their site.
+   */
+  @Test
+  public void testEvents() throws Exception {
+    FeedCache.Feed feed = createFeed(0, createPage(site, "1", 1));
+    assertTrue(cache.put(key, feed, cache.getModifications("test")));
+    assertSame(feed, cache.get(key));
+
+    cache.published(createPage(site, "2", 2));
+    cache.updated(createPage(site, "3", 3));
+    assertEntries(feed, "3", "2", "1");
+
+    cache.unpublished(createPage(site, "2", 2));
+    cache.deleted(createPage(site, "1", 1));
+    assertEntries(feed, "3");
+
+    // Work versions and pages of other sites are ignored
+    cache.published(createPage(site, "4", 4, Resource.WORK));
+    cache.published(createPage(otherSite, "5", 5));
+    cache.deleted(createPage(site, "3", 3, Resource.WORK));
+    assertEntries(feed, "3");
+    assertSame(feed, cache.get(key));
+  }
+
+  /**
+   * Test that stale feeds are removed from the cache.
+   */
+  @Test
+  public void testEventInvalidation() throws Exception {
+    FeedCache.Feed feed = createFeed(1, createPage(site, "1", 1));
+    String limitedKey = FeedCache.createKey(site, Environment.Production, language, Collections.<String> emptyList(), 1, authorities);
+    assertTrue(cache.put(limitedKey, feed, cache.getModifications("test")));
+
+    cache.unpublished(createPage(site, "1", 1));
+    assertTrue(feed.isStale());
+    assertNull(cache.get(limitedKey));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Test that feeds are rejected if they might have missed a modification of
+   * a page of the same site while being compiled.
+   */
+  @Test
+  public void testModifications() throws Exception {
+    long modifications = cache.getModifications("test");
+    long otherModifications = cache.getModifications("other");
+
+    // Modifications to another site don't matter
+    cache.published(createPage(otherSite, "1", 1));
+    assertEquals(modifications, cache.getModifications("test"));
+    assertEquals(otherModifications + 1, cache.getModifications("other"));
+    assertTrue(cache.put(key, createFeed(0), modifications));
+
+    // Modifications to the same site do
+    modifications = cache.getModifications("test");
+    cache.published(createPage(site, "2", 2));
+    assertFalse(cache.put(key, createFeed(0), modifications));
+    assertTrue(cache.put(key, createFeed(0), cache.getModifications("test")));
+
+    // Work versions are not counted
+    modifications = cache.getModifications("test");
+    cache.published(createPage(site, "3", 3, Resource.WORK));
+    assertEquals(modifications, cache.getModifications("test"));
+  }
+
+  /**
+   * Test that pages are only added to feeds whose authorities may read them.
+   */
+  @Test
+  public void testAccess() throws Exception {
+    FeedCache.Feed feed = createFeed(0, createPage(site, "1", 1));
+    feed.update(createPage(site, "2", 2, EDITOR));
+    assertEntries(feed, "1");
+
+    // Pages that are no longer public leave the feed
+    feed.update(createPage(site, "1", 1, EDITOR));
+    assertEntries(feed);
+
+    // Editors may read both public and restricted pages
+    Set<String> editorAuthorities = FeedCache.getAuthorities(editor);
+    assertTrue(editorAuthorities.containsAll(authorities));
+    feed = new FeedCache.Feed("test", Collections.<String> emptyList(), 0, editorAuthorities, new ArrayList<Page>());
+    feed.update(createPage(site, "1", 1));
+    feed.update(createPage(site, "2", 2, EDITOR));
+    assertEntries(feed, "2", "1");
+  }
+
+  /**
+   * Test that users with different roles asking for the same feed are served
+   * the feeds that have been compiled for their own roles.
+   */
+  @Test
+  public void testUsersWithDifferentRoles() throws Exception {
+    Set<String> editorAuthorities = FeedCache.getAuthorities(editor);
+    String editorKey = FeedCache.createKey(site, Environment.Production, language, Collections.<String> emptyList(), 0, editorAuthorities);
+    assertFalse(key.equals(editorKey));
+
+    // The editor's feed contains a restricted page
+    FeedCache.Feed editorFeed = new FeedCache.Feed("test", Collections.<String> emptyList(), 0, editorAuthorities, Arrays.asList(createPage(site, "2", 2, EDITOR), createPage(site, "1", 1)));
+    assertTrue(cache.put(editorKey, editorFeed, cache.getModifications("test")));
+
+    // An anonymous user asking for the same feed doesn't get to see it
+    assertNull(cache.get(key));
+    FeedCache.Feed anonymousFeed = createFeed(0, createPage(site, "1", 1));
+    assertTrue(cache.put(key, anonymousFeed, cache.getModifications("test")));
+    assertSame(editorFeed, cache.get(editorKey));
+    assertSame(anonymousFeed, cache.get(key));
+
+    // Restricted pages that are published later only show up for the editor
+    cache.published(createPage(site, "3", 3, EDITOR));
+    cache.published(createPage(site, "4", 4));
+    assertEntries(editorFeed, "4", "3", "2", "1");
+    assertEntries(anonymousFeed, "4", "1");
+  }
+
+  /**
+   * Test that feeds are compiled again once they have expired.
+   */
+  @Test
+  public void testValidTime() throws Exception {
+    cache = new FeedCache(FeedCache.DEFAULT_CACHE_SIZE, 1);
+    assertTrue(cache.put(key, createFeed(0), cache.getModifications("test")));
+    Thread.sleep(20);
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Test that the cache never holds more than the maximum number of feeds.
+   */
+  @Test
+  public void testCacheSize() throws Exception {
+    cache = new FeedCache(2, FeedCache.DEFAULT_VALID_TIME);
+    for (int limit = 1; limit <= 5; limit++) {
+      String limitedKey = FeedCache.createKey(site, Environment.Production, language, Collections.<String> emptyList(), limit, authorities);
+      assertTrue(cache.put(limitedKey, createFeed(limit), 0));
+      assertTrue(cache.size() <= 2);
+      assertNotNull(cache.get(limitedKey));
+    }
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Returns a feed of the test site without subjects.
+   *
+   * @param limit
+   *          the maximum number of entries
+   * @param pages
+   *          the pages, most recent first
+   * @return the feed
+   */
+  protected FeedCache.Feed createFeed(int limit, Page... pages) {
+    return new FeedCache.Feed("test", Collections.<String> emptyList(), limit, authorities, Arrays.asList(pages));
+  }
+
+  /**
+   * Returns the live version of a page that has been published
+   * <code>published</code> seconds after the epoch, or that hasn't been
+   * published if <code>published</code> is negative.
+   *
+   * @param site
+   *          the site
+   * @param id
+   *          the page identifier
+   * @param published
+   *          the publishing date in seconds
+   * @param subjects
+   *          the subjects
+   * @return the page
+   */
+  protected Page createPage(SiteImpl site, String id, long published,
+      String... subjects) throws Exception {
+    return createPage(site, id, published, Resource.LIVE, subjects);
+  }
+
+  /**
+   * Returns the given version of a page that has been published
+   * <code>published</code> seconds after the epoch, or that hasn't been
+   * published if <code>published</code> is negative.
+   *
+   * @param site
+   *          the site
+   * @param id
+   *          the page identifier
+   * @param published
+   *          the publishing date in seconds
+   * @param version
+   *          the version
+   * @param subjects
+   *          the subjects
+   * @return the page
+   */
+  protected Page createPage(SiteImpl site, String id, long published,
+      long version, String... subjects) throws Exception {
+    return createPage(site, id, published, version, SystemAuthorities.ANY, subjects);
+  }
+
+  /**
+   * Returns the live version of a page that has been published
+   * <code>published</code> seconds after the epoch and that may only be read
+   * by <code>reader</code>.
+   *
+   * @param site
+   *          the site
+   * @param id
+   *          the page identifier
+   * @param published
+   *          the publishing date in seconds
+   * @param reader
+   *          the authority that may read the page
+   * @param subjects
+   *          the subjects
+   * @return the page
+   */
+  protected Page createPage(SiteImpl site, String id, long published,
+      Authority reader, String... subjects) throws Exception {
+    return createPage(site, id, published, Resource.LIVE, reader, subjects);
+  }
+
+  /**
+   * Returns the given version of a page that has been published
+   * <code>published</code> seconds after the epoch, or that hasn't been
+   * published if <code>published</code> is negative, and that may only be read
+   * by <code>reader</code>.
+   *
+   * @param site
+   *          the site
+   * @param id
+   *          the page identifier
+   * @param published
+   *          the publishing date in seconds
+   * @param version
+   *          the version
+   * @param reader
+   *          the authority that may read the page
+   * @param subjects
+   *          the subjects
+   * @return the page
+   */
+  protected Page createPage(SiteImpl site, String id, long published,
+      long version, Authority reader, String... subjects) throws Exception {
+    PageImpl page = new PageImpl(new PageURIImpl(site, "/" + id + "/", id, version));
+    page.addAccessRule(new AllowAccessRule(reader, SystemAction.READ));
+    if (published >= 0)
+      page.setPublished(null, new Date(published * 1000L), null);
+    for (String subject : subjects)
+      page.addSubject(subject);
+    return page;
+  }
+
+  /**
+   * Asserts that the feed consists of the pages with the given identifiers,
+   * in this order.
+   *
+   * @param feed
+   *          the feed
+   * @param ids
+   *          the page identifiers
+   */
+  protected void assertEntries(FeedCache.Feed feed, String... ids) {
+    List<String> entries = new ArrayList<String>();
+    for (FeedCache.Entry entry : feed.getEntries())
+      entries.add(entry.getPage().getIdentifier());
+    assertEquals(Arrays.asList(ids), entries);
+  }
+
+}
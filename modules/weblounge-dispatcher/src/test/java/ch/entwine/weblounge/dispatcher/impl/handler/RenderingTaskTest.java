@@ -0,0 +1,448 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.dispatcher.impl.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeResponseImpl;
+import ch.entwine.weblounge.common.impl.security.SecurityUtils;
+import ch.entwine.weblounge.common.impl.security.UserImpl;
+import ch.entwine.weblounge.common.impl.site.SiteImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletResponse;
+import ch.entwine.weblounge.common.security.User;
+import ch.entwine.weblounge.common.site.Environment;
+import ch.entwine.weblounge.common.site.Site;
+import ch.entwine.weblounge.dispatcher.impl.DispatchUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Test case for {@link RenderingTask}, covering both requests that are put
+ * into asynchronous mode and requests that block while waiting.
+ */
+public class RenderingTaskTest {
+
+  /** The task under test */
+  protected TestTask task = null;
+
+  /** The servlet response */
+  protected MockHttpServletResponse servletResponse = null;
+
+  /** The response */
+  protected WebloungeResponseImpl response = null;
+
+  /** The answer to the request */
+  protected TestAnswer answer = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    task = new TestTask();
+    servletResponse = new MockHttpServletResponse();
+    response = new WebloungeResponseImpl(servletResponse);
+    answer = new TestAnswer();
+  }
+
+  /**
+   * Test the check for asynchronous request support.
+   */
+  @Test
+  public void testAsyncSupport() {
+    MockHttpServletRequest blockingRequest = new MockHttpServletRequest("GET", "/a");
+    assertFalse(DispatchUtils.isAsyncSupported(blockingRequest));
+    assertFalse(DispatchUtils.isAsyncStarted(blockingRequest));
+
+    AsyncRequest asyncRequest = new AsyncRequest();
+    assertTrue(DispatchUtils.isAsyncSupported(asyncRequest));
+    assertFalse(DispatchUtils.isAsyncStarted(asyncRequest));
+    asyncRequest.startAsync();
+    assertTrue(DispatchUtils.isAsyncStarted(asyncRequest));
+  }
+
+  /**
+   * Test that a request thread is blocked until the work is done if the
+   * container does not support asynchronous requests.
+   */
+  @Test
+  public void testBlocking() throws Exception {
+    final WebloungeRequestImpl request = createRequest(new MockHttpServletRequest("GET", "/a"));
+    Thread requestThread = new Thread() {
+      @Override
+      public void run() {
+        task.answer(request, response, 10000, 10000, answer);
+      }
+    };
+    requestThread.start();
+
+    task.release.countDown();
+    task.run();
+    requestThread.join(10000);
+
+    assertFalse(requestThread.isAlive());
+    assertEquals(1, answer.answers);
+    assertSame(requestThread, answer.thread);
+    assertFalse(response.hasError());
+  }
+
+  /**
+   * Test that a blocked request is answered with a <code>503</code> once the
+   * blocking timeout has passed, regardless of the asynchronous timeout.
+   */
+  @Test
+  public void testBlockingTimeout() {
+    WebloungeRequestImpl request = createRequest(new MockHttpServletRequest("GET", "/a"));
+    long start = System.currentTimeMillis();
+    task.answer(request, response, 60000, 10, answer);
+    assertTrue(System.currentTimeMillis() - start < 60000);
+    assertEquals(0, answer.answers);
+    assertTrue(response.hasError());
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, servletResponse.getStatus());
+  }
+
+  /**
+   * Test that requests for work that is done already are answered right away.
+   */
+  @Test
+  public void testDone() {
+    task.release.countDown();
+    task.run();
+
+    task.answer(createRequest(new MockHttpServletRequest("GET", "/a")), response, 10000, 10000, answer);
+    assertEquals(1, answer.answers);
+
+    AsyncRequest asyncRequest = new AsyncRequest();
+    task.answer(createRequest(asyncRequest), response, 10000, 10000, answer);
+    assertEquals(2, answer.answers);
+    assertTrue(asyncRequest.async.completed);
+  }
+
+  /**
+   * Test that requests are put into asynchronous mode with the asynchronous
+   * timeout and answered by the thread that did the work.
+   */
+  @Test
+  public void testAsync() {
+    AsyncRequest asyncRequest = new AsyncRequest();
+    task.answer(createRequest(asyncRequest), response, 10000, 10, answer);
+
+    // The request thread is free to go
+    assertTrue(asyncRequest.isAsyncStarted());
+    assertEquals(10000, asyncRequest.async.getTimeout());
+    assertEquals(0, answer.answers);
+    assertFalse(asyncRequest.async.completed);
+
+    task.release.countDown();
+    task.run();
+    assertEquals(1, answer.answers);
+    assertSame(Thread.currentThread(), answer.thread);
+    assertTrue(asyncRequest.async.completed);
+    assertFalse(response.hasError());
+  }
+
+  /**
+   * Test that asynchronous requests are answered with a <code>503</code> once
+   * the container reports a timeout, and that they are not answered again
+   * when the work is done.
+   */
+  @Test
+  public void testAsyncTimeout() throws Exception {
+    AsyncRequest asyncRequest = new AsyncRequest();
+    task.answer(createRequest(asyncRequest), response, 10, 10, answer);
+    assertEquals(1, asyncRequest.async.listeners.size());
+
+    asyncRequest.async.listeners.get(0).onTimeout(null);
+    assertTrue(asyncRequest.async.completed);
+    assertTrue(response.hasError());
+    assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, servletResponse.getStatus());
+
+    task.release.countDown();
+    task.run();
+    assertEquals(0, answer.answers);
+  }
+
+  /**
+   * Test that failures are reported to the waiting requests.
+   */
+  @Test
+  public void testFailure() {
+    task.success = false;
+    task.release.countDown();
+    task.run();
+    assertTrue(task.isFailed());
+  }
+
+  /**
+   * Test that the work is done with the site and user of the thread that
+   * created the task, and that the context is removed afterwards.
+   */
+  @Test
+  public void testSecurityContext() throws Exception {
+    SiteImpl site = new SiteImpl();
+    site.setIdentifier("test");
+    UserImpl user = new UserImpl("user");
+    SecurityUtils.setConfigured(true);
+    try {
+      SecurityUtils.setSite(site);
+      SecurityUtils.setUser(user);
+      task = new TestTask();
+      SecurityUtils.setSite(null);
+      SecurityUtils.setUser(null);
+
+      Thread renderer = new Thread(task);
+      task.release.countDown();
+      renderer.start();
+      renderer.join(10000);
+      assertSame(site, task.site);
+      assertSame(user, task.user);
+
+      // Tasks created without a context leave none behind
+      task = new TestTask();
+      task.release.countDown();
+      task.run();
+      assertNull(task.site);
+      assertNull(SecurityUtils.getSite());
+      assertNull(SecurityUtils.getUser());
+    } finally {
+      SecurityUtils.setSite(null);
+      SecurityUtils.setUser(null);
+      SecurityUtils.setConfigured(false);
+    }
+  }
+
+  /**
+   * Returns a weblounge request wrapping <code>request</code>.
+   *
+   * @param request
+   *          the servlet request
+   * @return the weblounge request
+   */
+  protected WebloungeRequestImpl createRequest(MockHttpServletRequest request) {
+    return new WebloungeRequestImpl(request, Environment.Production);
+  }
+
+  /**
+   * Task that waits to be released before it finishes.
+   */
+  protected static class TestTask extends RenderingTask {
+
+    /** Latch that releases the task */
+    final CountDownLatch release = new CountDownLatch(1);
+
+    /** The result of the work */
+    boolean success = true;
+
+    /** The site that the work was done for */
+    volatile Site site = null;
+
+    /** The user that the work was done for */
+    volatile User user = null;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.dispatcher.impl.handler.RenderingTask#render()
+     */
+    @Override
+    protected boolean render() throws Exception {
+      release.await();
+      site = SecurityUtils.getSite();
+      user = SecurityUtils.getUser();
+      return success;
+    }
+
+  }
+
+  /**
+   * Answer that records how often and by which thread it was called.
+   */
+  protected static class TestAnswer implements Runnable {
+
+    /** Number of answers */
+    volatile int answers = 0;
+
+    /** The answering thread */
+    volatile Thread thread = null;
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+      answers++;
+      thread = Thread.currentThread();
+    }
+
+  }
+
+  /**
+   * Request of a container that supports asynchronous processing.
+   */
+  protected static class AsyncRequest extends MockHttpServletRequest {
+
+    /** The asynchronous context */
+    TestAsyncContext async = null;
+
+    /**
+     * Creates a new request.
+     */
+    AsyncRequest() {
+      super("GET", "/a");
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest#isAsyncSupported()
+     */
+    @Override
+    public boolean isAsyncSupported() {
+      return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest#isAsyncStarted()
+     */
+    @Override
+    public boolean isAsyncStarted() {
+      return async != null && !async.completed;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest#startAsync()
+     */
+    @Override
+    public AsyncContext startAsync() {
+      async = new TestAsyncContext();
+      return async;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest#getAsyncContext()
+     */
+    @Override
+    public AsyncContext getAsyncContext() {
+      if (async == null)
+        throw new IllegalStateException("Request is not in asynchronous mode");
+      return async;
+    }
+
+  }
+
+  /**
+   * Asynchronous context that records its listeners and whether it has been
+   * completed.
+   */
+  protected static class TestAsyncContext implements AsyncContext {
+
+    /** The listeners */
+    final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+
+    /** The timeout */
+    long timeout = 0;
+
+    /** True if the request has been completed */
+    volatile boolean completed = false;
+
+    public ServletRequest getRequest() {
+      return null;
+    }
+
+    public ServletResponse getResponse() {
+      return null;
+    }
+
+    public boolean hasOriginalRequestAndResponse() {
+      return true;
+    }
+
+    public void dispatch() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void dispatch(String path) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void dispatch(ServletContext context, String path) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void complete() {
+      if (completed)
+        throw new IllegalStateException("Request has already been completed");
+      completed = true;
+    }
+
+    public void start(Runnable run) {
+      run.run();
+    }
+
+    public void addListener(AsyncListener listener) {
+      listeners.add(listener);
+    }
+
+    public void addListener(AsyncListener listener,
+        ServletRequest servletRequest, ServletResponse servletResponse) {
+      listeners.add(listener);
+    }
+
+    public <T extends AsyncListener> T createListener(Class<T> clazz) {
+      throw new UnsupportedOperationException();
+    }
+
+    public void setTimeout(long timeout) {
+      this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+      return timeout;
+    }
+
+  }
+
+}
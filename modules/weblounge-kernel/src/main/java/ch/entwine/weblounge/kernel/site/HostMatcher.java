@@ -0,0 +1,325 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.kernel.site;
+
+import ch.entwine.weblounge.common.site.Site;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable lookup structure that finds the site for a host name.
+ * <p>
+ * Host names without wildcards are kept in a hash map. Host names containing
+ * wildcards like <code>*.entwinemedia.com</code> are compiled into a prefix
+ * tree of their labels in reverse order, so a host name is matched against all
+ * of them by walking down the tree once. A label consisting of a single
+ * <code>*</code> matches one or more labels, while a <code>*</code> within a
+ * label such as <code>dev-*</code> matches characters within that label only.
+ * Literal labels take precedence over wildcards, so the most specific host name
+ * wins.
+ * <p>
+ * The results of the lookups are kept in two caches of limited size, one for
+ * host names that were matched and one for host names that were not. Since a
+ * new matcher is compiled whenever the registered sites change, the caches
+ * never need to be invalidated.
+ */
+final class HostMatcher {
+
+  /** Default maximum number of host names in each of the lookup caches */
+  static final int DEFAULT_CACHE_SIZE = 1024;
+
+  /** The wildcard character */
+  private static final char WILDCARD = '*';
+
+  /** The label separator */
+  private static final char SEPARATOR = '.';
+
+  /** Sites by host name without wildcards */
+  private final Map<String, Site> hosts = new HashMap<String, Site>();
+
+  /** The host names with wildcards */
+  private final Node wildcards = new Node();
+
+  /** Maximum number of host names in each cache */
+  private final int cacheSize;
+
+  /** Host names that were matched */
+  private final ConcurrentMap<String, Site> matches;
+
+  /** Host names that were not matched */
+  private final ConcurrentMap<String, Boolean> misses;
+
+  /**
+   * Creates a host matcher for the given host names with lookup caches of
+   * {@link #DEFAULT_CACHE_SIZE} host names.
+   * 
+   * @param sitesByHost
+   *          the sites by host name
+   */
+  HostMatcher(Map<String, Site> sitesByHost) {
+    this(sitesByHost, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a host matcher for the given host names with lookup caches of
+   * <code>cacheSize</code> host names.
+   * 
+   * @param sitesByHost
+   *          the sites by host name
+   * @param cacheSize
+   *          the maximum number of host names per cache
+   */
+  HostMatcher(Map<String, Site> sitesByHost, int cacheSize) {
+    this.cacheSize = cacheSize;
+    this.matches = new ConcurrentHashMap<String, Site>(Math.min(cacheSize, 64));
+    this.misses = new ConcurrentHashMap<String, Boolean>(Math.min(cacheSize, 64));
+    for (Map.Entry<String, Site> entry : sitesByHost.entrySet()) {
+      String host = entry.getKey().toLowerCase(Locale.ENGLISH);
+      if (host.indexOf(WILDCARD) < 0)
+        hosts.put(host, entry.getValue());
+      else
+        wildcards.add(split(host), entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the site that is registered for <code>host</code> or
+   * <code>null</code> if there is none.
+   * 
+   * @param host
+   *          the host name
+   * @return the site
+   */
+  Site match(String host) {
+    Site site = hosts.get(host);
+    if (site != null)
+      return site;
+
+    // Try the caches
+    site = matches.get(host);
+    if (site != null || misses.containsKey(host))
+      return site;
+
+    String normalizedHost = host.toLowerCase(Locale.ENGLISH);
+    site = hosts.get(normalizedHost);
+    if (site == null)
+      site = wildcards.match(split(normalizedHost), 0);
+
+    // Remember the result. Once a cache is full, it is discarded and
+    // populated again with what is requested from then on.
+    if (site != null) {
+      if (matches.size() >= cacheSize)
+        matches.clear();
+      matches.put(host, site);
+    } else {
+      if (misses.size() >= cacheSize)
+        misses.clear();
+      misses.put(host, Boolean.TRUE);
+    }
+
+    return site;
+  }
+
+  /**
+   * Returns the number of host names in the lookup caches.
+   * 
+   * @return the number of cached host names
+   */
+  int getCachedHosts() {
+    return matches.size() + misses.size();
+  }
+
+  /**
+   * Returns the labels of <code>host</code> in reverse order, starting with
+   * the top level domain.
+   * 
+   * @param host
+   *          the host name
+   * @return the labels
+   */
+  private static String[] split(String host) {
+    List<String> labels = new ArrayList<String>();
+    int end = host.length();
+    for (int i = end - 1; i >= -1; i--) {
+      if (i == -1 || host.charAt(i) == SEPARATOR) {
+        labels.add(host.substring(i + 1, end));
+        end = i;
+      }
+    }
+    return labels.toArray(new String[labels.size()]);
+  }
+
+  /**
+   * Returns <code>true</code> if <code>label</code> matches
+   * <code>pattern</code>, where every <code>*</code> in the pattern stands for
+   * any number of characters.
+   * 
+   * @param pattern
+   *          the label pattern
+   * @param label
+   *          the label
+   * @return <code>true</code> if the label matches
+   */
+  static boolean matches(String pattern, String label) {
+    int p = 0;
+    int l = 0;
+    int star = -1;
+    int backtrack = 0;
+    while (l < label.length()) {
+      if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+        star = p++;
+        backtrack = l;
+      } else if (p < pattern.length() && pattern.charAt(p) == label.charAt(l)) {
+        p++;
+        l++;
+      } else if (star >= 0) {
+        p = star + 1;
+        l = ++backtrack;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length() && pattern.charAt(p) == WILDCARD)
+      p++;
+    return p == pattern.length();
+  }
+
+  /**
+   * Node in the prefix tree of reversed host name labels.
+   */
+  private static final class Node {
+
+    /** Child nodes by literal label */
+    private Map<String, Node> labels = Collections.emptyMap();
+
+    /** Label patterns containing a wildcard */
+    private String[] patterns = new String[0];
+
+    /** Child nodes by label pattern */
+    private Node[] patternNodes = new Node[0];
+
+    /** Child node for labels that consist of a single wildcard */
+    private Node any = null;
+
+    /** The site whose host name ends at this node */
+    private Site site = null;
+
+    /**
+     * Adds the site for the given labels.
+     * 
+     * @param host
+     *          the labels in reverse order
+     * @param site
+     *          the site
+     */
+    void add(String[] host, Site site) {
+      Node node = this;
+      for (String label : host) {
+        Node child = null;
+        if (label.length() == 1 && label.charAt(0) == WILDCARD) {
+          if (node.any == null)
+            node.any = new Node();
+          child = node.any;
+        } else if (label.indexOf(WILDCARD) >= 0) {
+          for (int i = 0; i < node.patterns.length && child == null; i++) {
+            if (node.patterns[i].equals(label))
+              child = node.patternNodes[i];
+          }
+          if (child == null) {
+            child = new Node();
+            int n = node.patterns.length;
+            String[] patterns = new String[n + 1];
+            Node[] patternNodes = new Node[n + 1];
+            System.arraycopy(node.patterns, 0, patterns, 0, n);
+            System.arraycopy(node.patternNodes, 0, patternNodes, 0, n);
+            patterns[n] = label;
+            patternNodes[n] = child;
+            node.patterns = patterns;
+            node.patternNodes = patternNodes;
+          }
+        } else {
+          if (node.labels.isEmpty())
+            node.labels = new HashMap<String, Node>();
+          child = node.labels.get(label);
+          if (child == null) {
+            child = new Node();
+            node.labels.put(label, child);
+          }
+        }
+        node = child;
+      }
+      if (node.site == null)
+        node.site = site;
+    }
+
+    /**
+     * Returns the site that matches the labels starting at
+     * <code>index</code>, preferring literal labels over patterns and patterns
+     * over labels consisting of a single wildcard.
+     * 
+     * @param host
+     *          the labels in reverse order
+     * @param index
+     *          index of the next label
+     * @return the site or <code>null</code>
+     */
+    Site match(String[] host, int index) {
+      if (index == host.length)
+        return site;
+      String label = host[index];
+
+      Node child = labels.get(label);
+      if (child != null) {
+        Site match = child.match(host, index + 1);
+        if (match != null)
+          return match;
+      }
+
+      for (int i = 0; i < patterns.length; i++) {
+        if (matches(patterns[i], label)) {
+          Site match = patternNodes[i].match(host, index + 1);
+          if (match != null)
+            return match;
+        }
+      }
+
+      // A single wildcard consumes one or more labels
+      if (any != null) {
+        for (int i = index + 1; i <= host.length; i++) {
+          Site match = any.match(host, i);
+          if (match != null)
+            return match;
+        }
+      }
+
+      return null;
+    }
+
+  }
+
+}
@@ -76,6 +76,9 @@ public class SiteManager {
   /** Maps server names to sites */
   private Map<String, Site> sitesByServerName = new HashMap<String, Site>();
 
+  /** The compiled server names */
+  private volatile HostMatcher hostMatcher = new HostMatcher(sitesByServerName);
+
   /** Maps sites to osgi bundles */
   private Map<Site, Bundle> siteBundles = new HashMap<Site, Bundle>();
 
@@ -190,39 +193,10 @@ public class SiteManager {
    * @return the site
    */
   public Site findSiteByURL(URL url) {
-    String hostName = url.getHost();
-    Site site = sitesByServerName.get(hostName);
-    if (site != null)
-      return site;
-
-    // There is obviously no direct match. Therefore, try to find a
-    // wildcard match
-    synchronized (sitesLock) {
-      for (Map.Entry<String, Site> e : sitesByServerName.entrySet()) {
-        String siteUrl = e.getKey();
-
-        try {
-          // convert the host wildcard (ex. *.domain.tld) to a valid regex (ex.
-          // .*\.domain\.tld)
-          String alias = siteUrl.replace(".", "\\.");
-          alias = alias.replace("*", ".*");
-          if (hostName.matches(alias)) {
-            site = e.getValue();
-            logger.info("Registering {} to site '{}', matching url {}", new Object[] {
-                url,
-                site.getIdentifier(),
-                siteUrl });
-            sitesByServerName.put(hostName, site);
-            return site;
-          }
-        } catch (PatternSyntaxException ex) {
-          logger.warn("Error while trying to find a host wildcard match: ".concat(ex.getMessage()));
-        }
-      }
-    }
-
-    logger.debug("Lookup for {} did not match any site", url);
-    return null;
+    Site site = hostMatcher.match(url.getHost());
+    if (site == null)
+      logger.debug("Lookup for {} did not match any site", url);
+    return site;
   }
 
   /**
@@ -335,6 +309,8 @@ public class SiteManager {
         sitesByServerName.put(hostName, site);
       }
 
+      hostMatcher = new HostMatcher(sitesByServerName);
+
     }
 
     logger.debug("Site '{}' registered", site);
@@ -455,6 +431,7 @@ public class SiteManager {
           si.remove();
         }
       }
+      hostMatcher = new HostMatcher(sitesByServerName);
     }
 
     logger.debug("Site {} unregistered", site);
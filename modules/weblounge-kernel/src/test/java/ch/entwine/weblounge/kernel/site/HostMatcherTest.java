@@ -0,0 +1,134 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.kernel.site;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.common.site.Site;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test case for {@link HostMatcher}.
+ */
+public class HostMatcherTest {
+
+  /** The site for www.entwinemedia.com */
+  protected Site www = null;
+
+  /** The site for *.entwinemedia.com */
+  protected Site wildcard = null;
+
+  /** The site for dev-*.test.entwinemedia.com */
+  protected Site dev = null;
+
+  /** The site for www.*.ch */
+  protected Site ch = null;
+
+  /** The host matcher */
+  protected HostMatcher matcher = null;
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    www = createNiceMock(Site.class);
+    wildcard = createNiceMock(Site.class);
+    dev = createNiceMock(Site.class);
+    ch = createNiceMock(Site.class);
+    replay(www, wildcard, dev, ch);
+    Map<String, Site> sites = new HashMap<String, Site>();
+    sites.put("www.entwinemedia.com", www);
+    sites.put("*.entwinemedia.com", wildcard);
+    sites.put("dev-*.test.entwinemedia.com", dev);
+    sites.put("www.*.ch", ch);
+    matcher = new HostMatcher(sites, 4);
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.kernel.site.HostMatcher#match(java.lang.String)}
+   * .
+   */
+  @Test
+  public void testMatch() {
+    assertSame(www, matcher.match("www.entwinemedia.com"));
+    assertSame(www, matcher.match("WWW.EntwineMedia.com"));
+    assertSame(wildcard, matcher.match("test.entwinemedia.com"));
+    assertSame(wildcard, matcher.match("a.b.entwinemedia.com"));
+    assertSame(dev, matcher.match("dev-1.test.entwinemedia.com"));
+    assertSame(wildcard, matcher.match("prod-1.test.entwinemedia.com"));
+    assertSame(ch, matcher.match("www.entwinemedia.ch"));
+    assertSame(ch, matcher.match("www.a.b.ch"));
+    assertNull(matcher.match("entwinemedia.com"));
+    assertNull(matcher.match("www.ch"));
+    assertNull(matcher.match("www.entwinemedia.org"));
+    assertNull(matcher.match(""));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.kernel.site.HostMatcher#getCachedHosts()}.
+   */
+  @Test
+  public void testCache() {
+    assertEquals(0, matcher.getCachedHosts());
+    matcher.match("www.entwinemedia.com");
+    assertEquals(0, matcher.getCachedHosts());
+    assertSame(wildcard, matcher.match("test.entwinemedia.com"));
+    assertSame(wildcard, matcher.match("test.entwinemedia.com"));
+    assertNull(matcher.match("www.entwinemedia.org"));
+    assertNull(matcher.match("www.entwinemedia.org"));
+    assertEquals(2, matcher.getCachedHosts());
+    for (int i = 0; i < 100; i++)
+      assertNull(matcher.match("host" + i + ".example.com"));
+    assertTrue(matcher.getCachedHosts() <= 5);
+    assertSame(wildcard, matcher.match("test.entwinemedia.com"));
+  }
+
+  /**
+   * Test method for
+   * {@link ch.entwine.weblounge.kernel.site.HostMatcher#matches(java.lang.String, java.lang.String)}
+   * .
+   */
+  @Test
+  public void testMatches() {
+    assertTrue(HostMatcher.matches("*", ""));
+    assertTrue(HostMatcher.matches("dev-*", "dev-"));
+    assertTrue(HostMatcher.matches("dev-*", "dev-12"));
+    assertTrue(HostMatcher.matches("*-test", "dev-test"));
+    assertTrue(HostMatcher.matches("a*b*c", "aXXbYYbc"));
+    assertFalse(HostMatcher.matches("dev-*", "prod-1"));
+    assertFalse(HostMatcher.matches("a*b*c", "aXXbYYb"));
+  }
+
+}
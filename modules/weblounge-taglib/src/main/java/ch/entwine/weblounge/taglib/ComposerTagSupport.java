@@ -20,6 +20,7 @@
 
 package ch.entwine.weblounge.taglib;
 
+import ch.entwine.weblounge.common.content.RenderException;
 import ch.entwine.weblounge.common.content.Resource;
 import ch.entwine.weblounge.common.content.ResourceURI;
 import ch.entwine.weblounge.common.content.page.Composer;
@@ -40,6 +41,7 @@ import ch.entwine.weblounge.common.repository.ContentRepositoryException;
 import ch.entwine.weblounge.common.repository.ContentRepositoryUnavailableException;
 import ch.entwine.weblounge.common.request.CacheTag;
 import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
 import ch.entwine.weblounge.common.security.PermissionException;
 import ch.entwine.weblounge.common.security.SystemAction;
 import ch.entwine.weblounge.common.site.Action;
@@ -49,12 +51,16 @@ import ch.entwine.weblounge.common.site.Site;
 import ch.entwine.weblounge.common.url.WebUrl;
 import ch.entwine.weblounge.taglib.content.ComposerTag;
 
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.jsp.JspException;
@@ -800,7 +806,15 @@ public class ComposerTagSupport extends WebloungeTag {
 
       // Render pagelet
       try {
-        renderer.render(request, response);
+        CacheTag[] fragmentTags = null;
+        if (renderer.isFragmentCacheable() && response.isCached() && version == Resource.LIVE && action == null && !RequestUtils.isEditingState(request))
+          fragmentTags = createFragmentCacheTags(pagelet, renderer);
+
+        if (fragmentTags == null)
+          renderer.render(request, response);
+        else
+          renderFragment(renderer, fragmentTags, request, response, writer);
+
         // if (orientation_ == ORIENTATION_VERTICAL) {
         // writer.println("<br class=\"weblounge\"/>");
         // }
@@ -856,6 +870,104 @@ public class ComposerTagSupport extends WebloungeTag {
     }
   }
 
+  /**
+   * Writes the output of <code>renderer</code> from the fragment cache or, if
+   * it is not found there, renders it and stores it as a fragment identified
+   * by <code>fragmentTags</code>.
+   * 
+   * @param renderer
+   *          the pagelet renderer
+   * @param fragmentTags
+   *          the tags identifying the fragment
+   * @param request
+   *          the request
+   * @param response
+   *          the response
+   * @param writer
+   *          the writer
+   * @throws RenderException
+   *           if rendering the pagelet fails
+   * @throws IOException
+   *           if writing the fragment fails
+   */
+  static void renderFragment(PageletRenderer renderer, CacheTag[] fragmentTags,
+      WebloungeRequest request, WebloungeResponse response, Writer writer)
+      throws RenderException, IOException {
+    String fragment = response.getFragment(fragmentTags);
+    if (fragment != null) {
+      logger.debug("Serving pagelet " + renderer + " from the fragment cache");
+      writer.write(fragment);
+      return;
+    }
+
+    long validTime = renderer.getCacheExpirationTime();
+    long recheckTime = renderer.getClientRevalidationTime();
+    PageletFragmentResponse fragmentResponse = new PageletFragmentResponse(response, validTime, recheckTime);
+    renderer.render(request, fragmentResponse);
+    fragment = fragmentResponse.getContent();
+    fragmentResponse.release();
+    writer.write(fragment);
+    if (fragmentResponse.isFragmentCacheable() && fragmentResponse.getCacheExpirationTime() > 0) {
+      validTime = fragmentResponse.getCacheExpirationTime();
+      recheckTime = fragmentResponse.getClientRevalidationTime();
+      response.putFragment(fragmentTags, fragmentResponse.getFragmentTags(), fragment, validTime, recheckTime);
+    }
+  }
+
+  /**
+   * Returns the tags that identify the rendered output of <code>pagelet</code>
+   * in the fragment cache or <code>null</code> if the output cannot be cached.
+   * <p>
+   * Besides the pagelet's location and renderer, the tags include the values
+   * of every dimension that the renderer declared its output to vary by. If
+   * the pagelet is inherited from another page, the path of the page that is
+   * being rendered is included as well, since the output may depend on it.
+   * 
+   * @param pagelet
+   *          the pagelet
+   * @param renderer
+   *          the pagelet renderer
+   * @return the fragment's cache tags
+   */
+  protected CacheTag[] createFragmentCacheTags(Pagelet pagelet,
+      PageletRenderer renderer) {
+    if (pagelet.getURI() == null || pagelet.getURI().getPageURI() == null)
+      return null;
+    String resourceId = pagelet.getURI().getPageURI().getIdentifier();
+    if (resourceId == null || pagelet.getURI().getComposer() == null)
+      return null;
+
+    List<CacheTag> tags = new ArrayList<CacheTag>();
+    tags.add(new CacheTagImpl(CacheTag.Resource, resourceId));
+    tags.add(new CacheTagImpl(CacheTag.Composer, pagelet.getURI().getComposer()));
+    tags.add(new CacheTagImpl(CacheTag.Position, Integer.toString(pagelet.getURI().getPosition())));
+    tags.add(new CacheTagImpl(CacheTag.Module, pagelet.getModule()));
+    tags.add(new CacheTagImpl(CacheTag.Renderer, pagelet.getIdentifier()));
+    tags.add(new CacheTagImpl(CacheTag.Language, request.getLanguage().getIdentifier()));
+
+    // Inherited pagelets are rendered in the context of another page
+    if (targetPage == null || !resourceId.equals(targetPage.getURI().getIdentifier())) {
+      if (targetPage == null || targetPage.getURI().getPath() == null)
+        return null;
+      tags.add(new CacheTagImpl(CacheTag.Url, targetPage.getURI().getPath()));
+    }
+
+    for (String dimension : renderer.getVaryDimensions()) {
+      String value = null;
+      if (PageletRenderer.VARY_USER.equals(dimension)) {
+        value = request.getUser() != null ? request.getUser().getLogin() : null;
+      } else if (dimension.startsWith(PageletRenderer.VARY_PARAMETER)) {
+        String[] values = request.getParameterValues(dimension.substring(PageletRenderer.VARY_PARAMETER.length()));
+        value = values != null ? StringUtils.join(values, ',') : null;
+      } else if (dimension.startsWith(PageletRenderer.VARY_HEADER)) {
+        value = request.getHeader(dimension.substring(PageletRenderer.VARY_HEADER.length()));
+      }
+      tags.add(new CacheTagImpl(dimension, value != null ? value : ""));
+    }
+
+    return tags.toArray(new CacheTag[tags.size()]);
+  }
+
   /**
    * {@inheritDoc}
    * 
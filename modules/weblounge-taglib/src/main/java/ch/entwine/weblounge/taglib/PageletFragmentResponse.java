@@ -0,0 +1,501 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.taglib;
+
+import ch.entwine.weblounge.common.content.page.HTMLHeadElement;
+import ch.entwine.weblounge.common.impl.request.CacheTagSet;
+import ch.entwine.weblounge.common.impl.request.CachedOutputStream;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper that captures the output of a pagelet renderer so that it
+ * can be stored in the cache as a fragment.
+ * <p>
+ * Tags, expiration and revalidation times that are set while rendering are
+ * recorded with the fragment and passed on to the enclosing response. The
+ * fragment is considered not cacheable as soon as the renderer adds elements
+ * to the page's head section, since those would not be replayed on a cache
+ * hit, or if the response is invalidated.
+ */
+final class PageletFragmentResponse extends HttpServletResponseWrapper implements WebloungeResponse {
+
+  /** The enclosing response */
+  private final WebloungeResponse response;
+
+  /** The tags that were added while rendering the fragment */
+  private final CacheTagSet tags = new CacheTagSet();
+
+  /** The captured output of the writer */
+  private CharArrayWriter buffer = null;
+
+  /** The writer */
+  private PrintWriter writer = null;
+
+  /** The captured output of the output stream */
+  private CachedOutputStream os = null;
+
+  /** The fragment's expiration time */
+  private long expirationTime = 0;
+
+  /** The fragment's revalidation time */
+  private long revalidationTime = 0;
+
+  /** True if the fragment may be cached */
+  private boolean cacheable = true;
+
+  /**
+   * Creates a new fragment response wrapping the enclosing response.
+   * 
+   * @param response
+   *          the enclosing response
+   * @param expirationTime
+   *          the fragment's expiration time in milliseconds
+   * @param revalidationTime
+   *          the fragment's revalidation time in milliseconds
+   */
+  PageletFragmentResponse(WebloungeResponse response, long expirationTime,
+      long revalidationTime) {
+    super(response);
+    this.response = response;
+    this.expirationTime = expirationTime;
+    this.revalidationTime = Math.min(revalidationTime, expirationTime);
+  }
+
+  /**
+   * Returns the output that has been captured so far.
+   * 
+   * @return the fragment content
+   * @throws UnsupportedEncodingException
+   *           if the response's character encoding is not supported
+   */
+  String getContent() throws UnsupportedEncodingException {
+    StringBuffer content = new StringBuffer();
+    if (os != null)
+      content.append(os.getContent(getCharacterEncoding()));
+    if (writer != null) {
+      writer.flush();
+      content.append(buffer.toCharArray());
+    }
+    return content.toString();
+  }
+
+  /**
+   * Discards the output that has been captured and returns the buffer of the
+   * output stream to the buffer pool.
+   */
+  void release() {
+    if (os != null)
+      os.release();
+  }
+
+  /**
+   * Returns the tags that were added while rendering the fragment.
+   * 
+   * @return the tags
+   */
+  CacheTag[] getFragmentTags() {
+    return tags.getTags();
+  }
+
+  /**
+   * Returns <code>true</code> if the captured output may be stored in the
+   * cache.
+   * 
+   * @return <code>true</code> if the fragment is cacheable
+   */
+  boolean isFragmentCacheable() {
+    return cacheable && response.isValid();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.ServletResponseWrapper#getOutputStream()
+   */
+  @Override
+  public ServletOutputStream getOutputStream() throws IOException {
+    if (writer != null)
+      throw new IllegalStateException("Writer has already been obtained");
+    if (os == null)
+      os = new CachedOutputStream();
+    return os;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.ServletResponseWrapper#getWriter()
+   */
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (os != null)
+      throw new IllegalStateException("Output stream has already been obtained");
+    if (writer == null) {
+      buffer = new CharArrayWriter();
+      writer = new PrintWriter(buffer);
+    }
+    return writer;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.ServletResponseWrapper#flushBuffer()
+   */
+  @Override
+  public void flushBuffer() throws IOException {
+    if (writer != null)
+      writer.flush();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.ServletResponseWrapper#resetBuffer()
+   */
+  @Override
+  public void resetBuffer() {
+    if (writer != null) {
+      writer.flush();
+      buffer.reset();
+    }
+    if (os != null)
+      os.release();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#startResponse(ch.entwine.weblounge.common.request.CacheTag[],
+   *      long, long)
+   */
+  public boolean startResponse(CacheTag[] uniqueTags, long validTime,
+      long recheckTime) throws IllegalStateException {
+    return response.startResponse(uniqueTags, validTime, recheckTime);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#endResponse()
+   */
+  public void endResponse() throws IllegalStateException {
+    response.endResponse();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getFragment(ch.entwine.weblounge.common.request.CacheTag[])
+   */
+  public String getFragment(CacheTag[] uniqueTags) {
+    return response.getFragment(uniqueTags);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#putFragment(ch.entwine.weblounge.common.request.CacheTag[],
+   *      ch.entwine.weblounge.common.request.CacheTag[], java.lang.String,
+   *      long, long)
+   */
+  public void putFragment(CacheTag[] uniqueTags, CacheTag[] tags,
+      String content, long validTime, long recheckTime) {
+    response.putFragment(uniqueTags, tags, content, validTime, recheckTime);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#setClientRevalidationTime(long)
+   */
+  public void setClientRevalidationTime(long recheckTime) {
+    revalidationTime = Math.min(revalidationTime, recheckTime);
+    response.setClientRevalidationTime(recheckTime);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getClientRevalidationTime()
+   */
+  public long getClientRevalidationTime() {
+    return revalidationTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#setCacheExpirationTime(long)
+   */
+  public void setCacheExpirationTime(long validTime) {
+    expirationTime = Math.min(expirationTime, validTime);
+    revalidationTime = Math.min(revalidationTime, validTime);
+    response.setCacheExpirationTime(validTime);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getCacheExpirationTime()
+   */
+  public long getCacheExpirationTime() {
+    return expirationTime;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#isCached()
+   */
+  public boolean isCached() {
+    return response.isCached();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getModificationDate()
+   */
+  public Date getModificationDate() {
+    return response.getModificationDate();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#setModificationDate(java.util.Date)
+   */
+  public Date setModificationDate(Date modificationDate) {
+    return response.setModificationDate(modificationDate);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#invalidate()
+   */
+  public void invalidate() {
+    cacheable = false;
+    response.invalidate();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#isValid()
+   */
+  public boolean isValid() {
+    return response.isValid();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#addHTMLHeader(ch.entwine.weblounge.common.content.page.HTMLHeadElement)
+   */
+  public void addHTMLHeader(HTMLHeadElement header) {
+    cacheable = false;
+    response.addHTMLHeader(header);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getHTMLHeaders()
+   */
+  public HTMLHeadElement[] getHTMLHeaders() {
+    return response.getHTMLHeaders();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.request.WebloungeResponse#getStatus()
+   */
+  @Override
+  public int getStatus() {
+    return response.getStatus();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.http.HttpServletResponseWrapper#sendError(int,
+   *      java.lang.String)
+   */
+  @Override
+  public void sendError(int error, String msg) throws IOException {
+    cacheable = false;
+    response.sendError(error, msg);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.servlet.http.HttpServletResponseWrapper#sendError(int)
+   */
+  @Override
+  public void sendError(int error) throws IOException {
+    cacheable = false;
+    response.sendError(error);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#addTag(ch.entwine.weblounge.common.request.CacheTag)
+   */
+  public boolean addTag(CacheTag tag) {
+    tags.add(tag);
+    return response.addTag(tag);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#addTag(java.lang.String,
+   *      java.lang.String)
+   */
+  public boolean addTag(String name, String value) {
+    tags.add(name, value);
+    return response.addTag(name, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#addTags(java.util.Collection)
+   */
+  public boolean addTags(Collection<CacheTag> tags) {
+    this.tags.addAll(tags);
+    return response.addTags(tags);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#clearTags()
+   */
+  public void clearTags() {
+    tags.clear();
+    response.clearTags();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#containsTag(ch.entwine.weblounge.common.request.CacheTag)
+   */
+  public boolean containsTag(CacheTag tag) {
+    return response.containsTag(tag);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#containsTag(java.lang.String)
+   */
+  public boolean containsTag(String name) {
+    return response.containsTag(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#containsTag(java.lang.String,
+   *      java.lang.String)
+   */
+  public boolean containsTag(String name, String value) {
+    return response.containsTag(name, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#tags()
+   */
+  public Iterator<CacheTag> tags() {
+    return response.tags();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#removeTag(ch.entwine.weblounge.common.request.CacheTag)
+   */
+  public boolean removeTag(CacheTag tag) {
+    tags.remove(tag);
+    return response.removeTag(tag);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#removeTags(java.lang.String)
+   */
+  public boolean removeTags(String name) {
+    tags.removeAllByTagName(name);
+    return response.removeTags(name);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#removeTag(java.lang.String,
+   *      java.lang.String)
+   */
+  public boolean removeTag(String name, String value) {
+    tags.remove(name, value);
+    return response.removeTag(name, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#isTagged()
+   */
+  public boolean isTagged() {
+    return response.isTagged();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see ch.entwine.weblounge.common.content.Taggable#getTags()
+   */
+  public CacheTag[] getTags() {
+    return response.getTags();
+  }
+
+}
@@ -0,0 +1,243 @@
+/*
+ *  Weblounge: Web Content Management System
+ *  Copyright (c) 2003 - 2011 The Weblounge Team
+ *  http://entwinemedia.com/weblounge
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software Foundation
+ *  Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package ch.entwine.weblounge.taglib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ch.entwine.weblounge.cache.impl.CacheServiceImpl;
+import ch.entwine.weblounge.common.content.RenderException;
+import ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl;
+import ch.entwine.weblounge.common.impl.request.CacheTagImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeRequestImpl;
+import ch.entwine.weblounge.common.impl.request.WebloungeResponseImpl;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletRequest;
+import ch.entwine.weblounge.common.impl.testing.MockHttpServletResponse;
+import ch.entwine.weblounge.common.request.CacheTag;
+import ch.entwine.weblounge.common.request.WebloungeRequest;
+import ch.entwine.weblounge.common.request.WebloungeResponse;
+import ch.entwine.weblounge.common.site.Environment;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ * Test case for {@link PageletFragmentResponse} and the fragment cache path in
+ * {@link ComposerTagSupport#renderFragment(ch.entwine.weblounge.common.content.page.PageletRenderer, CacheTag[], WebloungeRequest, WebloungeResponse, java.io.Writer)}
+ * .
+ */
+public class PageletFragmentResponseTest {
+
+  /** The response cache */
+  protected CacheServiceImpl cache = null;
+
+  /** The cache's disk store */
+  protected File diskStore = null;
+
+  /** The pagelet renderer */
+  protected CountingRenderer renderer = null;
+
+  /** The tags identifying the fragment */
+  protected CacheTag[] fragmentTags = new CacheTag[] {
+      new CacheTagImpl(CacheTag.Url, "/a"),
+      new CacheTagImpl(CacheTag.Position, "0") };
+
+  /** The tag that is added by the renderer */
+  protected CacheTag contentTag = new CacheTagImpl(CacheTag.Url, "/b");
+
+  /** The rendered content */
+  protected String content = "<p>Hello World!</p>";
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    diskStore = new File(FileUtils.getTempDirectory(), "pageletfragmentresponsetest");
+    cache = new CacheServiceImpl("test", "Test", diskStore.getAbsolutePath());
+    Dictionary<String, String> properties = new Hashtable<String, String>();
+    properties.put(CacheServiceImpl.OPT_DEBUG, "false");
+    cache.updated(properties);
+    renderer = new CountingRenderer();
+  }
+
+  /**
+   * @throws java.lang.Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    cache.shutdown();
+    FileUtils.deleteQuietly(diskStore);
+  }
+
+  /**
+   * Test that a fragment is rendered on a miss and served from the cache on
+   * the next request.
+   */
+  @Test
+  public void testMissAndHit() throws Exception {
+    assertNull(createResponse().getFragment(fragmentTags));
+
+    // A miss renders the pagelet and stores the fragment
+    assertEquals(content, renderFragment());
+    assertEquals(1, renderer.renderings);
+
+    // A hit replays the fragment without rendering
+    assertEquals(content, renderFragment());
+    assertEquals(1, renderer.renderings);
+  }
+
+  /**
+   * Test that invalidating a tag that was added while rendering the fragment
+   * removes the fragment from the cache.
+   */
+  @Test
+  public void testInvalidationByTag() throws Exception {
+    assertEquals(content, renderFragment());
+    assertEquals(content, renderFragment());
+    assertEquals(1, renderer.renderings);
+
+    // Unrelated tags leave the fragment alone
+    cache.invalidate(new CacheTag[] { new CacheTagImpl(CacheTag.Url, "/c") }, false);
+    assertEquals(content, renderFragment());
+    assertEquals(1, renderer.renderings);
+
+    // The renderer's tag removes it
+    cache.invalidate(new CacheTag[] { contentTag }, false);
+    assertEquals(content, renderFragment());
+    assertEquals(2, renderer.renderings);
+  }
+
+  /**
+   * Test that fragments adding elements to the page header are not cached.
+   */
+  @Test
+  public void testHeadElements() throws Exception {
+    PageletFragmentResponse response = new PageletFragmentResponse(createResponse(), 60000, 60000);
+    assertTrue(response.isFragmentCacheable());
+    response.addHTMLHeader(null);
+    assertFalse(response.isFragmentCacheable());
+  }
+
+  /**
+   * Test that the fragment response records tags, expiration and revalidation
+   * times set by the renderer.
+   */
+  @Test
+  public void testFragmentState() throws Exception {
+    PageletFragmentResponse response = new PageletFragmentResponse(createResponse(), 60000, 120000);
+    assertEquals(60000, response.getClientRevalidationTime());
+    response.addTag(contentTag);
+    assertEquals(1, response.getFragmentTags().length);
+    assertEquals(contentTag, response.getFragmentTags()[0]);
+    response.setCacheExpirationTime(30000);
+    assertEquals(30000, response.getCacheExpirationTime());
+    response.getWriter().write(content);
+    assertEquals(content, response.getContent());
+    response.invalidate();
+    assertFalse(response.isFragmentCacheable());
+  }
+
+  /**
+   * Runs the fragment cache path with a new request and response and returns
+   * the output.
+   *
+   * @return the output
+   * @throws IOException
+   *           if writing the output fails
+   */
+  protected String renderFragment() throws IOException {
+    StringWriter writer = new StringWriter();
+    ComposerTagSupport.renderFragment(renderer, fragmentTags, createRequest(), createResponse(), writer);
+    return writer.toString();
+  }
+
+  /**
+   * Returns a new request.
+   *
+   * @return the request
+   */
+  protected WebloungeRequestImpl createRequest() {
+    return new WebloungeRequestImpl(new MockHttpServletRequest("GET", "/a"), Environment.Production);
+  }
+
+  /**
+   * Returns a new response that is backed by the cache.
+   *
+   * @return the response
+   */
+  protected WebloungeResponseImpl createResponse() {
+    WebloungeResponseImpl response = new WebloungeResponseImpl(new MockHttpServletResponse());
+    response.setRequest(createRequest());
+    response.setResponseCache(cache);
+    return response;
+  }
+
+  /**
+   * Pagelet renderer that writes a static piece of content and counts how
+   * often it has been asked to render.
+   */
+  protected class CountingRenderer extends PageletRendererImpl {
+
+    /** Number of renderings */
+    int renderings = 0;
+
+    /**
+     * Creates a new fragment cacheable renderer.
+     */
+    CountingRenderer() {
+      super("counting");
+      setFragmentCacheable(true);
+      setCacheExpirationTime(60000);
+      setClientRevalidationTime(60000);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see ch.entwine.weblounge.common.impl.content.page.PageletRendererImpl#render(ch.entwine.weblounge.common.request.WebloungeRequest,
+     *      ch.entwine.weblounge.common.request.WebloungeResponse)
+     */
+    @Override
+    public void render(WebloungeRequest request, WebloungeResponse response)
+        throws RenderException {
+      renderings++;
+      response.addTag(contentTag);
+      try {
+        response.getWriter().write(content);
+      } catch (IOException e) {
+        throw new RenderException(this, e);
+      }
+    }
+
+  }
+
+}